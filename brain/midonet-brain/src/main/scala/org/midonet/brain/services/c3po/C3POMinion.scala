@@ -76,14 +76,18 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
             val txns = neutronImporter.getTasksSince(lastTaskId)
             log.debug(".. {} transaction(s) to import: {}", txns.size, txns)
 
-            for (txn <- txns) {
-                if (txn.isFlushTxn) {
+            // Translate the transactions as they're executed, so that those
+            // before a failing one are still committed.
+            var rest = txns
+            while (rest.nonEmpty) {
+                val (run, next) = rest.span(!_.isFlushTxn)
+                dataMgr.interpretAndExecTxns(run.view.map(translateTxn))
+                if (next.nonEmpty) {
                     log.info(".. flushing storage")
                     dataMgr.flushTopology()
-                    neutronImporter.deleteTask(txn.lastTaskId)
-                } else {
-                    dataMgr.interpretAndExecTxn(translateTxn(txn))
+                    neutronImporter.deleteTask(next.head.lastTaskId)
                 }
+                rest = next.drop(1)
             }
         } catch {
             case ex: Throwable =>
@@ -112,7 +116,10 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
     }
 
     private def initDataManager(): C3POStorageManager = {
-        val dataMgr = new C3POStorageManager(storage)
+        val dataMgr = new C3POStorageManager(storage, config.maxBatchTxns,
+                                             config.maxBatchMs,
+                                             config.maxCachedObjects)
+        val readStorage = dataMgr.translationStorage
         List(classOf[FloatingIp] -> new FloatingIpTranslator,
              classOf[NeutronHealthMonitor] -> new HealthMonitorTranslator,
              classOf[NeutronLoadBalancerPool] -> new LoadBalancerPoolTranslator,
@@ -120,13 +127,13 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
                 new LoadBalancerPoolHealthMonitorTranslator,
              classOf[NeutronLoadBalancerPoolMember] ->
                 new LoadBalancerPoolMemberTranslator,
-             classOf[NeutronNetwork] -> new NetworkTranslator(storage),
-             classOf[NeutronRouter] -> new RouterTranslator(storage),
-             classOf[NeutronSubnet] -> new SubnetTranslator(storage),
-             classOf[NeutronPort] -> new PortTranslator(storage),
-             classOf[SecurityGroup] -> new SecurityGroupTranslator(storage),
+             classOf[NeutronNetwork] -> new NetworkTranslator(readStorage),
+             classOf[NeutronRouter] -> new RouterTranslator(readStorage),
+             classOf[NeutronSubnet] -> new SubnetTranslator(readStorage),
+             classOf[NeutronPort] -> new PortTranslator(readStorage),
+             classOf[SecurityGroup] -> new SecurityGroupTranslator(readStorage),
              classOf[VIP] -> new VipTranslator,
-             classOf[PortBinding] -> new PortBindingTranslator(storage)
+             classOf[PortBinding] -> new PortBindingTranslator(readStorage)
         ).asInstanceOf[List[(Class[Message], NeutronTranslator[Message])]]
          .foreach(pair => dataMgr.registerTranslator(pair._1, pair._2))
 
@@ -154,6 +161,23 @@ trait C3POConfig extends ScheduledMinionConfig[C3POMinion] {
     @ConfigLong(key = "period_ms", defaultValue = 1000)
     override def periodMs: Long
 
+    /** The maximum number of consecutive Neutron transactions that are
+      * committed to the storage at once, when they don't depend on each
+      * other. One commits each transaction on its own. */
+    @ConfigInt(key = "max_batch_txns", defaultValue = 1)
+    def maxBatchTxns: Int
+
+    /** The time after which the transactions batched since the first one
+      * was translated are committed. */
+    @ConfigLong(key = "max_batch_ms", defaultValue = 500)
+    def maxBatchMs: Long
+
+    /** The maximum number of objects read by the translators that are kept
+      * across transactions, and watched for changes. Zero keeps them for the
+      * translation of one transaction only. */
+    @ConfigInt(key = "max_cached_objects", defaultValue = 0)
+    def maxCachedObjects: Int
+
     @ConfigString(key = "connection_str")
     def connectionString: String
 
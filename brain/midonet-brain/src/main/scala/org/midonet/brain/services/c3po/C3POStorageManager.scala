@@ -19,9 +19,13 @@ package org.midonet.brain.services.c3po
 import java.util.concurrent.TimeUnit
 import java.util.{HashMap => JHashMap, Map => JMap, UUID => JUUID}
 
+import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.concurrent.Await
 import scala.concurrent.duration.Duration
+import scala.util.control.NonFatal
 
+import com.google.protobuf.Descriptors.FieldDescriptor
 import com.google.protobuf.Message
 
 import org.slf4j.LoggerFactory
@@ -29,6 +33,7 @@ import org.slf4j.LoggerFactory
 import org.midonet.brain.services.c3po.translators.{TranslationException, NeutronTranslator}
 import org.midonet.cluster.data.storage._
 import org.midonet.cluster.models.C3PO.C3POState
+import org.midonet.cluster.models.Commons
 import org.midonet.cluster.util.UUIDUtil.toProto
 
 object C3POStorageManager {
@@ -78,12 +83,28 @@ object C3POStorageManager {
 }
 
 /** C3PO that translates an operation on an external model into corresponding
-  * storage operations on internal Mido models. */
-final class C3POStorageManager(storage: Storage) {
+  * storage operations on internal Mido models.
+  *
+  * @param maxBatchTxns the maximum number of consecutive transactions that
+  *                     interpretAndExecTxns() commits at once
+  * @param maxBatchMs the time after which interpretAndExecTxns() commits the
+  *                   transactions batched since the first one was translated
+  * @param maxCachedObjects the maximum number of objects that the
+  *                         translation storage keeps across transactions
+  */
+final class C3POStorageManager(storage: Storage,
+                               maxBatchTxns: Int = 1,
+                               maxBatchMs: Long = 0,
+                               maxCachedObjects: Int = 0) {
     import org.midonet.brain.services.c3po.C3POStorageManager._
 
     private val log = LoggerFactory.getLogger(classOf[C3POStorageManager])
 
+    /** The storage that the translators must read from for
+      * interpretAndExecTxns() to tell which transactions it can commit
+      * together, and for the objects that they read to be cached. */
+    val translationStorage = new TranslationStorage(storage, maxCachedObjects)
+
     private val apiTranslators = new JHashMap[Class[_], NeutronTranslator[_]]()
     private var initialized = false
 
@@ -132,6 +153,7 @@ final class C3POStorageManager(storage: Storage) {
     /** Flushes the current storage preparing for a reimport. */
     @throws[ProcessingException]
     def flushTopology(): Unit = try {
+        translationStorage.invalidateAll()
         storage.flush()
         initStorageManagerState()
     } catch {
@@ -144,17 +166,195 @@ final class C3POStorageManager(storage: Storage) {
     @throws[ProcessingException]
     def interpretAndExecTxn(txn: neutron.Transaction): Unit = {
         assert(initialized)
+        exec(translate(txn))
+    }
+
+    /** Interprets and executes the transactions in order, as
+      * interpretAndExecTxn() does for each of them, but commits consecutive
+      * transactions at once when the translation of each one doesn't depend
+      * on the transactions before it in the batch: that is, when it didn't
+      * read any object that they write, or whose back-references the storage
+      * updates for them. A batch is committed when it has maxBatchTxns
+      * transactions, or when maxBatchMs have passed since its first
+      * transaction was translated.
+      *
+      * The last processed task ID is updated with each commit, so that it
+      * always reflects the transactions committed. A transaction whose
+      * translation fails is translated again once the batch before it is
+      * committed, as it may read objects that the batch creates. If a batch
+      * fails, its transactions are executed one by one, and the processing
+      * stops at the first one that fails. */
+    @throws[ProcessingException]
+    def interpretAndExecTxns(txns: Iterable[neutron.Transaction]): Unit = {
+        assert(initialized)
+        val batch = new TxnBatch
         try {
-            val newState = c3poState(txn.lastTaskId)
-            val midoOps = txn.tasks.flatMap { task =>
-                toPersistenceOps(task.asInstanceOf[neutron.Task[Message]])
-            } ++ List(UpdateOp(newState))
+            for (txn <- txns) {
+                if (batch.isFull)
+                    batch.commit()
+                var translated = try translate(txn) catch {
+                    case NonFatal(e) if batch.nonEmpty =>
+                        // The translation may have failed to read an object
+                        // that the batch creates, which only the reads that
+                        // succeed tell: translate it again with the changes
+                        // of the batch committed before failing.
+                        log.debug(s"Failed to translate transaction " +
+                                  s"${txn.txnId} after uncommitted ones, " +
+                                  "committing them first", e)
+                        batch.commit()
+                        translate(txn)
+                }
+                if (batch.dependsOn(translated)) {
+                    // Translate the transaction again with the changes of the
+                    // batch committed.
+                    batch.commit()
+                    translated = translate(txn)
+                }
+                batch += translated
+            }
+        } catch {
+            case NonFatal(e) =>
+                batch.commit()
+                throw e
+        }
+        batch.commit()
+    }
+
+    /** A transaction translated into the operations on the storage, with the
+      * IDs of the objects read by its translation, and of those that its
+      * operations modify or reference. The transaction closes the batch if
+      * the objects that its operations modify can't be told: then no other
+      * transaction can be committed with it after it. A transaction that
+      * deletes objects may modify more objects than those, as the storage
+      * cascades the deletions. */
+    private class TranslatedTxn(val txn: neutron.Transaction,
+                                val ops: Seq[PersistenceOp]) {
+        val readIds = translationStorage.readIds.toSet
+        val readAll = translationStorage.readAll
+        val writeIds = new mutable.HashSet[Any]
+        var closesBatch = false
+        var deletes = false
 
-            storage.multi(midoOps)
+        for (op <- ops) op match {
+            case CreateOp(obj: Message) =>
+                writeIds ++= referencedIds(obj)
+            case UpdateOp(obj: Message, _) =>
+                writeIds ++= referencedIds(obj)
+                // The object loses the back-references of its old version.
+                idOf(obj).flatMap(translationStorage.readObject(obj.getClass,
+                                                                _)) match {
+                    case Some(old: Message) => writeIds ++= referencedIds(old)
+                    case _ => closesBatch = true
+                }
+            case DeleteOp(clazz, id, _) =>
+                writeIds += id
+                deletes = true
+                translationStorage.readObject(clazz, id) match {
+                    case Some(old: Message) => writeIds ++= referencedIds(old)
+                    case _ => closesBatch = true
+                }
+            case _ =>
+                closesBatch = true
+        }
+    }
+
+    /** The transactions to commit at once. */
+    private class TxnBatch {
+        private val txns = new mutable.ArrayBuffer[TranslatedTxn]
+        private val writeIds = new mutable.HashSet[Any]
+        private var closed = false
+        private var startNanos = 0L
+
+        def nonEmpty: Boolean = txns.nonEmpty
+
+        def isFull: Boolean = txns.nonEmpty && (
+            closed || txns.size >= maxBatchTxns ||
+            System.nanoTime - startNanos >= maxBatchMs * 1000000L)
+
+        def dependsOn(txn: TranslatedTxn): Boolean = txns.nonEmpty && (
+            txn.readAll || txn.readIds.exists(writeIds.contains))
+
+        def +=(txn: TranslatedTxn): Unit = {
+            if (txns.isEmpty)
+                startNanos = System.nanoTime
+            txns += txn
+            writeIds ++= txn.writeIds
+            closed |= txn.closesBatch
+        }
+
+        def commit(): Unit = try {
+            if (txns.size == 1) {
+                exec(txns.head)
+            } else if (txns.size > 1) {
+                invalidate(txns)
+                try {
+                    storage.multi(txns.flatMap(_.ops) :+
+                                  UpdateOp(c3poState(txns.last.txn.lastTaskId)))
+                    log.info(s"Executed ${txns.size} C3PO transactions with " +
+                             s"IDs: ${txns.map(_.txn.txnId).mkString(", ")}.")
+                } catch {
+                    case NonFatal(e) =>
+                        log.warn(s"Failed to execute ${txns.size} C3PO " +
+                                 "transactions at once, executing them one " +
+                                 "by one.", e)
+                        txns foreach exec
+                }
+            }
+        } finally {
+            txns.clear()
+            writeIds.clear()
+            closed = false
+        }
+    }
+
+    /* Drops the objects that the transactions modify from the objects that
+     * the translation storage keeps across transactions. */
+    private def invalidate(txns: Seq[TranslatedTxn]): Unit = {
+        if (txns.exists(txn => txn.closesBatch || txn.deletes))
+            translationStorage.invalidateAll()
+        else
+            txns.foreach(txn => translationStorage.invalidate(txn.writeIds))
+    }
+
+    private def idOf(obj: Message): Option[Any] =
+        Option(obj.getDescriptorForType.findFieldByName("id")) map obj.getField
+
+    /* The IDs of the object and of the objects that it references. */
+    private def referencedIds(obj: Message): Seq[Any] = {
+        val ids = new mutable.ArrayBuffer[Any]
+        for ((field, value) <- obj.getAllFields.asScala
+             if field.getJavaType == FieldDescriptor.JavaType.MESSAGE &&
+                field.getMessageType == Commons.UUID.getDescriptor) {
+            value match {
+                case values: java.util.List[_] => ids ++= values.asScala
+                case id => ids += id
+            }
+        }
+        ids
+    }
+
+    @throws[ProcessingException]
+    private def translate(txn: neutron.Transaction): TranslatedTxn = try {
+        translationStorage.clearReads()
+        new TranslatedTxn(txn, txn.tasks.flatMap { task =>
+            toPersistenceOps(task.asInstanceOf[neutron.Task[Message]])
+        })
+    } catch {
+        case te: TranslationException => throw new ProcessingException(
+                    s"Failed to translate transaction: ${txn.txnId}", te)
+        case pe: ProcessingException => throw pe
+        case e: Throwable => throw new ProcessingException(
+                    s"Failed to execute transaction: ${txn.txnId}", e)
+    }
+
+    @throws[ProcessingException]
+    private def exec(translated: TranslatedTxn): Unit = {
+        val txn = translated.txn
+        invalidate(Seq(translated))
+        try {
+            storage.multi(translated.ops :+ UpdateOp(c3poState(txn.lastTaskId)))
             log.info(s"Executed a C3PO transaction with ID: ${txn.txnId}.")
         } catch {
-            case te: TranslationException => throw new ProcessingException(
-                        s"Failed to translate transaction: ${txn.txnId}", te)
             case se: StorageException => throw new ProcessingException(
                         s"Failed to persist transaction: ${txn.txnId}", se)
             case e: Throwable => throw new ProcessingException(
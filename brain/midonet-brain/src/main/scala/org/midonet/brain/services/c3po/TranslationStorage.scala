@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.brain.services.c3po
+
+import java.util.{LinkedHashMap => JLinkedHashMap, Map => JMap}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.Future
+import scala.util.Success
+
+import rx.Subscriber
+
+import org.midonet.cluster.data.storage.{ReadOnlyStorage, Storage}
+
+/** The view of the storage that the translators read from. It records the
+  * objects read while translating a transaction, so that the
+  * C3POStorageManager can tell whether the translation of a transaction
+  * depends on the operations of the transactions before it that aren't
+  * committed yet.
+  *
+  * An object is read once per transaction: looking it up again returns the
+  * same read, so the translators may start reading the objects that they
+  * will look up ahead of time, and have the reads overlap.
+  *
+  * With maxCachedObjects greater than 0, the objects read are also kept
+  * across transactions, up to that number of objects, and watched for
+  * changes. The C3POStorageManager invalidates the objects that its
+  * transactions modify before executing them, and these aren't kept again
+  * for as long as they're among the last ones modified: watching objects
+  * that change with most transactions costs more than reading them. The
+  * changes made by others are seen as soon as the storage notifies them.
+  *
+  * The translations run on a single thread, which is the only one that may
+  * read the recorded objects. */
+class TranslationStorage(storage: Storage, maxCachedObjects: Int = 0)
+    extends ReadOnlyStorage {
+
+    /* The objects read while translating the current transaction, by class
+     * and ID. */
+    private val reads = new mutable.HashMap[(Class[_], Any), Future[_]]
+    /* The IDs of the objects read or checked for existence. */
+    private val ids = new mutable.HashSet[Any]
+    private var listed = false
+    /* Whether the objects read may be kept across transactions: not when
+     * the transactions committed since they were read may have modified
+     * any object. */
+    private var keepReads = true
+
+    /* The objects kept across transactions, by ID and class, the least
+     * recently read first. The watches remove them from another thread. */
+    private val cache = new JLinkedHashMap[Any, mutable.Map[Class[_],
+                                                            CachedObject]](
+            16, 0.75f, true) {
+        override def removeEldestEntry(
+                eldest: JMap.Entry[Any, mutable.Map[Class[_], CachedObject]])
+        : Boolean = {
+            if (size > maxCachedObjects) {
+                eldest.getValue.values.foreach(_.unsubscribe())
+                true
+            } else false
+        }
+    }
+
+    /* The IDs of the objects last modified by the C3POStorageManager. */
+    private val written = new JLinkedHashMap[Any, Any](16, 0.75f, true) {
+        override def removeEldestEntry(eldest: JMap.Entry[Any, Any]) =
+            size > maxCachedObjects
+    }
+
+    /* An object kept across transactions, with its latest version. */
+    private class CachedObject(clazz: Class[_], id: Any, var value: Any)
+        extends Subscriber[Any] {
+
+        override def onNext(obj: Any): Unit = cache.synchronized {
+            value = obj
+        }
+        override def onCompleted(): Unit = evict()
+        override def onError(e: Throwable): Unit = evict()
+
+        // Unsubscribing may notify the watch again, once the object is
+        // already dropped.
+        private def evict(): Unit = if (!isUnsubscribed) cache.synchronized {
+            val objects = cache.get(id)
+            if ((objects ne null) && objects.get(clazz).exists(_ eq this)) {
+                objects -= clazz
+                if (objects.isEmpty)
+                    cache.remove(id)
+            }
+            unsubscribe()
+        }
+    }
+
+    /** Forgets the objects read so far, and starts the reads of a new
+      * transaction. The objects read successfully are kept across
+      * transactions if there's room for them. */
+    private[c3po] def clearReads(): Unit = {
+        if (maxCachedObjects > 0 && keepReads) {
+            for (((clazz, id), future) <- reads) future.value match {
+                case Some(Success(obj)) => keep(clazz, id, obj)
+                case _ =>
+            }
+        }
+        reads.clear()
+        ids.clear()
+        listed = false
+        keepReads = true
+    }
+
+    /** The IDs of the objects read since the last call to clearReads(). */
+    private[c3po] def readIds: collection.Set[Any] = ids
+
+    /** Whether all the objects of a class were read since the last call to
+      * clearReads(). */
+    private[c3po] def readAll: Boolean = listed
+
+    /** The object of the given class and ID as it was read, if it was. */
+    private[c3po] def readObject(clazz: Class[_], id: Any): Option[Any] =
+        reads.get((clazz, id)).flatMap(_.value) collect {
+            case Success(obj) => obj
+        }
+
+    /** Drops the objects with the given IDs, whatever their class, from the
+      * objects kept across transactions. */
+    private[c3po] def invalidate(ids: Iterable[Any]): Unit =
+        if (maxCachedObjects > 0) cache.synchronized {
+            for (id <- ids) {
+                written.put(id, id)
+                val objects = cache.remove(id)
+                if (objects ne null)
+                    objects.values.foreach(_.unsubscribe())
+            }
+        }
+
+    /** Drops all the objects kept across transactions, and doesn't keep
+      * those read since the last call to clearReads(). */
+    private[c3po] def invalidateAll(): Unit =
+        if (maxCachedObjects > 0) cache.synchronized {
+            keepReads = false
+            val objects = cache.values.asScala.toList
+            cache.clear()
+            objects.foreach(_.values.foreach(_.unsubscribe()))
+        }
+
+    private def keep(clazz: Class[_], id: Any, obj: Any): Unit = {
+        val cached = cache.synchronized {
+            val objects = cache.get(id)
+            if (written.containsKey(id)) {
+                null
+            } else if (objects eq null) {
+                val cached = new CachedObject(clazz, id, obj)
+                cache.put(id, mutable.Map(clazz -> cached))
+                cached
+            } else if (!objects.contains(clazz)) {
+                val cached = new CachedObject(clazz, id, obj)
+                objects(clazz) = cached
+                cached
+            } else null
+        }
+        // The watch notifies the version of the object when it's set, which
+        // replaces the version read if another changed it in the meantime.
+        if (cached ne null)
+            storage.observable(clazz.asInstanceOf[Class[Any]], id)
+                   .subscribe(cached)
+    }
+
+    private def cached[T](clazz: Class[T], id: Any): Option[T] =
+        if (maxCachedObjects > 0) cache.synchronized {
+            val objects = cache.get(id)
+            if (objects eq null) None
+            else objects.get(clazz).map(_.value.asInstanceOf[T])
+        } else None
+
+    override def get[T](clazz: Class[T], id: Any): Future[T] = {
+        ids += id
+        reads.getOrElseUpdate((clazz, id), cached(clazz, id) match {
+            case Some(obj) => Future.successful(obj)
+            case None => storage.get(clazz, id)
+        }).asInstanceOf[Future[T]]
+    }
+
+    override def getAll[T](clazz: Class[T], ids: Seq[_ <: Any])
+    : Seq[Future[T]] = ids.map(get(clazz, _))
+
+    override def getAll[T](clazz: Class[T]): Future[Seq[Future[T]]] = {
+        listed = true
+        storage.getAll(clazz)
+    }
+
+    override def exists(clazz: Class[_], id: Any): Future[Boolean] = {
+        ids += id
+        storage.exists(clazz, id)
+    }
+}
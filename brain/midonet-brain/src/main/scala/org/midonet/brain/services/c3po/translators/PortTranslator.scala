@@ -50,6 +50,7 @@ class PortTranslator(val storage: ReadOnlyStorage)
     import org.midonet.brain.services.c3po.translators.PortTranslator._
 
     override protected def translateCreate(nPort: NeutronPort): MidoOpList = {
+        prefetch(nPort)
         val midoPortBldr: Port.Builder = if (isRouterGatewayPort(nPort)) {
             // TODO Create a router port and set the provider router ID.
             null
@@ -90,13 +91,16 @@ class PortTranslator(val storage: ReadOnlyStorage)
     override protected def translateDelete(id: UUID): MidoOpList = {
         val midoOps = new MidoOpListBuffer
 
+        val mPortFtr = storage.get(classOf[Port], id)
         val nPort = storage.get(classOf[NeutronPort], id).await()
+        prefetch(nPort)
         if (!isFloatingIpPort(nPort))
             midoOps += Delete(classOf[Port], id)
 
         val portContext = initPortContext
         if (isVifPort(nPort)) { // It's a VIF port.
-            val mPort = storage.get(classOf[Port], id).await()
+            val mPort = mPortFtr.await()
+            prefetchChains(mPort)
             // Delete old DHCP host entries
             updateDhcpEntries(nPort,
                               portContext.midoNetworks,
@@ -121,6 +125,9 @@ class PortTranslator(val storage: ReadOnlyStorage)
         // It is assumed that the fixed IPs assigned to a Neutron Port will not
         // be changed.
         val portId = nPort.getId
+        val oldNPortFtr = storage.get(classOf[NeutronPort], portId)
+        if (isVifPort(nPort))
+            prefetch(nPort)
         val mPort = storage.get(classOf[Port], portId).await()
         if ((isVifPort(nPort) || isDhcpPort(nPort)) &&
             mPort.getAdminStateUp != nPort.getAdminStateUp)
@@ -130,7 +137,8 @@ class PortTranslator(val storage: ReadOnlyStorage)
 
         if (isVifPort(nPort)) { // It's a VIF port.
             val portContext = initPortContext
-            val oldNPort = storage.get(classOf[NeutronPort], portId).await()
+            prefetchChains(mPort)
+            val oldNPort = oldNPortFtr.await()
             // Delete old DHCP host entries
             updateDhcpEntries(oldNPort,
                               portContext.midoNetworks,
@@ -159,6 +167,24 @@ class PortTranslator(val storage: ReadOnlyStorage)
             chains: ListBuffer[MidoOp[Chain]],
             updatedIpAddrGrps: ListBuffer[MidoOp[IpAddrGroup]])
 
+    /* Starts reading the objects that the translation looks up for the
+     * fixed IPs and security groups of the port, so that the reads overlap.
+     * The storage returns the same reads when they're looked up. */
+    private def prefetch(nPort: NeutronPort): Unit = {
+        for (ipAlloc <- nPort.getFixedIpsList.asScala)
+            storage.get(classOf[NeutronSubnet], ipAlloc.getSubnetId)
+        if (nPort.getFixedIpsCount > 0)
+            storage.get(classOf[Network], nPort.getNetworkId)
+        for (sgId <- nPort.getSecurityGroupsList.asScala)
+            storage.get(classOf[IpAddrGroup], sgId)
+    }
+
+    /* Starts reading the inbound and outbound chains of the port. */
+    private def prefetchChains(mPort: Port): Unit = {
+        storage.get(classOf[Chain], mPort.getInboundFilterId)
+        storage.get(classOf[Chain], mPort.getOutboundFilterId)
+    }
+
     private def initPortContext =
         PortContext(mutable.Map[UUID, Network.Builder](),
                     mutable.Map[UUID, NeutronSubnet](),
@@ -443,8 +469,9 @@ class PortTranslator(val storage: ReadOnlyStorage)
                             portContext: PortContext) : Option[Gateway] = {
         if (!subnet.hasGatewayIp) return None
         val network = portContext.midoNetworks(subnet.getNetworkId)
+        val portIds = network.getPortIdsList.asScala
         // Find a first logical port that has a peer port with the gateway IP.
-        for (portId <- network.getPortIdsList.asScala) {
+        for (portId <- portIds) {
             val port = storage.get(classOf[Port], portId).await()
             if (port.hasPeerId) {
                 val peer = storage.get(classOf[Port], port.getPeerId).await()
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.brain.services.c3po
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.google.protobuf.Message
+import org.apache.commons.configuration.HierarchicalConfiguration
+import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown => JmhTearDown, _}
+
+import org.midonet.brain.services.c3po.translators.{NetworkTranslator, PortTranslator, SubnetTranslator}
+import org.midonet.cluster.config.ZookeeperConfig
+import org.midonet.cluster.models.Neutron.{NeutronNetwork, NeutronPort, NeutronSubnet}
+import org.midonet.cluster.storage.ZoomProvider
+import org.midonet.cluster.util.IPAddressUtil
+import org.midonet.cluster.util.UUIDUtil.toProto
+import org.midonet.config.ConfigProvider
+import org.midonet.packets.MAC
+
+/**
+ * Measures how long the C3PO storage manager takes to import the creation of
+ * a burst of Neutron ports, one per Neutron transaction, into an in-process
+ * ZooKeeper server. A batch size of 1 commits the transactions one at a
+ * time, as the manager used to. The ports with fixed IPs update the DHCP
+ * entries of their network, so that consecutive ports on the same network
+ * can't share a batch; they're spread over a handful of networks. The
+ * translations read the subnets and networks again for each port, unless
+ * the objects are kept across transactions.
+ */
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+class C3POBatchBenchmark {
+
+    @Param(Array("10000"))
+    var ports: Int = _
+
+    @Param(Array("1", "100"))
+    var maxBatchTxns: Int = _
+
+    @Param(Array("false", "true"))
+    var fixedIps: Boolean = _
+
+    @Param(Array("0", "1000"))
+    var maxCachedObjects: Int = _
+
+    val networks = 10
+
+    var zk: TestingServer = _
+    var curator: CuratorFramework = _
+    var manager: C3POStorageManager = _
+    var txns: Seq[neutron.Transaction] = _
+    var taskId = 0
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        zk = new TestingServer(true)
+        curator = CuratorFrameworkFactory.newClient(zk.getConnectString,
+                                                    new RetryOneTime(1000))
+        curator.start()
+        curator.blockUntilConnected()
+
+        val conf = new HierarchicalConfiguration
+        conf.setProperty("zookeeper.midolman_root_key", "/benchmark")
+        val storage = new ZoomProvider(curator, ConfigProvider
+            .providerForIniConfig(conf).getConfig(classOf[ZookeeperConfig]))
+            .get()
+
+        manager = new C3POStorageManager(storage, maxBatchTxns,
+                                         TimeUnit.MINUTES.toMillis(1),
+                                         maxCachedObjects)
+        val readStorage = manager.translationStorage
+        manager.registerTranslator(classOf[NeutronNetwork],
+                                   new NetworkTranslator(readStorage))
+        manager.registerTranslator(classOf[NeutronSubnet],
+                                   new SubnetTranslator(readStorage))
+        manager.registerTranslator(classOf[NeutronPort],
+                                   new PortTranslator(readStorage))
+        manager.init()
+    }
+
+    @JmhSetup(Level.Iteration)
+    def createNetworks(): Unit = {
+        manager.flushTopology()
+        val subnetIds = for (i <- 0 until networks) yield {
+            val networkId = UUID.randomUUID()
+            val subnetId = UUID.randomUUID()
+            manager.interpretAndExecTxn(txn(NeutronNetwork.newBuilder
+                .setId(networkId).setName(s"network-$i")
+                .setAdminStateUp(true).build))
+            manager.interpretAndExecTxn(txn(NeutronSubnet.newBuilder
+                .setId(subnetId).setNetworkId(networkId)
+                .setCidr(s"10.$i.0.0/16").setIpVersion(4)
+                .setGatewayIp(IPAddressUtil.toProto(s"10.$i.0.1"))
+                .setEnableDhcp(true).build))
+            (networkId, subnetId)
+        }
+
+        txns = for (i <- 0 until ports) yield {
+            val (networkId, subnetId) = subnetIds(i % networks)
+            val port = NeutronPort.newBuilder
+                .setId(UUID.randomUUID()).setNetworkId(networkId)
+                .setMacAddress(MAC.random().toString).setAdminStateUp(true)
+            if (fixedIps) {
+                val n = i / networks + 2
+                port.addFixedIpsBuilder()
+                    .setSubnetId(subnetId)
+                    .setIpAddress(IPAddressUtil.toProto(
+                        s"10.${i % networks}.${n >> 8}.${n & 0xff}"))
+            }
+            txn(port.build)
+        }
+    }
+
+    @JmhTearDown(Level.Trial)
+    def teardown(): Unit = {
+        curator.close()
+        zk.close()
+    }
+
+    private def txn(model: Message): neutron.Transaction = {
+        taskId += 1
+        neutron.Transaction(s"txn-$taskId",
+                            List(neutron.Task(taskId, neutron.Create(model))))
+    }
+
+    @Benchmark
+    def createPorts(): Unit = {
+        manager.interpretAndExecTxns(txns)
+    }
+}
@@ -91,6 +91,9 @@ class C3POMinionTest extends FlatSpec with BeforeAndAfter
         override def isEnabled: Boolean = true
         override def minionClass: String = classOf[C3PO].getName
         override def numThreads: Int = 1
+        override def maxBatchTxns: Int = 10
+        override def maxBatchMs: Long = 1000
+        override def maxCachedObjects: Int = 1000
         override def connectionString: String = DB_CONNECT_STR
         override def user: String = ???
         override def password: String = ???
@@ -19,20 +19,21 @@ package org.midonet.brain.services.c3po
 import java.util
 import java.util.{Map => JMap}
 
-import scala.concurrent.Promise
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Promise}
 
 import com.google.protobuf.Message
 
 import org.junit.runner.RunWith
 import org.mockito.ArgumentMatcher
 import org.mockito.Matchers.{any, anyObject, argThat}
-import org.mockito.Mockito.{doThrow, mock, never, times, verify, when}
+import org.mockito.Mockito.{doThrow, inOrder, mock, never, times, verify, when}
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.{BeforeAndAfterEach, FlatSpec}
 
 import org.midonet.brain.services.c3po.midonet.Create
 import org.midonet.brain.services.c3po.translators.{NetworkTranslator, NeutronTranslator, TranslationException}
-import org.midonet.cluster.data.storage.{CreateOp, DeleteOp, PersistenceOp, Storage, StorageException, UpdateOp}
+import org.midonet.cluster.data.storage.{CreateOp, DeleteOp, NotFoundException, PersistenceOp, Storage, StorageException, UpdateOp}
 import org.midonet.cluster.models.C3PO.C3POState
 import org.midonet.cluster.models.Commons
 import org.midonet.cluster.models.Neutron.{NeutronNetwork, NeutronPort, NeutronRoute}
@@ -49,6 +50,15 @@ object C3POStorageManagerTest {
             }
         })
     }
+
+    /* Matches with a list containing the specified PersistenceOp. */
+    def contains(pOp: PersistenceOp) = {
+        argThat(new ArgumentMatcher[Seq[PersistenceOp]] {
+            override def matches(list: Object) = {
+                list.asInstanceOf[Seq[PersistenceOp]].contains(pOp)
+            }
+        })
+    }
 }
 
 @RunWith(classOf[JUnitRunner])
@@ -255,6 +265,136 @@ class C3POStorageManagerTest extends FlatSpec with BeforeAndAfterEach {
         }
     }
 
+    "Independent Neutron transactions" should "be committed with a single " +
+    "ZOOM.multi call when batched." in {
+        val network2 = neutronNetwork.toBuilder.setId(randomUuidProto).build
+        val midoNetwork2 = midoNetwork.toBuilder.setId(network2.getId).build
+        when(mockNetworkTranslator.translate(neutron.Create(neutronNetwork)))
+                                  .thenReturn(List(Create(midoNetwork)))
+        when(mockNetworkTranslator.translate(neutron.Create(network2)))
+                                  .thenReturn(List(Create(midoNetwork2)))
+        val manager = new C3POStorageManager(storage, 10, 10000)
+        manager.init()
+        manager.registerTranslator(classOf[NeutronNetwork],
+                                   mockNetworkTranslator)
+
+        manager.interpretAndExecTxns(List(
+                txn("txn1", c3poCreate(2, neutronNetwork)),
+                txn("txn2", c3poCreate(3, network2))))
+
+        verify(storage).multi(Seq(CreateOp(neutronNetwork),
+                                  CreateOp(midoNetwork),
+                                  CreateOp(network2),
+                                  CreateOp(midoNetwork2),
+                                  UpdateOp(c3poState(3))))
+        verify(storage, times(1)).multi(any(classOf[Seq[PersistenceOp]]))
+    }
+
+    "A Neutron transaction reading an object written before it" should "be " +
+    "translated again and committed after the transactions before it." in {
+        val manager = new C3POStorageManager(storage, 10, 10000)
+        var portTranslations = 0
+        val portTranslator = new NeutronTranslator[NeutronPort] {
+            override protected def translateCreate(nPort: NeutronPort) = {
+                portTranslations += 1
+                manager.translationStorage.get(classOf[Network],
+                                               nPort.getNetworkId)
+                List(Create(midoPort))
+            }
+            override protected def translateUpdate(nPort: NeutronPort) = Nil
+            override protected def translateDelete(id: Commons.UUID) = Nil
+        }
+        when(mockNetworkTranslator.translate(neutron.Create(neutronNetwork)))
+                                  .thenReturn(List(Create(midoNetwork)))
+        when(storage.get(classOf[Network], networkId))
+            .thenReturn(Promise.successful(midoNetwork).future)
+        manager.init()
+        manager.registerTranslator(classOf[NeutronNetwork],
+                                   mockNetworkTranslator)
+        manager.registerTranslator(classOf[NeutronPort], portTranslator)
+
+        manager.interpretAndExecTxns(List(
+                txn("txn1", c3poCreate(2, neutronNetwork)),
+                txn("txn2", c3poCreate(3, neutronNetworkPort))))
+
+        val order = inOrder(storage)
+        order.verify(storage).multi(Seq(CreateOp(neutronNetwork),
+                                        CreateOp(midoNetwork),
+                                        UpdateOp(c3poState(2))))
+        order.verify(storage).multi(Seq(CreateOp(neutronNetworkPort),
+                                        CreateOp(midoPort),
+                                        UpdateOp(c3poState(3))))
+        assert(portTranslations === 2)
+    }
+
+    "A Neutron transaction failing to read an object created before it" should
+    "be translated again after the transactions before it are committed." in {
+        val manager = new C3POStorageManager(storage, 10, 10000)
+        var portTranslations = 0
+        val portTranslator = new NeutronTranslator[NeutronPort] {
+            override protected def translateCreate(nPort: NeutronPort) = {
+                portTranslations += 1
+                Await.result(manager.translationStorage.get(
+                    classOf[Network], nPort.getNetworkId), 1.second)
+                List(Create(midoPort))
+            }
+            override protected def translateUpdate(nPort: NeutronPort) = Nil
+            override protected def translateDelete(id: Commons.UUID) = Nil
+        }
+        when(mockNetworkTranslator.translate(neutron.Create(neutronNetwork)))
+                                  .thenReturn(List(Create(midoNetwork)))
+        // The network can't be read until its creation is committed.
+        when(storage.get(classOf[Network], networkId))
+            .thenReturn(Promise.failed[Network](
+                            new NotFoundException(classOf[Network],
+                                                  networkId)).future)
+            .thenReturn(Promise.successful(midoNetwork).future)
+        manager.init()
+        manager.registerTranslator(classOf[NeutronNetwork],
+                                   mockNetworkTranslator)
+        manager.registerTranslator(classOf[NeutronPort], portTranslator)
+
+        manager.interpretAndExecTxns(List(
+                txn("txn1", c3poCreate(2, neutronNetwork)),
+                txn("txn2", c3poCreate(3, neutronNetworkPort))))
+
+        val order = inOrder(storage)
+        order.verify(storage).multi(Seq(CreateOp(neutronNetwork),
+                                        CreateOp(midoNetwork),
+                                        UpdateOp(c3poState(2))))
+        order.verify(storage).multi(Seq(CreateOp(neutronNetworkPort),
+                                        CreateOp(midoPort),
+                                        UpdateOp(c3poState(3))))
+        assert(portTranslations === 2)
+    }
+
+    "A failing batch of Neutron transactions" should "be executed one " +
+    "transaction at a time, up to the failing one." in {
+        val network2 = neutronNetwork.toBuilder.setId(randomUuidProto).build
+        val network3 = neutronNetwork.toBuilder.setId(randomUuidProto).build
+        when(mockNetworkTranslator.translate(anyObject()))
+                                  .thenReturn(List())
+        doThrow(new StorageException("Storage failure test"))
+            .when(storage).multi(contains(CreateOp(neutronNetwork)))
+        val manager = new C3POStorageManager(storage, 10, 10000)
+        manager.init()
+        manager.registerTranslator(classOf[NeutronNetwork],
+                                   mockNetworkTranslator)
+
+        intercept[ProcessingException] {
+            manager.interpretAndExecTxns(List(
+                    txn("txn1", c3poCreate(2, network2)),
+                    txn("txn2", c3poCreate(3, neutronNetwork)),
+                    txn("txn3", c3poCreate(4, network3))))
+        }
+
+        verify(storage).multi(Seq(CreateOp(network2), UpdateOp(c3poState(2))))
+        verify(storage).multi(Seq(CreateOp(neutronNetwork),
+                                  UpdateOp(c3poState(3))))
+        verify(storage, never()).multi(Seq(CreateOp(network3),
+                                           UpdateOp(c3poState(4))))
+    }
+
     "C3PO Storage Mgr" should "return the last processed C3PO task ID." in {
         val lastProcessed = storageManager.lastProcessedTaskId
 
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.brain.services.c3po
+
+import scala.concurrent.Promise
+
+import org.junit.runner.RunWith
+import org.mockito.Matchers.any
+import org.mockito.Mockito.{mock, never, times, verify, when}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfterEach, FlatSpec, Matchers}
+import rx.subjects.PublishSubject
+
+import org.midonet.cluster.data.storage.Storage
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.util.UUIDUtil.randomUuidProto
+import org.midonet.util.concurrent.toFutureOps
+
+@RunWith(classOf[JUnitRunner])
+class TranslationStorageTest extends FlatSpec with BeforeAndAfterEach
+                                              with Matchers {
+    val networkId = randomUuidProto
+    val otherNetworkId = randomUuidProto
+    val network = newNetwork(networkId, "network")
+    val otherNetwork = newNetwork(otherNetworkId, "other network")
+
+    var storage: Storage = _
+    var watch: PublishSubject[Network] = _
+    var otherWatch: PublishSubject[Network] = _
+
+    private def newNetwork(id: Commons.UUID, name: String) =
+        Network.newBuilder.setId(id).setName(name).build
+
+    override def beforeEach() = {
+        storage = mock(classOf[Storage])
+        watch = PublishSubject.create[Network]()
+        otherWatch = PublishSubject.create[Network]()
+        when(storage.get(classOf[Network], networkId))
+            .thenReturn(Promise.successful(network).future)
+        when(storage.get(classOf[Network], otherNetworkId))
+            .thenReturn(Promise.successful(otherNetwork).future)
+        when(storage.observable(classOf[Network], networkId))
+            .thenReturn(watch)
+        when(storage.observable(classOf[Network], otherNetworkId))
+            .thenReturn(otherWatch)
+    }
+
+    "An object looked up twice in a transaction" should "be read once " +
+    "from the storage." in {
+        val txnStorage = new TranslationStorage(storage)
+        txnStorage.get(classOf[Network], networkId).await() shouldBe network
+        txnStorage.get(classOf[Network], networkId).await() shouldBe network
+        txnStorage.readIds shouldBe Set(networkId)
+        txnStorage.readObject(classOf[Network], networkId) shouldBe
+            Some(network)
+
+        verify(storage, times(1)).get(classOf[Network], networkId)
+    }
+
+    "An object read in a transaction" should "be read again in the next " +
+    "one when no objects are kept across transactions." in {
+        val txnStorage = new TranslationStorage(storage)
+        txnStorage.get(classOf[Network], networkId).await()
+        txnStorage.clearReads()
+        txnStorage.readIds shouldBe empty
+        txnStorage.get(classOf[Network], networkId).await()
+
+        verify(storage, times(2)).get(classOf[Network], networkId)
+        verify(storage, never()).observable(any(classOf[Class[Network]]),
+                                            any())
+    }
+
+    "An object kept across transactions" should "be looked up from the " +
+    "cache, and updated by its watch." in {
+        val txnStorage = new TranslationStorage(storage, 10)
+        txnStorage.get(classOf[Network], networkId).await()
+        txnStorage.clearReads()
+        watch.hasObservers shouldBe true
+
+        txnStorage.get(classOf[Network], networkId).await() shouldBe network
+        txnStorage.readIds shouldBe Set(networkId)
+
+        val renamed = network.toBuilder.setName("renamed").build
+        watch.onNext(renamed)
+        txnStorage.clearReads()
+        txnStorage.get(classOf[Network], networkId).await() shouldBe renamed
+
+        verify(storage, times(1)).get(classOf[Network], networkId)
+    }
+
+    it should "be read again from the storage when invalidated." in {
+        val txnStorage = new TranslationStorage(storage, 10)
+        txnStorage.get(classOf[Network], networkId).await()
+        txnStorage.get(classOf[Network], otherNetworkId).await()
+        txnStorage.clearReads()
+
+        txnStorage.invalidate(Seq(networkId))
+        watch.hasObservers shouldBe false
+        otherWatch.hasObservers shouldBe true
+        txnStorage.get(classOf[Network], networkId).await()
+        txnStorage.get(classOf[Network], otherNetworkId).await()
+        verify(storage, times(2)).get(classOf[Network], networkId)
+        verify(storage, times(1)).get(classOf[Network], otherNetworkId)
+
+        txnStorage.invalidateAll()
+        otherWatch.hasObservers shouldBe false
+    }
+
+    it should "not be kept again while among the last ones modified." in {
+        val txnStorage = new TranslationStorage(storage, 1)
+        txnStorage.get(classOf[Network], networkId).await()
+        txnStorage.clearReads()
+        txnStorage.invalidate(Seq(networkId))
+
+        txnStorage.get(classOf[Network], networkId).await()
+        txnStorage.clearReads()
+        watch.hasObservers shouldBe false
+        txnStorage.get(classOf[Network], networkId).await()
+        verify(storage, times(3)).get(classOf[Network], networkId)
+        verify(storage, times(1)).observable(classOf[Network], networkId)
+    }
+
+    "An object read before the cache is invalidated" should "not be kept " +
+    "across transactions." in {
+        val txnStorage = new TranslationStorage(storage, 10)
+        txnStorage.get(classOf[Network], networkId).await()
+        txnStorage.invalidateAll()
+        txnStorage.clearReads()
+        watch.hasObservers shouldBe false
+
+        txnStorage.get(classOf[Network], networkId).await()
+        verify(storage, times(2)).get(classOf[Network], networkId)
+        verify(storage, never()).observable(classOf[Network], networkId)
+
+        // The objects read afterwards are kept again.
+        txnStorage.clearReads()
+        watch.hasObservers shouldBe true
+    }
+
+    it should "be read again from the storage when its watch fails." in {
+        val txnStorage = new TranslationStorage(storage, 10)
+        txnStorage.get(classOf[Network], networkId).await()
+        txnStorage.clearReads()
+
+        watch.onError(new Exception("deleted"))
+        txnStorage.get(classOf[Network], networkId).await()
+        verify(storage, times(2)).get(classOf[Network], networkId)
+    }
+
+    "The least recently read object" should "be dropped when the cache " +
+    "is full." in {
+        val txnStorage = new TranslationStorage(storage, 1)
+        txnStorage.get(classOf[Network], networkId).await()
+        txnStorage.clearReads()
+        txnStorage.get(classOf[Network], otherNetworkId).await()
+        txnStorage.clearReads()
+
+        watch.hasObservers shouldBe false
+        otherWatch.hasObservers shouldBe true
+        txnStorage.get(classOf[Network], networkId).await()
+        verify(storage, times(2)).get(classOf[Network], networkId)
+    }
+}
@@ -94,6 +94,8 @@ public class CassandraClient {
                 firstSession = true;
                 LoadBalancingPolicy rr = new RoundRobinPolicy();
                 LoadBalancingPolicy latencyAware = LatencyAwarePolicy.builder(rr).build();
+                // Statements that carry a routing key go to its replicas.
+                LoadBalancingPolicy tokenAware = new TokenAwarePolicy(latencyAware);
                 QueryOptions queryOpts = new QueryOptions().
                         setConsistencyLevel(ConsistencyLevel.QUORUM);
                 SocketOptions sockOpts = new SocketOptions().
@@ -105,7 +107,7 @@ public class CassandraClient {
                         withPort(this.port).
                         withRetryPolicy(DowngradingConsistencyRetryPolicy.INSTANCE).
                         withReconnectionPolicy(new ExponentialReconnectionPolicy(100L, 5000L)).
-                        withLoadBalancingPolicy(latencyAware).
+                        withLoadBalancingPolicy(tokenAware).
                         withQueryOptions(queryOpts).
                         withClusterName(clusterName).
                         withSocketOptions(sockOpts).build();
@@ -70,4 +70,11 @@ public interface ZookeeperConfig {
      */
     @ConfigBool(key = "cluster_storage_enabled", defaultValue = false)
     boolean getClusterStorageEnabled();
+
+    /**
+     * If true, the cluster storage writes objects in the protobuf binary
+     * format instead of the text format. Both formats are always readable.
+     */
+    @ConfigBool(key = "cluster_storage_binary_format", defaultValue = false)
+    boolean getClusterStorageBinaryFormat();
 }
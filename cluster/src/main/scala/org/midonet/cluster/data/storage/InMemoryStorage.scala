@@ -470,5 +470,6 @@ object InMemoryStorage {
     private case class Key[T](clazz: Class[T], id: String)
 
     private def copyObj[T](obj: T): T =
-        deserialize(serialize(obj.asInstanceOf[Obj]), obj.getClass)
+        deserialize(serialize(obj.asInstanceOf[Obj], binary = true),
+                    obj.getClass)
 }
@@ -29,7 +29,7 @@ import scala.concurrent.{ExecutionContext, Future, Promise}
 
 import com.google.common.annotations.VisibleForTesting
 import com.google.common.collect.ArrayListMultimap
-import com.google.protobuf.{Message, TextFormat}
+import com.google.protobuf.{CodedOutputStream, Message, TextFormat}
 
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal
@@ -109,12 +109,25 @@ import org.midonet.util.reactivex._
  * off. In addition, upon initialization a ZOOM sets a watcher to the version
  * number node and it'd be notified if another ZOOM instances bumps the version
  * number to switch to the new version.
+ *
+ * SERIALIZATION FORMAT:
+ * Protobuf messages are stored either in the protobuf text format or in the
+ * binary wire format. Binary nodes start with a format marker, a zero byte
+ * that never appears in text format data, followed by a format identifier, so
+ * a ZOOM instance reads both formats regardless of the one it writes.
+ * Existing text nodes are converted online with migrateSerialization(), and
+ * are also rewritten in binary format whenever they are updated.
  */
 class ZookeeperObjectMapper(
     private val basePathPrefix: String,
-    private val curator: CuratorFramework) extends StorageWithOwnership {
+    private val curator: CuratorFramework,
+    private val binarySerialization: Boolean)
+    extends StorageWithOwnership {
 
     import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
+
+    def this(basePathPrefix: String, curator: CuratorFramework) =
+        this(basePathPrefix, curator, false)
     @volatile private var built = false
 
     /* Monotonically increasing version number for the data set path under
@@ -617,11 +630,14 @@ class ZookeeperObjectMapper(
                 val path = getPath(op._1.clazz, op._1.id)
                 op._2 match {
                     case TxCreate(obj, ownerOps) =>
-                        txn = txn.create().forPath(path, serialize(obj)).and()
+                        txn = txn.create()
+                            .forPath(path, serialize(obj, binarySerialization))
+                            .and()
                         addOwnerOps(txn, op._1, ownerOps)
                     case TxUpdate(obj, ver, ownerOps) =>
                         txn = txn.setData().withVersion(ver)
-                            .forPath(path, serialize(obj)).and()
+                            .forPath(path, serialize(obj, binarySerialization))
+                            .and()
                         addOwnerOps(txn, op._1, ownerOps)
                     case TxDelete(ver, ownerOps) =>
                         txn = addOwnerOps(txn, op._1, ownerOps)
@@ -1149,6 +1165,60 @@ class ZookeeperObjectMapper(
         log.info(s"Flushed the Storage, bumping the version to $version.")
     }
 
+    /**
+     * Rewrites the protobuf objects of the current data set that are not
+     * stored in the format this instance writes, and returns the number of
+     * rewritten objects. Every node is rewritten conditionally on its
+     * Zookeeper version, and re-read if it was concurrently modified, so
+     * this can run while other instances read and write the storage.
+     */
+    @throws[StorageException]
+    def migrateSerialization(): Int = {
+        assertBuilt()
+        var migrated = 0
+        try {
+            for (clazz <- classInfo.keys
+                 if classOf[Message].isAssignableFrom(clazz)) {
+                val classPath = getPath(clazz)
+                for (id <- curator.getChildren.forPath(classPath).asScala) {
+                    if (migrateNode(classPath + "/" + id, clazz))
+                        migrated += 1
+                }
+            }
+        } catch {
+            case ex: Exception =>
+                throw new StorageException(
+                    "Failure in migrating the serialization format.", ex)
+        }
+        log.info(s"Migrated $migrated objects to the " +
+                 (if (binarySerialization) "binary" else "text") + " format.")
+        migrated
+    }
+
+    private def migrateNode(path: String, clazz: Class[_]): Boolean = {
+        while (true) {
+            val stat = new Stat()
+            val data = try {
+                curator.getData.storingStatIn(stat).forPath(path)
+            } catch {
+                case _: NoNodeException => return false
+            }
+            if (isBinaryMessage(data) == binarySerialization)
+                return false
+
+            val obj = deserialize(data, clazz).asInstanceOf[Obj]
+            try {
+                curator.setData().withVersion(stat.getVersion)
+                       .forPath(path, serialize(obj, binarySerialization))
+                return true
+            } catch {
+                case _: BadVersionException => // Modified meanwhile, retry.
+                case _: NoNodeException => return false
+            }
+        }
+        false
+    }
+
     private[storage] def getPath(clazz: Class[_], version: Long) =
         basePath(version) + "/" + clazz.getSimpleName
 
@@ -1301,6 +1371,16 @@ object ZookeeperObjectMapper {
 
     private val jsonFactory = new JsonFactory(new ObjectMapper())
 
+    /* Binary protobuf nodes start with FORMAT_MARKER followed by the format
+     * identifier. The text format never contains a zero byte. */
+    private val FORMAT_MARKER: Byte = 0
+    private val BINARY_FORMAT: Byte = 1
+    private val FORMAT_HEADER_SIZE = 2
+
+    /* Default instances of the message classes, from which parsers and
+     * builders are obtained without reflection. */
+    private val messagePrototypes = new TrieMap[Class[_], Message]
+
     private[storage] def makeInfo(clazz: Class[_],
                                   ownershipType: OwnershipType): ClassInfo = {
         try {
@@ -1331,8 +1411,10 @@ object ZookeeperObjectMapper {
         Key(clazz, getIdString(clazz, id))
     }
 
-    private[storage] def serialize(obj: Obj): Array[Byte] = {
+    private[storage] def serialize(obj: Obj,
+                                   binary: Boolean = false): Array[Byte] = {
         obj match {
+            case msg: Message if binary => serializeBinaryMessage(msg)
             case msg: Message => serializeMessage(msg)
             case pojo => serializePojo(pojo)
         }
@@ -1340,6 +1422,17 @@ object ZookeeperObjectMapper {
 
     private def serializeMessage(msg: Message) = msg.toString.getBytes
 
+    private def serializeBinaryMessage(msg: Message) = {
+        val data = new Array[Byte](FORMAT_HEADER_SIZE + msg.getSerializedSize)
+        data(0) = FORMAT_MARKER
+        data(1) = BINARY_FORMAT
+        val out = CodedOutputStream.newInstance(data, FORMAT_HEADER_SIZE,
+                                                msg.getSerializedSize)
+        msg.writeTo(out)
+        out.checkNoSpaceLeft()
+        data
+    }
+
     private def serializePojo(obj: Obj): Array[Byte] = {
         val writer = new StringWriter()
         try {
@@ -1371,11 +1464,31 @@ object ZookeeperObjectMapper {
         }
     }
 
+    private[storage] def isBinaryMessage(data: Array[Byte]): Boolean =
+        data.length >= FORMAT_HEADER_SIZE && data(0) == FORMAT_MARKER
+
+    private def prototypeOf(clazz: Class[_]): Message = {
+        messagePrototypes.getOrElse(clazz, {
+            val prototype = clazz.getMethod("getDefaultInstance").invoke(null)
+                                 .asInstanceOf[Message]
+            messagePrototypes.putIfAbsent(clazz, prototype).getOrElse(prototype)
+        })
+    }
+
     private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
-        val builderObj = clazz.getMethod("newBuilder").invoke(null)
-        val builder = builderObj.asInstanceOf[Message.Builder]
-        TextFormat.merge(new String(data), builder)
-        builder.build().asInstanceOf[T]
+        val prototype = prototypeOf(clazz)
+        if (isBinaryMessage(data)) {
+            if (data(1) != BINARY_FORMAT)
+                throw new IllegalArgumentException(
+                    s"Unknown serialization format ${data(1)}")
+            prototype.getParserForType.parseFrom(
+                data, FORMAT_HEADER_SIZE, data.length - FORMAT_HEADER_SIZE)
+                .asInstanceOf[T]
+        } else {
+            val builder = prototype.newBuilderForType()
+            TextFormat.merge(new String(data), builder)
+            builder.build().asInstanceOf[T]
+        }
     }
 
     private def deserializePojo[T](json: Array[Byte], clazz: Class[T]): T = {
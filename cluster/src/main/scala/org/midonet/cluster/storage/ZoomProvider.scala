@@ -32,7 +32,8 @@ class ZoomProvider @Inject()(val curator: CuratorFramework, cfg: ZookeeperConfig
 
     override def get: Storage = {
         val storage = new ZookeeperObjectMapper(cfg.getZkRootPath + "/zoom",
-                                                curator)
+                                                curator,
+                                                cfg.getClusterStorageBinaryFormat)
         List(classOf[C3POState],
              classOf[Chain],
              classOf[Dhcp],
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import com.google.protobuf.Message
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.cluster.data.Obj
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology.{Chain, Network, Port, Router, Rule}
+import org.midonet.cluster.util.IPAddressUtil._
+import org.midonet.cluster.util.IPSubnetUtil
+import org.midonet.cluster.util.UUIDUtil._
+
+/**
+ * Serializes and deserializes topology objects in the text and binary
+ * formats used by the ZookeeperObjectMapper. The size of the serialized
+ * objects in each format is printed during the setup.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class ZoomSerializationBenchmark {
+
+    @Param(Array("Network", "Router", "Port", "Chain", "Rule"))
+    var model: String = _
+
+    @Param(Array("text", "binary"))
+    var format: String = _
+
+    var obj: Message = _
+    var clazz: Class[_ <: Message] = _
+    var data: Array[Byte] = _
+
+    private def ids(n: Int) =
+        (1 to n).map(_ => UUID.randomUUID.asProto).asJava
+
+    @JmhSetup
+    def setup(): Unit = {
+        obj = model match {
+            case "Network" =>
+                Network.newBuilder.setId(UUID.randomUUID.asProto)
+                    .setTenantId("tenant").setName("network")
+                    .setAdminStateUp(true).setTunnelKey(4096)
+                    .setInboundFilterId(UUID.randomUUID.asProto)
+                    .setOutboundFilterId(UUID.randomUUID.asProto)
+                    .addAllPortIds(ids(16)).build()
+            case "Router" =>
+                Router.newBuilder.setId(UUID.randomUUID.asProto)
+                    .setTenantId("tenant").setName("router")
+                    .setAdminStateUp(true)
+                    .setInboundFilterId(UUID.randomUUID.asProto)
+                    .setOutboundFilterId(UUID.randomUUID.asProto)
+                    .addAllPortIds(ids(8)).build()
+            case "Port" =>
+                Port.newBuilder.setId(UUID.randomUUID.asProto)
+                    .setRouterId(UUID.randomUUID.asProto)
+                    .setPeerId(UUID.randomUUID.asProto)
+                    .setHostId(UUID.randomUUID.asProto)
+                    .setInterfaceName("tap0123456789").setTunnelKey(1024)
+                    .setPortSubnet(IPSubnetUtil.toProto("10.0.0.0/24"))
+                    .setPortAddress("10.0.0.1".asProtoIPAddress)
+                    .setPortMac("02:00:00:00:00:01")
+                    .addAllRuleIds(ids(4)).build()
+            case "Chain" =>
+                Chain.newBuilder.setId(UUID.randomUUID.asProto)
+                    .setName("chain").addAllRuleIds(ids(64))
+                    .addAllPortIds(ids(4)).build()
+            case "Rule" =>
+                Rule.newBuilder.setId(UUID.randomUUID.asProto)
+                    .setAction(Rule.Action.ACCEPT)
+                    .setChainId(UUID.randomUUID.asProto)
+                    .setMatchForwardFlow(true).setDlType(0x0800)
+                    .setNwProto(6)
+                    .setNwSrcIp(IPSubnetUtil.toProto("10.0.0.0/8"))
+                    .setTpDst(Commons.Int32Range.newBuilder.setStart(22)
+                                  .setEnd(22))
+                    .setFragmentPolicy(Rule.FragmentPolicy.UNFRAGMENTED)
+                    .build()
+        }
+        clazz = obj.getClass
+        data = serialize()
+
+        val text = ZookeeperObjectMapper.serialize(obj.asInstanceOf[Obj])
+        val binary = ZookeeperObjectMapper.serialize(obj.asInstanceOf[Obj],
+                                                     binary = true)
+        println(s"$model: ${text.length} bytes in text format, " +
+                s"${binary.length} bytes in binary format")
+    }
+
+    private def serialize() =
+        ZookeeperObjectMapper.serialize(obj.asInstanceOf[Obj],
+                                        binary = format == "binary")
+
+    @Benchmark
+    def serialization(bh: Blackhole): Unit = {
+        bh.consume(serialize())
+    }
+
+    @Benchmark
+    def deserialization(bh: Blackhole): Unit = {
+        bh.consume(ZookeeperObjectMapper.deserialize(data, clazz))
+    }
+}
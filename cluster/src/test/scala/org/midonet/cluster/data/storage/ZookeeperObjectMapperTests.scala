@@ -540,6 +540,73 @@ class ZookeeperObjectMapperTests extends Suite
         await(zom.exists(classOf[PojoPort], port2.id)) should equal (true)
     }
 
+    def testBinarySerialization() {
+        val binZom = new ZookeeperObjectMapper(ZK_ROOT, curator,
+                                               binarySerialization = true)
+        initAndBuildZoom(binZom)
+
+        val chain = Chain.newBuilder.setId(UUID.randomUUID.asProto)
+                         .setName("chain").build()
+        val network = protoNetwork(name = "network", inChainId = chain.getId)
+        binZom.multi(List(CreateOp(chain), CreateOp(network)))
+
+        val data = curator.getData.forPath(
+            zom.getPath(classOf[Network], network.getId))
+        ZookeeperObjectMapper.isBinaryMessage(data) shouldBe true
+        data.length should be < network.toString.getBytes.length
+
+        // Both instances read binary nodes.
+        await(zom.get(classOf[Network], network.getId)) shouldBe network
+        await(binZom.get(classOf[Network], network.getId)) shouldBe network
+        await(zom.get(classOf[Chain], chain.getId))
+            .getNetworkIdsList.asScala shouldBe Seq(network.getId)
+    }
+
+    def testMixedSerializationFormats() {
+        val binZom = new ZookeeperObjectMapper(ZK_ROOT, curator,
+                                               binarySerialization = true)
+        initAndBuildZoom(binZom)
+
+        val textNetwork = protoNetwork(name = "text")
+        zom.create(textNetwork)
+        val binNetwork = protoNetwork(name = "binary")
+        binZom.create(binNetwork)
+
+        await(binZom.getAll(classOf[Network])).map(await(_)).toSet shouldBe
+            Set(textNetwork, binNetwork)
+
+        // Updates through the binary instance rewrite text nodes.
+        val renamed = textNetwork.toBuilder.setName("renamed").build()
+        binZom.update(renamed)
+        ZookeeperObjectMapper.isBinaryMessage(curator.getData.forPath(
+            zom.getPath(classOf[Network], renamed.getId))) shouldBe true
+        await(zom.get(classOf[Network], renamed.getId)) shouldBe renamed
+    }
+
+    def testMigrateSerialization() {
+        val networks = for (i <- 1 to 5) yield protoNetwork(name = s"net$i")
+        val bridge = pojoBridge()
+        zom.multi(CreateOp(bridge) +: networks.map(CreateOp(_)))
+
+        val binZom = new ZookeeperObjectMapper(ZK_ROOT, curator,
+                                               binarySerialization = true)
+        initAndBuildZoom(binZom)
+        binZom.migrateSerialization() shouldBe networks.size
+        binZom.migrateSerialization() shouldBe 0
+
+        for (network <- networks) {
+            ZookeeperObjectMapper.isBinaryMessage(curator.getData.forPath(
+                zom.getPath(classOf[Network], network.getId))) shouldBe true
+            await(zom.get(classOf[Network], network.getId)) shouldBe network
+        }
+        await(zom.get(classOf[PojoBridge], bridge.id)).id shouldBe bridge.id
+
+        // And back to the text format.
+        zom.migrateSerialization() shouldBe networks.size
+        ZookeeperObjectMapper.isBinaryMessage(curator.getData.forPath(
+            zom.getPath(classOf[Network], networks.head.getId))) shouldBe false
+    }
+
     def testCreateExclusiveOwner(): Unit = {
         val state = new ExclusiveState
         val owner = UUID.randomUUID
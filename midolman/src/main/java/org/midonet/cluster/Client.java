@@ -21,6 +21,7 @@ import java.util.UUID;
 import org.midonet.cluster.client.BGPListBuilder;
 import org.midonet.cluster.client.BridgeBuilder;
 import org.midonet.cluster.client.ChainBuilder;
+import org.midonet.cluster.client.DhcpConfigBuilder;
 import org.midonet.cluster.client.HealthMonitorBuilder;
 import org.midonet.cluster.client.HostBuilder;
 import org.midonet.cluster.client.IPAddrGroupBuilder;
@@ -53,6 +54,8 @@ public interface Client {
 
     void getIPAddrGroup(UUID uuid, IPAddrGroupBuilder builder);
 
+    void getDhcpConfig(UUID bridgeID, DhcpConfigBuilder builder);
+
     void getLoadBalancer(UUID uuid, LoadBalancerBuilder builder);
 
     void getPool(UUID uuid, PoolBuilder builder);
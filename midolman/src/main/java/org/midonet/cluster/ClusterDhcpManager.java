@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.cluster.client.DhcpConfigBuilder;
+import org.midonet.cluster.data.Converter;
+import org.midonet.cluster.data.dhcp.Host;
+import org.midonet.cluster.data.dhcp.Subnet;
+import org.midonet.midolman.serialization.SerializationException;
+import org.midonet.midolman.state.NoStatePathException;
+import org.midonet.midolman.state.StateAccessException;
+import org.midonet.midolman.state.zkManagers.BridgeDhcpZkManager;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.MAC;
+
+/**
+ * Keeps the DHCP subnets and hosts of a bridge in memory. Every subnet, host
+ * and list of them is watched separately, and only the entries that changed
+ * are read again from ZooKeeper. All the state is accessed from the reactor
+ * thread.
+ */
+public class ClusterDhcpManager extends ClusterManager<DhcpConfigBuilder> {
+    private static final Logger log =
+        LoggerFactory.getLogger(ClusterDhcpManager.class);
+
+    @Inject
+    BridgeDhcpZkManager dhcpMgr;
+
+    @Override
+    protected void getConfig(UUID bridgeId) {
+        new BridgeDhcp(bridgeId).subnetsWatcher.run();
+    }
+
+    private class BridgeDhcp {
+        final UUID bridgeId;
+        final Map<IPv4Subnet, SubnetDhcp> subnets = new HashMap<>();
+        final Runnable subnetsWatcher = new SubnetsWatcher();
+        boolean published = false;
+
+        BridgeDhcp(UUID bridgeId) {
+            this.bridgeId = bridgeId;
+        }
+
+        void publish() {
+            Map<IPv4Subnet, Subnet> subnetConfigs = new HashMap<>();
+            Map<IPv4Subnet, Map<MAC, Host>> hosts = new HashMap<>();
+            for (SubnetDhcp subnet : subnets.values()) {
+                if (subnet.config == null)
+                    continue;
+                subnetConfigs.put(subnet.addr, subnet.config);
+                hosts.put(subnet.addr, Collections.unmodifiableMap(
+                    new HashMap<>(subnet.hosts)));
+            }
+            getBuilder(bridgeId).setConfig(
+                Collections.unmodifiableMap(subnetConfigs),
+                Collections.unmodifiableMap(hosts));
+            published = true;
+        }
+
+        class SubnetsWatcher implements Runnable {
+            String describe() {
+                return "DhcpSubnets:" + bridgeId;
+            }
+
+            @Override
+            public void run() {
+                List<IPv4Subnet> addrs;
+                try {
+                    addrs = dhcpMgr.listSubnets(bridgeId, this);
+                } catch (NoStatePathException e) {
+                    log.debug("Bridge {} has been deleted", bridgeId);
+                    return;
+                } catch (StateAccessException e) {
+                    connectionWatcher.handleError(describe(), this, e);
+                    return;
+                }
+
+                Set<IPv4Subnet> current = new HashSet<>(addrs);
+                boolean changed = subnets.keySet().retainAll(current);
+                for (IPv4Subnet addr : current) {
+                    if (!subnets.containsKey(addr)) {
+                        SubnetDhcp subnet = new SubnetDhcp(addr);
+                        subnets.put(addr, subnet);
+                        subnet.load();
+                        changed = true;
+                    }
+                }
+                // Bridges without DHCP subnets are published too, so that
+                // DHCP requests on them aren't left waiting.
+                if (changed || !published)
+                    publish();
+            }
+        }
+
+        class SubnetDhcp {
+            final IPv4Subnet addr;
+            Subnet config;
+            final Map<MAC, Host> hosts = new HashMap<>();
+            final Map<MAC, HostWatcher> hostWatchers = new HashMap<>();
+            final Runnable subnetWatcher = new SubnetWatcher();
+            final Runnable hostsWatcher = new HostsWatcher();
+
+            SubnetDhcp(IPv4Subnet addr) {
+                this.addr = addr;
+            }
+
+            boolean isCurrent() {
+                return subnets.get(addr) == this;
+            }
+
+            void load() {
+                if (readConfig())
+                    readHosts();
+            }
+
+            /* Returns false if the subnet has been deleted. */
+            boolean readConfig() {
+                try {
+                    config = Converter.fromDhcpSubnetConfig(
+                        dhcpMgr.getSubnet(bridgeId, addr, subnetWatcher));
+                    config.setId(addr.toZkString());
+                } catch (NoStatePathException e) {
+                    log.debug("DHCP subnet {} of bridge {} has been deleted",
+                              addr, bridgeId);
+                    subnets.remove(addr);
+                    return false;
+                } catch (StateAccessException e) {
+                    connectionWatcher.handleError(
+                        "DhcpSubnet:" + bridgeId + ":" + addr, subnetWatcher, e);
+                } catch (SerializationException e) {
+                    log.error("Could not deserialize DHCP subnet {} of " +
+                              "bridge {}", addr, bridgeId, e);
+                }
+                return true;
+            }
+
+            void readHosts() {
+                List<MAC> macs;
+                try {
+                    macs = dhcpMgr.listHosts(bridgeId, addr, hostsWatcher);
+                } catch (NoStatePathException e) {
+                    // The subnet is being deleted.
+                    return;
+                } catch (StateAccessException e) {
+                    connectionWatcher.handleError(
+                        "DhcpHosts:" + bridgeId + ":" + addr, hostsWatcher, e);
+                    return;
+                }
+
+                hosts.keySet().retainAll(macs);
+                hostWatchers.keySet().retainAll(macs);
+                for (MAC mac : macs) {
+                    if (!hostWatchers.containsKey(mac)) {
+                        HostWatcher watcher = new HostWatcher(mac);
+                        hostWatchers.put(mac, watcher);
+                        watcher.readHost();
+                    }
+                }
+            }
+
+            class SubnetWatcher implements Runnable {
+                @Override
+                public void run() {
+                    if (isCurrent()) {
+                        readConfig();
+                        publish();
+                    }
+                }
+            }
+
+            class HostsWatcher implements Runnable {
+                @Override
+                public void run() {
+                    if (isCurrent()) {
+                        readHosts();
+                        publish();
+                    }
+                }
+            }
+
+            class HostWatcher implements Runnable {
+                final MAC mac;
+
+                HostWatcher(MAC mac) {
+                    this.mac = mac;
+                }
+
+                void readHost() {
+                    try {
+                        Host host = Converter.fromDhcpHostConfig(
+                            dhcpMgr.getHost(bridgeId, addr, mac.toString(),
+                                            this));
+                        host.setId(mac);
+                        hosts.put(mac, host);
+                    } catch (NoStatePathException e) {
+                        hosts.remove(mac);
+                        hostWatchers.remove(mac);
+                    } catch (StateAccessException e) {
+                        connectionWatcher.handleError(
+                            "DhcpHost:" + bridgeId + ":" + addr + ":" + mac,
+                            this, e);
+                    } catch (SerializationException e) {
+                        log.error("Could not deserialize DHCP host {} of " +
+                                  "bridge {}", mac, bridgeId, e);
+                    }
+                }
+
+                @Override
+                public void run() {
+                    if (isCurrent() && hostWatchers.get(mac) == this) {
+                        readHost();
+                        publish();
+                    }
+                }
+            }
+        }
+    }
+}
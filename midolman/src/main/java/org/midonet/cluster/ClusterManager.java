@@ -23,6 +23,7 @@ import java.util.UUID;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import com.codahale.metrics.MetricRegistry;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
 import org.slf4j.Logger;
@@ -49,6 +50,10 @@ abstract class ClusterManager<T> {
     @Inject
     ZkConnectionAwareWatcher connectionWatcher;
 
+    /* The agent's metrics, absent where the managers aren't run by one. */
+    @com.google.inject.Inject(optional = true)
+    MetricRegistry metricRegistry;
+
     private Map<UUID, T> builderMap = new HashMap<>();
 
     public void registerNewBuilder(final UUID id, final T builder) {
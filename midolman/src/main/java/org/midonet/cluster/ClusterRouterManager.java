@@ -72,6 +72,8 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
     Map<UUID, Set<Route>> mapPortIdToRoutes =
         new HashMap<>();
 
+    Map<UUID, Map<UUID, Route>> mapPortIdToRouteIds = new HashMap<>();
+
     Map<UUID, ReplicatedRouteSet> mapRouterIdToRoutes = new HashMap<>();
 
     Map<UUID, PortRoutesCallback> portIdCallback = new HashMap<>();
@@ -100,6 +102,8 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
             if (!isUpdate) {
                 arpTable = new ArpTable(routerMgr.getArpTableDirectory(id));
                 arpTable.setConnectionWatcher(connectionWatcher);
+                if (metricRegistry != null)
+                    arpTable.registerMetrics(metricRegistry);
                 routeSet = new ReplicatedRouteSet(
                             routerMgr.getRoutingTableDirectory(id),
                             CreateMode.EPHEMERAL, builder);
@@ -250,7 +254,8 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
             portIdWatcher.get(portId).cancel();
             // clean the router's routing table
             // and set the local routes cache to empty.
-            updateRoutingTableAfterGettingRoutes(routerId, portId, Collections.<Route>emptySet());
+            updateRoutingTableAfterGettingRoutes(routerId, portId,
+                                                 Collections.<UUID, Route>emptyMap());
         } else {
             // installing callbacks (or if they were cancelled, reenabling them).
             log.debug("Adding callbacks for port {}", portId);
@@ -265,23 +270,64 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
         }
     }
 
-    class GetRoutesCallback extends
-                           DirectoryCallback.DirectoryCallbackLogErrorAndTimeout<Set<Route>> {
+    /**
+     * Gets the routes of a port that weren't known yet, and updates the
+     * routing table once all of them have been received. A route that
+     * couldn't be read is left out, and read again on the next change.
+     */
+    class GetRoutesCallback {
         UUID routerId;
         UUID portId;
+        Map<UUID, Route> routes;
+        int pending;
 
-        GetRoutesCallback(UUID routerId, UUID portId, String itemInfo, Logger log) {
-            super(itemInfo, log);
+        GetRoutesCallback(UUID routerId, UUID portId,
+                          Map<UUID, Route> knownRoutes) {
             this.routerId = routerId;
             this.portId = portId;
+            this.routes = knownRoutes;
         }
 
+        synchronized void get(Set<UUID> newIds) {
+            pending = newIds.size();
+            if (pending == 0) {
+                updateRoutingTableAfterGettingRoutes(routerId, portId, routes);
+            }
+            for (UUID routeId : newIds) {
+                routeManager.asyncGet(routeId, forRoute(routeId));
+            }
+        }
 
-        @Override
-        public void onSuccess(Set<Route> routes) {
-            log.debug("GetRoutesCallback success, got {} routes {}",
-                      routes.size(), routes);
-            updateRoutingTableAfterGettingRoutes(routerId, portId, routes);
+        private DirectoryCallback<Route> forRoute(final UUID routeId) {
+            return new DirectoryCallback.DirectoryCallbackLogErrorAndTimeout<Route>(
+                    "get route " + routeId + " of port " + portId, log) {
+                @Override
+                public void onSuccess(Route route) {
+                    received(routeId, route);
+                }
+
+                @Override
+                public void onTimeout() {
+                    super.onTimeout();
+                    received(routeId, null);
+                }
+
+                @Override
+                public void onError(KeeperException e) {
+                    super.onError(e);
+                    received(routeId, null);
+                }
+            };
+        }
+
+        private synchronized void received(UUID routeId, Route route) {
+            if (route != null)
+                routes.put(routeId, route);
+            if (--pending == 0) {
+                log.debug("GetRoutesCallback success, got {} routes {}",
+                          routes.size(), routes);
+                updateRoutingTableAfterGettingRoutes(routerId, portId, routes);
+            }
         }
     }
 
@@ -290,10 +336,12 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
      * contained in local).
      * @param routerId
      * @param portId
-     * @param newRoutes
+     * @param newRoutesById
      */
     private void updateRoutingTableAfterGettingRoutes(final UUID routerId,
-                  final UUID portId, final Set<Route> newRoutes) {
+                  final UUID portId, final Map<UUID, Route> newRoutesById) {
+
+        Set<Route> newRoutes = new HashSet<>(newRoutesById.values());
 
         Set<Route> oldRoutes = mapPortIdToRoutes.get(portId);
         Directory dir;
@@ -347,6 +395,7 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
         }
 
         mapPortIdToRoutes.put(portId, newRoutes);
+        mapPortIdToRouteIds.put(portId, newRoutesById);
     }
 
     class PortRoutesCallback extends RetryCallback<Set<UUID>> {
@@ -385,21 +434,27 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
                         "for port {}",
                         new Object[]{uuids.size(), uuids, portId});
 
-                Set<Route> oldRoutes = mapPortIdToRoutes.get(portId);
+                Map<UUID, Route> oldRoutes = mapPortIdToRouteIds.get(portId);
+                Map<UUID, Route> knownRoutes = new HashMap<>();
+                Set<UUID> newIds = new HashSet<>();
+                for (UUID id : uuids) {
+                    Route route = oldRoutes == null ? null : oldRoutes.get(id);
+                    if (route != null)
+                        knownRoutes.put(id, route);
+                    else
+                        newIds.add(id);
+                }
 
-                if (uuids.equals(oldRoutes)){
+                if (oldRoutes != null && newIds.isEmpty() &&
+                    knownRoutes.size() == oldRoutes.size()) {
                     log.debug("No change in the routes, nothing to do for port {}", portId);
                     return;
                 }
 
-                // if the routes in zk are different from the routes contained in local update them
-                // asynchronously.
-                routeManager.asyncMultiRoutesGet(uuids,
-                        new GetRoutesCallback(routerId,
-                                portId,
-                                "get routes for port"
-                                        + portId.toString(),
-                                log));
+                // if the routes in zk are different from the routes contained
+                // in local update them asynchronously, getting only the routes
+                // that weren't known.
+                new GetRoutesCallback(routerId, portId, knownRoutes).get(newIds);
             }
         }
 
@@ -419,7 +474,7 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
                     // If we get a NoStatePathException it means the someone removed
                     // the port routes. Remove all routes
                     updateRoutingTableAfterGettingRoutes(routerId, portId,
-                            Collections.<Route>emptySet());
+                            Collections.<UUID, Route>emptyMap());
                 } else {
                     connectionWatcher.handleError(portId.toString(), makeRetry(), e);
                     log.error("Callback error when trying to get routes for port {}",
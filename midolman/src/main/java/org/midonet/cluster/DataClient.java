@@ -828,6 +828,20 @@ public interface DataClient {
     UUID routesCreateEphemeral(@Nonnull Route route)
             throws StateAccessException, SerializationException;
 
+    /**
+     * Creates the given ephemeral routes with a single multi operation, and
+     * returns their ids in the same order.
+     */
+    List<UUID> routesCreateEphemeral(@Nonnull List<Route> routes)
+            throws StateAccessException, SerializationException;
+
+    /**
+     * Deletes the given routes, keyed by their ids, with a single multi
+     * operation.
+     */
+    void routesDelete(@Nonnull Map<UUID, Route> routes)
+            throws StateAccessException, SerializationException;
+
     List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException;
 
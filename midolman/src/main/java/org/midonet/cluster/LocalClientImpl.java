@@ -30,6 +30,7 @@ import org.slf4j.LoggerFactory;
 import org.midonet.cluster.client.BGPListBuilder;
 import org.midonet.cluster.client.BridgeBuilder;
 import org.midonet.cluster.client.ChainBuilder;
+import org.midonet.cluster.client.DhcpConfigBuilder;
 import org.midonet.cluster.client.HealthMonitorBuilder;
 import org.midonet.cluster.client.HostBuilder;
 import org.midonet.cluster.client.IPAddrGroupBuilder;
@@ -73,6 +74,9 @@ public class LocalClientImpl implements Client {
     @Inject
     ClusterIPAddrGroupManager ipAddrGroupManager;
 
+    @Inject
+    ClusterDhcpManager dhcpManager;
+
     @Inject
     ClusterLoadBalancerManager loadBalancerManager;
 
@@ -139,6 +143,12 @@ public class LocalClientImpl implements Client {
         log.debug("getIPAddrGroup {}", uuid);
     }
 
+    @Override
+    public void getDhcpConfig(UUID bridgeID, DhcpConfigBuilder builder) {
+        dhcpManager.registerNewBuilder(bridgeID, builder);
+        log.debug("getDhcpConfig {}", bridgeID);
+    }
+
     @Override
     public void getLoadBalancer(UUID loadBalancerID, LoadBalancerBuilder builder) {
         log.debug("getLoadBalancer {}", loadBalancerID);
@@ -18,6 +18,7 @@ package org.midonet.cluster;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -34,6 +35,7 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Strings;
 
 import org.apache.commons.lang.StringUtils;
@@ -96,6 +98,7 @@ import org.midonet.midolman.state.PortConfig;
 import org.midonet.midolman.state.PortConfigCache;
 import org.midonet.midolman.state.PortDirectory;
 import org.midonet.midolman.state.PortDirectory.VxLanPortConfig;
+import org.midonet.midolman.state.ReplicatedMap;
 import org.midonet.midolman.state.StateAccessException;
 import org.midonet.midolman.state.ZkLeaderElectionWatcher;
 import org.midonet.midolman.state.ZkManager;
@@ -212,6 +215,10 @@ public class LocalDataClientImpl implements DataClient {
     @Inject
     private ZkManager zkManager;
 
+    /* The agent's metrics, absent in the API server. */
+    @com.google.inject.Inject(optional = true)
+    private MetricRegistry metricRegistry;
+
     @Inject
     private PathBuilder pathBuilder;
 
@@ -381,9 +388,9 @@ public class LocalDataClientImpl implements DataClient {
     public MacPortMap bridgeGetMacTable(
             @Nonnull UUID bridgeId, short vlanId, boolean ephemeral)
             throws StateAccessException {
-        return new MacPortMap(
+        return withMetrics(new MacPortMap(
                 bridgeZkManager.getMacPortMapDirectory(bridgeId, vlanId),
-                ephemeral);
+                ephemeral));
     }
 
     @Override
@@ -414,8 +421,8 @@ public class LocalDataClientImpl implements DataClient {
     @Override
     public Ip4ToMacReplicatedMap bridgeGetArpTable(@Nonnull UUID bridgeId)
         throws StateAccessException {
-        return new Ip4ToMacReplicatedMap(
-            bridgeZkManager.getIP4MacMapDirectory(bridgeId));
+        return withMetrics(new Ip4ToMacReplicatedMap(
+            bridgeZkManager.getIP4MacMapDirectory(bridgeId)));
     }
 
     @Override
@@ -2874,6 +2881,33 @@ public class LocalDataClientImpl implements DataClient {
         return routeZkManager.create(Converter.toRouteConfig(route), false);
     }
 
+    @Override
+    public List<UUID> routesCreateEphemeral(@Nonnull List<Route> routes)
+            throws StateAccessException, SerializationException {
+        List<UUID> ids = new ArrayList<>(routes.size());
+        Map<UUID, org.midonet.midolman.layer3.Route> configs =
+            new HashMap<>();
+        for (Route route : routes) {
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            configs.put(id, Converter.toRouteConfig(route));
+        }
+        routeZkManager.create(configs, false);
+        return ids;
+    }
+
+    @Override
+    public void routesDelete(@Nonnull Map<UUID, Route> routes)
+            throws StateAccessException, SerializationException {
+        Map<UUID, org.midonet.midolman.layer3.Route> configs =
+            new HashMap<>();
+        for (Map.Entry<UUID, Route> entry : routes.entrySet()) {
+            configs.put(entry.getKey(),
+                        Converter.toRouteConfig(entry.getValue()));
+        }
+        routeZkManager.delete(configs);
+    }
+
     @Override
     public List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException {
@@ -3576,8 +3610,14 @@ public class LocalDataClientImpl implements DataClient {
     @Override
     public Ip4ToMacReplicatedMap getIp4MacMap(UUID bridgeId)
         throws StateAccessException {
-        return new Ip4ToMacReplicatedMap(
+        return withMetrics(new Ip4ToMacReplicatedMap(
             bridgeZkManager.getIP4MacMapDirectory(bridgeId)
-        );
+        ));
+    }
+
+    private <T extends ReplicatedMap<?, ?>> T withMetrics(T map) {
+        if (metricRegistry != null)
+            map.registerMetrics(metricRegistry);
+        return map;
     }
 }
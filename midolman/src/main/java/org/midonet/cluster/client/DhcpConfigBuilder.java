@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.client;
+
+import java.util.Map;
+
+import org.midonet.cluster.data.dhcp.Host;
+import org.midonet.cluster.data.dhcp.Subnet;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.MAC;
+
+public interface DhcpConfigBuilder {
+    /**
+     * Sets the DHCP subnets of a bridge along with the hosts of each subnet,
+     * indexed by MAC address. Both maps are snapshots that won't be modified
+     * afterwards.
+     */
+    void setConfig(Map<IPv4Subnet, Subnet> subnets,
+                   Map<IPv4Subnet, Map<MAC, Host>> hosts);
+}
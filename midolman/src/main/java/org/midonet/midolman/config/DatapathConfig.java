@@ -47,6 +47,29 @@ public interface DatapathConfig {
     @ConfigInt(key = "msgs_per_batch", defaultValue = 200)
     public int getMaxMessagesPerBatch();
 
+    /**
+     * The maximum number of flow creations or packet executions that a
+     * datapath output channel coalesces into a single netlink write. A value
+     * of 1 writes every message on its own.
+     */
+    @ConfigInt(key = "output_msgs_per_write", defaultValue = 64)
+    public int getOutputMessagesPerWrite();
+
+    /**
+     * The maximum number of datagrams that an upcall channel receives with a
+     * single system call. A value of 1 reads every datagram on its own.
+     */
+    @ConfigInt(key = "upcall_msgs_per_read", defaultValue = 16)
+    public int getUpcallMessagesPerRead();
+
+    /**
+     * The size of the buffers into which upcall channels read datagrams when
+     * upcall_msgs_per_read is greater than 1. Larger upcalls are dropped,
+     * so the default matches the buffer used for single reads.
+     */
+    @ConfigInt(key = "upcall_read_buf_size_kb", defaultValue = 64)
+    public int getUpcallReadBufSizeKb();
+
     @ConfigInt(key = "vxlan_vtep_udp_port", defaultValue = 4789)
     public int getVxLanVtepUdpPort();
 
@@ -78,6 +78,14 @@ public interface MidolmanConfig
     @ConfigInt(key = "idle_flow_tolerance_interval", defaultValue = 10000)
     public int getIdleFlowToleranceInterval();
 
+    /**
+     * Whether the last used time and the statistics of the flows are taken
+     * from a dump of the datapath flow table at every flow expiration check,
+     * instead of being requested flow by flow.
+     */
+    @ConfigBool(key = "dump_flow_stats", defaultValue = false)
+    public boolean getDumpFlowStats();
+
     @ConfigBool(key = "enable_dashboard", defaultValue = false)
     public boolean getDashboardEnabled();
 
@@ -92,9 +100,106 @@ public interface MidolmanConfig
     @ConfigInt(key = "max_bgp_peer_routes", defaultValue = 200)
     public int getMaxBgpPeerRoutes();
 
+    /**
+     * The maximum number of routes learned from the BGP peers of a port
+     * that are written to ZooKeeper with a single multi operation.
+     */
+    @ConfigGroup("router")
+    @ConfigInt(key = "bgp_peer_routes_batch_size", defaultValue = 256)
+    public int getBgpPeerRoutesBatchSize();
+
+    /**
+     * How long, in milliseconds, the routes announced and withdrawn by the
+     * BGP peers of a port are held before they are written to ZooKeeper, so
+     * that the changes of a burst are coalesced.
+     */
+    @ConfigGroup("router")
+    @ConfigInt(key = "bgp_peer_routes_batch_millis", defaultValue = 100)
+    public int getBgpPeerRoutesBatchMillis();
+
+    /**
+     * How a router picks among several routes of equal cost: "round_robin"
+     * takes turns among them, "flow_hash" hashes the addresses, protocol
+     * and ports of the flow so that a connection always takes the same
+     * route, and "resilient_hash" does the same while moving only the
+     * flows of a route that is added or removed.
+     */
+    @ConfigGroup("router")
+    @ConfigString(key = "ecmp_mode", defaultValue = "round_robin")
+    public String getRouterEcmpMode();
+
     @ConfigInt(key = "simulation_threads", defaultValue = 1)
     public int getSimulationThreads();
 
+    /**
+     * Maximum number of simulation results kept in the wildcard result
+     * cache, which lets packets that only differ from an already simulated
+     * packet in fields the simulation didn't look at skip the simulation.
+     * A value of 0, the default, disables the cache.
+     */
+    @ConfigInt(key = "wildcard_result_cache_size", defaultValue = 0)
+    public int getWildcardResultCacheSize();
+
+    /**
+     * The kind of table holding the connection tracking and NAT state:
+     * "sharded", where each simulation thread writes to its own shard and
+     * lookups probe every shard, or "shared", a single concurrent table
+     * whose lookup cost doesn't grow with the number of threads.
+     */
+    @ConfigString(key = "flow_state_table", defaultValue = "sharded")
+    public String getFlowStateTable();
+
+    /**
+     * Maximum number of flow state writes waiting for the thread that sends
+     * them to Cassandra. Further writes are dropped until it catches up.
+     */
+    @ConfigInt(key = "flow_state_write_queue_size", defaultValue = 65536)
+    public int getFlowStateWriteQueueSize();
+
+    /**
+     * A flow state key that was written to Cassandra less than this many
+     * milliseconds ago isn't written again. Its TTL is extended by as much.
+     */
+    @ConfigInt(key = "flow_state_write_dedup_millis", defaultValue = 5000)
+    public int getFlowStateWriteDedupMillis();
+
+    /**
+     * Maximum number of flow state batches sent to Cassandra and waiting
+     * for a response.
+     */
+    @ConfigInt(key = "flow_state_max_batches_in_flight", defaultValue = 64)
+    public int getFlowStateMaxBatchesInFlight();
+
+    /**
+     * Whether the flow state is stored in Cassandra tables partitioned by
+     * port, rather than by key with a secondary index on the port. Fetching
+     * the state of a port then reads a single partition. The tables are
+     * different, so the state written with one layout isn't seen with the
+     * other one.
+     */
+    @ConfigBool(key = "flow_state_partitioned_by_port", defaultValue = false)
+    public boolean getFlowStatePartitionedByPort();
+
+    /**
+     * Number of flow state keys fetched from Cassandra and imported at a
+     * time when a port is bound to the host.
+     */
+    @ConfigInt(key = "flow_state_import_page_size", defaultValue = 5000)
+    public int getFlowStateImportPageSize();
+
+    /**
+     * How a simulation thread waits for more packets once it has handled
+     * the ones handed over by the upcall threads: "block" goes back to
+     * its mailbox right away, while "spin" and "park" keep polling for
+     * packet_worker_wait_micros, busy-spinning or parking in between, so
+     * that a steady stream of packets doesn't have to wake it up.
+     */
+    @ConfigString(key = "packet_worker_wait_strategy", defaultValue = "block")
+    public String getPacketWorkerWaitStrategy();
+
+    @ConfigInt(key = "packet_worker_wait_micros", defaultValue = 50)
+    public int getPacketWorkerWaitMicros();
+
     @ConfigInt(key = "output_channels", defaultValue = 1)
     public int getNumOutputChannels();
 
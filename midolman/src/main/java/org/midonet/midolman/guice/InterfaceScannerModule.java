@@ -17,15 +17,41 @@
 package org.midonet.midolman.guice;
 
 import com.google.inject.PrivateModule;
+import com.google.inject.Provider;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+
+import org.midonet.midolman.host.config.HostConfig;
 import org.midonet.midolman.host.scanner.DefaultInterfaceScanner;
 import org.midonet.midolman.host.scanner.InterfaceScanner;
+import org.midonet.midolman.host.scanner.RtnetlinkInterfaceScanner;
 
 public class InterfaceScannerModule extends PrivateModule {
 
     @Override
     protected void configure() {
         binder().requireExplicitBindings();
-        bind(InterfaceScanner.class).to(DefaultInterfaceScanner.class);
+        requireBinding(HostConfig.class);
+        bind(DefaultInterfaceScanner.class);
+        bind(RtnetlinkInterfaceScanner.class);
         expose(InterfaceScanner.class);
     }
+
+    @Provides
+    @Singleton
+    InterfaceScanner provideInterfaceScanner(
+            HostConfig config,
+            Provider<DefaultInterfaceScanner> pollingScanner,
+            Provider<RtnetlinkInterfaceScanner> rtnetlinkScanner) {
+        String val = config.getInterfaceScanner();
+        switch (val) {
+            case "polling":
+                return pollingScanner.get();
+            case "rtnetlink":
+                return rtnetlinkScanner.get();
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown value for interface_scanner: " + val);
+        }
+    }
 }
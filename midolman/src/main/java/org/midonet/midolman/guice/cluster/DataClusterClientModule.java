@@ -19,6 +19,7 @@ import com.google.inject.Singleton;
 
 import org.midonet.cluster.ClusterBgpManager;
 import org.midonet.cluster.ClusterChainManager;
+import org.midonet.cluster.ClusterDhcpManager;
 import org.midonet.cluster.ClusterHealthMonitorManager;
 import org.midonet.cluster.ClusterIPAddrGroupManager;
 import org.midonet.cluster.ClusterLoadBalancerManager;
@@ -48,6 +49,9 @@ public class DataClusterClientModule extends DataClientModule {
         bind(ClusterIPAddrGroupManager.class)
                 .in(Singleton.class);
 
+        bind(ClusterDhcpManager.class)
+                .in(Singleton.class);
+
         bind(ClusterLoadBalancerManager.class)
                 .in(Singleton.class);
 
@@ -29,6 +29,7 @@ import org.midonet.midolman.config.MidolmanConfig;
 import org.midonet.midolman.datapath.DatapathChannel;
 import org.midonet.midolman.datapath.DisruptorDatapathChannel;
 import org.midonet.midolman.flows.FlowEjector;
+import org.midonet.midolman.flows.WildcardResultCache;
 import org.midonet.midolman.io.DatapathConnectionPool;
 import org.midonet.midolman.io.OneToOneConnectionPool;
 import org.midonet.midolman.io.OneToOneDpConnManager;
@@ -53,6 +54,7 @@ public class DatapathModule extends PrivateModule {
 
         bindNetlinkConnectionFactory();
         bindFlowEjector();
+        bindWildcardResultCache();
         bindOvsNetlinkFamilies();
         bindDatapathChannel();
         bindDatapathConnectionPool();
@@ -60,6 +62,7 @@ public class DatapathModule extends PrivateModule {
 
         expose(NetlinkChannelFactory.class);
         expose(FlowEjector.class);
+        expose(WildcardResultCache.class);
         expose(OvsNetlinkFamilies.class);
         expose(DatapathChannel.class);
         expose(DatapathConnectionPool.class);
@@ -87,7 +90,8 @@ public class DatapathModule extends PrivateModule {
                         injector.getInstance(FlowEjector.class),
                         injector.getInstance(NetlinkChannelFactory.class),
                         injector.getInstance(OvsNetlinkFamilies.class),
-                        NanoClock$.MODULE$.DEFAULT()
+                        NanoClock$.MODULE$.DEFAULT(),
+                        config.getOutputMessagesPerWrite()
                     );
                 }
             })
@@ -134,6 +138,21 @@ public class DatapathModule extends PrivateModule {
             .in(Singleton.class);
     }
 
+    protected void bindWildcardResultCache() {
+        bind(WildcardResultCache.class)
+            .toProvider(new Provider<WildcardResultCache>() {
+                @Inject
+                MidolmanConfig config;
+
+                @Override
+                public WildcardResultCache get() {
+                    return new WildcardResultCache(
+                        config.getWildcardResultCacheSize());
+                }
+            })
+            .in(Singleton.class);
+    }
+
     protected void bindNetlinkConnectionFactory() {
         bind(NetlinkChannelFactory.class)
             .in(Singleton.class);
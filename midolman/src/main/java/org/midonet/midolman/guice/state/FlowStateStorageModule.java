@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.guice.state;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.Key;
 import com.google.inject.PrivateModule;
@@ -28,6 +29,8 @@ import org.midonet.midolman.guice.zookeeper.ZkConnectionProvider;
 import org.midonet.midolman.state.FlowStateStorage;
 import org.midonet.midolman.state.FlowStateStorage$;
 import org.midonet.midolman.state.FlowStateStorageFactory;
+import org.midonet.midolman.state.FlowStateWriter;
+import org.midonet.util.concurrent.NanoClock$;
 import org.midonet.util.eventloop.Reactor;
 
 
@@ -37,6 +40,7 @@ public class FlowStateStorageModule extends PrivateModule {
         binder().requireExplicitBindings();
 
         requireBinding(MidolmanConfig.class);
+        requireBinding(MetricRegistry.class);
         requireBinding(Key.get(Reactor.class, Names.named(
                 ZkConnectionProvider.DIRECTORY_REACTOR_TAG)));
 
@@ -53,27 +57,45 @@ public class FlowStateStorageModule extends PrivateModule {
         @Named(ZkConnectionProvider.DIRECTORY_REACTOR_TAG)
         Reactor reactor;
 
+        @Inject
+        MetricRegistry metricRegistry;
+
         @Override
         public FlowStateStorageFactory get() {
+            boolean partitioned = config.getFlowStatePartitionedByPort();
             CassandraClient cass = new CassandraClient(
                     config.getCassandraServers(), config.getCassandraCluster(),
                     "MidonetFlowState", config.getCassandraReplicationFactor(),
-                    FlowStateStorage$.MODULE$.SCHEMA(), reactor);
+                    FlowStateStorage$.MODULE$.schema(partitioned), reactor);
             cass.connect();
-            return new FlowStateStorageFactoryImpl(cass);
+            FlowStateWriter writer = new FlowStateWriter(
+                    cass, FlowStateStorage$.MODULE$.tables(partitioned),
+                    config.getFlowStateWriteQueueSize(),
+                    config.getFlowStateWriteDedupMillis(),
+                    config.getFlowStateMaxBatchesInFlight(),
+                    metricRegistry, NanoClock$.MODULE$.DEFAULT());
+            writer.start();
+            return new FlowStateStorageFactoryImpl(
+                    cass, writer, config.getFlowStateImportPageSize());
         }
     }
 
     private static class FlowStateStorageFactoryImpl implements FlowStateStorageFactory {
         CassandraClient cass;
+        FlowStateWriter writer;
+        int pageSize;
 
-        public FlowStateStorageFactoryImpl(CassandraClient cass) {
+        public FlowStateStorageFactoryImpl(CassandraClient cass,
+                                           FlowStateWriter writer,
+                                           int pageSize) {
             this.cass = cass;
+            this.writer = writer;
+            this.pageSize = pageSize;
         }
 
         @Override
         public FlowStateStorage create() {
-            return FlowStateStorage$.MODULE$.apply(cass);
+            return FlowStateStorage$.MODULE$.apply(cass, writer, pageSize);
         }
     }
 }
@@ -37,6 +37,17 @@ public interface HostConfig extends HostIdConfig {
     @ConfigInt(key = "wait_time_between_scans", defaultValue = 30000)
     public int getWaitTimeBetweenHostScans();
 
+    /**
+     * Returns how the interfaces of the host are scanned: "polling" runs
+     * every sensor over all the interfaces every couple of seconds, forking
+     * the "ip" command, while "rtnetlink" listens to the kernel
+     * notifications and only updates the interfaces that changed.
+     *
+     * @return the kind of interface scanner
+     */
+    @ConfigString(key = "interface_scanner", defaultValue = "polling")
+    public String getInterfaceScanner();
+
     /**
      * Get the unique Id stored in the config file
      *
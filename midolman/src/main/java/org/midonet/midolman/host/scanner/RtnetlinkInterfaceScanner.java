@@ -0,0 +1,422 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.host.scanner;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.Subscription;
+import org.midonet.midolman.host.interfaces.InterfaceDescription;
+import org.midonet.midolman.host.sensor.InterfaceSensor;
+import org.midonet.midolman.host.sensor.NetlinkInterfaceSensor;
+import org.midonet.midolman.host.sensor.SysfsInterfaceSensor;
+import org.midonet.netlink.BytesUtil;
+import org.midonet.netlink.Callback;
+import org.midonet.netlink.NLFlag;
+import org.midonet.netlink.NLMessageType;
+import org.midonet.netlink.Netlink;
+import org.midonet.netlink.NetlinkChannel;
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.NetlinkProtocol;
+import org.midonet.netlink.rtnetlink.Addr;
+import org.midonet.netlink.rtnetlink.Link;
+import org.midonet.netlink.rtnetlink.Rtnetlink;
+
+import static org.midonet.midolman.host.interfaces.InterfaceDescription.Endpoint;
+import static org.midonet.midolman.host.interfaces.InterfaceDescription.Type;
+
+/**
+ * Interface scanner listening to the rtnetlink notifications of the
+ * interfaces and their addresses. Instead of running every sensor over all
+ * the interfaces periodically, it keeps the interfaces up to date as the
+ * kernel reports changes, and only the interfaces that changed are described
+ * again and run through the sensors. The callbacks are notified only when
+ * an interface changed, and the descriptions of the interfaces that didn't
+ * change are kept across notifications. When notifications are lost, the
+ * state is rebuilt from a dump of the interfaces and addresses.
+ */
+@Singleton
+public class RtnetlinkInterfaceScanner implements InterfaceScanner {
+    private static final Logger log =
+        LoggerFactory.getLogger(RtnetlinkInterfaceScanner.class);
+
+    private static final int READ_BUF_SIZE = 64 * 1024;
+    private static final int MAX_DUMP_ATTEMPTS = 3;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final List<InterfaceSensor> sensors;
+    private final ArrayList<Callback<Set<InterfaceDescription>>> callbacks =
+        new ArrayList<>();
+    private volatile boolean isRunning;
+    private Set<InterfaceDescription> lastScan = new HashSet<>();
+
+    // All the state below is only accessed from the scanner thread, once
+    // the first scan is done.
+    private final Map<Integer, Link> links = new HashMap<>();
+    private final Map<Integer, Set<Addr>> addrs = new HashMap<>();
+    private final Map<Integer, InterfaceDescription> interfaces =
+        new HashMap<>();
+    private final Set<Integer> dirty = new HashSet<>();
+    private final ByteBuffer buf = BytesUtil.instance.allocateDirect(
+        READ_BUF_SIZE);
+    private NetlinkChannel channel;
+    private Thread thread;
+    private int seq = 0;
+    private int dumpSeq = -1;
+    private boolean dumpDone;
+    private boolean dumpInterrupted;
+
+    @Inject
+    public RtnetlinkInterfaceScanner(Injector injector) {
+        // Loopback and tuntap interfaces are told apart from the link info,
+        // so only the sensors that don't fork are needed.
+        this(Arrays.asList(
+            injector.getInstance(SysfsInterfaceSensor.class),
+            injector.getInstance(NetlinkInterfaceSensor.class)));
+    }
+
+    RtnetlinkInterfaceScanner(List<InterfaceSensor> sensors) {
+        this.sensors = sensors;
+    }
+
+    public Subscription register(final Callback<Set<InterfaceDescription>> callback) {
+        synchronized (callbacks) {
+            callbacks.add(callback);
+            callback.onSuccess(lastScan);
+        }
+
+        return new Subscription() {
+            private final AtomicBoolean unsubscribed = new AtomicBoolean();
+
+            @Override
+            public boolean isUnsubscribed() {
+                return unsubscribed.get();
+            }
+
+            @Override
+            public void unsubscribe() {
+                if (unsubscribed.compareAndSet(false, true)) {
+                    synchronized (callbacks) {
+                        callbacks.remove(callback);
+                    }
+                }
+            }
+        };
+    }
+
+    public void start() {
+        try {
+            channel = Netlink.selectorProvider()
+                .openNetlinkSocketChannel(NetlinkProtocol.NETLINK_ROUTE);
+            channel.connect(new Netlink.Address(0));
+            channel.reportOverruns();
+            // Subscribe before dumping, so that no change is missed.
+            channel.addMembership(Rtnetlink.Group.Link);
+            channel.addMembership(Rtnetlink.Group.IPv4IfAddr);
+            channel.addMembership(Rtnetlink.Group.IPv6IfAddr);
+        } catch (Exception e) {
+            log.error("Could not listen to the interface notifications", e);
+            return;
+        }
+
+        isRunning = true;
+        // The first scan is done right away, so that the interfaces are
+        // known as soon as the scanner is started.
+        boolean synced = false;
+        try {
+            resync();
+            publish();
+            synced = true;
+        } catch (IOException e) {
+            log.warn("Failed to dump the interfaces", e);
+        }
+
+        final boolean initiallySynced = synced;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scan(initiallySynced);
+            }
+        }, "interface-scanner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void shutdown() {
+        isRunning = false;
+        NetlinkChannel ch = channel;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                log.debug("Failed to close the rtnetlink channel", e);
+            }
+        }
+    }
+
+    private void scan(boolean synced) {
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+        while (isRunning) {
+            try {
+                if (!synced) {
+                    resync();
+                    synced = true;
+                } else {
+                    read();
+                }
+                publish();
+                backoffMillis = MIN_BACKOFF_MILLIS;
+            } catch (IOException e) {
+                if (!isRunning)
+                    return;
+                if (NetlinkChannel.isOverrun(e)) {
+                    // The kernel dropped notifications.
+                    log.warn("Lost interface notifications, dumping the " +
+                             "interfaces again", e);
+                    synced = false;
+                    continue;
+                }
+                // Other errors aren't expected to go away right away, so
+                // they're retried with an increasing delay rather than in a
+                // busy loop.
+                log.error("Failed to read the interface notifications, " +
+                          "retrying in {} ms", backoffMillis, e);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoffMillis = Math.min(2 * backoffMillis,
+                                         MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    private void read() throws IOException {
+        buf.clear();
+        int nbytes = channel.read(buf);
+        buf.flip();
+        if (nbytes > 0)
+            handleMessages(buf);
+    }
+
+    /* Rebuilds the links and addresses from a dump, marking as dirty the
+     * interfaces that changed since the last time they were published. */
+    private void resync() throws IOException {
+        Map<Integer, Link> oldLinks = new HashMap<>(links);
+        Map<Integer, Set<Addr>> oldAddrs = new HashMap<>(addrs);
+
+        int attempts = 0;
+        do {
+            links.clear();
+            addrs.clear();
+            dumpInterrupted = false;
+            dump(Rtnetlink.Type.GetLink);
+            dump(Rtnetlink.Type.GetAddr);
+        } while (dumpInterrupted && ++attempts < MAX_DUMP_ATTEMPTS);
+
+        dirty.clear();
+        Set<Integer> ifindexes = new HashSet<>(oldLinks.keySet());
+        ifindexes.addAll(links.keySet());
+        for (Integer ifindex : ifindexes) {
+            if (!Objects.equals(oldLinks.get(ifindex), links.get(ifindex)) ||
+                !Objects.equals(oldAddrs.get(ifindex), addrs.get(ifindex))) {
+                dirty.add(ifindex);
+            }
+        }
+    }
+
+    private void dump(short type) throws IOException {
+        dumpSeq = ++seq;
+        dumpDone = false;
+
+        buf.clear();
+        if (type == Rtnetlink.Type.GetLink)
+            Link.writeDumpRequest(buf, dumpSeq);
+        else
+            Addr.writeDumpRequest(buf, dumpSeq);
+        channel.write(buf);
+
+        // Notifications may come in between the parts of the dump, they're
+        // applied as they're read.
+        while (!dumpDone && isRunning)
+            read();
+        dumpSeq = -1;
+    }
+
+    /**
+     * Applies the rtnetlink messages held in the buffer to the links and
+     * addresses, marking the interfaces they change as dirty.
+     */
+    void handleMessages(ByteBuffer buf) {
+        int pos = buf.position();
+        int end = buf.limit();
+        while (end - pos >= NetlinkMessage.HEADER_SIZE) {
+            int len = buf.getInt(pos + NetlinkMessage.NLMSG_LEN_OFFSET);
+            if (len < NetlinkMessage.HEADER_SIZE || pos + len > end)
+                break;
+
+            short type = buf.getShort(pos + NetlinkMessage.NLMSG_TYPE_OFFSET);
+            short flags = buf.getShort(pos + NetlinkMessage.NLMSG_FLAGS_OFFSET);
+            int msgSeq = buf.getInt(pos + NetlinkMessage.NLMSG_SEQ_OFFSET);
+            if (msgSeq != 0 && msgSeq == dumpSeq &&
+                (flags & NLFlag.DUMP_INTR) != 0) {
+                dumpInterrupted = true;
+            }
+
+            buf.position(pos + NetlinkMessage.HEADER_SIZE);
+            buf.limit(pos + len);
+            switch (type) {
+                case Rtnetlink.Type.NewLink:
+                    newLink(Link.buildFrom(buf));
+                    break;
+                case Rtnetlink.Type.DelLink:
+                    delLink(Link.buildFrom(buf));
+                    break;
+                case Rtnetlink.Type.NewAddr:
+                    newAddr(Addr.buildFrom(buf));
+                    break;
+                case Rtnetlink.Type.DelAddr:
+                    delAddr(Addr.buildFrom(buf));
+                    break;
+                case NLMessageType.DONE:
+                    if (msgSeq == dumpSeq)
+                        dumpDone = true;
+                    break;
+                case NLMessageType.ERROR:
+                    if (msgSeq == dumpSeq) {
+                        log.error("Interface dump failed with error {}",
+                                  -buf.getInt());
+                        dumpDone = true;
+                    }
+                    break;
+            }
+            buf.limit(end);
+            pos += NetlinkMessage.align(len);
+        }
+        buf.position(end);
+    }
+
+    private void newLink(Link link) {
+        if (!link.equals(links.put(link.getIfindex(), link)))
+            dirty.add(link.getIfindex());
+    }
+
+    private void delLink(Link link) {
+        addrs.remove(link.getIfindex());
+        if (links.remove(link.getIfindex()) != null)
+            dirty.add(link.getIfindex());
+    }
+
+    private void newAddr(Addr addr) {
+        Set<Addr> ifAddrs = addrs.get(addr.getIfindex());
+        if (ifAddrs == null) {
+            ifAddrs = new LinkedHashSet<>();
+            addrs.put(addr.getIfindex(), ifAddrs);
+        }
+        if (ifAddrs.add(addr))
+            dirty.add(addr.getIfindex());
+    }
+
+    private void delAddr(Addr addr) {
+        Set<Addr> ifAddrs = addrs.get(addr.getIfindex());
+        if (ifAddrs != null && ifAddrs.remove(addr)) {
+            if (ifAddrs.isEmpty())
+                addrs.remove(addr.getIfindex());
+            dirty.add(addr.getIfindex());
+        }
+    }
+
+    /**
+     * Describes again the dirty interfaces and, if there are any, notifies
+     * the callbacks of the new set of interfaces.
+     */
+    void publish() {
+        if (dirty.isEmpty())
+            return;
+
+        Set<InterfaceDescription> changed = new HashSet<>();
+        for (Integer ifindex : dirty) {
+            Link link = links.get(ifindex);
+            if (link == null) {
+                interfaces.remove(ifindex);
+            } else {
+                InterfaceDescription desc = describe(link, addrs.get(ifindex));
+                interfaces.put(ifindex, desc);
+                changed.add(desc);
+            }
+        }
+        dirty.clear();
+
+        for (InterfaceSensor sensor : sensors) {
+            sensor.updateInterfaceData(changed);
+        }
+
+        Set<InterfaceDescription> scan = new HashSet<>(interfaces.values());
+        synchronized (callbacks) {
+            lastScan = scan;
+            for (Callback<Set<InterfaceDescription>> cb : callbacks) {
+                cb.onSuccess(scan);
+            }
+        }
+    }
+
+    private InterfaceDescription describe(Link link, Set<Addr> ifAddrs) {
+        InterfaceDescription desc = new InterfaceDescription(link.getName());
+        desc.setMtu(link.getMtu());
+        desc.setUp(link.isUp());
+        desc.setHasLink(link.hasLink());
+        if (link.getMac() != null)
+            desc.setMac(link.getMac().toString());
+
+        if (link.isLoopback()) {
+            desc.setEndpoint(Endpoint.LOCALHOST);
+            desc.setType(Type.VIRT);
+        } else if ("tun".equals(link.getKind())) {
+            desc.setEndpoint(Endpoint.TUNTAP);
+            desc.setType(Type.VIRT);
+        }
+
+        if (ifAddrs != null) {
+            for (Addr addr : ifAddrs) {
+                InetAddress inetAddr = addr.getAddress();
+                if (inetAddr != null)
+                    desc.setInetAddress(inetAddr);
+            }
+        }
+        return desc;
+    }
+}
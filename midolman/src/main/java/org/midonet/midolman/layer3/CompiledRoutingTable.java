@@ -0,0 +1,398 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+
+/**
+ * An immutable snapshot of an IPv4 routing table, compiled for lookups.
+ *
+ * The routes are grouped by destination prefix, and the prefixes are pushed
+ * into a multibit trie with a stride of 8 bits, so that a lookup indexes at
+ * most four arrays to find the longest prefix matching the destination. Each
+ * group links to the group of the next shorter prefix covering it, which is
+ * where the lookup continues if no route in the group matches the source.
+ *
+ * The minimum weight routes of the groups whose routes don't depend on the
+ * source are computed up front, so that looking them up doesn't allocate.
+ * The routes returned by a lookup must not be modified.
+ *
+ * The table gives the same results as the RoutingTable for the routes that
+ * it was built with, and it can't be modified. When the routes change, the
+ * latest table compiles the next one with update(), which shares the nodes
+ * of the trie that the changes don't touch.
+ */
+public final class CompiledRoutingTable implements RoutingTableIfc<IPv4Addr> {
+
+    private static final int STRIDE = 8;
+    private static final int FANOUT = 1 << STRIDE;
+    private static final int LEVELS = 32 / STRIDE;
+
+    /* The routes to a destination prefix. */
+    private static final class RouteGroup {
+        final Route[] routes;
+        final RouteGroup parent;
+        /* The minimum weight routes, if none of the routes depends on the
+         * source address, or null otherwise. */
+        final List<Route> best;
+
+        RouteGroup(List<Route> routes, RouteGroup parent) {
+            this.routes = routes.toArray(new Route[routes.size()]);
+            this.parent = parent;
+            boolean anySource = true;
+            for (Route rt : this.routes)
+                anySource &= rt.srcNetworkLength == 0;
+            best = anySource ? bestRoutes(this.routes, 0) : null;
+        }
+    }
+
+    /* A node of the trie. The groups are pushed to all the slots of the
+     * node that their prefix covers, and inherited by the nodes below. A
+     * node is only modified by the table of the same generation. */
+    private static final class Node {
+        final int generation;
+        final RouteGroup[] groups;
+        Node[] children;
+
+        Node(int generation, RouteGroup inherited) {
+            this.generation = generation;
+            groups = new RouteGroup[FANOUT];
+            Arrays.fill(groups, inherited);
+        }
+
+        Node(int generation, Node node) {
+            this.generation = generation;
+            groups = node.groups.clone();
+            children = node.children == null ? null : node.children.clone();
+        }
+    }
+
+    private final int generation;
+    private final Node root;
+    private final int numRoutes;
+    private final int sourceRoutes;
+
+    /* The route groups by prefix, which are handed over to the next table
+     * on update. */
+    private Map<Long, RouteGroup> prefixes;
+
+    public CompiledRoutingTable(Collection<Route> routes) {
+        generation = 0;
+        root = new Node(generation, (RouteGroup) null);
+        prefixes = new HashMap<>();
+        numRoutes = routes.size();
+
+        // Group the routes by prefix, and insert the shorter prefixes first
+        // so that the longer ones overwrite them.
+        int sources = 0;
+        Map<Long, List<Route>> groups = new HashMap<>();
+        for (Route rt : routes) {
+            long key = key(rt.dstNetworkAddr, rt.dstNetworkLength);
+            List<Route> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(rt);
+            if (rt.srcNetworkLength != 0)
+                sources++;
+        }
+        sourceRoutes = sources;
+        List<Map.Entry<Long, List<Route>>> sorted =
+            new ArrayList<>(groups.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<Long, List<Route>>>() {
+            @Override
+            public int compare(Map.Entry<Long, List<Route>> a,
+                               Map.Entry<Long, List<Route>> b) {
+                return Long.compare(a.getKey(), b.getKey());
+            }
+        });
+        for (Map.Entry<Long, List<Route>> e : sorted) {
+            long key = e.getKey();
+            insert((int) key, (int) (key >>> 32), e.getValue());
+        }
+    }
+
+    /* Compiles the next table from the groups of the previous one, whose
+     * routes don't depend on the source address. */
+    private CompiledRoutingTable(CompiledRoutingTable previous,
+                                 Map<Long, List<Route>> changes) {
+        generation = previous.generation + 1;
+        root = new Node(generation, previous.root);
+        prefixes = previous.prefixes;
+        sourceRoutes = 0;
+
+        int routes = previous.numRoutes;
+        for (Map.Entry<Long, List<Route>> e : changes.entrySet()) {
+            long key = e.getKey();
+            int addr = (int) key;
+            int length = (int) (key >>> 32);
+            RouteGroup oldGroup = prefixes.get(key);
+            if (oldGroup == null && e.getValue().isEmpty())
+                continue;
+            RouteGroup newGroup = null;
+            if (!e.getValue().isEmpty()) {
+                newGroup = new RouteGroup(e.getValue(), null);
+                prefixes.put(key, newGroup);
+            } else {
+                prefixes.remove(key);
+            }
+            routes += e.getValue().size();
+            if (oldGroup != null)
+                routes -= oldGroup.routes.length;
+
+            // The slots of the prefix that longer prefixes didn't overwrite
+            // hold its old group, or the group covering it if it's new.
+            RouteGroup cover = cover(addr, length);
+            replace(addr, length, oldGroup != null ? oldGroup : cover,
+                    newGroup != null ? newGroup : cover);
+        }
+        numRoutes = routes;
+    }
+
+    private static long key(int addr, int length) {
+        return ((long) length << 32) | (mask(addr, length) & 0xffffffffL);
+    }
+
+    private static int mask(int addr, int length) {
+        return length == 0 ? 0 : addr & (0xffffffff << (32 - length));
+    }
+
+    private void insert(int addr, int length, List<Route> routes) {
+        Node node = levelNode(addr, length);
+
+        // The slots covered by the prefix have no children yet, because
+        // the longer prefixes are inserted later. Their group is the one of
+        // the longest prefix covering this one.
+        int level = level(length);
+        int first = index(addr, level);
+        int span = 1 << (STRIDE * (level + 1) - length);
+        RouteGroup group = new RouteGroup(routes, node.groups[first]);
+        Arrays.fill(node.groups, first, first + span, group);
+        prefixes.put(key(addr, length), group);
+    }
+
+    /* Returns the node of this generation holding the prefix, copying the
+     * nodes on the way from a previous generation. */
+    private Node levelNode(int addr, int length) {
+        int level = level(length);
+        Node node = root;
+        for (int i = 0; i < level; i++) {
+            int index = index(addr, i);
+            if (node.children == null)
+                node.children = new Node[FANOUT];
+            Node child = node.children[index];
+            if (child == null) {
+                child = new Node(generation, node.groups[index]);
+            } else if (child.generation != generation) {
+                child = new Node(generation, child);
+            }
+            node.children[index] = child;
+            node = child;
+        }
+        return node;
+    }
+
+    /* Replaces the group in the slots covered by the prefix, and in the
+     * nodes below that inherited it. */
+    private void replace(int addr, int length, RouteGroup from,
+                         RouteGroup to) {
+        Node node = levelNode(addr, length);
+        int level = level(length);
+        int first = index(addr, level);
+        int span = 1 << (STRIDE * (level + 1) - length);
+        for (int i = first; i < first + span; i++) {
+            if (node.groups[i] == from) {
+                node.groups[i] = to;
+                if (node.children != null && node.children[i] != null)
+                    node.children[i] = replaceAll(node.children[i], from, to);
+            }
+        }
+    }
+
+    private Node replaceAll(Node node, RouteGroup from, RouteGroup to) {
+        Node copy = node;
+        for (int i = 0; i < FANOUT; i++) {
+            if (node.groups[i] == from) {
+                if (copy.generation != generation)
+                    copy = new Node(generation, node);
+                copy.groups[i] = to;
+                if (node.children != null && node.children[i] != null)
+                    copy.children[i] = replaceAll(node.children[i], from, to);
+            }
+        }
+        return copy;
+    }
+
+    /* The group of the longest prefix shorter than the given one covering
+     * it. */
+    private RouteGroup cover(int addr, int length) {
+        for (int l = length - 1; l >= 0; l--) {
+            RouteGroup group = prefixes.get(key(addr, l));
+            if (group != null)
+                return group;
+        }
+        return null;
+    }
+
+    private static int level(int length) {
+        return length == 0 ? 0 : (length - 1) / STRIDE;
+    }
+
+    private static int index(int addr, int level) {
+        return (addr >>> (STRIDE * (LEVELS - 1 - level))) & (FANOUT - 1);
+    }
+
+    private static List<Route> bestRoutes(Route[] routes, int src) {
+        List<Route> best = new ArrayList<>(1);
+        int minWeight = Integer.MAX_VALUE;
+        for (Route rt : routes) {
+            if (IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                     rt.srcNetworkLength)) {
+                if (rt.weight < minWeight) {
+                    best.clear();
+                    best.add(rt);
+                    minWeight = rt.weight;
+                } else if (rt.weight == minWeight) {
+                    best.add(rt);
+                }
+            }
+        }
+        return best.isEmpty() ? Collections.<Route>emptyList()
+                              : Collections.unmodifiableList(best);
+    }
+
+    /**
+     * Returns the minimum weight routes with the longest destination prefix
+     * that matches the destination address, out of those that match the
+     * source address.
+     */
+    public List<Route> lookup(int src, int dst) {
+        RouteGroup group = null;
+        Node node = root;
+        for (int level = 0; level < LEVELS && node != null; level++) {
+            int index = index(dst, level);
+            RouteGroup g = node.groups[index];
+            if (g != null)
+                group = g;
+            node = node.children == null ? null : node.children[index];
+        }
+
+        while (group != null) {
+            List<Route> routes = group.best != null ? group.best
+                                                    : bestRoutes(group.routes, src);
+            if (!routes.isEmpty())
+                return routes;
+            group = group.parent;
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Compiles the table with the given routes added and removed, applying
+     * only the changes to the trie: the nodes that the changes don't touch
+     * are shared with this table, which lookups can keep using. A table
+     * that has routes depending on the source address is compiled again
+     * from all the routes. The removed routes are taken out before the
+     * added ones are put in.
+     *
+     * Only the latest table can be updated, because it hands its route
+     * groups over to the next one.
+     */
+    public CompiledRoutingTable update(Collection<Route> added,
+                                       Collection<Route> removed) {
+        if (prefixes == null)
+            throw new IllegalStateException(
+                "The routing table was already updated");
+
+        boolean sources = sourceRoutes > 0;
+        Map<Long, List<Route>> changes = new HashMap<>();
+        for (Route rt : removed) {
+            routesOf(changes, rt).remove(rt);
+        }
+        for (Route rt : added) {
+            List<Route> routes = routesOf(changes, rt);
+            if (!routes.contains(rt))
+                routes.add(rt);
+            sources |= rt.srcNetworkLength != 0;
+        }
+
+        if (!sources) {
+            CompiledRoutingTable table = new CompiledRoutingTable(this, changes);
+            prefixes = null;
+            return table;
+        }
+
+        List<Route> routes = new ArrayList<>(numRoutes + added.size());
+        for (Map.Entry<Long, RouteGroup> e : prefixes.entrySet()) {
+            if (!changes.containsKey(e.getKey()))
+                routes.addAll(Arrays.asList(e.getValue().routes));
+        }
+        for (List<Route> changed : changes.values())
+            routes.addAll(changed);
+        prefixes = null;
+        return new CompiledRoutingTable(routes);
+    }
+
+    private List<Route> routesOf(Map<Long, List<Route>> changes, Route rt) {
+        long key = key(rt.dstNetworkAddr, rt.dstNetworkLength);
+        List<Route> routes = changes.get(key);
+        if (routes == null) {
+            RouteGroup group = prefixes.get(key);
+            routes = group == null ? new ArrayList<Route>()
+                                   : new ArrayList<>(Arrays.asList(group.routes));
+            changes.put(key, routes);
+        }
+        return routes;
+    }
+
+    @Override
+    public Iterable<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+        return lookup(src.toInt(), dst.toInt());
+    }
+
+    @Override
+    public void addRoute(Route rt) {
+        throw new UnsupportedOperationException(
+            "A compiled routing table can't be modified");
+    }
+
+    @Override
+    public void deleteRoute(Route rt) {
+        throw new UnsupportedOperationException(
+            "A compiled routing table can't be modified");
+    }
+
+    public int numRoutes() {
+        return numRoutes;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledRoutingTable [numRoutes=" + numRoutes + "]";
+    }
+}
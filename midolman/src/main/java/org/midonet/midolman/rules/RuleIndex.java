@@ -0,0 +1,356 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.rules;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.midonet.odp.FlowMatch;
+import org.midonet.packets.IPAddr;
+import org.midonet.packets.IPSubnet;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.util.Range;
+
+/**
+ * An index over the rules of a chain, partitioned by the network protocol,
+ * the source and destination IPv4 addresses and the transport destination
+ * port. Given a packet, it returns the set of rules that may match it, in
+ * chain order, so that only those have their conditions evaluated.
+ *
+ * The index is conservative: a rule is left out of the candidate set only
+ * if one of its non-inverted conditions on an indexed field can't match
+ * the packet. Rules with an inverted conjunction are always candidates.
+ * Whether a candidate actually matches is still decided by its Condition,
+ * which preserves the semantics of inversion flags, fragment policies,
+ * connection tracking and flow tags.
+ *
+ * For each field, the value space is split at the boundaries of the
+ * ranges in the conditions, and each of the resulting intervals holds
+ * the bitmap of the rules that accept values within it.
+ */
+public final class RuleIndex {
+
+    /** Chains with fewer rules than this are evaluated linearly. */
+    public static final int MIN_INDEXED_RULES = 8;
+
+    private final int numRules;
+    private final int words;
+    private final Dimension nwProto;
+    private final Dimension nwSrc;
+    private final Dimension nwDst;
+    private final Dimension tpDst;
+
+    /**
+     * The positions of the rules that match on the flow direction. Looking
+     * up the flow direction registers the connection with the connection
+     * tracking table, so that lookup must take place as soon as the linear
+     * evaluation of the chain would have done it.
+     */
+    private final int[] connTrackRules;
+    private final Condition[] connTrackConditions;
+
+    private RuleIndex(int numRules, int words, Dimension nwProto,
+                      Dimension nwSrc, Dimension nwDst, Dimension tpDst,
+                      int[] connTrackRules, Condition[] connTrackConditions) {
+        this.numRules = numRules;
+        this.words = words;
+        this.nwProto = nwProto;
+        this.nwSrc = nwSrc;
+        this.nwDst = nwDst;
+        this.tpDst = tpDst;
+        this.connTrackRules = connTrackRules;
+        this.connTrackConditions = connTrackConditions;
+    }
+
+    /**
+     * Builds the index for the given rules, or returns null if the rules
+     * are too few or have no conditions on the indexed fields.
+     */
+    public static RuleIndex build(List<Rule> rules) {
+        int size = rules.size();
+        if (size < MIN_INDEXED_RULES)
+            return null;
+
+        Condition[] conds = new Condition[size];
+        int numConnTrack = 0;
+        for (int i = 0; i < size; ++i) {
+            conds[i] = rules.get(i).getCondition();
+            if (conds[i].matchForwardFlow || conds[i].matchReturnFlow)
+                numConnTrack++;
+        }
+
+        int[] connTrackRules = new int[numConnTrack];
+        Condition[] connTrackConditions = new Condition[numConnTrack];
+        for (int i = 0, j = 0; i < size; ++i) {
+            if (conds[i].matchForwardFlow || conds[i].matchReturnFlow) {
+                connTrackRules[j] = i;
+                connTrackConditions[j++] = conds[i];
+            }
+        }
+
+        int words = (size + 63) >>> 6;
+        Dimension nwProto = Dimension.build(conds, words, PROTO);
+        Dimension nwSrc = Dimension.build(conds, words, NW_SRC);
+        Dimension nwDst = Dimension.build(conds, words, NW_DST);
+        Dimension tpDst = Dimension.build(conds, words, TP_DST);
+        if (nwProto == null && nwSrc == null && nwDst == null && tpDst == null)
+            return null;
+
+        return new RuleIndex(size, words, nwProto, nwSrc, nwDst, tpDst,
+                             connTrackRules, connTrackConditions);
+    }
+
+    /**
+     * The number of rules in the list the index was built from.
+     */
+    public int numRules() {
+        return numRules;
+    }
+
+    /**
+     * Reads into the given array the values of the packet fields on which
+     * some rule is indexed. Reading the fields through the FlowMatch marks
+     * them as seen, which keeps the resulting flow as specific as the rules
+     * that were skipped require.
+     */
+    public void readFields(FlowMatch pktMatch, long[] fields) {
+        fields[PROTO_FIELD] = (nwProto == null) ? NO_VALUE
+                              : pktMatch.getNetworkProto();
+        fields[NW_SRC_FIELD] = (nwSrc == null) ? NO_VALUE
+                               : ipValue(pktMatch.getNetworkSrcIP());
+        fields[NW_DST_FIELD] = (nwDst == null) ? NO_VALUE
+                               : ipValue(pktMatch.getNetworkDstIP());
+        fields[TP_DST_FIELD] = (tpDst == null) ? NO_VALUE
+                               : pktMatch.getDstPort();
+    }
+
+    /**
+     * Whether the indexed fields of the packet still have the values
+     * previously read with readFields(). Rules and jumps may rewrite the
+     * packet, in which case the candidates must be computed again.
+     */
+    public boolean fieldsUnchanged(FlowMatch pktMatch, long[] fields) {
+        if (nwProto != null &&
+                pktMatch.getNetworkProto() != fields[PROTO_FIELD])
+            return false;
+        if (nwSrc != null &&
+                ipValue(pktMatch.getNetworkSrcIP()) != fields[NW_SRC_FIELD])
+            return false;
+        if (nwDst != null &&
+                ipValue(pktMatch.getNetworkDstIP()) != fields[NW_DST_FIELD])
+            return false;
+        return tpDst == null || pktMatch.getDstPort() == fields[TP_DST_FIELD];
+    }
+
+    /**
+     * Returns the bitmap of the rules that may match a packet with the
+     * given field values, as read with readFields().
+     */
+    public long[] candidates(long[] fields) {
+        return candidates(fields, null);
+    }
+
+    /**
+     * As candidates(long[]), but writes the bitmap into the given array
+     * when it's of the right size for this index, so that it's reused
+     * instead of allocating a new one.
+     */
+    public long[] candidates(long[] fields, long[] result) {
+        if (result == null || result.length != words)
+            result = new long[words];
+        Arrays.fill(result, -1L);
+        if (nwProto != null)
+            nwProto.intersect(fields[PROTO_FIELD], result);
+        if (nwSrc != null)
+            nwSrc.intersect(fields[NW_SRC_FIELD], result);
+        if (nwDst != null)
+            nwDst.intersect(fields[NW_DST_FIELD], result);
+        if (tpDst != null)
+            tpDst.intersect(fields[TP_DST_FIELD], result);
+        return result;
+    }
+
+    /**
+     * Returns the index of the first rule that matches on the flow
+     * direction in the range [from, to) and whose fragment policy accepts
+     * the packet, or -1 if there is none.
+     */
+    public int connTrackRuleIn(int from, int to, FlowMatch pktMatch) {
+        int pos = Arrays.binarySearch(connTrackRules, from);
+        if (pos < 0)
+            pos = -pos - 1;
+        for (; pos < connTrackRules.length && connTrackRules[pos] < to; ++pos) {
+            if (connTrackConditions[pos].fragmentPolicy.accepts(
+                    pktMatch.getIpFragmentType()))
+                return connTrackRules[pos];
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the first candidate at or after the given
+     * one, or -1 if there is none.
+     */
+    public static int nextCandidate(long[] candidates, int from) {
+        int word = from >>> 6;
+        if (word >= candidates.length)
+            return -1;
+        long bits = candidates[word] & (-1L << from);
+        while (true) {
+            if (bits != 0)
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            if (++word == candidates.length)
+                return -1;
+            bits = candidates[word];
+        }
+    }
+
+    public static final int NUM_FIELDS = 4;
+    private static final int PROTO_FIELD = 0;
+    private static final int NW_SRC_FIELD = 1;
+    private static final int NW_DST_FIELD = 2;
+    private static final int TP_DST_FIELD = 3;
+
+    private static final long NO_VALUE = Long.MIN_VALUE;
+
+    private static long ipValue(IPAddr addr) {
+        return (addr instanceof IPv4Addr)
+               ? ((IPv4Addr) addr).toInt() & 0xffffffffL : NO_VALUE;
+    }
+
+    /**
+     * Extracts from a condition the closed range of values it accepts for
+     * a field, or null if the rule must be a candidate for any value.
+     */
+    private interface FieldRange {
+        long[] of(Condition cond);
+    }
+
+    private static final FieldRange PROTO = new FieldRange() {
+        @Override
+        public long[] of(Condition cond) {
+            if (cond.nwProto == null || cond.nwProtoInv)
+                return null;
+            return new long[] { cond.nwProto, cond.nwProto };
+        }
+    };
+
+    private static final FieldRange TP_DST = new FieldRange() {
+        @Override
+        public long[] of(Condition cond) {
+            Range<Integer> range = cond.tpDst;
+            if (range == null || cond.tpDstInv)
+                return null;
+            return new long[] {
+                range.start() == null ? Integer.MIN_VALUE : range.start(),
+                range.end() == null ? Integer.MAX_VALUE : range.end() };
+        }
+    };
+
+    private static long[] subnetRange(IPSubnet<?> subnet) {
+        if (!(subnet instanceof IPv4Subnet))
+            return null;
+        int prefixLen = subnet.getPrefixLen();
+        long size = 1L << (32 - prefixLen);
+        long start = ((IPv4Subnet) subnet).getIntAddress() & 0xffffffffL;
+        start &= ~(size - 1);
+        return new long[] { start, start + size - 1 };
+    }
+
+    private static final FieldRange NW_SRC = new FieldRange() {
+        @Override
+        public long[] of(Condition cond) {
+            return cond.nwSrcInv ? null : subnetRange(cond.nwSrcIp);
+        }
+    };
+
+    private static final FieldRange NW_DST = new FieldRange() {
+        @Override
+        public long[] of(Condition cond) {
+            return cond.nwDstInv ? null : subnetRange(cond.nwDstIp);
+        }
+    };
+
+    private static final class Dimension {
+        // The lower bounds of the intervals, except the first one, which
+        // starts at Long.MIN_VALUE.
+        private final long[] bounds;
+        // The rules accepting the values in each interval.
+        private final long[][] rules;
+        // The rules accepting any value, including no value at all.
+        private final long[] wildcards;
+
+        private Dimension(long[] bounds, long[][] rules, long[] wildcards) {
+            this.bounds = bounds;
+            this.rules = rules;
+            this.wildcards = wildcards;
+        }
+
+        static Dimension build(Condition[] conds, int words, FieldRange field) {
+            long[][] ranges = new long[conds.length][];
+            long[] points = new long[conds.length * 2];
+            long[] wildcards = new long[words];
+            int numPoints = 0;
+            for (int i = 0; i < conds.length; ++i) {
+                if (!conds[i].conjunctionInv)
+                    ranges[i] = field.of(conds[i]);
+                if (ranges[i] == null) {
+                    wildcards[i >>> 6] |= 1L << i;
+                } else {
+                    points[numPoints++] = ranges[i][0];
+                    if (ranges[i][1] != Long.MAX_VALUE)
+                        points[numPoints++] = ranges[i][1] + 1;
+                }
+            }
+            if (numPoints == 0)
+                return null;
+
+            Arrays.sort(points, 0, numPoints);
+            int numBounds = 0;
+            for (int i = 0; i < numPoints; ++i) {
+                if (numBounds == 0 || points[i] != points[numBounds - 1])
+                    points[numBounds++] = points[i];
+            }
+            long[] bounds = Arrays.copyOf(points, numBounds);
+
+            long[][] rules = new long[numBounds + 1][];
+            for (int i = 0; i <= numBounds; ++i)
+                rules[i] = wildcards.clone();
+            for (int i = 0; i < conds.length; ++i) {
+                if (ranges[i] == null)
+                    continue;
+                int first = interval(bounds, ranges[i][0]);
+                int last = interval(bounds, ranges[i][1]);
+                for (int j = first; j <= last; ++j)
+                    rules[j][i >>> 6] |= 1L << i;
+            }
+            return new Dimension(bounds, rules, wildcards);
+        }
+
+        private static int interval(long[] bounds, long value) {
+            int pos = Arrays.binarySearch(bounds, value);
+            return pos >= 0 ? pos + 1 : -pos - 1;
+        }
+
+        void intersect(long value, long[] result) {
+            long[] accepted = (value == NO_VALUE)
+                              ? wildcards : rules[interval(bounds, value)];
+            for (int i = 0; i < result.length; ++i)
+                result[i] &= accepted[i];
+        }
+    }
+}
@@ -17,7 +17,6 @@ package org.midonet.midolman.simulation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
@@ -27,24 +26,40 @@ import scala.collection.Map;
 
 import org.midonet.midolman.rules.JumpRule;
 import org.midonet.midolman.rules.Rule;
+import org.midonet.midolman.rules.RuleIndex;
 import org.midonet.midolman.rules.RuleResult;
 import org.midonet.midolman.rules.RuleResult.Action;
 import org.midonet.sdn.flows.FlowTagger;
 
 public class Chain {
+    private static final int MAX_DEPTH = 10;
+
     public final UUID id;
     private final List<Rule> rules;
     private final Map<UUID, Chain> jumpTargets;
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
+    private final RuleIndex index;
 
     public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
                  String name) {
+        this(id, rules, jumpTargets, name, true);
+    }
+
+    /**
+     * @param indexRules
+     *     Whether to build a RuleIndex over the rules, so that a packet is
+     *     only tested against the rules that may match it. Chains with few
+     *     rules are never indexed.
+     */
+    public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
+                 String name, boolean indexRules) {
         this.id = id;
         this.rules = new ArrayList<>(rules);
         this.jumpTargets = jumpTargets;
         this.name = name;
         flowInvTag = FlowTagger.tagForDevice(id);
+        index = indexRules ? RuleIndex.build(this.rules) : null;
     }
 
     public int hashCode() {
@@ -85,7 +100,7 @@ public class Chain {
                        int depth, List<UUID> traversedChains) {
 
         context.jlog().debug("Processing chain with name {} and ID {}", name, id);
-        if (depth > 10) {
+        if (depth > MAX_DEPTH) {
             throw new IllegalStateException("Deep recursion when processing " +
                                             "chain " + traversedChains.get(0));
         }
@@ -93,11 +108,39 @@ public class Chain {
         context.addFlowTag(flowInvTag);
         traversedChains.add(id);
 
-        Iterator<Rule> iter = rules.iterator();
+        // When the chain is indexed, only the candidate rules are tested.
+        // The rest can't match the packet, unless a rule rewrites one of
+        // the indexed fields, in which case the candidates are recomputed.
+        Scratch scratch = context.chainScratch();
+        long[] fields = null;
+        long[] candidates = null;
+        if (index != null && index.numRules() == rules.size()) {
+            fields = scratch.fields[depth];
+            index.readFields(context.wcmatch(), fields);
+            candidates = index.candidates(fields, scratch.candidates[depth]);
+            scratch.candidates[depth] = candidates;
+        }
+
+        int size = rules.size();
+        int pos = 0;
         res.action = Action.CONTINUE;
-        while (iter.hasNext() && res.action == Action.CONTINUE) {
+        while (pos < size && res.action == Action.CONTINUE) {
+
+            if (candidates != null) {
+                int next = RuleIndex.nextCandidate(candidates, pos);
+                if (next < 0)
+                    next = size;
+                // The skipped rules would have looked up the flow
+                // direction, which has the side effect of tracking the
+                // connection.
+                if (index.connTrackRuleIn(pos, next, context.wcmatch()) >= 0)
+                    context.isForwardFlow();
+                if (next == size)
+                    break;
+                pos = next;
+            }
 
-            Rule r = iter.next();
+            Rule r = rules.get(pos++);
             r.process(context, res, ownerId, isPortFilter);
 
             if (res.action == Action.JUMP) {
@@ -120,6 +163,13 @@ public class Chain {
                         res.action = Action.CONTINUE;
                 }
             }
+
+            if (candidates != null && res.action == Action.CONTINUE &&
+                    !index.fieldsUnchanged(context.wcmatch(), fields)) {
+                index.readFields(context.wcmatch(), fields);
+                candidates = index.candidates(fields, candidates);
+                scratch.candidates[depth] = candidates;
+            }
         }
 
         assert res.action != Action.JUMP;
@@ -134,13 +184,19 @@ public class Chain {
      *            UUID of the element using chainId.
      * @param isPortFilter
      *            whether the chain is being processed in a port filter context
+     * @return the result of the chain, which is reused by the next chain
+     *         applied to the same context.
      */
     public static RuleResult apply(
             Chain chain, PacketContext context,
             UUID ownerId, boolean isPortFilter) {
 
+        Scratch scratch = context.chainScratch();
+        RuleResult res = scratch.result;
+        res.jumpToChain = null;
         if (null == chain) {
-            return new RuleResult(Action.ACCEPT, null);
+            res.action = Action.ACCEPT;
+            return res;
         }
 
         if (context.jlog().isDebugEnabled()) {
@@ -150,12 +206,9 @@ public class Chain {
         // Use ArrayList rather than HashSet because the list will be
         // short enough that O(N) lookup is still cheap, and this
         // avoids per-chain allocation.
-        //
-        // TODO: We can count how many chains can be reached from a
-        // given root chain in the constructor and then use that to
-        // determine how big a list to allocate.
-        List<UUID> traversedChains = new ArrayList<>();
-        RuleResult res = new RuleResult(Action.CONTINUE, null);
+        List<UUID> traversedChains = scratch.traversedChains;
+        traversedChains.clear();
+        res.action = Action.CONTINUE;
         chain.apply(context, ownerId, isPortFilter, res, 0, traversedChains);
 
         // Accept if the chain didn't make an explicit decision.
@@ -172,6 +225,21 @@ public class Chain {
         return res;
     }
 
+    /**
+     * Scratch state reused by the chains applied to a packet, so that
+     * applying them doesn't allocate. The chains of a packet are applied
+     * one at a time, and the RuleResult returned by apply() is only valid
+     * until the next chain is applied to the same packet.
+     */
+    public static final class Scratch {
+        final RuleResult result = new RuleResult(Action.CONTINUE, null);
+        final List<UUID> traversedChains = new ArrayList<>(MAX_DEPTH + 1);
+        // The indexed fields and candidate rules of the chain at each
+        // depth, which a jump chain must not overwrite.
+        final long[][] fields = new long[MAX_DEPTH + 1][RuleIndex.NUM_FIELDS];
+        final long[][] candidates = new long[MAX_DEPTH + 1][];
+    }
+
     public String toString() {
         return "Chain[Name=" + name + ", ID=" + id + "]";
     }
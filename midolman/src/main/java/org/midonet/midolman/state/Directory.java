@@ -109,6 +109,14 @@ public interface Directory {
         void connectionStateChanged(Watcher.Event.KeeperState state);
     }
 
+    /**
+     * A watcher that is told when its watch fires, from the thread that
+     * receives the event, before it is run.
+     */
+    public interface NotifiedWatcher extends Runnable {
+        void watchFired();
+    }
+
     public static class DefaultTypedWatcher implements TypedWatcher {
         @Override
         public void pathDeleted(String path) {
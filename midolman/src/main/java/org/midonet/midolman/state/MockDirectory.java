@@ -538,6 +538,8 @@ public class MockDirectory implements Directory {
 
         @Override
         public void process(WatchedEvent arg0) {
+            if (watcher instanceof NotifiedWatcher)
+                ((NotifiedWatcher) watcher).watchFired();
             watcher.run();
         }
     }
@@ -19,13 +19,17 @@ package org.midonet.midolman.state;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.slf4j.Logger;
@@ -70,7 +74,27 @@ public abstract class ReplicatedMap<K, V> {
         }
     }
 
-    private class DirectoryWatcher implements Runnable {
+    /**
+     * Keeps the local map in sync with the watched directory.
+     *
+     * ZooKeeper child watches don't tell which children changed, so every
+     * notification still reads the names of all the children. However, only
+     * the names that appeared or disappeared since the previous read are
+     * decoded, and only the keys they belong to are re-evaluated, so the
+     * work done and the notifications sent for a change are proportional to
+     * the size of the change rather than to the size of the map. Changes
+     * made while a read is in flight are folded into the next read, since
+     * the child watch is only set again by that read.
+     */
+    private class DirectoryWatcher implements Directory.NotifiedWatcher {
+
+        // When the pending child watch fired, or 0 if it hasn't.
+        private final AtomicLong firedAt = new AtomicLong();
+
+        @Override
+        public void watchFired() {
+            firedAt.compareAndSet(0L, System.nanoTime());
+        }
 
         /**
          * Retrieve all the children of the watched directory, handling
@@ -96,33 +120,83 @@ public abstract class ReplicatedMap<K, V> {
         }
 
         /**
-         * Takes the curPaths set and populates the given newMap with them,
-         * using only the highest versioned entry for each key, and adding to
-         * cleanupPaths all that need to be purged.
+         * Applies to the known paths and to the entries of each key the
+         * differences between the known paths and curPaths, adding to
+         * changedKeys the keys of the paths that were added or removed.
          */
-        void populateNewMap(final Map<K, MapValue> newMap,
-                            final Set<String> curPaths,
-                            final List<Path> cleanupPaths) {
+        void applyChanges(final Set<String> curPaths,
+                          final Set<K> changedKeys) {
+            Iterator<Map.Entry<String, Path>> it =
+                knownPaths.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Path> known = it.next();
+                if (curPaths.contains(known.getKey()))
+                    continue;
+                it.remove();
+                Path p = known.getValue();
+                List<Path> paths = entries.get(p.key);
+                if (paths != null) {
+                    paths.remove(p);
+                    if (paths.isEmpty())
+                        entries.remove(p.key);
+                }
+                changedKeys.add(p.key);
+            }
+
             for (String path : curPaths) {
+                if (knownPaths.containsKey(path))
+                    continue;
                 Path p = decodePath(path);
-                MapValue mv = newMap.get(p.key);
-                if (mv == null)
-                    newMap.put(p.key, new MapValue(p.value, p.version));
-                else if (mv.version < p.version) {
-                    // The one currently in newMap needs to be replaced.
-                    // Also clean it up if it belongs to this ZK client.
-                    newMap.put(p.key, new MapValue(p.value, p.version));
-                    if (ownedVersions.contains(mv.version)) {
-                        p.value = mv.value;
-                        p.version = mv.version;
-                        cleanupPaths.add(p);
+                knownPaths.put(path, p);
+                List<Path> paths = entries.get(p.key);
+                if (paths == null) {
+                    paths = new ArrayList<>(1);
+                    entries.put(p.key, paths);
+                }
+                paths.add(p);
+                changedKeys.add(p.key);
+            }
+        }
+
+        /**
+         * Updates the local map with the highest versioned entry of each of
+         * the given keys, compiling the notifications to be sent and adding
+         * to cleanupPaths the entries of this ZK client that are no longer
+         * the highest versioned for their key.
+         */
+        void updateKeys(final Set<K> changedKeys,
+                        final List<Notification<K, V>> notifications,
+                        final List<Path> cleanupPaths) {
+            for (K key : changedKeys) {
+                Path newest = newestEntry(key);
+                List<Path> paths = entries.get(key);
+                if (paths != null) {
+                    for (Path p : paths) {
+                        if (p != newest && ownedVersions.contains(p.version))
+                            cleanupPaths.add(p);
                     }
-                } else if (mv.version > p.version &&
-                    ownedVersions.contains(p.version)) {
-                    // The one currently in newMap is newer and the other
-                    // one belongs to this ZK client. Clean it up.
-                    cleanupPaths.add(p);
                 }
+
+                MapValue mv = localMap.get(key);
+                if (newest == null) {
+                    if (mv != null) {
+                        localMap.remove(key);
+                        notifications.add(new Notification<>(
+                            key, mv.value, null));
+                    }
+                } else if (mv == null) {
+                    localMap.put(key, new MapValue(newest.value,
+                                                   newest.version));
+                    notifications.add(new Notification<>(
+                        key, null, newest.value));
+                } else if (mv.version != newest.version) {
+                    // We compare versions because the 'value' members
+                    // might not implement .equals accurately.
+                    localMap.put(key, new MapValue(newest.value,
+                                                   newest.version));
+                    notifications.add(new Notification<>(
+                        key, mv.value, newest.value));
+                } // else mv == newest:  No notification.
             }
         }
 
@@ -137,7 +211,9 @@ public abstract class ReplicatedMap<K, V> {
             for (Path path : paths) {
                 try {
                     dir.delete(encodePath(path.key, path.value, path.version));
-                    ownedVersions.remove(path.version);
+                    synchronized(ReplicatedMap.this) {
+                        ownedVersions.remove(path.version);
+                    }
                 } catch (KeeperException e) {
                     log.error("DirectoryWatcher.run", e);
                     // TODO (guillermo) connectionWatcher.handleError()?
@@ -149,64 +225,34 @@ public abstract class ReplicatedMap<K, V> {
             }
         }
 
-        /**
-         * Compiles notifications to be sent after the newMap has been compiled.
-         *
-         * @param notifications where to accumulate the notifications
-         * @param newMap the new map generated from the last set of paths
-         */
-        void collectNotifications(final Set<Notification<K, V>> notifications,
-                                  final Map<K, MapValue> newMap) {
-
-            Set<K> oldKeys = new HashSet<>(localMap.keySet());
-            oldKeys.removeAll(newMap.keySet());
-            for (K deletedKey : oldKeys) {
-                MapValue mv = localMap.get(deletedKey);
-                notifications.add(new Notification<>(
-                    deletedKey, mv.value, null));
-            }
-
-            for (Map.Entry<K, MapValue> entry : newMap.entrySet()) {
-                K key = entry.getKey();
-                V value = entry.getValue().value;
-                MapValue mv = localMap.get(key);
-                if (mv == null) {
-                    notifications.add(new Notification<>(
-                        key, null, value));
-                } else if (mv.version != entry.getValue().version) {
-                    // We compare versions because the 'value' members
-                    // might not implement .equals accurately.
-                    notifications.add(new Notification<>(
-                        key, mv.value, value));
-                } // else mv == entry:  No notification.
-            }
-
-        }
-
         public void run() {
             if (!running) {
                 return;
             }
+            // Taken before the watch is set again by the read, so that it
+            // doesn't include the next notification.
+            long fired = firedAt.getAndSet(0L);
             Set<String> curPaths = getCurPaths();
             if (curPaths == null)
                 return;
 
-            List<Path> cleanupPaths = new LinkedList<>();
-            Set<Notification<K,V>> notifications = new HashSet<>();
+            List<Path> cleanupPaths = new ArrayList<>();
+            List<Notification<K,V>> notifications = new ArrayList<>();
 
             synchronized(ReplicatedMap.this) {
                 if (!running) {
                     return;
                 }
-                ConcurrentMap<K,MapValue> newMap = new ConcurrentHashMap<>();
-                populateNewMap(newMap, curPaths, cleanupPaths);
-                collectNotifications(notifications, newMap);
-                localMap = newMap;
+                Set<K> changedKeys = new HashSet<>();
+                applyChanges(curPaths, changedKeys);
+                updateKeys(changedKeys, notifications, cleanupPaths);
             }
 
             for (Notification<K,V> notice : notifications) {
                 notifyWatchers(notice.key, notice.oldValue, notice.newValue);
             }
+            if (fired != 0L)
+                notificationLag.update(System.nanoTime() - fired);
 
             cleanup(cleanupPaths);
         }
@@ -215,6 +261,12 @@ public abstract class ReplicatedMap<K, V> {
     private Directory dir;
     private volatile boolean running;
     private volatile ConcurrentMap<K, MapValue> localMap;
+    // The children of the directory as of the last read, and all their
+    // entries grouped by key. Guarded by the map's monitor.
+    private final Map<String, Path> knownPaths = new HashMap<>();
+    private final Map<K, List<Path>> entries = new HashMap<>();
+    private volatile Histogram notificationLag =
+        new Histogram(new ExponentiallyDecayingReservoir());
     private Set<Integer> ownedVersions;
     private Set<Watcher<K, V>> watchers;
     private DirectoryWatcher myWatcher;
@@ -263,6 +315,26 @@ public abstract class ReplicatedMap<K, V> {
         Map<K, MapValue> oldMap = localMap;
         localMap = new ConcurrentHashMap<>();
         oldMap.clear();
+        knownPaths.clear();
+        entries.clear();
+    }
+
+    /**
+     * The time, in nanoseconds, from the watch on the directory firing to
+     * the map being up to date and its watchers notified.
+     */
+    public Histogram getNotificationLag() {
+        return notificationLag;
+    }
+
+    /**
+     * Records the notification lag in the given registry, in a histogram
+     * shared by all the maps of the same class. To be called before the map
+     * is started.
+     */
+    public void registerMetrics(MetricRegistry registry) {
+        notificationLag = registry.histogram(
+            MetricRegistry.name(getClass(), "notificationLag"));
     }
 
     public V get(K key) {
@@ -317,10 +389,20 @@ public abstract class ReplicatedMap<K, V> {
 
         public void onSuccess(String result) {
             // Claim the sequence number added by ZooKeeper.
-            Path p = decodePath(result);
+            int version = Integer.parseInt(getKeyValueVersion(result)[2]);
+            boolean superseded;
             synchronized(ReplicatedMap.this) {
-                ownedVersions.add(p.version);
+                ownedVersions.add(version);
+                // The directory watcher may have seen a newer entry for
+                // the key before the sequence number was claimed. In that
+                // case it didn't clean up this one, so do it here.
+                Path newest = newestEntry(key);
+                superseded = newest != null && newest.version > version;
+                if (superseded)
+                    ownedVersions.remove(version);
             }
+            if (superseded)
+                dir.asyncDelete(encodePath(key, value, version));
         }
 
         public void onError(KeeperException ex) {
@@ -424,6 +506,23 @@ public abstract class ReplicatedMap<K, V> {
         return removeIfOwnerAndValue(key, null);
     }
 
+    /**
+     * Returns the entry with the highest version among those read from the
+     * directory for the given key, or null if there is none. Must be called
+     * holding the map's monitor.
+     */
+    private Path newestEntry(K key) {
+        List<Path> paths = entries.get(key);
+        if (paths == null)
+            return null;
+        Path newest = null;
+        for (Path p : paths) {
+            if (newest == null || newest.version < p.version)
+                newest = p;
+        }
+        return newest;
+    }
+
     private void notifyWatchers(final K key, final V oldValue,
                                 final V newValue) {
         for (Watcher<K, V> watcher : watchers) {
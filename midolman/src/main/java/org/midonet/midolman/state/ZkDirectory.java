@@ -149,6 +149,9 @@ public class ZkDirectory implements Directory {
             if (arg0.getType() == Event.EventType.None)
                 return;
 
+            if (watcher instanceof NotifiedWatcher)
+                ((NotifiedWatcher) watcher).watchFired();
+
             if (null == reactor) {
                 log.warn("Reactor is null - processing ZK event in ZK thread.");
                 watcher.run();
@@ -221,6 +221,65 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
         return ops;
     }
 
+    /**
+     * Constructs the operations that create the given routes in a single
+     * multi. The configuration of the ports is read once per port, and the
+     * paths keyed by the IDs of the new routes aren't checked for existence,
+     * so that adding routes to an exterior port doesn't read from ZooKeeper
+     * for every route.
+     *
+     * @param routes     The new routes by their UUIDs.
+     * @param persistent Should the routes be deleted when this Midolman fails.
+     * @return           The list of operations to install the routes in all
+     *                   the right places.
+     * @throws StateAccessException
+     */
+    public List<Op> prepareRoutesCreate(Map<UUID, Route> routes,
+                                        boolean persistent)
+            throws StateAccessException, SerializationException {
+        CreateMode mode = persistent ? CreateMode.PERSISTENT
+            : CreateMode.EPHEMERAL;
+        Map<UUID, PortDirectory.RouterPortConfig> portConfigs = new HashMap<>();
+        List<Op> ops = new ArrayList<>();
+        for (Map.Entry<UUID, Route> entry : routes.entrySet()) {
+            UUID id = entry.getKey();
+            Route rtConfig = entry.getValue();
+            ops.add(Op.create(paths.getRoutePath(id),
+                    serializer.serialize(rtConfig),
+                    Ids.OPEN_ACL_UNSAFE,
+                    mode));
+            List<String> subPaths = getSubDirectoryRoutePaths(
+                id, rtConfig, getPortConfig(portConfigs, rtConfig));
+            // The first path is the one under the port or router, which is
+            // keyed by the route ID.
+            ops.add(Op.create(subPaths.get(0), null, Ids.OPEN_ACL_UNSAFE,
+                              mode));
+            for (String path : subPaths.subList(1, subPaths.size())) {
+                if (!zk.exists(path))
+                    ops.add(Op.create(path, null, Ids.OPEN_ACL_UNSAFE, mode));
+            }
+        }
+        return ops;
+    }
+
+    private PortDirectory.RouterPortConfig getPortConfig(
+            Map<UUID, PortDirectory.RouterPortConfig> portConfigs,
+            Route rtConfig)
+            throws StateAccessException, SerializationException {
+        if (!rtConfig.nextHop.toPort())
+            return null;
+        PortDirectory.RouterPortConfig portConfig =
+            portConfigs.get(rtConfig.nextHopPort);
+        if (portConfig == null) {
+            PortZkManager portZkManager = new PortZkManager(zk, paths,
+                serializer);
+            portConfig = portZkManager.get(
+                rtConfig.nextHopPort, PortDirectory.RouterPortConfig.class);
+            portConfigs.put(rtConfig.nextHopPort, portConfig);
+        }
+        return portConfig;
+    }
+
     public UUID preparePersistPortRouteCreate (
             List<Op> ops, UUID routerId, IPv4Subnet src,  IPv4Subnet dst,
             PortDirectory.RouterPortConfig cfg, IPv4Addr gwIp)
@@ -418,6 +477,34 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
         return ops;
     }
 
+    /**
+     * Constructs the operations that delete the given routes in a single
+     * multi, from the configuration of the routes that the caller has.
+     *
+     * @param routes The routes to delete by their UUIDs.
+     * @return A list of Op objects representing the operations to perform.
+     * @throws StateAccessException
+     *             Serialization or data access error occurred.
+     */
+    public List<Op> prepareRoutesDelete(Map<UUID, Route> routes)
+            throws StateAccessException, SerializationException {
+        Map<UUID, PortDirectory.RouterPortConfig> portConfigs = new HashMap<>();
+        List<Op> ops = new ArrayList<>();
+        for (Map.Entry<UUID, Route> entry : routes.entrySet()) {
+            UUID id = entry.getKey();
+            Route rtConfig = entry.getValue();
+            ops.add(Op.delete(paths.getRoutePath(id), -1));
+            List<String> subPaths = getSubDirectoryRoutePaths(
+                id, rtConfig, getPortConfig(portConfigs, rtConfig));
+            ops.add(Op.delete(subPaths.get(0), -1));
+            for (String path : subPaths.subList(1, subPaths.size())) {
+                if (zk.exists(path))
+                    ops.add(Op.delete(path, -1));
+            }
+        }
+        return ops;
+    }
+
     public void prepareRoutesDelete(List<Op> ops, UUID routerId,
                                     final IPv4Subnet dstSub)
         throws SerializationException, StateAccessException {
@@ -497,6 +584,19 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
         return id;
     }
 
+    /**
+     * Creates the given routes in a single multi.
+     *
+     * @param routes     The new routes by their UUIDs.
+     * @param persistent Should the routes be deleted when this Midolman fails.
+     * @throws StateAccessException
+     *             Serialization or data access error occurred.
+     */
+    public void create(Map<UUID, Route> routes, boolean persistent)
+            throws StateAccessException, SerializationException {
+        zk.multiDedup(prepareRoutesCreate(routes, persistent));
+    }
+
     public UUID create(Route route) throws StateAccessException,
             SerializationException {
         return create(route, true);
@@ -607,4 +707,17 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
             SerializationException {
         zk.multi(prepareRouteDelete(id));
     }
+
+    /**
+     * Deletes the given routes in a single multi.
+     *
+     * @param routes
+     *            The routes to delete by their UUIDs.
+     * @throws StateAccessException
+     *             Serialization or data access error occurred.
+     */
+    public void delete(Map<UUID, Route> routes) throws StateAccessException,
+            SerializationException {
+        zk.multiDedup(prepareRoutesDelete(routes));
+    }
 }
@@ -16,16 +16,17 @@
 
 package org.midonet.sdn.flows;
 
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.PriorityQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
+import org.midonet.util.concurrent.NanoClock;
+import org.midonet.util.concurrent.NanoClock$;
 import org.midonet.util.functors.Callback1;
 
 // not thread-safe
@@ -41,16 +42,22 @@ import org.midonet.util.functors.Callback1;
  * Idle Time-out
  * This class guarantees that every wildcard flow that has an idle time-out set
  * will be evicted after idle time-out + delta.
- * We have two priority queues, one for hard time-out expiration and the other
- * for idle time-out expiration. They are ordered according to the time that
- * each flow has remaining.
  * For idle time-out before deleting a wildcard flow, we get from the datapath
  * connection the lastUsedTime of each microflow until we find one whose
  * lastUsedTime < now - timeout. If that's the case, we extend the life of the
  * wildcard flow, otherwise we delete it.
  *
+ * Both time-outs are tracked by a FlowExpirationWheel, where flows are
+ * scheduled and cancelled in constant time, and which the check for flow
+ * expiration advances up to the current time. Time is measured with a
+ * monotonic clock, so that changes to the wall clock don't expire flows
+ * early or late.
+ *
  * Idle Time-out expiration is an expensive operation. We won't accept
  * idle time-out < 5 s.
+ *
+ * When the table is full, the oldest flows are evicted in batches of at most
+ * dpFlowRemoveBatchSize flows.
  */
 
 //TODO(ross) create a priority queue of micro flows ordered according to the
@@ -66,38 +73,57 @@ public class FlowManager {
     private int dpFlowRemoveBatchSize;
     private long idleFlowToleranceInterval;
 
+    private final NanoClock clock;
+    private final long startTick;
+    private final long startMillis;
+
+    private final FlowExpirationWheel expirationWheel;
+    private final ArrayList<ManagedFlow> expiredFlows = new ArrayList<>();
+    private final ManagedFlow[] flowsToEvict;
+
     public FlowManager(FlowManagerHelper flowManagerHelper, int maxDpFlows,
                        long idleFlowToleranceInterval) {
         this(flowManagerHelper, maxDpFlows, idleFlowToleranceInterval,
-             DEFAULT_FLOW_REMOVE_BATCH_SIZE);
+             NanoClock$.MODULE$.DEFAULT());
+    }
+
+    public FlowManager(FlowManagerHelper flowManagerHelper, int maxDpFlows,
+                       long idleFlowToleranceInterval, NanoClock clock) {
+        this(flowManagerHelper, maxDpFlows, idleFlowToleranceInterval,
+             DEFAULT_FLOW_REMOVE_BATCH_SIZE, clock);
     }
 
     public FlowManager(FlowManagerHelper flowManagerHelper, int maxDpFlows,
-                       long idleFlowToleranceInterval, int dpFlowRemoveBatchSize) {
+                       long idleFlowToleranceInterval, int dpFlowRemoveBatchSize,
+                       NanoClock clock) {
         this.maxDpFlows = maxDpFlows;
         this.idleFlowToleranceInterval = idleFlowToleranceInterval;
         this.flowManagerHelper = flowManagerHelper;
         if (dpFlowRemoveBatchSize > maxDpFlows)
             dpFlowRemoveBatchSize = 1;
         this.dpFlowRemoveBatchSize = dpFlowRemoveBatchSize;
+        this.flowsToEvict = new ManagedFlow[dpFlowRemoveBatchSize];
+        this.clock = clock;
+        this.startTick = clock.tick();
+        this.startMillis = System.currentTimeMillis();
+        this.expirationWheel = new FlowExpirationWheel(startMillis, 1L);
     }
 
     public LinkedHashMap<FlowMatch, ManagedFlow> dpFlowTable = new LinkedHashMap<>((int)maxDpFlows);
 
-    //TODO(ross) size for the priority queue?
-    final int priorityQueueSize = 10000;
-    /* Priority queue to evict flows based on hard time-out */
-    private PriorityQueue<ManagedFlow> hardTimeOutQueue =
-        new PriorityQueue<>(priorityQueueSize, new WildcardFlowHardTimeComparator());
-
-    /* Priority queue to evict flows based on idle time-out */
-    private PriorityQueue<ManagedFlow> idleTimeOutQueue =
-        new PriorityQueue<>(priorityQueueSize, new WildcardFlowIdleTimeComparator());
-
     public int getNumDpFlows() {
         return dpFlowTable.size();
     }
 
+    /**
+     * The current time in milliseconds, as the wall clock time at which the
+     * FlowManager was created plus the time elapsed since then according to
+     * the monotonic clock.
+     */
+    public long currentTimeMillis() {
+        return startMillis + (clock.tick() - startTick) / 1000000L;
+    }
+
     /**
      * Add a new wildcard flow.
      *
@@ -115,43 +141,44 @@ public class FlowManager {
             dpFlowTable.put(fmatch, wildFlow);
             // FlowManager's ref
             wildFlow.ref();
-            wildFlow.setCreationTimeMillis(System.currentTimeMillis());
-            wildFlow.setLastUsedTimeMillis(System.currentTimeMillis());
+            long now = currentTimeMillis();
+            wildFlow.setCreationTimeMillis(now);
+            wildFlow.setLastUsedTimeMillis(now);
             if (wildFlow.hardExpirationMillis() > 0) {
-                // timeout queue ref
-                wildFlow.ref();
-                hardTimeOutQueue.add(wildFlow);
+                expirationWheel.schedule(
+                    wildFlow, now + wildFlow.hardExpirationMillis());
             } else if (wildFlow.idleExpirationMillis() > 0){
-                // timeout queue ref
-                wildFlow.ref();
-                idleTimeOutQueue.add(wildFlow);
+                expirationWheel.schedule(
+                    wildFlow, now + wildFlow.idleExpirationMillis());
             }
             return true;
         }
         return false;
     }
 
+    /**
+     * Evicts the oldest flows, up to a batch of them.
+     *
+     * @return the number of flows evicted
+     */
     public int evictOldestFlows() {
-        int evicted = 0;
-        for (evicted=0; evicted < dpFlowRemoveBatchSize; evicted++) {
-            if (!evictOneFlow())
-                break;
-        }
-        return evicted;
+        return evictOldestFlows(dpFlowRemoveBatchSize);
     }
 
-    public boolean evictOneFlow() {
-        ManagedFlow toEvict = hardTimeOutQueue.size() > 0
-                            ? hardTimeOutQueue.poll()
-                            : idleTimeOutQueue.poll();
-
-        if (toEvict != null) {
-            flowManagerHelper.removeWildcardFlow(toEvict);
-            // timeout queue ref
-            toEvict.unref();
-            return true;
+    private int evictOldestFlows(int nFlowsToRemove) {
+        nFlowsToRemove = Math.min(nFlowsToRemove, dpFlowRemoveBatchSize);
+        // Removing a flow modifies the table, so the flows are gathered
+        // before being removed.
+        Iterator<ManagedFlow> it = dpFlowTable.values().iterator();
+        int n = 0;
+        while (n < nFlowsToRemove && it.hasNext()) {
+            flowsToEvict[n++] = it.next();
         }
-        return false;
+        for (int i = 0; i < n; ++i) {
+            flowManagerHelper.removeWildcardFlow(flowsToEvict[i]);
+            flowsToEvict[i] = null;
+        }
+        return n;
     }
 
     /**
@@ -166,6 +193,7 @@ public class FlowManager {
         FlowMatch flowMatch = wildFlow.flowMatch();
         ManagedFlow removedFlow = dpFlowTable.remove(flowMatch);
         if (removedFlow == wildFlow) { // See isAlive()
+            expirationWheel.cancel(wildFlow);
             flowManagerHelper.removeFlow(wildFlow);
             wildFlow.unref(); // FlowManager's ref
             return true;
@@ -175,30 +203,47 @@ public class FlowManager {
         return false;
     }
 
-    private void checkHardTimeOutExpiration() {
-        ManagedFlow flowToExpire;
-        while ((flowToExpire = hardTimeOutQueue.peek()) != null) {
-            // since we remove the element lazily let's check if this el
-            // has already been removed
-            if (!isAlive(flowToExpire)) {
-                hardTimeOutQueue.poll();
-                // timeout queue ref
-                flowToExpire.unref();
+    /**
+     * Updates the last used time of the flow with the given match, as
+     * reported by the datapath.
+     */
+    public void updateLastUsedTime(FlowMatch flowMatch, long lastUsedTimeMillis) {
+        ManagedFlow flow = dpFlowTable.get(flowMatch);
+        if (flow != null && lastUsedTimeMillis > flow.getLastUsedTimeMillis())
+            flow.setLastUsedTimeMillis(lastUsedTimeMillis);
+    }
+
+    private void checkExpiration() {
+        long now = currentTimeMillis();
+        expirationWheel.advance(now, expiredFlows);
+        for (int i = 0; i < expiredFlows.size(); ++i) {
+            ManagedFlow flowToExpire = expiredFlows.get(i);
+            // The flow may have been removed from the table without going
+            // through remove().
+            if (!isAlive(flowToExpire))
                 continue;
-            }
-            long timeLived = System.currentTimeMillis() - flowToExpire.getCreationTimeMillis();
-            if (timeLived >= flowToExpire.hardExpirationMillis()) {
-                hardTimeOutQueue.poll();
+
+            if (flowToExpire.hardExpirationMillis() > 0) {
                 flowManagerHelper.removeWildcardFlow(flowToExpire); // will remove remaining refs
                 log.debug("Removing managed flow {} for hard expiration, expired {} ms ago",
                           flowToExpire,
-                          timeLived - flowToExpire.hardExpirationMillis());
-                // timeout queue ref
-                flowToExpire.unref();
+                          now - flowToExpire.getCreationTimeMillis()
+                              - flowToExpire.hardExpirationMillis());
             } else {
-                return;
+                long expirationDate = flowToExpire.getLastUsedTimeMillis()
+                                      + flowToExpire.idleExpirationMillis();
+                if (expirationDate - now > idleFlowToleranceInterval) {
+                    // the flow was used since it was scheduled, as reported
+                    // by a dump of the datapath flows
+                    expirationWheel.schedule(flowToExpire, expirationDate);
+                } else {
+                    // if the flow expired we don't delete it immediately, first
+                    // we query the kernel to get the updated lastUsedTime
+                    getKernelFlowLastUsedTime(flowToExpire);
+                }
             }
         }
+        expiredFlows.clear();
     }
 
     // Check if the flow is still the same one we're trying to expire.
@@ -216,85 +261,17 @@ public class FlowManager {
         flowManagerHelper.getFlow(flowMatch, callback);
     }
 
-    private void checkIdleTimeExpiration() {
-        while (idleTimeOutQueue.peek() != null) {
-            ManagedFlow flowToExpire = idleTimeOutQueue.peek();
-            //log.trace("Idle timeout queue size {}", idleTimeOutQueue.size());
-            // since we remove the element lazily let's check if this element
-            // has already been removed
-            if (!isAlive(flowToExpire)) {
-                idleTimeOutQueue.poll();
-                // timeout queue ref
-                flowToExpire.unref();
-                continue;
-            }
-            long expirationDate = flowToExpire.getLastUsedTimeMillis() +
-                flowToExpire.idleExpirationMillis();
-            // if the flow expired we don't delete it immediately, first we query
-            // the kernel to get the updated lastUsedTime
-            if (System.currentTimeMillis() >= expirationDate) {
-                // remove it from the queue so we won't query it again
-                idleTimeOutQueue.poll();
-                getKernelFlowLastUsedTime(flowToExpire);
-                // timeout queue ref
-                flowToExpire.unref();
-            }else
-                break;
-        }
-    }
-
     private void manageDPFlowTableSpace() {
         int excessFlows = getNumDpFlows() - (maxDpFlows - dpFlowRemoveBatchSize);
         if (excessFlows > 0)
-            removeOldestDpFlows(excessFlows);
-    }
-
-    private void removeOldestDpFlows(int nFlowsToRemove) {
-        Iterator<ManagedFlow> it = dpFlowTable.values().iterator();
-        ManagedFlow[] toRemove = new ManagedFlow[nFlowsToRemove];
-        for (int i = 0; i < nFlowsToRemove; ++i) {
-            toRemove[i] = it.next();
-        }
-        for (int i = 0; i < nFlowsToRemove; ++i) {
-            flowManagerHelper.removeWildcardFlow(toRemove[i]);
-        }
+            evictOldestFlows(excessFlows);
     }
 
     public void checkFlowsExpiration() {
-        checkHardTimeOutExpiration();
-        checkIdleTimeExpiration();
+        checkExpiration();
         manageDPFlowTableSpace();
     }
 
-    private abstract class WildcardFlowComparator implements Comparator<ManagedFlow> {
-
-        @Override
-        public int compare(ManagedFlow wildcardFlow,
-                           ManagedFlow wildcardFlow1) {
-            long now = System.currentTimeMillis();
-            long expirationTime1 = getExpirationTime(wildcardFlow, now);
-            long expirationTime2 = getExpirationTime(wildcardFlow1, now);
-
-            return (int) (expirationTime1-expirationTime2);
-        }
-
-        protected abstract long getExpirationTime(ManagedFlow flow, long now);
-    }
-
-    private class WildcardFlowHardTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedFlow flow, long now) {
-            return flow.getCreationTimeMillis() + flow.hardExpirationMillis();
-        }
-    }
-
-    private class WildcardFlowIdleTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedFlow flow, long now) {
-            return flow.getLastUsedTimeMillis() + flow.idleExpirationMillis();
-        }
-    }
-
     /**
      * This callback is passed to flowsGet(). When flowsGet() returns with the
      * updated lastUsedTime we take a decision regarding the expiration of the
@@ -326,16 +303,15 @@ public class FlowManager {
             }
 
             long expirationDate = wcFlow.getLastUsedTimeMillis() + wcFlow.idleExpirationMillis();
-            if (expirationDate - System.currentTimeMillis() > idleFlowToleranceInterval) {
-                wcFlow.ref(); // timeout queue ref
-                idleTimeOutQueue.add(wcFlow);
+            if (expirationDate - currentTimeMillis() > idleFlowToleranceInterval) {
+                expirationWheel.schedule(wcFlow, expirationDate);
             } else {
                 // we can expire it
                 flowManagerHelper.removeWildcardFlow(wcFlow);
                 log.debug(
                     "Removing managed flow {} for idle expiration, expired {} ms ago",
                     wcFlow,
-                    System.currentTimeMillis() - (wcFlow.getLastUsedTimeMillis()
+                    currentTimeMillis() - (wcFlow.getLastUsedTimeMillis()
                         + wcFlow.idleExpirationMillis()));
             }
 
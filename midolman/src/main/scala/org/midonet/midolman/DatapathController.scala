@@ -108,7 +108,13 @@ trait VirtualPortsResolver {
     def getDescForInterface(itfName: String): Option[InterfaceDescription]
 }
 
-trait DatapathState extends VirtualPortsResolver with UnderlayResolver
+trait DatapathState extends VirtualPortsResolver with UnderlayResolver {
+
+    /** Changes whenever the datapath ports bound to virtual ports or the
+     *  tunnel routes to peers do, so that the state derived from them can be
+     *  cached. */
+    def version: Long = 0L
+}
 
 object DatapathController extends Referenceable {
 
@@ -626,6 +632,12 @@ class DatapathStateManager(val controller: DatapathPortEntangler.Controller)
      */
     var _peersRoutes = Map[UUID,Map[UUID,Route]]()
 
+    @volatile private var _version = 0L
+
+    override def version = _version
+
+    override protected def portsChanged(): Unit = _version += 1
+
     override def peerTunnelInfo(peer: UUID) =
         _peersRoutes get peer flatMap { _.values.headOption }
 
@@ -654,6 +666,7 @@ class DatapathStateManager(val controller: DatapathPortEntangler.Controller)
         val oldRoute = routes get zone
 
         _peersRoutes += ( peer -> ( routes + (zone -> newRoute) ) )
+        _version += 1
         val tags = FlowTagger.tagForTunnelRoute(srcIp, dstIp) :: Nil
 
         oldRoute.fold(tags) { case Route(src, dst, _) =>
@@ -672,6 +685,7 @@ class DatapathStateManager(val controller: DatapathPortEntangler.Controller)
                 log.info(s"removing tunnel route $r to peer $peer")
                     // TODO(hugo): remove nested map if becomes empty (mem leak)
                     _peersRoutes += (peer -> (_peersRoutes(peer) - zone))
+                    _version += 1
                     FlowTagger.tagForTunnelRoute(srcIp,dstIp)
                 }
 
@@ -29,11 +29,11 @@ import org.slf4j.MDC
 
 import org.jctools.queues.MpscArrayQueue
 
-import org.midonet.cluster.DataClient
 import org.midonet.midolman.FlowController.InvalidateFlowsByTag
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.flows.WildcardResultCache
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.management.PacketTracing
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
@@ -69,17 +69,19 @@ class DeduplicationActor(
             val config: MidolmanConfig,
             val cookieGen: CookieGenerator,
             val dpChannel: DatapathChannel,
-            val clusterDataClient: DataClient,
             val connTrackStateTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
             val natStateTable: FlowStateTable[NatKey, NatBinding],
             val storage: FlowStateStorage,
             val natLeaser: NatLeaser,
             val metrics: PacketPipelineMetrics,
-            val packetOut: Int => Unit)
+            val wildcardResultCache: WildcardResultCache,
+            val packetOut: Int => Unit,
+            val packetRing: PacketRing = null)
             extends Actor with ActorLogWithoutPath {
 
     import DatapathController.DatapathReady
     import DeduplicationActor._
+    import PacketRing.{PacketsPending, PacketsSpilled}
     import PacketWorkflow._
 
     override def logSource = "org.midonet.packet-worker"
@@ -93,6 +95,12 @@ class DeduplicationActor(
 
     protected val simulationExpireMillis = 5000L
 
+    private val MaxPacketsPerRound = 256
+
+    // Contexts are given back by the FlowController for the packets that
+    // created a flow, so the pool covers the ones it may still be handling.
+    private val contextPool = new PacketContextPool(4 * MaxPacketsPerRound)
+
     private val waitingRoom = new WaitingRoom[PacketContext](
                                         (simulationExpireMillis millis).toNanos)
 
@@ -131,10 +139,11 @@ class DeduplicationActor(
                                                  storage,
                                                  dpState,
                                                  FlowController ! InvalidateFlowsByTag(_),
-                                                 config.getControlPacketsTos.toByte)
+                                                 config.getControlPacketsTos.toByte,
+                                                 metrics)
             pendingFlowStateBatches foreach (self ! _)
-            workflow = new PacketWorkflow(dpState, dp, clusterDataClient,
-                                          dpChannel, replicator, config)
+            workflow = new PacketWorkflow(dpState, dp, dpChannel, replicator, config,
+                                          wildcardResultCache)
 
         case m: FlowStateBatch =>
             if (replicator ne null)
@@ -143,23 +152,61 @@ class DeduplicationActor(
                 pendingFlowStateBatches ::= m
 
         case HandlePackets(packets) =>
+            expireIdleState()
+
+            var i = 0
+            while (i < packets.length && packets(i) != null) {
+                handlePacket(packets(i))
+                i += 1
+            }
+
+            cbExecutor.run()
+            genPacketEmitter.process(runGeneratedPacket)
+            pushState()
 
-            connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
-            natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
-            natLeaser.obliterateUnusedBlocks()
+        case PacketsPending =>
+            expireIdleState()
+
+            // Bound the packets handled per message, so that a steady stream
+            // of packets doesn't starve the messages waiting in the mailbox.
+            var i = 0
+            var packet: Packet = null
+            while (i < MaxPacketsPerRound && { packet = packetRing.poll()
+                                               packet ne null }) {
+                handlePacket(packet)
+                i += 1
+            }
+
+            cbExecutor.run()
+            genPacketEmitter.process(runGeneratedPacket)
+            pushState()
+
+            if (packetRing.awaitPackets())
+                self ! PacketsPending
+
+        case PacketsSpilled(packets) =>
+            expireIdleState()
+
+            // The packets in the ring were offered before the spilled ones.
+            var packet: Packet = null
+            while ({ packet = packetRing.poll(); packet ne null })
+                handlePacket(packet)
 
             var i = 0
             while (i < packets.length && packets(i) != null) {
                 handlePacket(packets(i))
                 i += 1
             }
+            packetRing.spilledHandled(i)
 
             cbExecutor.run()
             genPacketEmitter.process(runGeneratedPacket)
+            pushState()
 
         case CheckBackchannels =>
             cbExecutor.run()
             genPacketEmitter.process(runGeneratedPacket)
+            pushState()
 
         case RestartWorkflow(pktCtx) =>
             if (pktCtx.idle) {
@@ -168,10 +215,24 @@ class DeduplicationActor(
                 MDC.put("cookie", pktCtx.cookieStr)
                 runWorkflow(pktCtx)
                 MDC.remove("cookie")
+                pushState()
             }
             // Else the packet may have already been expired and dropped
     }
 
+    /* The state of the packets handled in a round is replicated at its end,
+     * coalescing the messages going to the same peers. The packets of the
+     * flows with state are held until then. */
+    private def pushState(): Unit =
+        if (replicator ne null)
+            replicator.pushState(dpChannel)
+
+    private def expireIdleState(): Unit = {
+        connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
+        natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
+        natLeaser.obliterateUnusedBlocks()
+    }
+
     // We return collection.Set so we can return an empty immutable set
     // and a non-empty mutable set.
     private def removeSuspendedPackets(flowMatch: FlowMatch): collection.Set[Packet] = {
@@ -196,7 +257,7 @@ class DeduplicationActor(
     private def initialize(packet: Packet, fmatch: FlowMatch, egressPort: UUID) = {
         val cookie = cookieGen.next
         log.debug(s"Creating new PacketContext for cookie $cookie")
-        val context = new PacketContext(cookie, packet, fmatch, egressPort)
+        val context = contextPool.take(cookie, packet, fmatch, egressPort)
         context.reset(cbExecutor, genPacketEmitter)
         context.initialize(connTrackTx, natTx, natLeaser)
         context.log = PacketTracing.loggerFor(fmatch)
@@ -208,6 +269,9 @@ class DeduplicationActor(
      * a NotYet on the way.
      */
     private def postponeOn(pktCtx: PacketContext, f: Future[_]) {
+        // A RestartWorkflow may refer to the context after it's done, so it
+        // can't be given back to the pool.
+        pktCtx.pool = null
         pktCtx.postpone()
         val flowMatch = pktCtx.packet.getMatch
         if (!suspendedPackets.containsKey(flowMatch)) {
@@ -240,6 +304,8 @@ class DeduplicationActor(
 
     private def drop(pktCtx: PacketContext): Unit =
         try {
+            // Expired contexts may still be referred to by a RestartWorkflow.
+            pktCtx.pool = null
             workflow.drop(pktCtx)
         } catch {
             case e: Exception =>
@@ -259,9 +325,17 @@ class DeduplicationActor(
             metrics.packetsProcessed.mark()
             simRes match {
                 case StateMessage =>
-                case _ => metrics.packetSimulated(latency.toInt)
+                case _ if pktCtx.wildcardResultHit =>
+                    metrics.wildcardTableHit(latency.toInt)
+                case _ =>
+                    if (pktCtx.wildcardResultMiss)
+                        metrics.wildcardTableMisses.mark()
+                    metrics.packetSimulated(latency.toInt)
             }
         }
+        // Otherwise the FlowController releases it.
+        if (simRes ne FlowCreated)
+            pktCtx.release()
     }
 
     private def applyFlow(pktCtx: PacketContext, simRes: SimulationResult): Unit = {
@@ -272,7 +346,10 @@ class DeduplicationActor(
             suspendedPackets foreach processPacket
         } else if (numSuspendedPackets > 0) {
             log.debug(s"Sending ${suspendedPackets.size} pended packets")
-            suspendedPackets foreach (dpChannel.executePacket(_, pktCtx.flowActions))
+            // After the first packet of the flow, which may have been held
+            // until the state of the flow is pushed.
+            suspendedPackets foreach (replicator.executePacket(dpChannel, _,
+                                                               pktCtx.flowActions))
             metrics.packetsProcessed.mark(numSuspendedPackets)
             metrics.pendedPackets.dec(numSuspendedPackets)
         }
@@ -19,10 +19,8 @@ package org.midonet.midolman
 import java.nio.ByteBuffer
 
 import java.util.concurrent.TimeUnit
-import java.util.ArrayList
+import java.util.{ArrayList, HashMap => JHashMap}
 
-import scala.collection.mutable
-import scala.collection.mutable.{HashMap, MultiMap}
 import scala.concurrent.ExecutionContext
 import scala.concurrent.duration._
 
@@ -39,7 +37,7 @@ import com.codahale.metrics.MetricRegistry.name
 import com.codahale.metrics.{Gauge, MetricRegistry}
 
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.flows.FlowEjector
+import org.midonet.midolman.flows.{FlowEjector, WildcardResultCache}
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.{FlowTablesGauge, FlowTablesMeter}
@@ -48,12 +46,14 @@ import org.midonet.midolman.monitoring.MeterRegistry
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.netlink.exceptions.NetlinkException.ErrorCode
-import org.midonet.netlink.{BytesUtil, Callback}
-import org.midonet.odp.{Datapath, Flow, FlowMatch, OvsProtocol}
+import org.midonet.netlink.{AttributeHandler, BytesUtil, Callback, NetlinkMessage}
+import org.midonet.odp.{Datapath, Flow, FlowMatch, OpenVSwitch, OvsProtocol}
+import org.midonet.odp.flows.{FlowAction, FlowKey, FlowKeys, FlowStats}
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.flows._
 import org.midonet.util.collection.{EventHistory, ArrayObjectPool, ObjectPool}
 import org.midonet.util.collection.EventHistory._
+import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.concurrent.WakerUpper.Parkable
 import org.midonet.util.functors.Callback1
 
@@ -80,6 +80,8 @@ object FlowController extends Referenceable {
 
     case object CheckCompletedRequests
 
+    case object ProcessFlowDump_
+
     val MIN_WILDCARD_FLOW_CAPACITY = 4096
 
     private val invalidationHistory = new EventHistory[FlowTag](1024)
@@ -95,6 +97,16 @@ object FlowController extends Referenceable {
 
     def lastInvalidationEvent = invalidationHistory.latest
 
+    /* Calls back both queries made for the same flow before it was found. */
+    private class ChainedFlowCallback(first: Callback1[Flow],
+                                      second: Callback1[Flow])
+        extends Callback1[Flow] {
+        override def call(flow: Flow): Unit = {
+            first.call(flow)
+            second.call(flow)
+        }
+    }
+
     sealed abstract class FlowOvsCommand[T](completedRequests: SpscArrayQueue[T])
                                            (implicit actorSystem: ActorSystem)
         extends Observer[ByteBuffer] { self: T =>
@@ -157,6 +169,202 @@ object FlowController extends Referenceable {
         override def onNext(t: ByteBuffer): Unit =
             flow.deserialize(t)
     }
+
+    object FlowDumpCommand {
+        private val BufferSize = 64 * 1024
+        // keys length, last used time, packets and bytes
+        private val RecordHeaderSize = 4 + 8 + 8 + 8
+    }
+
+    /**
+     * Dumps the flows of the datapath. Each flow in the multi-part reply is
+     * copied, keeping only its keys, last used time and statistics, into
+     * fixed size buffers. Once the dump completes, the flows are read back
+     * one buffer at a time: nextChunk() moves on to the next buffer,
+     * releasing the previous one, and nextFlow() reads the flows in it. All
+     * the buffers are released when the command is cleared. Released buffers
+     * are kept for the next dumps, except those made larger for a single
+     * flow.
+     *
+     * The datapath reports when a flow was last used in milliseconds of the
+     * monotonic clock, which counts from the boot of the host. They are
+     * converted to the time of the FlowManager by adding usedTimeOffset,
+     * the difference between both clocks when the dump is requested.
+     */
+    sealed class FlowDumpCommand(completedRequests: SpscArrayQueue[FlowDumpCommand])
+                                (implicit actorSystem: ActorSystem)
+        extends FlowOvsCommand[FlowDumpCommand](completedRequests)
+        with AttributeHandler {
+        import FlowDumpCommand._
+
+        private val request = BytesUtil.instance.allocateDirect(1024)
+        private val buffers = new ArrayList[ByteBuffer]()
+        private val freeBuffers = new ArrayList[ByteBuffer]()
+        private var writeIndex = 0
+        private var readIndex = -1
+
+        private var replyKeysStart = 0
+        private var replyKeysLength = 0
+        private var replyLastUsedTime = 0L
+        private var replyStats = false
+        private var replyPackets = 0L
+        private var replyBytes = 0L
+
+        private val keys = new ArrayList[FlowKey]()
+
+        /** The number of flows in the dump. */
+        var numFlows = 0
+
+        /** What to add to the monotonic time at which the datapath last used
+          * a flow to get the time of the FlowManager. */
+        var usedTimeOffset = 0L
+
+        /** The match of the flow last read by nextFlow(). */
+        val flowMatch = new FlowMatch()
+        /** When the flow was last used, in the time of the FlowManager, or 0
+          * if it never was. */
+        var lastUsedTime = 0L
+        /** The statistics of the flow, if hasStats. */
+        val stats = new FlowStats()
+        var hasStats = false
+
+        override def prepareRequest(datapathId: Int, protocol: OvsProtocol): ByteBuffer = {
+            request.clear()
+            protocol.prepareFlowEnum(datapathId, request)
+            request
+        }
+
+        override def onNext(reply: ByteBuffer): Unit = {
+            replyKeysLength = 0
+            replyLastUsedTime = 0L
+            replyStats = false
+            reply.getInt() // datapath index
+            NetlinkMessage.scanAttributes(reply, this)
+
+            val buf = bufferFor(RecordHeaderSize + replyKeysLength)
+            buf.putInt(replyKeysLength)
+            buf.putLong(replyLastUsedTime)
+            buf.putLong(if (replyStats) replyPackets else -1L)
+            buf.putLong(replyBytes)
+            val limit = reply.limit()
+            reply.limit(replyKeysStart + replyKeysLength)
+            reply.position(replyKeysStart)
+            buf.put(reply)
+            reply.limit(limit)
+            numFlows += 1
+        }
+
+        override def use(buf: ByteBuffer, id: Short): Unit =
+            id match {
+                case OpenVSwitch.Flow.Attr.Key =>
+                    replyKeysStart = buf.position()
+                    replyKeysLength = buf.remaining()
+                case OpenVSwitch.Flow.Attr.Used =>
+                    replyLastUsedTime = buf.getLong()
+                case OpenVSwitch.Flow.Attr.Stats =>
+                    replyStats = true
+                    replyPackets = buf.getLong()
+                    replyBytes = buf.getLong()
+                case _ =>
+            }
+
+        private def bufferFor(size: Int): ByteBuffer = {
+            if (buffers.isEmpty)
+                buffers.add(takeBuffer(size))
+            var buf = buffers.get(writeIndex)
+            if (buf.remaining() < size) {
+                writeIndex += 1
+                if (writeIndex == buffers.size)
+                    buffers.add(takeBuffer(size))
+                buf = buffers.get(writeIndex)
+            }
+            buf
+        }
+
+        private def takeBuffer(size: Int): ByteBuffer =
+            if (size <= BufferSize && !freeBuffers.isEmpty) {
+                val buf = freeBuffers.remove(freeBuffers.size - 1)
+                buf.clear()
+                buf
+            } else {
+                BytesUtil.instance.allocate(Math.max(BufferSize, size))
+            }
+
+        private def releaseBuffer(index: Int): Unit = {
+            val buf = buffers.set(index, null)
+            if ((buf ne null) && buf.capacity == BufferSize)
+                freeBuffers.add(buf)
+        }
+
+        /**
+         * Moves on to the next chunk of the dump, releasing the buffer of
+         * the previous one, returning false when there are no more chunks.
+         */
+        def nextChunk(): Boolean = {
+            if (readIndex >= 0 && readIndex < buffers.size)
+                releaseBuffer(readIndex)
+            readIndex += 1
+            if (readIndex < buffers.size) {
+                buffers.get(readIndex).flip()
+                true
+            } else false
+        }
+
+        /**
+         * Reads the next flow of the current chunk into flowMatch,
+         * lastUsedTime and stats, returning false when there are no more
+         * flows in the chunk.
+         */
+        def nextFlow(): Boolean = {
+            if (readIndex < 0 || readIndex >= buffers.size)
+                return false
+            val buf = buffers.get(readIndex)
+            if (!buf.hasRemaining)
+                return false
+
+            val keysLength = buf.getInt()
+            lastUsedTime = buf.getLong()
+            if (lastUsedTime > 0)
+                lastUsedTime += usedTimeOffset
+            stats.packets = buf.getLong()
+            stats.bytes = buf.getLong()
+            hasStats = stats.packets >= 0
+
+            val limit = buf.limit()
+            val next = buf.position() + keysLength
+            buf.limit(next)
+            keys.clear()
+            FlowKeys.buildFrom(buf, keys)
+            buf.limit(limit)
+            buf.position(next)
+            flowMatch.clear()
+            flowMatch.addKeys(keys)
+            true
+        }
+
+        /** A copy of the flow last read by nextFlow(). */
+        def flow(): Flow = {
+            val flow = new Flow(new FlowMatch(keys), new ArrayList[FlowAction](),
+                                if (hasStats) new FlowStats(stats.packets, stats.bytes)
+                                else null)
+            if (lastUsedTime > 0)
+                flow.setLastUsedTime(lastUsedTime)
+            flow
+        }
+
+        override def clear(): Unit = {
+            super.clear()
+            var i = 0
+            while (i < buffers.size) {
+                releaseBuffer(i)
+                i += 1
+            }
+            buffers.clear()
+            writeIndex = 0
+            readIndex = -1
+            numFlows = 0
+        }
+    }
 }
 
 class FlowController extends Actor with ActorLogWithoutPath
@@ -181,21 +389,37 @@ class FlowController extends Actor with ActorLogWithoutPath
     @Inject
     var ejector: FlowEjector = null
 
+    @Inject
+    var wildcardResultCache: WildcardResultCache = null
+
     var pooledFlowRemoveCommands: ArrayObjectPool[FlowRemoveCommand] = _
     var completedFlowRemoveCommands: SpscArrayQueue[FlowRemoveCommand] = _
     val flowRemoveCommandsToRetry = new ArrayList[FlowRemoveCommand]()
 
+    /* When dumpFlowStats is set, the flows queried by the FlowManager are
+     * looked up in a dump of the datapath flows made at every expiration
+     * check, which also updates the last used time and the meters of all
+     * the other flows, instead of being requested one by one. */
+    var dumpFlowStats = false
+    private var flowDump: FlowDumpCommand = _
+    private var completedFlowDumps: SpscArrayQueue[FlowDumpCommand] = _
+    private var flowDumpInFlight = false
+    // The flows to look up in the next dump, and in the dump in flight.
+    private var flowsToQuery = new JHashMap[FlowMatch, Callback1[Flow]]()
+    private var flowsQueried = new JHashMap[FlowMatch, Callback1[Flow]]()
+
     @Inject
     var metricsRegistry: MetricRegistry = null
 
+    @Inject
+    var clock: NanoClock = null
+
     var meters: MeterRegistry = null
 
     var flowManager: FlowManager = null
     var flowManagerHelper: FlowManagerHelper = null
 
-    val tagToFlows: MultiMap[FlowTag, ManagedFlow] =
-        new HashMap[FlowTag, mutable.Set[ManagedFlow]]
-            with MultiMap[FlowTag, ManagedFlow]
+    val tagToFlows = new FlowTagIndex()
 
     var flowExpirationCheckInterval: FiniteDuration = null
 
@@ -215,7 +439,8 @@ class FlowController extends Actor with ActorLogWithoutPath
             TimeUnit.MILLISECONDS)
 
         flowManagerHelper = new FlowManagerInfoImpl()
-        flowManager = new FlowManager(flowManagerHelper, maxDpFlows, idleFlowToleranceInterval)
+        flowManager = new FlowManager(flowManagerHelper, maxDpFlows,
+                                      idleFlowToleranceInterval, clock)
 
         managedFlowPool = new ArrayObjectPool(maxDpFlows, new ManagedFlow(_))
 
@@ -224,6 +449,10 @@ class FlowController extends Actor with ActorLogWithoutPath
         completedFlowRemoveCommands = new SpscArrayQueue(ejector.maxPendingRequests)
         pooledFlowRemoveCommands = new ArrayObjectPool(ejector.maxPendingRequests,
                                                        new FlowRemoveCommand(_, completedFlowRemoveCommands))
+
+        dumpFlowStats = midolmanConfig.getDumpFlowStats
+        completedFlowDumps = new SpscArrayQueue(2)
+        flowDump = new FlowDumpCommand(completedFlowDumps)
     }
 
     def receive = LoggingReceive {
@@ -260,23 +489,28 @@ class FlowController extends Actor with ActorLogWithoutPath
                 pktCtx.callbackExecutor.schedule(pktCtx.flowRemovedCallbacks)
                 managedFlow.unref()   // the FlowController's ref
             }
+            pktCtx.release()
 
         case InvalidateFlowsByTag(tag) =>
-            tagToFlows.remove(tag) match {
-                case None =>
-                    log.debug(s"There are no flows to invalidate for tag $tag")
-                case Some(flowSet) =>
-                    log.debug(s"There are ${flowSet.size} flows to invalidate for tag $tag")
-                    for (wildFlow <- flowSet)
-                        removeWildcardFlow(wildFlow)
+            val flows = tagToFlows.removeTag(tag)
+            log.debug(s"There are ${flows.length} flows to invalidate for tag $tag")
+            var i = 0
+            while (i < flows.length) {
+                removeWildcardFlow(flows(i))
+                i += 1
             }
+            wildcardResultCache.invalidate(tag)
             invalidationHistory.put(tag)
 
         case CheckFlowExpiration_ =>
             flowManager.checkFlowsExpiration()
+            if (dumpFlowStats)
+                dumpFlows()
+            wildcardResultCache.expire(System.currentTimeMillis())
 
-        case GetFlowSucceeded_(flow, origMatch, callback) =>
-            log.debug("Retrieved flow from datapath: {}", flow.getMatch)
+        case GetFlowSucceeded_(dpFlow, origMatch, callback) =>
+            log.debug("Retrieved flow from datapath: {}", dpFlow.getMatch)
+            val flow = withFlowManagerTime(dpFlow)
             context.system.eventStream.publish(FlowUpdateCompleted(flow))
             callback.call(flow)
             if (flow.getStats ne null)
@@ -292,19 +526,15 @@ class FlowController extends Actor with ActorLogWithoutPath
         case CheckCompletedRequests =>
             processRemovedFlows()
             retryFailedFlowRemovals()
+            processFlowDumps()
+
+        case ProcessFlowDump_ =>
+            processFlowDumpChunk()
     }
 
     private def removeWildcardFlow(wildFlow: ManagedFlow) {
-        def tagsCleanup(tags: ArrayList[FlowTag]): Unit = {
-            var i = 0
-            while (i < tags.size()) {
-                tagToFlows.removeBinding(tags.get(i), wildFlow)
-                i += 1
-            }
-        }
-
         if (flowManager.remove(wildFlow)) {
-            tagsCleanup(wildFlow.tags)
+            tagToFlows.remove(wildFlow)
             wildFlow.cbExecutor.schedule(wildFlow.callbacks)
             context.system.eventStream.publish(WildcardFlowRemoved(wildFlow))
             wildFlow.unref() // FlowController's ref
@@ -320,12 +550,11 @@ class FlowController extends Actor with ActorLogWithoutPath
             return false
         }
 
-        val it = pktCtx.flowTags.iterator()
-        while (it.hasNext) {
-            tagToFlows.addBinding(it.next(), wildFlow)
-        }
+        tagToFlows.add(wildFlow, pktCtx.flowTags)
+        meters.trackFlow(pktCtx.origMatch, pktCtx.flowTags)
 
-        meters.trackFlow(pktCtx.origMatch, wildFlow.tags)
+        if ((pktCtx.wildcardResult ne null) && !pktCtx.wildcardResultHit)
+            wildcardResultCache.add(pktCtx.wildcardResult)
 
         metrics.dpFlowsMetric.mark()
         true
@@ -375,6 +604,112 @@ class FlowController extends Actor with ActorLogWithoutPath
         flowRemoveCommandsToRetry.clear()
     }
 
+    private def dumpFlows(): Unit =
+        if (!flowDumpInFlight) {
+            val queried = flowsQueried
+            flowsQueried = flowsToQuery
+            flowsToQuery = queried
+            flowDump.usedTimeOffset = usedTimeOffset
+            flowDumpInFlight = ejector.dump(flowDump)
+        }
+
+    /* A copy of a flow got from the datapath whose last used time is in the
+     * time of the FlowManager, as the ones read from a dump. */
+    private def withFlowManagerTime(dpFlow: Flow): Flow = {
+        val lastUsedTime = dpFlow.getLastUsedTime
+        if ((lastUsedTime eq null) || lastUsedTime <= 0)
+            return dpFlow
+        val flow = new Flow(dpFlow.getMatch, dpFlow.getActions, dpFlow.getStats)
+        flow.setLastUsedTime(lastUsedTime + usedTimeOffset)
+        flow
+    }
+
+    /* What to add to the time at which the datapath reports a flow was last
+     * used to get the time of the FlowManager. The monotonic clock of the
+     * datapath is the one measured by the NanoClock. */
+    private def usedTimeOffset: Long =
+        flowManager.currentTimeMillis - clock.tick / 1000000L
+
+    private def processFlowDumps(): Unit = {
+        val dump = completedFlowDumps.poll()
+        if (dump eq null)
+            return
+
+        if (dump.isFailed) {
+            log.warn("Failed to dump the datapath flows", dump.failure)
+            completeFlowDump()
+        } else {
+            log.debug(s"Dumped ${dump.numFlows} datapath flows")
+            processFlowDumpChunk()
+        }
+    }
+
+    /* Handles the flows of one chunk of the dump per message, so that a large
+     * dump doesn't hold up the other messages. */
+    private def processFlowDumpChunk(): Unit =
+        if (flowDump.nextChunk()) {
+            while (flowDump.nextFlow()) {
+                handleDumpedFlow(flowDump)
+            }
+            self ! ProcessFlowDump_
+        } else {
+            completeFlowDump()
+        }
+
+    private def completeFlowDump(): Unit = {
+        // The flows that weren't in the dump, either because they are gone
+        // or because the kernel's match differs from ours, are requested
+        // one by one.
+        val it = flowsQueried.entrySet().iterator()
+        while (it.hasNext) {
+            val entry = it.next()
+            requestFlow(entry.getKey, entry.getValue)
+        }
+        flowsQueried.clear()
+        flowDump.clear()
+        flowDumpInFlight = false
+    }
+
+    private def handleDumpedFlow(dump: FlowDumpCommand): Unit = {
+        val flowMatch = dump.flowMatch
+        if (dump.lastUsedTime > 0)
+            flowManager.updateLastUsedTime(flowMatch, dump.lastUsedTime)
+        val callback = flowsQueried.remove(flowMatch)
+        if (callback ne null) {
+            val flow = dump.flow()
+            context.system.eventStream.publish(FlowUpdateCompleted(flow))
+            callback.call(flow)
+        }
+        if (dump.hasStats)
+            meters.updateFlow(flowMatch, dump.stats)
+    }
+
+    private def requestFlow(flowMatch: FlowMatch, flowCallback: Callback1[Flow]): Unit = {
+        log.debug("requesting flow for flow match: {}", flowMatch)
+        val cb = new Callback[Flow] {
+            def onError(ex: NetlinkException) {
+                ex.getErrorCodeEnum match {
+                    case ErrorCode.ENOENT =>
+                        self ! FlowMissing_(flowMatch, flowCallback)
+                    case other =>
+                        log.error("Got exception when trying to " +
+                                  "flowsGet() for " + flowMatch, ex)
+                        self ! GetFlowFailed_(flowCallback)
+                }
+            }
+            def onSuccess(data: Flow) {
+                val msg = if (data != null) {
+                    GetFlowSucceeded_(data, flowMatch, flowCallback)
+                } else {
+                    log.warn("getFlow() returned a null flow")
+                    FlowMissing_(flowMatch, flowCallback)
+                }
+                self ! msg
+            }
+        }
+        datapathConnection(flowMatch).flowsGet(datapath, flowMatch, cb)
+    }
+
     private def flowDeleteSucceeded(req: FlowRemoveCommand): Unit = {
         // Note: we use the request's FlowMatch because any userspace keys
         // that we added to it are no present in the kernel's response and we
@@ -406,31 +741,15 @@ class FlowController extends Actor with ActorLogWithoutPath
             FlowController.this.removeWildcardFlow(flow)
         }
 
-        def getFlow(flowMatch: FlowMatch, flowCallback: Callback1[Flow]): Unit = {
-            log.debug("requesting flow for flow match: {}", flowMatch)
-            val cb = new Callback[Flow] {
-                def onError(ex: NetlinkException) {
-                    ex.getErrorCodeEnum match {
-                        case ErrorCode.ENOENT =>
-                            self ! FlowMissing_(flowMatch, flowCallback)
-                        case other =>
-                            log.error("Got exception when trying to " +
-                                      "flowsGet() for " + flowMatch, ex)
-                            self ! GetFlowFailed_(flowCallback)
-                    }
-                }
-                def onSuccess(data: Flow) {
-                    val msg = if (data != null) {
-                        GetFlowSucceeded_(data, flowMatch, flowCallback)
-                    } else {
-                        log.warn("getFlow() returned a null flow")
-                        FlowMissing_(flowMatch, flowCallback)
-                    }
-                    self ! msg
-                }
+        def getFlow(flowMatch: FlowMatch, flowCallback: Callback1[Flow]): Unit =
+            if (dumpFlowStats && !flowMatch.hasUserspaceOnlyFields) {
+                val previous = flowsToQuery.put(flowMatch, flowCallback)
+                if (previous ne null)
+                    flowsToQuery.put(flowMatch,
+                                     new ChainedFlowCallback(previous, flowCallback))
+            } else {
+                requestFlow(flowMatch, flowCallback)
             }
-            datapathConnection(flowMatch).flowsGet(datapath, flowMatch, cb)
-        }
     }
 
     class FlowTablesMetrics(val flowManager: FlowManager) {
@@ -443,5 +762,11 @@ class FlowController extends Actor with ActorLogWithoutPath
         val dpFlowsMetric = metricsRegistry.meter(name(
                 classOf[FlowTablesMeter], "datapathFlowsCreated",
                 "datapathFlows"))
+
+        val currentWildcardResultsMetric = metricsRegistry.register(name(
+                classOf[FlowTablesGauge], "currentWildcardResults"),
+            new Gauge[Long]{
+                 override def getValue = wildcardResultCache.size
+             })
     }
 }
@@ -17,7 +17,7 @@
 package org.midonet.midolman
 
 import java.lang.{Integer => JInteger}
-import java.util.UUID
+import java.util.{HashMap => JHashMap, LinkedHashMap => JLinkedHashMap, Map => JMap, UUID}
 import java.util.concurrent.TimeUnit
 
 import scala.concurrent.ExecutionContextExecutor
@@ -25,16 +25,43 @@ import scala.concurrent.ExecutionContextExecutor
 import akka.actor.ActorSystem
 import akka.util.Timeout
 
+import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.simulation.{Bridge, PacketContext}
+import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.VirtualTopologyActor.tryAsk
 import org.midonet.midolman.topology.devices.{Port, VxLanPort}
 import org.midonet.odp.flows.FlowActions.{output, setKey}
 import org.midonet.odp.flows._
 import org.midonet.packets.{Ethernet, ICMP, IPv4, IPv4Addr}
+import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.flows.{FlowTagger, VirtualActions}
 
 object FlowTranslator {
     val NotADpPort: JInteger = -1
+
+    /* The number of bridges whose flood descriptors each worker keeps. */
+    val MaxFloodDescriptors = 1024
+
+    /* The tunnel route to a peer host, with the tag of the flows using it. */
+    private final class PeerRoute(val route: Route, val tag: FlowTag)
+
+    /* The tunnelling actions towards an exterior port bound to a peer host.
+     * The route is null if there is no route to that host. */
+    private final class RemotePort(val peer: UUID, val tunnelKey: Long,
+                                   val route: PeerRoute,
+                                   val setKey: FlowActionSetKey)
+
+    /* The output actions for the exterior ports of a version of a bridge,
+     * valid for as long as its ports and the datapath state don't change.
+     * Local ports that aren't in the datapath map to NotADpPort. */
+    private final class FloodDescriptor(val bridge: Bridge,
+                                        val hostId: UUID,
+                                        val portsVersion: Long,
+                                        val dpVersion: Long) {
+        val localPorts = new JHashMap[UUID, JInteger]()
+        val remotePorts = new JHashMap[UUID, RemotePort]()
+        val peers = new JHashMap[UUID, PeerRoute]()
+    }
 }
 
 trait FlowTranslator {
@@ -47,6 +74,15 @@ trait FlowTranslator {
     implicit protected def system: ActorSystem
     implicit protected def executor: ExecutionContextExecutor = system.dispatcher
 
+    /* Bridges aren't deleted from the topology, so the least recently
+     * flooded ones make way for the others. */
+    private val floodDescriptors =
+        new JLinkedHashMap[UUID, FloodDescriptor](16, 0.75f, true) {
+            override def removeEldestEntry(
+                    eldest: JMap.Entry[UUID, FloodDescriptor]): Boolean =
+                size() > MaxFloodDescriptors
+        }
+
     /**
      * Translates a Seq of FlowActions expressed in virtual references into a
      * Seq of FlowActions expressed in physical references.
@@ -150,35 +186,74 @@ trait FlowTranslator {
         context.addFlowAndPacketAction(dpState.vtepTunnellingOutputAction)
     }
 
-    private def expandFloodAction(bridge: UUID, portIds: List[UUID],
-                                  context: PacketContext): Unit = {
-        def addLocal(allPorts: List[Port]) {
-            var ports = allPorts
-            while (ports.nonEmpty) {
-                val port = ports.head
-                ports = ports.tail
-                if (port.hostId == dpState.host.id) {
-                    val portNo = dpState.getDpPortNumberForVport(port.id)
-                    if (portNo.isDefined) {
-                        context.outPorts.add(port.id)
-                        outputActionsForLocalPort(portNo.get, context)
-                    }
-                }
-            }
+    /** Update the list of action and list of tags with the output tunnelling
+     *  actions precomputed for a remote exterior port of a bridge. */
+    private def outputActionsToPeer(port: RemotePort,
+                                    context: PacketContext): Unit = {
+        context.log.debug(s"Emitting towards remote host ${port.peer} with " +
+                          s"tunnel key ${port.tunnelKey}")
+        if (port.route eq null) {
+            context.log.warn("Unable to tunnel to peer {}, is the peer "+
+                "in the same tunnel zone as the current node?", port.peer)
+        } else {
+            context.addFlowTag(port.route.tag)
+            context.addFlowAndPacketAction(port.setKey)
+            context.addFlowAndPacketAction(port.route.route.output)
+        }
+    }
+
+    /* Resolves the exterior ports of the bridge into the datapath ports and
+     * the tunnel routes that flooding to them needs, so that this is done
+     * once per version of the bridge and of its ports instead of once per
+     * flooded packet. */
+    private def floodDescriptor(br: Bridge): FloodDescriptor = {
+        val hostId = dpState.host.id
+        val portsVersion = VirtualTopologyActor.portsVersion(br.id)
+        val dpVersion = dpState.version
+        var flood = floodDescriptors.get(br.id)
+        if ((flood ne null) && (flood.bridge eq br) && flood.hostId == hostId &&
+            flood.portsVersion == portsVersion && flood.dpVersion == dpVersion)
+            return flood
+
+        flood = new FloodDescriptor(br, hostId, portsVersion, dpVersion)
+        var ports = br.exteriorPorts
+        while (ports.nonEmpty) {
+            addFloodPort(flood, ports.head)
+            ports = ports.tail
         }
+        floodDescriptors.put(br.id, flood)
+        flood
+    }
 
-        def addRemote(allPorts: List[Port]) {
-            var ports = allPorts
-            while (ports.nonEmpty) {
-                val port = ports.head
-                ports = ports.tail
-                if (port.hostId != dpState.host.id) {
-                    context.outPorts.add(port.id)
-                    outputActionsToPeer(port.tunnelKey, port.hostId, context)
+    private def addFloodPort(flood: FloodDescriptor, portId: UUID): Unit = {
+        val port = tryAsk[Port](portId)
+        if (port.hostId == flood.hostId) {
+            val portNo = dpState.getDpPortNumberForVport(portId)
+            flood.localPorts.put(portId, portNo getOrElse NotADpPort)
+        } else {
+            // The tunnel route is resolved once per peer host.
+            var route = flood.peers.get(port.hostId)
+            if ((route eq null) && !flood.peers.containsKey(port.hostId)) {
+                route = dpState.peerTunnelInfo(port.hostId) match {
+                    case Some(r) => new PeerRoute(r,
+                        FlowTagger.tagForTunnelRoute(r.srcIp, r.dstIp))
+                    case None => null
                 }
+                flood.peers.put(port.hostId, route)
             }
+            // Each FlowActionSetKey must be followed by a corresponding
+            // FlowActionOutput.
+            val setKeyAction =
+                if (route eq null) null
+                else setKey(FlowKeys.tunnel(port.tunnelKey, route.route.srcIp,
+                                            route.route.dstIp, 0))
+            flood.remotePorts.put(portId, new RemotePort(
+                port.hostId, port.tunnelKey, route, setKeyAction))
         }
+    }
 
+    private def expandFloodAction(bridge: UUID, portIds: List[UUID],
+                                  context: PacketContext): Unit = {
         /* This is an awkward step, but necessary. After we figure out all the
          * actions for local and remote ports, we need to consider the case
          * where portset includes a bridge's VxLanPort. What we want is
@@ -205,14 +280,40 @@ trait FlowTranslator {
             }
         }
 
-        val ports = portIds.map(tryAsk[Port])
-        addLocal(ports)
-        addRemote(ports)
+        val br = tryAsk[Bridge](bridge)
+        val flood = floodDescriptor(br)
+
+        var ports = portIds
+        while (ports.nonEmpty) {
+            val portId = ports.head
+            ports = ports.tail
+            if (!flood.localPorts.containsKey(portId) &&
+                !flood.remotePorts.containsKey(portId)) {
+                // Not an exterior port of this version of the bridge
+                addFloodPort(flood, portId)
+            }
+            val portNo = flood.localPorts.get(portId)
+            if ((portNo ne null) && portNo != NotADpPort) {
+                context.outPorts.add(portId)
+                outputActionsForLocalPort(portNo, context)
+            }
+        }
+
+        ports = portIds
+        while (ports.nonEmpty) {
+            val portId = ports.head
+            ports = ports.tail
+            val port = flood.remotePorts.get(portId)
+            if (port ne null) {
+                context.outPorts.add(portId)
+                outputActionsToPeer(port, context)
+            }
+        }
 
         // FIXME: at the moment (v1.5), this is need for
         // flooding traffic from a bridge. With mac
         // syncing, it will become unnecessary.
-        addVtepActions(tryAsk[Bridge](bridge))
+        addVtepActions(br)
     }
 
     private def expandPortAction(port: UUID, context: PacketContext): Unit =
@@ -36,15 +36,7 @@ object HostRequestProxy {
     case class FlowStateBatch(strongConnTrack: JSet[ConnTrackKey],
                               weakConnTrack: JSet[ConnTrackKey],
                               strongNat: JMap[NatKey, NatBinding],
-                              weakNat: JMap[NatKey, NatBinding]) {
-        def merge(other: FlowStateBatch): FlowStateBatch = {
-            strongConnTrack.addAll(other.strongConnTrack)
-            weakConnTrack.addAll(other.strongConnTrack)
-            strongNat.putAll(other.strongNat)
-            weakNat.putAll(other.weakNat)
-            this
-        }
-    }
+                              weakNat: JMap[NatKey, NatBinding])
 
     def EmptyFlowStateBatch() = FlowStateBatch(new JHashSet[ConnTrackKey](),
                                                new JHashSet[ConnTrackKey](),
@@ -78,21 +70,12 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
         VTPM ! HostRequest(hostId)
     }
 
-    private def stateForPort(port: UUID): Future[FlowStateBatch] = {
-        val scf = storage.fetchStrongConnTrackRefs(port)
-        val wcf = storage.fetchWeakConnTrackRefs(port)
-        val snf = storage.fetchStrongNatRefs(port)
-        val wnf = storage.fetchWeakNatRefs(port)
-
-        ((scf zip wcf) zip (snf zip wnf)) map {
-            case ((sc, wc) , (sn, wn)) => FlowStateBatch(sc, wc, sn, wn)
-        }
-    }
-
-    private def stateForPorts(ports: Iterable[UUID]): Future[FlowStateBatch] =
-        Future.fold(ports map stateForPort)(EmptyFlowStateBatch()) {
-            (batch: FlowStateBatch, v: FlowStateBatch) => batch.merge(v)
-        }
+    /* Streams the state of the ports to the packet workers, a page at a
+     * time, as it is fetched from Cassandra. */
+    private def stateForPorts(ports: Iterable[UUID]): Future[Iterable[Unit]] =
+        Future.sequence(ports map { port =>
+            storage.fetchPortState(port) { PacketsEntryPoint ! _ }
+        })
 
     /* Resolve all ports into UUIDs, creating a ResolvedHost object.
      *
@@ -136,9 +119,8 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
                 val ps = h.portToInterface.keySet -- lastPorts
                 val resolved = resolvePorts(h)
                 stateForPorts(ps).andThen {
-                        case Success(stateBatch) =>
+                        case Success(_) =>
                             lastPorts = ps
-                            PacketsEntryPoint ! stateBatch
                         case Failure(e) =>
                             log.warn("Failed to fetch state from Cassandra: {}", e)
                 }.andThen {
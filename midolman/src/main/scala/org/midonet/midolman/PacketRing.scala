@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman
+
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+import java.util.concurrent.locks.LockSupport
+
+import org.jctools.queues.MpscArrayQueue
+
+import org.midonet.odp.Packet
+import org.midonet.util.concurrent.NanoClock
+
+object PacketRing {
+    /** Sent to a packet worker when packets are waiting in its ring. */
+    case object PacketsPending
+
+    /** Sent to a packet worker with packets that didn't fit in its ring. */
+    case class PacketsSpilled(packets: Array[Packet])
+
+    sealed trait WaitStrategy
+    /** Go back to the mailbox as soon as the ring is empty. */
+    case object Block extends WaitStrategy
+    /** Busy-spin on the ring for a while before going back to the mailbox. */
+    case object Spin extends WaitStrategy
+    /** Park between polls of the ring for a while before going back to the
+      * mailbox. */
+    case object Park extends WaitStrategy
+
+    def waitStrategy(name: String): Option[WaitStrategy] = name match {
+        case "block" => Some(Block)
+        case "spin" => Some(Spin)
+        case "park" => Some(Park)
+        case _ => None
+    }
+
+    private def powerOfTwo(n: Int): Int =
+        if (n <= 2) 2 else Integer.highestOneBit(n - 1) << 1
+}
+
+/**
+ * Hands over packets from the upcall threads to a packet worker without going
+ * through its mailbox. Producers offer packets to the ring and only send the
+ * worker a PacketsPending message when it isn't already awake, that is, when
+ * it isn't either handling the ring or waiting for more packets according
+ * to its wait strategy. A packet that doesn't fit in the ring is spilled: it
+ * must be sent to the worker in a PacketsSpilled message, and so must all the
+ * packets that follow until the worker has handled the spilled ones. The
+ * worker drains the ring before handling spilled packets, so the packets of a
+ * flow are handled in the order they were offered.
+ *
+ * Any number of threads may produce, but only the worker may consume.
+ */
+final class PacketRing(capacity: Int,
+                       waitStrategy: PacketRing.WaitStrategy = PacketRing.Block,
+                       waitNanos: Long = 0L,
+                       clock: NanoClock = NanoClock.DEFAULT) {
+    import PacketRing._
+
+    private val queue = new MpscArrayQueue[Packet](powerOfTwo(capacity))
+    private val awake = new AtomicBoolean(false)
+    private val spilled = new AtomicInteger(0)
+
+    /**
+     * Returns false if the packet is spilled and must be sent through the
+     * mailbox, either because the ring is full or because previously spilled
+     * packets weren't handled yet.
+     */
+    def offer(packet: Packet): Boolean =
+        if (spilled.get == 0 && queue.offer(packet)) {
+            true
+        } else {
+            spilled.incrementAndGet()
+            false
+        }
+
+    /**
+     * Called by the worker after handling spilled packets, so that the
+     * producers go back to the ring once none are left.
+     */
+    def spilledHandled(count: Int): Unit = spilled.addAndGet(-count)
+
+    def hasSpilled: Boolean = spilled.get > 0
+
+    /**
+     * Called by producers after offering packets, returns whether the worker
+     * must be sent a PacketsPending message. It only returns true for one of
+     * the callers until the worker goes back to sleep.
+     */
+    def shouldWakeUp(): Boolean =
+        !awake.get && awake.compareAndSet(false, true)
+
+    def poll(): Packet = queue.poll()
+
+    def isEmpty: Boolean = queue.isEmpty
+
+    /**
+     * Called by the worker once the ring is empty, it waits for packets
+     * according to the wait strategy. If it returns true, packets are
+     * available and the worker remains awake. Otherwise the worker is
+     * considered asleep and will be sent a PacketsPending message when
+     * packets arrive.
+     */
+    def awaitPackets(): Boolean = {
+        if (!queue.isEmpty || waitForPackets())
+            return true
+        awake.set(false)
+        // A producer may have offered a packet after the last poll but seen
+        // the worker as awake, so check again before going to sleep.
+        !queue.isEmpty && awake.compareAndSet(false, true)
+    }
+
+    private def waitForPackets(): Boolean = waitStrategy match {
+        case Block => false
+        case Spin =>
+            val deadline = clock.tick + waitNanos
+            while (queue.isEmpty) {
+                if (clock.tick >= deadline)
+                    return false
+            }
+            true
+        case Park =>
+            val deadline = clock.tick + waitNanos
+            while (queue.isEmpty) {
+                if (clock.tick >= deadline)
+                    return false
+                LockSupport.parkNanos(1L)
+            }
+            true
+    }
+}
@@ -22,9 +22,9 @@ import akka.actor._
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 
-import org.midonet.cluster.DataClient
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.flows.WildcardResultCache
 import org.midonet.midolman.routingprotocols.RoutingWorkflow
 import org.midonet.midolman.simulation.{Coordinator, DhcpImpl, PacketContext}
 import org.midonet.midolman.state.FlowStateReplicator
@@ -42,12 +42,16 @@ trait PacketHandler {
 }
 
 object PacketWorkflow {
+    /* The frame is only parsed if a subscriber asks for it.
+     */
     case class PacketIn(wMatch: FlowMatch,
                         inputPort: UUID,
-                        eth: Ethernet,
-                        dpMatch: FlowMatch,
-                        reason: Packet.Reason,
-                        cookie: Int)
+                        packet: Packet,
+                        cookie: Int) {
+        def eth: Ethernet = packet.getEthernet
+        def dpMatch: FlowMatch = packet.getMatch
+        def reason: Packet.Reason = packet.getReason
+    }
 
     val TEMPORARY_DROP_MILLIS = 5 * 1000
     val IDLE_EXPIRATION_MILLIS = 60 * 1000
@@ -59,6 +63,7 @@ object PacketWorkflow {
     case object TemporaryDrop extends SimulationResult
     case object SendPacket extends SimulationResult
     case object AddVirtualWildcardFlow extends SimulationResult
+    case object CachedWildcardFlow extends SimulationResult
     case object StateMessage extends SimulationResult
     case object UserspaceFlow extends SimulationResult
     case object FlowCreated extends SimulationResult
@@ -118,10 +123,10 @@ trait UnderlayTrafficHandler { this: PacketWorkflow =>
 
 class PacketWorkflow(protected val dpState: DatapathState,
                      datapath: Datapath,
-                     dataClient: DataClient,
                      dpChannel: DatapathChannel,
                      replicator: FlowStateReplicator,
-                     config: MidolmanConfig)
+                     config: MidolmanConfig,
+                     wildcardResultCache: WildcardResultCache)
                     (implicit val system: ActorSystem)
         extends PacketHandler with FlowTranslator
         with RoutingWorkflow with UnderlayTrafficHandler {
@@ -161,7 +166,9 @@ class PacketWorkflow(protected val dpState: DatapathState,
             UserspaceFlow
         } else {
             applyState(context)
-            dpChannel.executePacket(context.packet, context.packetActions)
+            // Held until the state of the flow is pushed to its peers.
+            replicator.executePacket(dpChannel, context.packet,
+                                     context.packetActions)
             handleFlow(context)
         }
 
@@ -178,14 +185,28 @@ class PacketWorkflow(protected val dpState: DatapathState,
                 context.runFlowRemovedCallbacks()
                 UserspaceFlow
             } else {
+                if (context.wildcardResultMiss)
+                    cacheWildcardResult(context)
                 val dpFlow = new Flow(context.origMatch, context.flowActions)
                 context.log.debug(s"Creating flow $dpFlow")
-                dpChannel.createFlow(dpFlow)
+                // Held along with the packet until the state is pushed.
+                replicator.createFlow(dpChannel, dpFlow)
                 FlowController ! context
                 FlowCreated
             }
         }
 
+    /* The result is handed over to the FlowController along with the
+     * context, which adds it to the cache once the flow has been validated
+     * against the invalidation history.
+     */
+    private def cacheWildcardResult(context: PacketContext): Unit =
+        if (wildcardResultCache.isEnabled) {
+            context.wildcardResult = WildcardResultCache.resultFor(context)
+            if (context.wildcardResult ne null)
+                context.log.debug("Simulation result will be cached")
+        }
+
     def applyState(context: PacketContext): Unit =
         if (!context.isDrop) {
             context.log.debug("Applying connection state")
@@ -195,7 +216,6 @@ class PacketWorkflow(protected val dpState: DatapathState,
                                          context.outPorts,
                                          context.flowTags,
                                          context.flowRemovedCallbacks)
-            replicator.pushState(dpChannel)
             context.conntrackTx.commit()
             context.natTx.commit()
     }
@@ -238,6 +258,8 @@ class PacketWorkflow(protected val dpState: DatapathState,
         result match {
             case AddVirtualWildcardFlow =>
                 addVirtualWildcardFlow(context)
+            case CachedWildcardFlow =>
+                addTranslatedFlow(context)
             case SendPacket =>
                 context.runFlowRemovedCallbacks()
                 sendPacket(context)
@@ -262,18 +284,34 @@ class PacketWorkflow(protected val dpState: DatapathState,
     protected def simulatePacketIn(context: PacketContext): SimulationResult = {
         val packet = context.packet
         system.eventStream.publish(
-            PacketIn(context.origMatch.clone(), context.inputPort,
-                     packet.getEthernet,
-                     packet.getMatch, packet.getReason,
+            PacketIn(context.origMatch.clone(), context.inputPort, packet,
                      context.cookie))
 
         if (handleDHCP(context)) {
             NoOp
+        } else if (lookupWildcardResult(context)) {
+            CachedWildcardFlow
         } else {
             runSimulation(context)
         }
     }
 
+    private def lookupWildcardResult(context: PacketContext): Boolean = {
+        if (!wildcardResultCache.isEnabled || context.tracingEnabled ||
+            context.origMatch.getEtherType == ARP.ETHERTYPE)
+            return false
+
+        val result = wildcardResultCache.lookup(context.origMatch)
+        if (result ne null) {
+            context.log.debug(s"Using cached simulation result $result")
+            result.applyTo(context)
+            true
+        } else {
+            context.wildcardResultMiss = true
+            false
+        }
+    }
+
     def addVirtualWildcardFlow(context: PacketContext): SimulationResult = {
         translateActions(context)
         addTranslatedFlow(context)
@@ -305,7 +343,7 @@ class PacketWorkflow(protected val dpState: DatapathState,
                             dhcp: DHCP, mtu: Short): Boolean = {
         val srcMac = context.origMatch.getEthSrc
         val optMtu = Option(mtu)
-        DhcpImpl(dataClient, inPort, dhcp, srcMac, optMtu, context.log) match {
+        DhcpImpl(inPort, dhcp, srcMac, optMtu, context.log) match {
             case Some(dhcpReply) =>
                 context.log.debug(
                     "sending DHCP reply {} to port {}", dhcpReply, inPort.id)
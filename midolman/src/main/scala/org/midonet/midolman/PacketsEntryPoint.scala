@@ -23,17 +23,17 @@ import akka.event.LoggingReceive
 import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 import com.typesafe.scalalogging.Logger
-import org.midonet.cluster.DataClient
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.flows.WildcardResultCache
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
-import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.sdn.state.{FlowStateTable, IdleExpiration, SharedFlowStateTable, ShardedFlowStateTable}
 import org.midonet.util.StatisticalCounter
 import org.midonet.util.concurrent.NanoClock
 import org.slf4j.LoggerFactory
@@ -43,7 +43,13 @@ object PacketsEntryPoint extends Referenceable {
 
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    /**
+     * The packet workers, along with the rings through which they take
+     * packets from the upcall threads. Without rings, packets are sent to
+     * the workers' mailboxes.
+     */
+    case class Workers(list: IndexedSeq[ActorRef],
+                       rings: IndexedSeq[PacketRing] = IndexedSeq.empty)
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath
@@ -73,9 +79,6 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     @Inject
     var dpChannel: DatapathChannel = _
 
-    @Inject
-    var clusterDataClient: DataClient = null
-
     @Inject
     override val supervisorStrategy: SupervisorStrategy = null
 
@@ -85,6 +88,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     private var metrics: PacketPipelineMetrics = null
 
     protected var workers = immutable.IndexedSeq[ActorRef]()
+    protected var rings = immutable.IndexedSeq[PacketRing]()
     private var rrIndex = 0
 
     @Inject
@@ -99,8 +103,11 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     @Inject
     var natBlockAllocator: NatBlockAllocator = _
 
-    var connTrackStateTable: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue] = _
-    var natStateTable: ShardedFlowStateTable[NatKey, NatBinding] = _
+    @Inject
+    var wildcardResultCache: WildcardResultCache = _
+
+    var connTrackStateTable: FlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var natStateTable: FlowStateTable[NatKey, NatBinding] = _
     var natLeaser: NatLeaser = _
 
     override def preStart(): Unit = {
@@ -108,15 +115,25 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
         NUM_WORKERS = config.getSimulationThreads
         metrics = new PacketPipelineMetrics(metricsRegistry)
 
-        connTrackStateTable = new ShardedFlowStateTable(clock)
-        natStateTable = new ShardedFlowStateTable(clock)
+        connTrackStateTable = newFlowStateTable()
+        natStateTable = newFlowStateTable()
         natLeaser = new NatLeaser {
             val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
             val allocator = natBlockAllocator
             val clock = PacketsEntryPoint.this.clock
         }
 
+        val waitStrategy =
+            PacketRing.waitStrategy(config.getPacketWorkerWaitStrategy) getOrElse {
+                log.warn("Unknown packet worker wait strategy " +
+                         s"${config.getPacketWorkerWaitStrategy}, using block")
+                PacketRing.Block
+            }
         for (i <- 0 until NUM_WORKERS) {
+            rings :+= new PacketRing(config.getGlobalIncomingBurstCapacity,
+                                     waitStrategy,
+                                     config.getPacketWorkerWaitMicros * 1000L,
+                                     clock)
             workers :+= startWorker(i)
         }
     }
@@ -128,6 +145,24 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     private def shardLogger(t: AnyRef) =
         Logger(LoggerFactory.getLogger("org.midonet.state.table"))
 
+    private def newFlowStateTable[K <: IdleExpiration, V >: Null]()
+    : FlowStateTable[K, V] = config.getFlowStateTable match {
+        case "shared" =>
+            new SharedFlowStateTable[K, V](clock, shardLogger(this))
+        case "sharded" =>
+            new ShardedFlowStateTable[K, V](clock)
+        case other =>
+            log.warn(s"Unknown flow state table type $other, using sharded")
+            new ShardedFlowStateTable[K, V](clock)
+    }
+
+    private def tableForWorker[K <: IdleExpiration, V >: Null](
+            table: FlowStateTable[K, V]): FlowStateTable[K, V] = table match {
+        case sharded: ShardedFlowStateTable[K, V] @unchecked =>
+            sharded.addShard(log = shardLogger(sharded))
+        case shared => shared
+    }
+
     protected def startWorker(index: Int): ActorRef = {
         val props = propsForWorker(index).withDispatcher("actors.pinned-dispatcher")
         context.actorOf(props, s"PacketProcessor-$index")
@@ -137,13 +172,15 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
         val cookieGen = new CookieGenerator(index, NUM_WORKERS)
         Props(
             classOf[DeduplicationActor],
-            config, cookieGen, dpChannel, clusterDataClient,
-            connTrackStateTable.addShard(log = shardLogger(connTrackStateTable)),
-            natStateTable.addShard(log = shardLogger(natStateTable)),
+            config, cookieGen, dpChannel,
+            tableForWorker(connTrackStateTable),
+            tableForWorker(natStateTable),
             storageFactory.create(),
             natLeaser,
             metrics,
-            counter.addAndGet(index, _: Int))
+            wildcardResultCache,
+            counter.addAndGet(index, _: Int),
+            rings(index))
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
@@ -159,10 +196,12 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
             dpChannel.start(dp)
             broadcast(m)
 
-        case m: FlowStateBatch => broadcast(m)
+        // Lookups fall back to the other workers' shards, so the state only
+        // needs to be imported by one of them.
+        case m: FlowStateBatch => roundRobin(m)
 
         case CheckBackchannels => broadcast(CheckBackchannels)
 
-        case GetWorkers => sender ! Workers(workers)
+        case GetWorkers => sender ! Workers(workers, rings)
     }
 }
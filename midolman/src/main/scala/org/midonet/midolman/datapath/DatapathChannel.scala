@@ -51,7 +51,8 @@ class DisruptorDatapathChannel(val capacity: Int,
                                flowEjector: FlowEjector,
                                channelFactory: NetlinkChannelFactory,
                                ovsFamilies: OvsNetlinkFamilies,
-                               clock: NanoClock) extends DatapathChannel {
+                               clock: NanoClock,
+                               msgsPerWrite: Int = 1) extends DatapathChannel {
     import org.midonet.midolman.datapath.DisruptorDatapathChannel._
 
     private val ringBuffer = RingBuffer.createMultiProducer[DatapathEvent](Factory, capacity)
@@ -82,16 +83,19 @@ class DisruptorDatapathChannel(val capacity: Int,
 
     private def createProcessors(): Seq[EventProcessor] = {
         val flowHandler = new FlowProcessor(flowEjector, channelFactory,
-                                            datapath.getIndex, ovsFamilies, clock)
+                                            datapath.getIndex, ovsFamilies, clock,
+                                            msgsPerWrite)
         if (threads <= 1) {
             val handler = new AggregateEventPollerHandler(
                 flowHandler,
-                new EventPollerHandlerAdapter(new PacketExecutor(1, 0, channelFactory)))
+                new EventPollerHandlerAdapter(
+                    new PacketExecutor(1, 0, channelFactory, msgsPerWrite)))
             List(new BackchannelEventProcessor(ringBuffer, handler, flowHandler))
         } else {
             val numPacketHandlers = threads - 1
             (0 until numPacketHandlers).map { id =>
-                val pexec = new PacketExecutor(numPacketHandlers, id, channelFactory)
+                val pexec = new PacketExecutor(numPacketHandlers, id,
+                                               channelFactory, msgsPerWrite)
                 new BatchEventProcessor(ringBuffer, barrier, pexec)
             } :+ new BackchannelEventProcessor(ringBuffer, flowHandler, flowHandler)
         }
@@ -110,6 +110,10 @@ trait DatapathPortEntangler {
     var bindings = Map[String, PortBinding]()
     var keysForLocalPorts = Map[Long, DpPort]()
 
+    /** Called whenever the datapath port bound to a virtual port may have
+     *  changed. */
+    protected def portsChanged(): Unit = { }
+
     // Sequentializes updates to a particular port. Note that while an update
     // is in progress, new updates can be scheduled.
     private val conveyor = new MultiLaneConveyorBelt[String](_ => {
@@ -185,6 +189,7 @@ trait DatapathPortEntangler {
     private def newInterfaceVportBinding(vport: UUID, ifname: String): Future[_] = {
         log.debug(s"Creating binding $ifname -> $vport")
         interfaceToVport += ifname -> vport
+        portsChanged()
         tryCreateDpPort(ifname)
     }
 
@@ -264,6 +269,7 @@ trait DatapathPortEntangler {
         log.info(s"Deleting binding of port $vport to $ifname")
         tryRemovePort(ifname) {
             interfaceToVport -= ifname
+            portsChanged()
         }
     }
 
@@ -293,6 +299,7 @@ trait DatapathPortEntangler {
             log.debug(s"Datapath port $ifname added")
             interfaceToDpPort += ifname -> dpPort
             dpPortNumToInterface += dpPort.getPortNo -> ifname
+            portsChanged()
             dpPortAdded(dpPort)
         } recover { case t =>
             // We'll retry on the next interface scan
@@ -313,6 +320,7 @@ trait DatapathPortEntangler {
         if (!dpPort.isInstanceOf[InternalPort]) {
             interfaceToDpPort -= name
             dpPortNumToInterface -= dpPort.getPortNo
+            portsChanged()
             (controller removeFromDatapath dpPort) recover { case t =>
                 // We got ourselves a dangling port
                 log.warn(s"Failed to remove port $dpPort: ${t.getMessage}")
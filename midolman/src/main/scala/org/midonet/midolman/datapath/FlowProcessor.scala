@@ -36,7 +36,8 @@ sealed class FlowProcessor(flowEjector: FlowEjector,
                            channelFactory: NetlinkChannelFactory,
                            datapathId: Int,
                            ovsFamilies: OvsNetlinkFamilies,
-                           clock: NanoClock)
+                           clock: NanoClock,
+                           msgsPerWrite: Int = 1)
      extends EventPoller.Handler[DatapathEvent]
      with Backchannel
      with LifecycleAware {
@@ -60,31 +61,59 @@ sealed class FlowProcessor(flowEjector: FlowEjector,
         clock,
         5 seconds)
     private val protocol = new OvsProtocol(pid, ovsFamilies)
+    private val batch = new NetlinkBatchWriter(writer, msgsPerWrite)
 
     private var lastSequence = Sequencer.INITIAL_CURSOR_VALUE
+    private var batchSequence = Sequencer.INITIAL_CURSOR_VALUE
 
+    /* The flow creations are written when the ring buffer has no more events
+     * to hand over or the batch is full. The events are not reclaimed by the
+     * ring buffer until then, so the batch can refer to their buffers.
+     */
     override def onEvent(event: DatapathEvent, sequence: Long,
                          endOfBatch: Boolean): Boolean = {
         if (event.op == FLOW_CREATE) {
-            try {
-                event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
-                writer.write(event.bb)
-                log.debug(s"Created flow #$sequence")
-            } catch { case t: Throwable =>
-                log.error(s"Failed to create flow #$sequence", t)
-            }
-            lastSequence = sequence
+            event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
+            if (!batch.fits(event.bb))
+                flush()
+            batch.add(event.bb)
+            batchSequence = sequence
         }
+        if (endOfBatch)
+            flush()
         true
     }
 
-    override def shouldProcess(): Boolean = {
+    private def flush(): Unit = {
+        if (batch.isEmpty)
+            return
+        val flows = batch.size
+        try {
+            batch.flush()
+            log.debug(s"Created $flows flow(s) up to #$batchSequence")
+        } catch { case t: Throwable =>
+            log.error(s"Failed to create flow(s) up to #$batchSequence", t)
+        }
+        // Flows can only be deleted once they have been written.
+        lastSequence = batchSequence
+    }
+
+    override def shouldProcess(): Boolean =
+        flowEjector.hasDump || shouldDelete()
+
+    private def shouldDelete(): Boolean = {
         val flowDelete = flowEjector.peek()
         (flowDelete ne null) && flowDelete.managedFlow.flowMatch.getSequence <= lastSequence
     }
 
     override def process(): Unit = {
-        while (shouldProcess()) {
+        val flowDump = flowEjector.pollDump()
+        if (flowDump ne null) {
+            log.debug("Dumping the datapath flows")
+            val buf = flowDump.prepareRequest(datapathId, protocol)
+            requestReply.writeRequest(buf, flowDump)
+        }
+        while (shouldDelete()) {
             val flowDelete = flowEjector.poll()
             log.debug(s"Deleting flow ${flowDelete.managedFlow}")
             val buf = flowDelete.prepareRequest(datapathId, protocol)
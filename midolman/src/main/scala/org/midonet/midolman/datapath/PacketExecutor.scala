@@ -25,7 +25,8 @@ import org.midonet.midolman.datapath.DisruptorDatapathChannel._
 import org.midonet.netlink._
 
 sealed class PacketExecutor(numHandlers: Int, index: Int,
-                            channelFactory: NetlinkChannelFactory)
+                            channelFactory: NetlinkChannelFactory,
+                            msgsPerWrite: Int = 1)
     extends EventHandler[DatapathEvent]
     with LifecycleAware {
 
@@ -42,17 +43,31 @@ sealed class PacketExecutor(numHandlers: Int, index: Int,
 
     private val writer = new NetlinkBlockingWriter(channel)
     private val reader = new NetlinkReader(channel)
+    private val batch = new NetlinkBatchWriter(writer, msgsPerWrite)
+    private var batchSequence = 0L
 
     override def onEvent(event: DatapathEvent, sequence: Long,
                          endOfBatch: Boolean): Unit = {
         if (event.op == PACKET_EXECUTION && sequence % numHandlers == index) {
-            try {
-                event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
-                writer.write(event.bb)
-                log.debug(s"Executed packet #$sequence")
-            } catch { case t: Throwable =>
-                log.error(s"Failed to execute packet #$sequence", t)
-            }
+            event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
+            if (!batch.fits(event.bb))
+                flush()
+            batch.add(event.bb)
+            batchSequence = sequence
+        }
+        if (endOfBatch)
+            flush()
+    }
+
+    private def flush(): Unit = {
+        if (batch.isEmpty)
+            return
+        val packets = batch.size
+        try {
+            batch.flush()
+            log.debug(s"Executed $packets packet(s) up to #$batchSequence")
+        } catch { case t: Throwable =>
+            log.error(s"Failed to execute packet(s) up to #$batchSequence", t)
         }
     }
 
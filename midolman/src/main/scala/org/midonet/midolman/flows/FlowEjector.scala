@@ -15,12 +15,15 @@
  */
 package org.midonet.midolman.flows
 
+import java.util.concurrent.atomic.AtomicReference
+
 import org.jctools.queues.{SpscArrayQueue, QueueFactory}
 import org.jctools.queues.spec.ConcurrentQueueSpec._
-import org.midonet.midolman.FlowController.FlowRemoveCommand
+import org.midonet.midolman.FlowController.{FlowDumpCommand, FlowRemoveCommand}
 
 class FlowEjector(val maxPendingRequests: Int) {
     private val queue = new SpscArrayQueue[FlowRemoveCommand](maxPendingRequests)
+    private val flowDump = new AtomicReference[FlowDumpCommand]()
 
     def size: Int = queue.size()
 
@@ -31,4 +34,15 @@ class FlowEjector(val maxPendingRequests: Int) {
     def peek(): FlowRemoveCommand = queue.peek()
 
     def poll(): FlowRemoveCommand = queue.poll()
+
+    /**
+     * Requests a dump of the datapath flows. Returns false if the previous
+     * dump has not been picked up yet.
+     */
+    def dump(flowDump: FlowDumpCommand): Boolean =
+        this.flowDump.compareAndSet(null, flowDump)
+
+    def hasDump: Boolean = flowDump.get ne null
+
+    def pollDump(): FlowDumpCommand = flowDump.getAndSet(null)
 }
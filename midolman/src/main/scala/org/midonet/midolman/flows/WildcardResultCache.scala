@@ -0,0 +1,395 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.flows
+
+import java.util.{ArrayList, HashMap => JHashMap, HashSet => JHashSet, LinkedHashMap}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.flows._
+import org.midonet.sdn.flows.FlowTagger.{FlowStateTag, FlowTag}
+import org.midonet.sdn.flows.VirtualActions.{FlowActionOutputToVrnBridge, FlowActionOutputToVrnPort}
+import org.midonet.util.functors.Callback0
+
+object WildcardResultCache {
+
+    private val fields = Field.values.filter(_ ne Field.COUNT)
+
+    private def bits(fs: Field*): Long =
+        fs.foldLeft(0L)((mask, f) => mask | (1L << f.ordinal()))
+
+    /* Fields that are always part of the key: the ingress port and tunnel
+     * fields identify the virtual port the packet came in from, and some
+     * devices look at the EtherType and the VLAN tags of the frame itself
+     * rather than through the FlowMatch. */
+    val BaseFields = bits(Field.InputPortNumber, Field.TunnelKey,
+                          Field.TunnelSrc, Field.TunnelDst,
+                          Field.EtherType, Field.VlanId)
+
+    /* A set-key action carries the values of all the fields of its header,
+     * not only of those the simulation modified, so these fields become
+     * part of the key. */
+    private val EthernetFields = bits(Field.EthSrc, Field.EthDst)
+    private val NetworkFields = bits(Field.NetworkSrc, Field.NetworkDst,
+                                     Field.NetworkProto, Field.NetworkTOS,
+                                     Field.NetworkTTL, Field.FragmentType)
+    private val TransportFields = bits(Field.NetworkProto, Field.SrcPort,
+                                       Field.DstPort)
+
+    private val NotCacheable = -1L
+
+    /**
+     * The key of a cached result: the values of the fields set in `fields`.
+     * Two keys are equal if the same subset of those fields is used in both
+     * matches and they have the same values.
+     */
+    final class WildcardKey(private var fields: Long,
+                            private var fmatch: FlowMatch) {
+        private var hash = if (fmatch ne null) computeHash() else 0
+
+        def reset(fields: Long, fmatch: FlowMatch): Unit = {
+            this.fields = fields
+            this.fmatch = fmatch
+            hash = if (fmatch ne null) computeHash() else 0
+        }
+
+        def seenFields = fields
+
+        private def computeHash(): Int = {
+            var h = (fields ^ (fmatch.getUsedFields & fields)).hashCode
+            var i = 0
+            while (i < WildcardResultCache.fields.length) {
+                val f = WildcardResultCache.fields(i)
+                if ((fields & (1L << f.ordinal())) != 0)
+                    h = 31 * h + f.hashCode(fmatch)
+                i += 1
+            }
+            h
+        }
+
+        override def hashCode: Int = hash
+
+        override def equals(o: Any): Boolean = o match {
+            case that: WildcardKey =>
+                if ((this.fields != that.fields) ||
+                    (((this.fmatch.getUsedFields ^ that.fmatch.getUsedFields)
+                        & fields) != 0))
+                    return false
+                var i = 0
+                while (i < WildcardResultCache.fields.length) {
+                    val f = WildcardResultCache.fields(i)
+                    if (((fields & (1L << f.ordinal())) != 0) &&
+                        !f.equals(this.fmatch, that.fmatch))
+                        return false
+                    i += 1
+                }
+                true
+            case _ => false
+        }
+
+        override def toString = s"WildcardKey[fields=$fields, match=$fmatch]"
+    }
+
+    /**
+     * A simulation result that can be applied to any packet matching its key.
+     * The result is reference counted: the flow whose simulation produced it,
+     * the cache and each flow created from it hold a reference. The flow
+     * removed callbacks of the original simulation run when the last
+     * reference is dropped, so that the bookkeeping of the devices (learned
+     * MACs, ARP cache entries) accounts for all the flows using the result.
+     */
+    final class WildcardResult private[WildcardResultCache] (
+            val flowMatch: FlowMatch,
+            val key: WildcardKey,
+            context: PacketContext) extends Callback0 {
+
+        val virtualFlowActions = new ArrayList[FlowAction](context.virtualFlowActions)
+        val flowActions = new ArrayList[FlowAction](context.flowActions)
+        val packetActions = new ArrayList[FlowAction](context.packetActions)
+        val tags = new ArrayList[FlowTag](context.flowTags)
+        val idleExpirationMillis = context.idleExpirationMillis
+        val callbacks = new ArrayList[Callback0](context.flowRemovedCallbacks)
+
+        @volatile var lastHitMillis = System.currentTimeMillis()
+
+        private val refs = new AtomicInteger(1)
+
+        def tryRef(): Boolean = {
+            var count = refs.get
+            while (count > 0) {
+                if (refs.compareAndSet(count, count + 1))
+                    return true
+                count = refs.get
+            }
+            false
+        }
+
+        def refCount = refs.get
+
+        /** Releases a reference, e.g., when a flow using the result
+         *  is removed. */
+        override def call(): Unit =
+            if (refs.decrementAndGet() == 0) {
+                var i = 0
+                while (i < callbacks.size()) {
+                    callbacks.get(i).call()
+                    i += 1
+                }
+                callbacks.clear()
+            }
+
+        /**
+         * Applies this result to the packet in the given context, as if
+         * the context had gone through the simulation and the translation of
+         * the virtual actions. The caller must hold a reference, which is
+         * handed over to the flow.
+         */
+        def applyTo(context: PacketContext): Unit = {
+            context.origMatch.propagateSeenFieldsFrom(flowMatch)
+            context.virtualFlowActions.addAll(virtualFlowActions)
+            context.flowActions.addAll(flowActions)
+            context.packetActions.addAll(packetActions)
+            context.flowTags.addAll(tags)
+            context.idleExpirationMillis = idleExpirationMillis
+            context.hardExpirationMillis = 0
+            context.addFlowRemovedCallback(this)
+            context.wildcardResult = this
+            context.wildcardResultHit = true
+        }
+
+        override def toString =
+            s"WildcardResult[key=$key, actions=$flowActions, tags=$tags, " +
+            s"refs=${refs.get}]"
+    }
+
+    private def actionFields(actions: ArrayList[FlowAction]): Long = {
+        var mask = 0L
+        var i = 0
+        while (i < actions.size()) {
+            actions.get(i) match {
+                case _: FlowActionOutputToVrnPort =>
+                case _: FlowActionOutputToVrnBridge =>
+                case _: FlowActionPushVLAN =>
+                case _: FlowActionPopVLAN =>
+                case a: FlowActionSetKey => a.getFlowKey match {
+                    case _: FlowKeyEthernet => mask |= EthernetFields
+                    case _: FlowKeyIPv4 | _: FlowKeyIPv6 => mask |= NetworkFields
+                    case _: FlowKeyTCP | _: FlowKeyUDP => mask |= TransportFields
+                    case _ => return NotCacheable
+                }
+                case _ => return NotCacheable
+            }
+            i += 1
+        }
+        mask
+    }
+
+    private def hasStateTags(tags: java.util.Set[FlowTag]): Boolean = {
+        val it = tags.iterator()
+        while (it.hasNext) {
+            if (it.next().isInstanceOf[FlowStateTag])
+                return true
+        }
+        false
+    }
+
+    /**
+     * Builds the cacheable result of the simulation in the given context, or
+     * returns null if the result depends on more than the fields seen by the
+     * simulation: flow state, generated packets, temporary results and
+     * userspace-only actions all fall in this category.
+     *
+     * If a result is returned, the flow removed callbacks of the context are
+     * handed over to it and the context holds its only reference.
+     */
+    def resultFor(context: PacketContext): WildcardResult = {
+        if (context.tracingEnabled || context.hasGeneratedPackets ||
+            context.hardExpirationMillis != 0 ||
+            context.wcmatch.userspaceFieldsSeen ||
+            hasStateTags(context.flowTags))
+            return null
+
+        val actionMask = actionFields(context.virtualFlowActions)
+        if (actionMask == NotCacheable)
+            return null
+
+        val flowMatch = context.origMatch.clone()
+        val key = new WildcardKey(
+            flowMatch.getSeenFields | actionMask | BaseFields, flowMatch)
+        val result = new WildcardResult(flowMatch, key, context)
+        context.flowRemovedCallbacks.clear()
+        context.addFlowRemovedCallback(result)
+        result
+    }
+}
+
+/**
+ * A cache of simulation results in front of the simulation, shared among
+ * all the packet processing threads. A result is keyed on the values of the
+ * fields of the packet that the simulation looked at, so that any packet
+ * with the same values for those fields gets the same translated actions
+ * and flow tags without being simulated.
+ *
+ * Lookups are lock-free and may be performed from any thread. All the
+ * mutating operations (add, invalidate, expire) are only to be called from
+ * the FlowController, which also validates each result against the
+ * invalidation history before adding it. A result is removed in the same
+ * step in which any of its tags is invalidated, so a context that finds a
+ * result can be validated against the invalidation history from the time
+ * the context started processing.
+ *
+ * A capacity of 0 disables the cache.
+ */
+class WildcardResultCache(val capacity: Int) {
+    import WildcardResultCache._
+
+    private val results = new ConcurrentHashMap[WildcardKey, WildcardResult]()
+
+    // The distinct sets of seen fields, looked up in turn for each packet.
+    @volatile private var masks = new Array[Long](0)
+
+    // The following are only accessed from the FlowController.
+    private val maskRefs = new JHashMap[java.lang.Long, Integer]()
+    private val insertionOrder = new LinkedHashMap[WildcardKey, WildcardResult]()
+    private val tagToResults = new JHashMap[FlowTag, JHashSet[WildcardResult]]()
+
+    private val probes = new ThreadLocal[WildcardKey] {
+        override def initialValue = new WildcardKey(0L, null)
+    }
+
+    def isEnabled = capacity > 0
+
+    def size = results.size
+
+    /**
+     * Looks up a result for the given match. If one is found, a reference
+     * to it is acquired on behalf of the caller.
+     */
+    def lookup(fmatch: FlowMatch): WildcardResult = {
+        val ms = masks
+        if (ms.length == 0)
+            return null
+
+        val probe = probes.get
+        try {
+            var i = 0
+            while (i < ms.length) {
+                probe.reset(ms(i), fmatch)
+                val result = results.get(probe)
+                if ((result ne null) && result.tryRef()) {
+                    result.lastHitMillis = System.currentTimeMillis()
+                    return result
+                }
+                i += 1
+            }
+            null
+        } finally {
+            probe.reset(0L, null)
+        }
+    }
+
+    def add(result: WildcardResult): Boolean = {
+        if (!isEnabled || results.containsKey(result.key) || !result.tryRef())
+            return false
+
+        if (insertionOrder.size >= capacity)
+            remove(insertionOrder.values.iterator.next())
+
+        results.put(result.key, result)
+        insertionOrder.put(result.key, result)
+        var i = 0
+        while (i < result.tags.size()) {
+            val tag = result.tags.get(i)
+            var set = tagToResults.get(tag)
+            if (set eq null) {
+                set = new JHashSet[WildcardResult]()
+                tagToResults.put(tag, set)
+            }
+            set.add(result)
+            i += 1
+        }
+        refMask(result.key.seenFields)
+        true
+    }
+
+    def invalidate(tag: FlowTag): Unit = {
+        val set = tagToResults.remove(tag)
+        if (set ne null) {
+            val it = set.iterator()
+            while (it.hasNext) {
+                remove(it.next())
+            }
+        }
+    }
+
+    /**
+     * Removes the results that have not been used in their idle
+     * expiration time.
+     */
+    def expire(nowMillis: Long): Unit = {
+        val it = insertionOrder.values.iterator
+        val expired = new ArrayList[WildcardResult]()
+        while (it.hasNext) {
+            val result = it.next()
+            if (result.idleExpirationMillis > 0 &&
+                nowMillis - result.lastHitMillis > result.idleExpirationMillis)
+                expired.add(result)
+        }
+        var i = 0
+        while (i < expired.size()) {
+            remove(expired.get(i))
+            i += 1
+        }
+    }
+
+    private def remove(result: WildcardResult): Unit =
+        if (insertionOrder.remove(result.key) ne null) {
+            results.remove(result.key)
+            var i = 0
+            while (i < result.tags.size()) {
+                val tag = result.tags.get(i)
+                val set = tagToResults.get(tag)
+                if ((set ne null) && set.remove(result) && set.isEmpty)
+                    tagToResults.remove(tag)
+                i += 1
+            }
+            unrefMask(result.key.seenFields)
+            result.call()
+        }
+
+    private def refMask(mask: Long): Unit = {
+        val count = maskRefs.get(mask)
+        if (count eq null) {
+            maskRefs.put(mask, 1)
+            masks = masks :+ mask
+        } else {
+            maskRefs.put(mask, count + 1)
+        }
+    }
+
+    private def unrefMask(mask: Long): Unit = {
+        val count = maskRefs.get(mask)
+        if (count == 1) {
+            maskRefs.remove(mask)
+            masks = masks filter (_ != mask)
+        } else {
+            maskRefs.put(mask, count - 1)
+        }
+    }
+}
@@ -31,7 +31,8 @@ object StorageModule {
             extends Provider[Storage] {
 
         override def get: Storage =
-            new ZookeeperObjectMapper(cfg.getZkRootPath + "/zoom", curator)
+            new ZookeeperObjectMapper(cfg.getZkRootPath + "/zoom", curator,
+                                      cfg.getClusterStorageBinaryFormat)
     }
 
 }
@@ -25,7 +25,7 @@ import akka.actor.ActorSystem
 import akka.util.Timeout
 import org.midonet.midolman.PacketsEntryPoint.{GetWorkers, Workers}
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.{DeduplicationActor, NetlinkCallbackDispatcher, PacketsEntryPoint}
+import org.midonet.midolman.{DeduplicationActor, NetlinkCallbackDispatcher, PacketRing, PacketsEntryPoint}
 import org.midonet.netlink.BufferPool
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.netlink.exceptions.NetlinkException.ErrorCode.{EBUSY, EEXIST}
@@ -75,6 +75,17 @@ abstract class UpcallDatapathConnectionManagerBase(
 
     protected def makeBufferPool() = new BufferPool(1, 8, 8*1024)
 
+    /* Upcalls are copied out of the read buffers by the PacketBuilder, so
+     * the buffers can be reused by the next read. */
+    protected def enableBatchReads(conn: ManagedDatapathConnection): Unit = {
+        val msgsPerRead = config.getUpcallMessagesPerRead
+        if (msgsPerRead > 1) {
+            val pool = new BufferPool(msgsPerRead, msgsPerRead,
+                                      config.getUpcallReadBufSizeKb * 1024)
+            conn.getConnection.enableBatchReads(pool, msgsPerRead)
+        }
+    }
+
     def askForWorkers()
                (implicit ec: ExecutionContext, as: ActorSystem) = {
         implicit val tout = Timeout(3, TimeUnit.SECONDS)
@@ -104,6 +115,7 @@ abstract class UpcallDatapathConnectionManagerBase(
         askForWorkers() flatMap { workers =>
             val dpConn = conn.getConnection
             dpConn setCallbackDispatcher getDispatcher()
+            enableBatchReads(conn)
             setUpcallHandler(dpConn, workers)
             ensurePortPid(port, datapath, dpConn)
         } andThen {
@@ -165,13 +177,18 @@ abstract class UpcallDatapathConnectionManagerBase(
 
             val BATCH_SIZE: Int = 16
             val NUM_WORKERS = workers.list.length
+            val rings = workers.rings
             var packets = Array.ofDim[Packet](workers.list.length, BATCH_SIZE)
             var cursors = Array.fill[Int](NUM_WORKERS)(0)
             val log = LoggerFactory.getLogger("PacketInHook")
 
             def endBatch(worker: Int) {
                 if (cursors(worker) > 0) {
-                    workers.list(worker) ! DeduplicationActor.HandlePackets(packets(worker))
+                    workers.list(worker) ! (
+                        if (rings.nonEmpty)
+                            PacketRing.PacketsSpilled(packets(worker))
+                        else
+                            DeduplicationActor.HandlePackets(packets(worker)))
                     cursors(worker) = 0
                     packets(worker) = new Array[Packet](BATCH_SIZE)
                 }
@@ -191,10 +208,21 @@ abstract class UpcallDatapathConnectionManagerBase(
                 data.startTimeNanos = NanoClock.DEFAULT.tick
 
                 val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
-                packets(worker)(cursors(worker)) = data
-                cursors(worker) += 1
-                if (cursors(worker) == BATCH_SIZE)
-                    endBatch(worker)
+                if (rings.nonEmpty && rings(worker).offer(data)) {
+                    // Only a worker that went back to its mailbox needs to
+                    // be woken up, which is rare under load.
+                    if (rings(worker).shouldWakeUp())
+                        workers.list(worker) ! PacketRing.PacketsPending
+                } else {
+                    // Without a ring, or when it spilled the packet, fall
+                    // back to the worker's mailbox. A spilling ring keeps
+                    // spilling until the worker catches up, so the packets
+                    // of a flow aren't reordered.
+                    packets(worker)(cursors(worker)) = data
+                    cursors(worker) += 1
+                    if (cursors(worker) == BATCH_SIZE)
+                        endBatch(worker)
+                }
             }
         }
 }
@@ -16,7 +16,7 @@
 package org.midonet.midolman.monitoring
 
 import java.util.concurrent.ConcurrentHashMap
-import java.util.{ArrayList, HashMap => JHashMap}
+import java.util.{ArrayList, Collection => JCollection, HashMap => JHashMap}
 
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
@@ -48,7 +48,7 @@ class MeterRegistry(val maxFlows: Int) {
     private val trackedFlows = new JHashMap[FlowMatch, FlowData]()
     private val DELTA = new FlowStats()
 
-    def trackFlow(flowMatch: FlowMatch, tags: ArrayList[FlowTag]): Unit = {
+    def trackFlow(flowMatch: FlowMatch, tags: JCollection[FlowTag]): Unit = {
         if (trackedFlows.containsKey(flowMatch))
             return
 
@@ -58,9 +58,9 @@ class MeterRegistry(val maxFlows: Int) {
 
         metadata.reset()
 
-        var i = 0
-        while (i < tags.size()) {
-            tags.get(i) match {
+        val it = tags.iterator()
+        while (it.hasNext) {
+            it.next() match {
                 case meter: MeterTag =>
                     metadata.meters add meter
                     if (meters.containsKey(meter.meterName)) {
@@ -71,7 +71,6 @@ class MeterRegistry(val maxFlows: Int) {
                     }
                 case _ => // Do nothing
             }
-            i += 1
         }
 
         log.debug(s"new flow is associated with ${metadata.meters.size} meters")
@@ -30,6 +30,9 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
     val wildcardTableHits = registry.meter(name(
         classOf[PacketPipelineMeter], "wildcardTableHits", "packets"))
 
+    val wildcardTableMisses = registry.meter(name(
+        classOf[PacketPipelineMeter], "wildcardTableMisses", "packets"))
+
     val packetsSimulated = registry.meter(name(
         classOf[PacketPipelineMeter], "packetsSimulated", "packets"))
 
@@ -42,6 +45,9 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
     val packetsDropped = registry.meter(name(
         classOf[PacketPipelineCounter], "packetsDropped", "packets"))
 
+    val statePacketsSent = registry.meter(name(
+        classOf[PacketPipelineMeter], "statePacketsSent", "packets"))
+
     val liveSimulations = registry.register(name(
         classOf[PacketPipelineGauge], "liveSimulations"),
         new Gauge[Long]{ override def getValue = 0 })
@@ -52,6 +58,12 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
     val simulationLatency = registry.histogram(name(
         classOf[PacketPipelineHistogram], "simulationLatency"))
 
+    val flowStatesPerStatePacket = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "flowStatesPerStatePacket"))
+
+    val stateKeysPerStatePacket = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "stateKeysPerStatePacket"))
+
     val wildcardTableHitAccumulatedTime = registry.counter(name(
         classOf[PacketPipelineAccumulatedTime],
         "wildcardTableHitAccumulatedTime"))
@@ -72,6 +84,12 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         simulationAccumulatedTime.inc(latency)
     }
 
+    def statePacketSent(states: Int, keys: Int) {
+        statePacketsSent.mark()
+        flowStatesPerStatePacket.update(states)
+        stateKeysPerStatePacket.update(keys)
+    }
+
     def packetPostponed() {
         packetsPostponed.mark()
         packetsOnHold.inc()
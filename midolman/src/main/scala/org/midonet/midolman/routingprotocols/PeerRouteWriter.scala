@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.routingprotocols
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.cluster.DataClient
+import org.midonet.cluster.data.Route
+import org.midonet.midolman.serialization.SerializationException
+import org.midonet.midolman.state.{StateAccessException, ZkConnectionAwareWatcher}
+
+/**
+ * Writes the routes that a RoutingHandler learns from the BGP peers of its
+ * port to the storage.
+ *
+ * The routes that are announced and withdrawn are held until the next
+ * flush, so that the announcement and the withdrawal of a route in the
+ * same burst cancel each other out. They are then written in batches of at
+ * most batchSize routes, with one multi operation per batch instead of one
+ * synchronous write per route. If a batch fails, its routes are written one
+ * by one.
+ *
+ * The routes are told apart as Route.equals does, which ignores the weight.
+ */
+class PeerRouteWriter(dataClient: DataClient,
+                      connWatcher: ZkConnectionAwareWatcher,
+                      batchSize: Int, log: Logger) {
+
+    private val routes = mutable.HashMap[Route, UUID]()
+    /* The changes to write on the next flush: true adds the route, and
+     * false deletes it. */
+    private val pending = mutable.LinkedHashMap[Route, Boolean]()
+    private var pendingAdds = 0
+
+    /** The number of routes, including those pending to be added. */
+    def size: Int = routes.size + pendingAdds
+
+    /** The number of changes to write on the next flush. */
+    def pendingChanges: Int = pending.size
+
+    def add(route: Route): Unit =
+        if (routes.contains(route)) setPending(route, None)
+        else setPending(route, Some(true))
+
+    def remove(route: Route): Unit =
+        if (routes.contains(route)) setPending(route, Some(false))
+        else setPending(route, None)
+
+    private def setPending(route: Route, change: Option[Boolean]): Unit = {
+        if (pending.get(route) == Some(true))
+            pendingAdds -= 1
+        change match {
+            case Some(add) =>
+                pending.put(route, add)
+                if (add)
+                    pendingAdds += 1
+            case None =>
+                pending.remove(route)
+        }
+    }
+
+    /**
+     * Writes the pending changes, and returns the routes that were added.
+     */
+    def flush(): Seq[Route] = {
+        val removed = mutable.HashMap[UUID, Route]()
+        val added = mutable.ArrayBuffer[Route]()
+        for ((route, add) <- pending) {
+            if (add) added += route
+            else routes.remove(route) foreach { removed.put(_, route) }
+        }
+        pending.clear()
+        pendingAdds = 0
+
+        delete(removed)
+        added.grouped(batchSize).flatMap(create).toList
+    }
+
+    /**
+     * Drops the pending changes and deletes all the routes.
+     */
+    def clear(): Unit = {
+        pending.clear()
+        pendingAdds = 0
+        val removed = mutable.HashMap[UUID, Route]()
+        for ((route, routeId) <- routes)
+            removed.put(routeId, route)
+        routes.clear()
+        delete(removed)
+    }
+
+    private def create(batch: Seq[Route]): Seq[Route] = {
+        try {
+            val ids = dataClient.routesCreateEphemeral(batch.asJava).asScala
+            batch.zip(ids) foreach { case (route, routeId) =>
+                routes.put(route, routeId)
+            }
+            batch
+        } catch {
+            case e @ (_: StateAccessException | _: SerializationException) =>
+                log.warn(s"Failed to add ${batch.size} peer routes at once, " +
+                         "adding them one by one", e)
+                batch filter { route =>
+                    try {
+                        routes.put(route, dataClient.routesCreateEphemeral(route))
+                        true
+                    } catch {
+                        case e @ (_: StateAccessException |
+                                  _: SerializationException) =>
+                            log.error(s"Failed to add peer route $route", e)
+                            false
+                    }
+                }
+        }
+    }
+
+    private def delete(removed: mutable.Map[UUID, Route]): Unit =
+        for (batch <- removed.grouped(batchSize)) {
+            try {
+                dataClient.routesDelete(batch.asJava)
+            } catch {
+                case e @ (_: StateAccessException | _: SerializationException) =>
+                    log.warn(s"Failed to delete ${batch.size} peer routes at " +
+                             "once, deleting them one by one", e)
+                    batch.keys foreach deleteRoute
+            }
+        }
+
+    private def deleteRoute(routeId: UUID): Unit = {
+        try {
+            dataClient.routesDelete(routeId)
+        } catch {
+            case e: StateAccessException =>
+                log.error(s"Failed to delete peer route $routeId", e)
+                val retry = new Runnable() {
+                    override def run() {
+                        dataClient.routesDelete(routeId)
+                    }
+                }
+                connWatcher.handleError("BGP delete route: " + routeId, retry, e)
+        }
+    }
+}
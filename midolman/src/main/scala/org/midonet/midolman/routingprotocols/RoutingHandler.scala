@@ -20,6 +20,7 @@ import java.util.UUID
 
 import scala.collection.JavaConversions._
 import scala.collection.mutable
+import scala.concurrent.duration._
 
 import akka.actor.{Actor, ActorRef, Stash}
 import akka.pattern.pipe
@@ -32,7 +33,7 @@ import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.io.{UpcallDatapathConnectionManager, VirtualMachine}
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.routingprotocols.RoutingManagerActor.BgpStatus
-import org.midonet.midolman.state.{StateAccessException, ZkConnectionAwareWatcher}
+import org.midonet.midolman.state.ZkConnectionAwareWatcher
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.VirtualTopologyActor.PortRequest
 import org.midonet.midolman._
@@ -81,6 +82,8 @@ object RoutingHandler {
                                        destination: IPv4Subnet,
                                        gateway: IPv4Addr)
 
+    private case object FlushPeerRoutes
+
     private case class DpPortCreateSuccess(port: DpPort, pid: Int)
     private case class DpPortDeleteSuccess(port: DpPort)
     private case class DpPortError(port: String, ex: Throwable)
@@ -154,7 +157,9 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
 
     private val bgps = mutable.Map[UUID, BGP]()
     private val adRoutes = mutable.Set[AdRoute]()
-    private val peerRoutes = mutable.Map[Route, UUID]()
+    private val peerRoutes = new PeerRouteWriter(
+        dataClient, connWatcher, config.getBgpPeerRoutesBatchSize, log)
+    private var peerRoutesFlushScheduled = false
     private var socketAddress: AfUnix.Address = null
 
     // At this moment we only support one bgpd process
@@ -380,9 +385,6 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     // If this is the last BGP for ths port, tear everything down.
                     if (bgps.size == 0) {
                         phase = Stopping
-                        peerRoutes.values foreach {
-                            routeId => deleteRoute(routeId)
-                        }
                         peerRoutes.clear()
                         stopBGP()
                     }
@@ -539,11 +541,8 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
                     route.setNextHopPort(rport.id)
                     route.setWeight(distance)
-                    val routeId = dataClient.routesCreateEphemeral(route)
-                    peerRoutes.put(route, routeId)
-                    log.debug("({}) announcing we've added a peer route", phase)
-                    context.system.eventStream.publish(
-                        new PEER_ROUTE_ADDED(rport.deviceId, route))
+                    peerRoutes.add(route)
+                    schedulePeerRoutesFlush()
 
                 case _ =>
                     log.debug("({}) AddPeerRoute: ignoring", phase)
@@ -566,15 +565,22 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     route.setNextHopGateway(gateway.toString)
                     route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
                     route.setNextHopPort(rport.id)
-                    peerRoutes.remove(route) match {
-                        case Some(routeId) => deleteRoute(routeId)
-                        case None =>
-                    }
+                    peerRoutes.remove(route)
+                    schedulePeerRoutesFlush()
                 case _ =>
                     // ignore
                     log.debug("({}) RemovePeerRoute: ignoring", phase)
             }
 
+        case FlushPeerRoutes =>
+            peerRoutesFlushScheduled = false
+            phase match {
+                case Started =>
+                    flushPeerRoutes()
+                case _ =>
+                    // the routes were deleted when leaving Started
+            }
+
         case PortActive(true) =>
             log.info("({}) Port became active", phase)
             portActive = true
@@ -648,29 +654,33 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                 // these calls should be at the very end of this message
                 // handler's code path, after the flow invalidation and
                 // bgpd tear down.
-                peerRoutes.values foreach {
-                    routeId => deleteRoute(routeId)
-                }
                 peerRoutes.clear()
             case _ =>
                 phase = Disabled
         }
     }
 
-    def deleteRoute(routeId: UUID) {
-        try {
-            dataClient.routesDelete(routeId)
-        } catch {
-            case e: StateAccessException =>
-                log.error(s"({$phase}) Exception", e)
-                val retry = new Runnable() {
-                    @Override
-                    override def run() {
-                        dataClient.routesDelete(routeId)
-                    }
-                }
+    /* Writes the peer routes once a batch is full, or a while after the
+     * first change otherwise, so that a burst of announcements and
+     * withdrawals from the peers is coalesced into a few writes. */
+    private def schedulePeerRoutesFlush(): Unit = {
+        if (peerRoutes.pendingChanges >= config.getBgpPeerRoutesBatchSize) {
+            flushPeerRoutes()
+        } else if (!peerRoutesFlushScheduled && peerRoutes.pendingChanges > 0) {
+            peerRoutesFlushScheduled = true
+            context.system.scheduler.scheduleOnce(
+                config.getBgpPeerRoutesBatchMillis millis, self,
+                FlushPeerRoutes)(context.dispatcher)
+        }
+    }
 
-                connWatcher.handleError("BGP delete route: " + routeId, retry, e)
+    private def flushPeerRoutes(): Unit = {
+        val added = peerRoutes.flush()
+        log.debug("({}) announcing we've added {} peer routes", phase,
+                  Int.box(added.size))
+        for (route <- added) {
+            context.system.eventStream.publish(
+                new PEER_ROUTE_ADDED(rport.deviceId, route))
         }
     }
 
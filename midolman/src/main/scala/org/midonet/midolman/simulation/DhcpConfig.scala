@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation
+
+import java.util.{Map => JMap, UUID}
+
+import scala.collection.JavaConverters._
+
+import org.midonet.cluster.data.dhcp.{Host, Subnet}
+import org.midonet.packets.{IPv4Subnet, MAC}
+
+object DhcpConfig {
+    /**
+     * The virtual topology is indexed by device id, so the DHCP configuration
+     * of a bridge is stored under a key derived from the bridge's id. The
+     * key has the two variant bits of the id flipped, which turns the
+     * variant of a RFC 4122 id into a reserved one, so it can't collide with
+     * the id of any device.
+     */
+    def keyOf(bridgeId: UUID): UUID =
+        new UUID(bridgeId.getMostSignificantBits,
+                 bridgeId.getLeastSignificantBits ^ VariantBits)
+
+    private val VariantBits = 0xC000000000000000L
+
+    def bridgeOf(key: UUID): UUID = keyOf(key)
+}
+
+/**
+ * The DHCP subnets of a bridge and their hosts, from which DHCP replies are
+ * built without querying the cluster.
+ */
+class DhcpConfig(val bridgeId: UUID,
+                 subnets: JMap[IPv4Subnet, Subnet],
+                 hosts: JMap[IPv4Subnet, JMap[MAC, Host]]) {
+
+    val id = DhcpConfig.keyOf(bridgeId)
+
+    /* This check is because of backward-compatibility with data created in
+     * v1.3 or earlier where 'enabled' could be null. */
+    val enabledSubnets: List[Subnet] =
+        subnets.values.asScala.filter { s =>
+            (s.isEnabled eq null) || s.isEnabled.booleanValue
+        }.toList
+
+    def host(subnet: IPv4Subnet, mac: MAC): Host = {
+        val subnetHosts = hosts.get(subnet)
+        if (subnetHosts eq null) null else subnetHosts.get(mac)
+    }
+
+    override def toString =
+        s"DhcpConfig[bridgeId=$bridgeId, subnets=${subnets.keySet}]"
+}
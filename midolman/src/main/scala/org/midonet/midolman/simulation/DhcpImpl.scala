@@ -21,10 +21,12 @@ import scala.collection.JavaConverters._
 import scala.collection.mutable
 import scala.concurrent.duration._
 
+import akka.actor.ActorSystem
 import com.typesafe.scalalogging.Logger
 
-import org.midonet.cluster.DataClient
 import org.midonet.cluster.data.dhcp.{Subnet, Host, Opt121}
+import org.midonet.midolman.NotYetException
+import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.devices.{RouterPort, BridgePort, Port}
 import org.midonet.packets._
 
@@ -410,9 +412,11 @@ object DhcpValueParser {
 }
 
 object DhcpImpl {
-    def apply(dataClient: DataClient, inPort: Port, request: DHCP,
-              sourceMac: MAC, mtu: Option[Short], log: Logger) =
-        new DhcpImpl(dataClient, request, sourceMac, mtu, log).handleDHCP(inPort)
+    @throws(classOf[NotYetException])
+    def apply(inPort: Port, request: DHCP, sourceMac: MAC,
+              mtu: Option[Short], log: Logger)
+             (implicit system: ActorSystem) =
+        new DhcpImpl(request, sourceMac, mtu, log).handleDHCP(inPort)
 }
 
 class DhcpException extends Exception {
@@ -422,9 +426,9 @@ class DhcpException extends Exception {
 object UnsupportedDhcpRequestException extends DhcpException {}
 object MalformedDhcpRequestException extends DhcpException {}
 
-class DhcpImpl(val dataClient: DataClient,
-               val request: DHCP, val sourceMac: MAC,
-               val mtu: Option[Short], val log: Logger) {
+class DhcpImpl(val request: DHCP, val sourceMac: MAC,
+               val mtu: Option[Short], val log: Logger)
+              (implicit system: ActorSystem) {
     import DhcpValueParser._
 
     private var serverAddr: IPv4Addr = null
@@ -459,19 +463,16 @@ class DhcpImpl(val dataClient: DataClient,
 
     private
     def getHostAndAssignedSubnet(port: BridgePort): HostAndSubnetOptPair = {
-        // TODO(pino): use an async API
-        val subnets = dataClient.dhcpSubnetsGetByBridgeEnabled(port.deviceId)
+        val dhcpConfig = VirtualTopologyActor.tryAsk[DhcpConfig](
+            DhcpConfig.keyOf(port.deviceId))
 
         // Look for the DHCP's source MAC in the list of hosts in each subnet
         var host: Option[Host] = None
-        val assignment = subnets.find { sub =>
+        val assignment = dhcpConfig.enabledSubnets.find { sub =>
             log.debug("Looking up assignment for MAC {} on subnet {} ",
                       sourceMac, sub.getId)
             if (sub.isReplyReady) {
-                // TODO(pino): make this asynchronous?
-                host = Option(dataClient.dhcpHostsGet(port.deviceId,
-                                                    sub.getSubnetAddr,
-                                                    sourceMac.toString))
+                host = Option(dhcpConfig.host(sub.getSubnetAddr, sourceMac))
                 host.isDefined && (host.get.getIp != null)
             } else {
                 log.warn("Can not create DHCP reply because the subnet" +
@@ -20,9 +20,11 @@ import java.util.{Arrays, ArrayList, HashSet, Set => JSet, UUID}
 import scala.collection.JavaConversions._
 
 import com.typesafe.scalalogging.Logger
+import org.jctools.queues.MpscArrayQueue
 import org.slf4j.LoggerFactory
 
 import org.midonet.midolman.CallbackExecutor
+import org.midonet.midolman.flows.WildcardResultCache.WildcardResult
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.state.FlowStatePackets
 import org.midonet.odp.{FlowMatch, Packet}
@@ -58,6 +60,12 @@ trait FlowContext extends Clearable { this: PacketContext =>
     val flowTags = new HashSet[FlowTag]()
     var hardExpirationMillis = 0
     var idleExpirationMillis = PacketContext.DEFAULT_IDLE_EXPIRATION_MILLIS
+    // The cached simulation result this flow was built from, if
+    // wildcardResultHit is set, or the one built from this flow's simulation.
+    var wildcardResult: WildcardResult = _
+    var wildcardResultHit = false
+    var wildcardResultMiss = false
+    var hasGeneratedPackets = false
 
     def isDrop: Boolean = flowActions.isEmpty
 
@@ -67,6 +75,10 @@ trait FlowContext extends Clearable { this: PacketContext =>
         flowTags.clear()
         hardExpirationMillis = 0
         idleExpirationMillis = PacketContext.DEFAULT_IDLE_EXPIRATION_MILLIS
+        wildcardResult = null
+        wildcardResultHit = false
+        wildcardResultMiss = false
+        hasGeneratedPackets = false
         super.clear()
     }
 
@@ -199,10 +211,19 @@ trait FlowContext extends Clearable { this: PacketContext =>
  * used to pass state between different simulation stages, or between virtual
  * devices.
  */
-class PacketContext(val cookie: Int,
-                    val packet: Packet,
-                    val origMatch: FlowMatch,
-                    val egressPort: UUID = null) extends Clearable with FlowContext with StateContext {
+class PacketContext(private var _cookie: Int,
+                    private var _packet: Packet,
+                    private var _origMatch: FlowMatch,
+                    private var _egressPort: UUID = null) extends Clearable with FlowContext with StateContext {
+    def cookie = _cookie
+    def packet = _packet
+    def origMatch = _origMatch
+    def egressPort = _egressPort
+
+    // The pool this context is given back to once it's no longer used, or
+    // null if it isn't pooled.
+    var pool: PacketContextPool = _
+
     var tracing: Boolean = false
     var log = PacketContext.defaultLog
 
@@ -221,6 +242,9 @@ class PacketContext(val cookie: Int,
 
     val wcmatch = origMatch.clone()
 
+    // Scratch state for the chains applied to this packet.
+    val chainScratch = new Chain.Scratch()
+
     var inputPort: UUID = _
 
     var callbackExecutor: CallbackExecutor = _
@@ -255,6 +279,43 @@ class PacketContext(val cookie: Int,
         this.packetEmitter = packetEmitter
     }
 
+    /**
+     * Reinitializes a context taken from a PacketContextPool for a new
+     * packet, leaving it as a newly constructed one would be.
+     */
+    def recycle(cookie: Int, packet: Packet, origMatch: FlowMatch,
+                egressPort: UUID): Unit = {
+        _cookie = cookie
+        _packet = packet
+        _origMatch = origMatch
+        _egressPort = egressPort
+        clear()
+        packetActions.clear()
+        flowRemovedCallbacks.clear()
+        outPorts.clear()
+        wcmatch.reset(origMatch)
+        tracing = false
+        log = PacketContext.defaultLog
+        portGroups = null
+        lastInvalidation = 0L
+        idle = true
+        runs = 0
+        inPortId = null
+        outPortId = null
+        inputPort = null
+        callbackExecutor = null
+        packetEmitter = null
+    }
+
+    /**
+     * Gives this context back to its pool. Whoever is last done with the
+     * context releases it: the packet worker, or the FlowController for
+     * the contexts from which a flow was created.
+     */
+    def release(): Unit =
+        if (pool ne null)
+            pool.offer(this)
+
     def prepareForSimulation(lastInvalidationSeen: Long) {
         idle = false
         runs += 1
@@ -276,8 +337,10 @@ class PacketContext(val cookie: Int,
         inputPort = null
     }
 
-    def addGeneratedPacket(uuid: UUID, ethernet: Ethernet): Unit =
+    def addGeneratedPacket(uuid: UUID, ethernet: Ethernet): Unit = {
+        hasGeneratedPackets = true
         packetEmitter.schedule(GeneratedPacket(uuid, ethernet))
+    }
 
     def tracingEnabled: Boolean = {
         tracing
@@ -289,3 +352,30 @@ class PacketContext(val cookie: Int,
 
     override def toString = s"PacketContext[$cookieStr]"
 }
+
+/**
+ * A pool of PacketContexts owned by a packet processing worker, which is the
+ * only one taking contexts from it. Contexts may be given back from any
+ * thread. When the pool is empty, new contexts are created; when it's full,
+ * released contexts are left to the garbage collector.
+ */
+final class PacketContextPool(capacity: Int) {
+    private val contexts = new MpscArrayQueue[PacketContext](capacity)
+
+    def take(cookie: Int, packet: Packet, origMatch: FlowMatch,
+             egressPort: UUID): PacketContext = {
+        var context = contexts.poll()
+        if (context eq null) {
+            context = new PacketContext(cookie, packet, origMatch, egressPort)
+            context.pool = this
+        } else {
+            context.recycle(cookie, packet, origMatch, egressPort)
+        }
+        context
+    }
+
+    def offer(context: PacketContext): Unit =
+        contexts.offer(context)
+
+    def available: Int = contexts.size
+}
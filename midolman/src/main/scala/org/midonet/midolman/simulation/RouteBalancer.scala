@@ -23,13 +23,53 @@ import com.typesafe.scalalogging.Logger
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.topology.RoutingTableWrapper
 import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
 import org.midonet.packets.IPAddr
 
+object RouteBalancer {
+    sealed trait EcmpMode
+    /** Take turns among the routes, spreading the packets of a connection
+      * across them. */
+    case object RoundRobin extends EcmpMode
+    /** Pick a route by the hash of the flow's addresses, protocol and
+      * ports, so that the packets of a connection take the same route. */
+    case object FlowHash extends EcmpMode
+    /** Like FlowHash, but adding or removing one of N routes only moves
+      * 1/N of the flows to another route. */
+    case object ResilientHash extends EcmpMode
+
+    def ecmpMode(name: String): Option[EcmpMode] = name match {
+        case "round_robin" => Some(RoundRobin)
+        case "flow_hash" => Some(FlowHash)
+        case "resilient_hash" => Some(ResilientHash)
+        case _ => None
+    }
+
+    /* Spreads the bits of a hash code, from the MurmurHash3 finalizer. */
+    private def mix(hash: Int): Int = {
+        var h = hash
+        h ^= h >>> 16
+        h *= 0x85ebca6b
+        h ^= h >>> 13
+        h *= 0xc2b2ae35
+        h ^= h >>> 16
+        h
+    }
+}
+
 /**
  * Handles lookups on the routing table. If multiple routes match, chooses
- * one in a pseudo-random way, to provide basic balancing.
+ * one according to the ECMP mode.
+ *
+ * The hash modes hash the fields of the match through its getters, so that
+ * the flows computed from the simulation match on the fields that decided
+ * the route.
  */
-class RouteBalancer[IP <: IPAddr](val rTable: RoutingTableWrapper[IP]) {
+class RouteBalancer[IP <: IPAddr](val rTable: RoutingTableWrapper[IP],
+                                  val mode: RouteBalancer.EcmpMode =
+                                      RouteBalancer.RoundRobin) {
+    import RouteBalancer._
+
     val lookups: AtomicLong = new AtomicLong()
 
     def lookup(mmatch: FlowMatch, logger: Logger): Route = {
@@ -40,11 +80,58 @@ class RouteBalancer[IP <: IPAddr](val rTable: RoutingTableWrapper[IP]) {
                 logger.debug("routing to {}", routes.head)
                 routes.head
             case size =>
-                val pos = (lookups.getAndIncrement % size).toInt
-                val ret = routes.slice(pos, pos+1).head
-                logger.debug("got multiple routes: {}, round robin to {}",
-                             routes, ret)
+                val ret = mode match {
+                    case RoundRobin =>
+                        val pos = (lookups.getAndIncrement % size).toInt
+                        routes.slice(pos, pos+1).head
+                    case FlowHash =>
+                        val pos = (mix(flowHash(mmatch)) & Int.MaxValue) % size
+                        routes.slice(pos, pos+1).head
+                    case ResilientHash =>
+                        highestRandomWeight(routes, flowHash(mmatch))
+                }
+                logger.debug("got multiple routes: {}, {} to {}",
+                             routes, mode, ret)
                 ret
         }
     }
+
+    private def flowHash(mmatch: FlowMatch): Int = {
+        var hash = mmatch.getNetworkSrcIP.hashCode
+        hash = 31 * hash + mmatch.getNetworkDstIP.hashCode
+        if (mmatch.isUsed(Field.NetworkProto))
+            hash = 31 * hash + mmatch.getNetworkProto
+        if (mmatch.isUsed(Field.SrcPort))
+            hash = 31 * hash + mmatch.getSrcPort
+        if (mmatch.isUsed(Field.DstPort))
+            hash = 31 * hash + mmatch.getDstPort
+        if (mmatch.isUsed(Field.IcmpId))
+            hash = 31 * hash + mmatch.getIcmpIdentifier
+        hash
+    }
+
+    /* Rendezvous hashing: each route scores the flow, and the flow takes
+     * the route with the highest score. */
+    private def highestRandomWeight(routes: Iterable[Route], hash: Int): Route = {
+        var best: Route = null
+        var bestScore = 0
+        val it = routes.iterator
+        while (it.hasNext) {
+            val route = it.next()
+            val score = mix(hash ^ mix(nextHopHash(route))) & Int.MaxValue
+            if ((best eq null) || score > bestScore) {
+                best = route
+                bestScore = score
+            }
+        }
+        best
+    }
+
+    /* Identifies the route among those to the same destination, without
+     * the identity hash codes in Route.hashCode, so that flows hash to the
+     * same next hop across restarts. */
+    private def nextHopHash(route: Route): Int = {
+        val port = if (route.nextHopPort eq null) 0 else route.nextHopPort.hashCode
+        31 * port + route.nextHopGateway
+    }
 }
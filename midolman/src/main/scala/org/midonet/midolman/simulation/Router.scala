@@ -39,9 +39,12 @@ class Router(override val id: UUID,
              override val cfg: RouterConfig,
              override val rTable: RoutingTableWrapper[IPv4Addr],
              override val routerMgrTagger: TagManager,
-             val arpTable: ArpTable)
+             val arpTable: ArpTable,
+             override val ecmpMode: RouteBalancer.EcmpMode =
+                 RouteBalancer.RoundRobin)
             (implicit system: ActorSystem)
-        extends RouterBase[IPv4Addr](id, cfg, rTable, routerMgrTagger) {
+        extends RouterBase[IPv4Addr](id, cfg, rTable, routerMgrTagger,
+                                     ecmpMode) {
 
     override def isValidEthertype(ether: Short) =
         ether == IPv4.ETHERTYPE || ether == ARP.ETHERTYPE
@@ -42,7 +42,8 @@ import org.midonet.sdn.flows.FlowTagger
 abstract class RouterBase[IP <: IPAddr](val id: UUID,
                                         val cfg: RouterConfig,
                                         val rTable: RoutingTableWrapper[IP],
-                                        val routerMgrTagger: TagManager)
+                                        val routerMgrTagger: TagManager,
+                                        val ecmpMode: RouteBalancer.EcmpMode)
                                    (implicit system: ActorSystem,
                                              icmpErrors: IcmpErrorSender[IP])
     extends Coordinator.Device with RoutingWorkflow {
@@ -51,7 +52,7 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
 
     def isValidEthertype(ether: Short): Boolean
 
-    val routeBalancer = new RouteBalancer(rTable)
+    val routeBalancer = new RouteBalancer(rTable, ecmpMode)
     val deviceTag = FlowTagger.tagForDevice(id)
 
     /**
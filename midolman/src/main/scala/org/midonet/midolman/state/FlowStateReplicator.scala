@@ -16,15 +16,16 @@
 
 package org.midonet.midolman.state
 
-import java.util.{ArrayList, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
+import java.util.{ArrayList, HashMap => JHashMap, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
 
 import akka.actor.ActorSystem
-import com.google.protobuf.{CodedOutputStream, MessageLite}
+import com.google.protobuf.CodedOutputStream
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.PortGroup
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.FlowState.FlowStateKey
@@ -35,7 +36,7 @@ import org.midonet.midolman.{NotYetException, UnderlayResolver}
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp.flows.FlowActions.setKey
 import org.midonet.odp.flows.FlowKeys.tunnel
-import org.midonet.odp.{FlowMatches, Packet}
+import org.midonet.odp.{Flow, FlowMatches, Packet}
 import org.midonet.packets.{Ethernet, FlowStateEthernet}
 import org.midonet.rpc.{FlowStateProto => Proto}
 import org.midonet.sdn.flows.FlowTagger.FlowTag
@@ -62,6 +63,15 @@ import org.midonet.util.functors.Callback0
  * replicator.accept(packet)
  * </code>
  *
+ * The state of the flows accumulated between two calls to pushState() is
+ * coalesced into one message per set of peer hosts, so that a batch of
+ * packets creating short lived connections towards the same peers results
+ * in a single state packet, unless the message would exceed the maximum
+ * payload of a flow state packet. The packets executed through
+ * executePacket(), and the flows created through createFlow(), while there
+ * is state to push are held until pushState() sends it, so that the state of
+ * a flow reaches the peers ahead of its packets.
+ *
  *          NOTES ON THREAD SAFETY
  *          **********************
  *
@@ -90,27 +100,53 @@ import org.midonet.util.functors.Callback0
  *   5 Other threads' read operations will spill over to this shard for the
  *     received keys.
  */
+object BaseFlowStateReplicator {
+
+    /* The state of several flows going to the same set of peers. */
+    private final class PendingMessage(val hosts: JSet[UUID]) {
+        val message = Proto.StateMessage.newBuilder()
+        var size = 0
+        var states = 0
+        var keys = 0
+    }
+}
+
 abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
                                        natTable: FlowStateTable[NatKey, NatBinding],
                                        storage: FlowStateStorage,
                                        underlay: UnderlayResolver,
                                        invalidateFlowsFor: (FlowStateKey) => Unit,
                                        tos: Byte) {
+    import BaseFlowStateReplicator._
     import FlowStatePackets._
 
     protected def log: Logger
     protected def getPort(id: UUID): Port
     protected def getPortGroup(id: UUID): PortGroup
 
+    /* Called for every state packet sent, with the number of flows and
+     * keys whose state it carries. */
+    protected def statePacketSent(states: Int, keys: Int): Unit = { }
+
     /* Used for message building */
     private[this] val txState = Proto.FlowState.newBuilder()
     private[this] val txNatEntry = Proto.NatEntry.newBuilder()
-    private[this] val currentMessage = Proto.StateMessage.newBuilder()
     private[this] var txIngressPort: UUID = _
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
 
-    private[this] val pendingMessages = new ArrayList[(JSet[UUID], MessageLite)]()
+    /* The messages being filled, by set of peers, and those that are full,
+     * waiting to be pushed. */
+    private[this] val pendingMessages = new JHashMap[JSet[UUID], PendingMessage]()
+    private[this] val fullMessages = new ArrayList[PendingMessage]()
+    /* The packets held until the pending state is pushed, with their
+     * actions. */
+    private[this] val heldPackets = new ArrayList[Packet]()
+    private[this] val heldActions = new ArrayList[JList[FlowAction]]()
+    /* The flows held until the pending state is pushed, so that the packets
+     * following the held ones don't overtake it. */
+    private[this] val heldFlows = new ArrayList[Flow]()
+    private[this] var touchedKeys = false
     private[this] val hostId = uuidToProto(underlay.host.id)
 
     /* Used for packet building
@@ -159,15 +195,20 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         }
     }
 
-    private def resetCurrentMessage() {
-        currentMessage.clear()
-        currentMessage.setSender(hostId)
-        currentMessage.setEpoch(0L /* the epoch is not used*/)
+    private def newPendingMessage(hosts: JSet[UUID]): PendingMessage = {
+        val pending = new PendingMessage(hosts)
+        pending.message.setSender(hostId)
+        pending.message.setEpoch(0L /* the epoch is not used*/)
 
         /* We don't expect ACKs, seq is unused for now */
-        currentMessage.setSeq(0x1)
+        pending.message.setSeq(0x1)
+        pending.size = pending.message.build().getSerializedSize
+        pending
     }
 
+    private def messageLength(size: Int): Int =
+        size + CodedOutputStream.computeRawVarint32Size(size)
+
     def importFromStorage(batch: FlowStateBatch) {
         importConnTrack(batch.strongConnTrack.iterator(), ConnTrackState.FORWARD_FLOW)
         importConnTrack(batch.weakConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
@@ -198,6 +239,8 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
      * of a flow, this method will prepare messages to push the state accumulated
      * in those transactions to the relevant hosts. It is assumed that the
      * transaction is going to be committed unless this method returns a NotYet.
+     * The state is added to the message pending for the same peers, if any,
+     * and is sent on the next call to pushState().
      *
      * EXPECTED CALLING THREADS: only the packet processing thread that owns
      * this replicator.
@@ -228,12 +271,11 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
             return
 
         resolvePeers(ingressPort, egressPorts, txPeers, txPorts, tags)
+        touchedKeys = true
         val hasPeers = !txPeers.isEmpty
 
-        if (hasPeers) {
+        if (hasPeers)
             txState.clear()
-            resetCurrentMessage()
-        }
 
         txIngressPort = ingressPort
         conntrackTx.fold(callbacks, _conntrackAdder)
@@ -246,8 +288,25 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     def buildMessage(ingressPort: UUID): Unit =
         if (txState.hasConntrackKey || txState.getNatEntriesCount > 0) {
             txState.setIngressPort(uuidToProto(ingressPort))
-            currentMessage.addNewState(txState.build())
-            pendingMessages.add((txPeers, currentMessage.build()))
+            val state = txState.build()
+            val stateSize = CodedOutputStream.computeMessageSize(
+                Proto.StateMessage.NEW_STATE_FIELD_NUMBER, state)
+
+            var pending = pendingMessages.get(txPeers)
+            if (pending eq null) {
+                pending = newPendingMessage(new JHashSet[UUID](txPeers))
+                pendingMessages.put(pending.hosts, pending)
+            } else if (messageLength(pending.size + stateSize) > buffer.length) {
+                fullMessages.add(pending)
+                pending = newPendingMessage(pending.hosts)
+                pendingMessages.put(pending.hosts, pending)
+            }
+
+            pending.message.addNewState(state)
+            pending.size += stateSize
+            pending.states += 1
+            pending.keys += state.getNatEntriesCount +
+                            (if (state.hasConntrackKey) 1 else 0)
         }
 
     private def hostsToActions(hosts: JSet[UUID]): JList[FlowAction] = {
@@ -267,6 +326,43 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         actions
     }
 
+    /**
+     * Executes a packet over the datapath channel, unless there is flow state
+     * waiting to be pushed, in which case the packet is held until
+     * pushState() sends that state.
+     *
+     * EXPECTED CALLING THREADS: only the packet processing thread that owns
+     * this replicator.
+     */
+    def executePacket(dpChannel: DatapathChannel, packet: Packet,
+                      actions: JList[FlowAction]): Unit =
+        if (pendingMessages.isEmpty && fullMessages.isEmpty) {
+            dpChannel.executePacket(packet, actions)
+        } else if (!actions.isEmpty) {
+            // The actions may belong to a context that is reused before the
+            // packet is executed.
+            heldPackets.add(packet)
+            heldActions.add(new ArrayList[FlowAction](actions))
+        }
+
+    /**
+     * Creates a flow over the datapath channel, unless there is flow state
+     * waiting to be pushed, in which case the flow is held along with the
+     * packets until pushState() sends that state.
+     *
+     * EXPECTED CALLING THREADS: only the packet processing thread that owns
+     * this replicator.
+     */
+    def createFlow(dpChannel: DatapathChannel, flow: Flow): Unit =
+        if (pendingMessages.isEmpty && fullMessages.isEmpty) {
+            dpChannel.createFlow(flow)
+        } else {
+            // The match and actions may belong to a context that is reused
+            // before the flow is created.
+            heldFlows.add(new Flow(flow.getMatch.clone(),
+                                   new ArrayList[FlowAction](flow.getActions)))
+        }
+
     /**
      * Pushes all of the messages that were previously prepared by natRemover,
      * conntrackRemover and accumulateNewKeys() to their destinations, using the
@@ -275,31 +371,64 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
      * Packets will be tunneled to their destinations using the usual TunnelZone
      * information and with tunnel key FlowStatePackets.TUNNEL_KEY
      *
+     * The packets held by executePacket() are executed once the state is
+     * sent, and then the flows held by createFlow() are created.
+     *
      * EXPECTED CALLING THREADS: only the packet processing thread that owns
      * this replicator.
      */
     def pushState(dpChannel: DatapathChannel) {
-        var i = pendingMessages.size() - 1
-        while (i >= 0) {
-            val (hosts, message) = pendingMessages.remove(i)
-            val messageSizeVariantLength: Int =
-                CodedOutputStream.computeRawVarint32Size(
-                    message.getSerializedSize)
-            val messageLength: Int =
-                message.getSerializedSize + messageSizeVariantLength
-            if (messageLength <= buffer.length) {
-                stream.reset()
-                message.writeDelimitedTo(stream)
-                udpShell.setElasticDataLength(messageLength)
-                dpChannel.executePacket(packet, hostsToActions(hosts))
-            } else {
-                // TODO(guillermo) partition messages
-                log.warn(s"Skipping state message, too large: $message")
+        var i = 0
+        while (i < fullMessages.size()) {
+            sendMessage(fullMessages.get(i), dpChannel)
+            i += 1
+        }
+        fullMessages.clear()
+
+        if (!pendingMessages.isEmpty) {
+            val it = pendingMessages.values().iterator()
+            while (it.hasNext) {
+                sendMessage(it.next(), dpChannel)
             }
-            i -= 1
+            pendingMessages.clear()
+        }
+
+        i = 0
+        while (i < heldPackets.size()) {
+            dpChannel.executePacket(heldPackets.get(i), heldActions.get(i))
+            i += 1
+        }
+        heldPackets.clear()
+        heldActions.clear()
+
+        i = 0
+        while (i < heldFlows.size()) {
+            dpChannel.createFlow(heldFlows.get(i))
+            i += 1
         }
+        heldFlows.clear()
 
-        storage.submit()
+        if (touchedKeys) {
+            storage.submit()
+            touchedKeys = false
+        }
+    }
+
+    private def sendMessage(pending: PendingMessage,
+                            dpChannel: DatapathChannel): Unit = {
+        val message = pending.message.build()
+        val length = messageLength(message.getSerializedSize)
+        if (length <= buffer.length) {
+            stream.reset()
+            message.writeDelimitedTo(stream)
+            udpShell.setElasticDataLength(length)
+            dpChannel.executePacket(packet, hostsToActions(pending.hosts))
+            statePacketSent(pending.states, pending.keys)
+        } else {
+            // A single flow whose state doesn't fit in a packet.
+            // TODO(guillermo) partition messages
+            log.warn(s"Skipping state message, too large: $message")
+        }
     }
 
     private def acceptNewState(msg: Proto.StateMessage) {
@@ -404,7 +533,8 @@ class FlowStateReplicator(
         storage: FlowStateStorage,
         underlay: UnderlayResolver,
         invalidateFlowsFor: (FlowStateKey) => Unit,
-        tso: Byte)(implicit as: ActorSystem)
+        tso: Byte,
+        metrics: PacketPipelineMetrics)(implicit as: ActorSystem)
         extends BaseFlowStateReplicator(conntrackTable, natTable, storage, underlay,
                                         invalidateFlowsFor, tso) {
 
@@ -415,4 +545,7 @@ class FlowStateReplicator(
 
     @throws(classOf[NotYetException])
     override def getPortGroup(id: UUID) = VTA.tryAsk[PortGroup](id)
+
+    override def statePacketSent(states: Int, keys: Int): Unit =
+        metrics.statePacketSent(states, keys)
 }
@@ -16,7 +16,6 @@
 
 package org.midonet.midolman.state
 
-import java.lang.{Integer => JInt}
 import java.net.InetAddress
 import java.util.{UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
                   HashSet => JHashSet, Iterator => JIterator}
@@ -26,9 +25,9 @@ import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
 import com.datastax.driver.core._
-import com.google.common.util.concurrent.{FutureCallback, Futures}
-import org.slf4j.{Logger, LoggerFactory}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
 import org.midonet.cluster.backend.cassandra.CassandraClient
+import org.midonet.midolman.HostRequestProxy.{EmptyFlowStateBatch, FlowStateBatch}
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.NatState.{KeyType, NatKey, NatBinding}
 import org.midonet.packets.{IPv4Addr, IPAddr}
@@ -42,6 +41,29 @@ object FlowStateStorage {
     val NAT_BY_INGRESS_TABLE = "nat_by_ingress_port"
     val NAT_BY_EGRESS_TABLE = "nat_by_egress_port"
 
+    val CONNTRACK_PARTITIONED_BY_INGRESS_TABLE = "conntrack_partitioned_by_ingress_port"
+    val CONNTRACK_PARTITIONED_BY_EGRESS_TABLE = "conntrack_partitioned_by_egress_port"
+    val NAT_PARTITIONED_BY_INGRESS_TABLE = "nat_partitioned_by_ingress_port"
+    val NAT_PARTITIONED_BY_EGRESS_TABLE = "nat_partitioned_by_egress_port"
+
+    /* The tables holding the keys by ingress and by egress port. */
+    case class Tables(conntrackByIngress: String, conntrackByEgress: String,
+                      natByIngress: String, natByEgress: String)
+
+    /* Tables with a partition per key, looked up by port through a
+     * secondary index. */
+    val INDEXED_TABLES = Tables(CONNTRACK_BY_INGRESS_TABLE,
+                                CONNTRACK_BY_EGRESS_TABLE,
+                                NAT_BY_INGRESS_TABLE,
+                                NAT_BY_EGRESS_TABLE)
+
+    /* Tables with a partition per port, so that fetching the keys of a port
+     * reads a single partition. */
+    val PARTITIONED_TABLES = Tables(CONNTRACK_PARTITIONED_BY_INGRESS_TABLE,
+                                    CONNTRACK_PARTITIONED_BY_EGRESS_TABLE,
+                                    NAT_PARTITIONED_BY_INGRESS_TABLE,
+                                    NAT_PARTITIONED_BY_EGRESS_TABLE)
+
     object Schema {
         def CONNTRACK(name: String) =
             s"CREATE TABLE IF NOT EXISTS $name ( " +
@@ -73,6 +95,31 @@ object FlowStateStorage {
 
         def NAT_IDX(table: String) =
             s"CREATE INDEX IF NOT EXISTS ON $table (port);"
+
+        def CONNTRACK_BY_PORT(name: String) =
+            s"CREATE TABLE IF NOT EXISTS $name ( " +
+                "        port uuid, " +
+                "        proto int, " +
+                "        srcIp inet, " +
+                "        srcPort int, " +
+                "        dstIp inet, " +
+                "        dstPort int, " +
+                "        device uuid, " +
+                "PRIMARY KEY (port, proto, srcIp, srcPort, dstIp, dstPort, device));"
+
+        def NAT_BY_PORT(name: String) =
+            s"CREATE TABLE IF NOT EXISTS $name ( " +
+                "        port uuid, " +
+                "        type text, " +
+                "        proto int, " +
+                "        srcIp inet, " +
+                "        srcPort int, " +
+                "        dstIp inet, " +
+                "        dstPort int, " +
+                "        device uuid, " +
+                "        translateIp inet, " +
+                "        translatePort int, " +
+                "PRIMARY KEY (port, type, proto, srcIp, srcPort, dstIp, dstPort, device));"
     }
 
     val SCHEMA = Array[String](
@@ -85,6 +132,18 @@ object FlowStateStorage {
             Schema.NAT(NAT_BY_EGRESS_TABLE),
             Schema.NAT_IDX(NAT_BY_EGRESS_TABLE))
 
+    val PARTITIONED_SCHEMA = Array[String](
+            Schema.CONNTRACK_BY_PORT(CONNTRACK_PARTITIONED_BY_INGRESS_TABLE),
+            Schema.CONNTRACK_BY_PORT(CONNTRACK_PARTITIONED_BY_EGRESS_TABLE),
+            Schema.NAT_BY_PORT(NAT_PARTITIONED_BY_INGRESS_TABLE),
+            Schema.NAT_BY_PORT(NAT_PARTITIONED_BY_EGRESS_TABLE))
+
+    def schema(partitioned: Boolean): Array[String] =
+        if (partitioned) PARTITIONED_SCHEMA else SCHEMA
+
+    def tables(partitioned: Boolean): Tables =
+        if (partitioned) PARTITIONED_TABLES else INDEXED_TABLES
+
     val NAT_KEY_TYPES = Bimap[NatState.KeyType, String](List(
         NatState.FWD_DNAT -> "fwd_dnat",
         NatState.FWD_SNAT -> "fwd_snat",
@@ -122,7 +181,33 @@ object FlowStateStorage {
             networkAddress = inetToIPAddr(r.getInet("translateIp")).asInstanceOf[IPv4Addr],
             transportPort = r.getInt("translatePort"))
 
-    def apply(client: CassandraClient): FlowStateStorage = new FlowStateStorageImpl(client)
+    private[state] class Prepared(query: String) {
+        var _statement: PreparedStatement = null
+
+        def apply(s: Session) = {
+            if (_statement eq null)
+                _statement = s.prepare(query)
+            _statement
+        }
+    }
+
+    private[state] def touchConnTrackStatement(table: String) =
+        new Prepared(
+            s"INSERT INTO $table " +
+                "  (port, proto, srcIp, srcPort, dstIp, dstPort, device) " +
+                " VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                " USING TTL ?;")
+
+    private[state] def touchNatStatement(table: String) =
+        new Prepared(
+            s"INSERT INTO $table " +
+                "  (port, type, proto, srcIp, srcPort, dstIp, dstPort, device, translateIp, translatePort) " +
+                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                " USING TTL ?;")
+
+    def apply(client: CassandraClient, writer: FlowStateWriter,
+              pageSize: Int): FlowStateStorage =
+        new FlowStateStorageImpl(client, writer, pageSize)
 }
 
 trait FlowStateStorage {
@@ -138,6 +223,15 @@ trait FlowStateStorage {
     def fetchWeakNatRefs(portId: UUID)
         (implicit ec: ExecutionContext, as: ActorSystem): Future[JMap[NatKey, NatBinding]]
 
+    /**
+     * Fetches the connection tracking and NAT keys of a port a page at a
+     * time, handing each page over to the given function as it arrives, so
+     * that the keys of a port are never all held in memory at once. The
+     * future completes once the last page was handed over.
+     */
+    def fetchPortState(portId: UUID)(onPage: FlowStateBatch => Unit)
+        (implicit ec: ExecutionContext, as: ActorSystem): Future[Unit]
+
     def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID, weakRefs: JIterator[UUID])
     def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID, weakRefs: JIterator[UUID])
 
@@ -149,101 +243,46 @@ trait FlowStateStorage {
  * FlowStateStorage: store & fetch flow state keys from Cassandra.
  *
  * This class is *NOT* thread safe, each thread that needs to submit or fetch
- * state keys from Cassandra should get its own instance. The only reason it
- * is not thread safe is because write operations are batched, a batch is
- * prepared by a series of touch*() method calls and it's then fired
- * by invoking submit.
+ * state keys from Cassandra should get its own instance.
  *
- * All operations are asynchronous, submit is meant to be fire-and-forget with
- * no error control and for this reason, returns Unit.
+ * All operations are asynchronous. Writes are handed over to the
+ * FlowStateWriter shared by all instances, which sends them to Cassandra
+ * from its own thread, with no error control. For this reason, the write
+ * operations return Unit.
  */
-class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage {
-    private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
+class FlowStateStorageImpl(val client: CassandraClient,
+                           writer: FlowStateWriter,
+                           pageSize: Int) extends FlowStateStorage {
 
     import FlowStateStorage._
 
-    var batch: BatchStatement = new BatchStatement()
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
 
-    class Prepared(query: String) {
-        var _statement: PreparedStatement = null
-
-        def apply(s: Session) = {
-            if (_statement eq null)
-                _statement = s.prepare(query)
-            _statement
-        }
-    }
-
     def fetchByPortStatement(table: String) =
         new Prepared(s"SELECT * FROM $table  WHERE port = ?;")
 
-    def touchConnTrackStatement(table: String) =
-        new Prepared(
-            s"INSERT INTO $table " +
-                "  (port, proto, srcIp, srcPort, dstIp, dstPort, device) " +
-                " VALUES (?, ?, ?, ?, ?, ?, ?) " +
-                " USING TTL ?;")
-
-    def touchNatStatement(table: String) =
-        new Prepared(
-            s"INSERT INTO $table " +
-                "  (port, type, proto, srcIp, srcPort, dstIp, dstPort, device, translateIp, translatePort) " +
-                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
-                " USING TTL ?;")
-
-    val touchIngressConnTrack = touchConnTrackStatement(CONNTRACK_BY_INGRESS_TABLE)
-    val touchEgressConnTrack = touchConnTrackStatement(CONNTRACK_BY_EGRESS_TABLE)
-
-    val touchIngressNat = touchNatStatement(NAT_BY_INGRESS_TABLE)
-    val touchEgressNat = touchNatStatement(NAT_BY_EGRESS_TABLE)
-
-    val fetchIngressConnTrack = fetchByPortStatement(CONNTRACK_BY_INGRESS_TABLE)
-    val fetchEgressConnTrack = fetchByPortStatement(CONNTRACK_BY_EGRESS_TABLE)
-    val fetchIngressNat = fetchByPortStatement(NAT_BY_INGRESS_TABLE)
-    val fetchEgressNat = fetchByPortStatement(NAT_BY_EGRESS_TABLE)
+    val fetchIngressConnTrack = fetchByPortStatement(writer.tables.conntrackByIngress)
+    val fetchEgressConnTrack = fetchByPortStatement(writer.tables.conntrackByEgress)
+    val fetchIngressNat = fetchByPortStatement(writer.tables.natByIngress)
+    val fetchEgressNat = fetchByPortStatement(writer.tables.natByEgress)
 
     final def withSession[U](body: (Session) => U): Option[U] =
         Option(client.session) map body
 
-    private def bind(st: PreparedStatement, port: UUID, k: ConnTrackKey) = {
-        st.bind(port, k.networkProtocol.toInt.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkSrc), k.icmpIdOrTransportSrc.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkDst), k.icmpIdOrTransportDst.asInstanceOf[JInt],
-                      k.deviceId,
-                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
-    }
-
-    private def bind(st: PreparedStatement, port: UUID, k: NatKey, v: NatBinding) = {
-        st.bind(port, natKeyTypeToString(k.keyType).orNull,
-                      k.networkProtocol.toInt.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkSrc), k.transportSrc.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkDst), k.transportDst.asInstanceOf[JInt],
-                      k.deviceId,
-                      ipAddrToInet(v.networkAddress), v.transportPort.asInstanceOf[JInt],
-                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
-    }
-
     /**
-     * Adds a connection tracking key to the next batch that will be sent
-     * to cassandra.
+     * Hands a connection tracking key over to the writer, which will send
+     * it to cassandra.
      *
      * @param k The key
      * @param strongRef Ingress port.
      * @param weakRefs Egress ports.
      */
     override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
-            weakRefs: JIterator[UUID]): Unit = withSession {
-        s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressConnTrack(s), strongRef, k))
-            while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressConnTrack(s), weakRefs.next(), k))
-            }
-    }
+            weakRefs: JIterator[UUID]): Unit =
+        writer.touchConnTrackKey(k, strongRef, weakRefs)
 
     /**
-     * Addss a NAT key to the next batch that will be sent to Cassandra.
+     * Hands a NAT key over to the writer, which will send it to Cassandra.
      *
      * @param k The key
      * @param v Its value
@@ -251,25 +290,15 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
      * @param weakRefs Egress ports.
      */
     override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
-            weakRefs: JIterator[UUID]): Unit = withSession {
-        s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressNat(s), strongRef, k, v))
-            while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressNat(s), weakRefs.next(), k, v))
-            }
-    }
+            weakRefs: JIterator[UUID]): Unit =
+        writer.touchNatKey(k, v, strongRef, weakRefs)
 
     /**
-     * Sends all state accumulated through touchConnTrackKey() and touchNatKey()
-     * to Cassandra, asynchronously. Errors will be logged but ignored.
+     * Lets the writer send the state accumulated through touchConnTrackKey()
+     * and touchNatKey() to Cassandra, asynchronously. Errors will be logged
+     * but ignored.
      */
-    override def submit(): Unit = withSession {
-        s =>
-            val result = s.executeAsync(batch)
-            Futures.addCallback(result, touchCallback)
-            batch = new BatchStatement()
-    }
+    override def submit(): Unit = writer.wakeUp()
 
     /**
      * Fetch all conntrack keys for which a give port is ingress.
@@ -295,6 +324,53 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     override def fetchWeakNatRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
         fetch(fetchEgressNat, port, resultSetToNatBindings)
 
+    override def fetchPortState(port: UUID)(onPage: FlowStateBatch => Unit)
+                               (implicit ec: ExecutionContext, as: ActorSystem) =
+        for {
+            _ <- fetchPages(fetchIngressConnTrack, port, onPage) {
+                     (batch, row) => batch.strongConnTrack.add(rowToConnTrack(row)) }
+            _ <- fetchPages(fetchEgressConnTrack, port, onPage) {
+                     (batch, row) => batch.weakConnTrack.add(rowToConnTrack(row)) }
+            _ <- fetchPages(fetchIngressNat, port, onPage) {
+                     (batch, row) => batch.strongNat.put(rowToNatKey(row),
+                                                         rowToNatBinding(row)) }
+            _ <- fetchPages(fetchEgressNat, port, onPage) {
+                     (batch, row) => batch.weakNat.put(rowToNatKey(row),
+                                                       rowToNatBinding(row)) }
+        } yield ()
+
+    private def fetchPages(statement: Prepared, portId: UUID,
+                           onPage: FlowStateBatch => Unit)
+                          (addRow: (FlowStateBatch, Row) => Unit)
+                          (implicit ec: ExecutionContext, as: ActorSystem): Future[Unit] =
+        peelResult (withSession { s =>
+            val query = statement(s).bind(portId).setFetchSize(pageSize)
+            toScalaFuture(s.executeAsync(query)) flatMap {
+                rs => consumePages(rs, onPage, addRow)
+            }
+        })
+
+    /* Hands over the rows fetched so far, and fetches the next page. */
+    private def consumePages(rs: ResultSet, onPage: FlowStateBatch => Unit,
+                             addRow: (FlowStateBatch, Row) => Unit)
+                            (implicit ec: ExecutionContext, as: ActorSystem): Future[Unit] = {
+        var rows = rs.getAvailableWithoutFetching
+        if (rows > 0) {
+            val batch = EmptyFlowStateBatch()
+            while (rows > 0) {
+                addRow(batch, rs.one())
+                rows -= 1
+            }
+            onPage(batch)
+        }
+        if (rs.isFullyFetched)
+            Future.successful(())
+        else
+            toScalaFuture(rs.fetchMoreResults()) flatMap {
+                _ => consumePages(rs, onPage, addRow)
+            }
+    }
+
     private def resultSetToConnTrackKeys(rs: ResultSet): JSet[ConnTrackKey] = {
         val keys = new JHashSet[ConnTrackKey]()
         val rows = rs.iterator()
@@ -327,23 +403,13 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         })
     }
 
-    private val touchCallback = new FutureCallback[ResultSet] {
-        override def onSuccess(result: ResultSet): Unit = {
-            log.debug("key touch success: {}", result)
-        }
-
-        override def onFailure(t: Throwable): Unit = {
-            log.warn("failed to touch keys", t)
-        }
-    }
-
-    private def toScalaFuture(f: ResultSetFuture)
+    private def toScalaFuture[T](f: ListenableFuture[T])
             (implicit ec: ExecutionContext,
-                      as: ActorSystem): Future[ResultSet] = {
+                      as: ActorSystem): Future[T] = {
 
-        val p: Promise[ResultSet] = Promise[ResultSet]()
-        Futures.addCallback(f, new FutureCallback[ResultSet](){
-            override def onSuccess(result: ResultSet): Unit = {
+        val p: Promise[T] = Promise[T]()
+        Futures.addCallback(f, new FutureCallback[T](){
+            override def onSuccess(result: T): Unit = {
                 p.success(result)
             }
 
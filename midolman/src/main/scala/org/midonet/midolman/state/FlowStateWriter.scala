@@ -0,0 +1,300 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.lang.{Integer => JInt, Long => JLong}
+import java.util.concurrent.{Semaphore, TimeUnit}
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.LockSupport
+import java.util.{HashMap => JHashMap, Iterator => JIterator, UUID}
+
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.datastax.driver.core._
+import com.google.common.util.concurrent.{FutureCallback, Futures}
+import org.jctools.queues.MpscArrayQueue
+import org.slf4j.{Logger, LoggerFactory}
+
+import org.midonet.cluster.backend.cassandra.CassandraClient
+import org.midonet.midolman.monitoring.metrics.{FlowStateStorageGauge, FlowStateStorageMeter}
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.util.concurrent.NanoClock
+
+object FlowStateWriter {
+    /* Statements sent in each batch. */
+    final val BatchSize = 64
+
+    private final val IdleParkNanos = TimeUnit.MILLISECONDS.toNanos(100)
+
+    /* The write of a state key for one of its ports. */
+    sealed trait Write
+    case class ConnTrackWrite(key: ConnTrackKey, port: UUID,
+                              ingress: Boolean) extends Write
+    case class NatWrite(key: NatKey, binding: NatBinding, port: UUID,
+                        ingress: Boolean) extends Write
+
+    private def powerOfTwo(n: Int): Int =
+        if (n <= 2) 2 else Integer.highestOneBit(n - 1) << 1
+}
+
+/**
+ * Writes the flow state keys touched by the packet workers to Cassandra from
+ * a dedicated thread, so that the workers don't pay for binding statements
+ * and don't slow down when Cassandra does.
+ *
+ * The workers enqueue a record per key and port in a bounded queue, and the
+ * writes that don't fit in it are dropped. The writer thread skips the keys
+ * that it wrote less than dedupMillis ago, extending the TTL of the rows by
+ * as much so that they don't expire before the keys do. It groups the
+ * statements by the replica that owns them into unlogged batches, and stops
+ * draining the queue while maxInFlight batches wait for a response.
+ *
+ * Any number of threads may touch keys, but only the writer thread writes
+ * them.
+ */
+class FlowStateWriter(client: CassandraClient,
+                      val tables: FlowStateStorage.Tables,
+                      queueSize: Int,
+                      dedupMillis: Int,
+                      maxInFlight: Int,
+                      registry: MetricRegistry,
+                      clock: NanoClock = NanoClock.DEFAULT) extends Runnable {
+    import FlowStateStorage._
+    import FlowStateWriter._
+
+    private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
+
+    private val queue = new MpscArrayQueue[Write](powerOfTwo(queueSize))
+    private val parked = new AtomicBoolean(false)
+    @volatile private var running = false
+    private var thread: Thread = _
+
+    private val dedupNanos = TimeUnit.MILLISECONDS.toNanos(dedupMillis)
+    private val ttlExtension = (dedupMillis + 999) / 1000
+    private val lastWritten = new JHashMap[Write, JLong]()
+    private var lastPruned = clock.tick
+
+    private val inFlight = new Semaphore(maxInFlight)
+    private val batches = new JHashMap[Host, Batch]()
+
+    private val touchIngressConnTrack = touchConnTrackStatement(tables.conntrackByIngress)
+    private val touchEgressConnTrack = touchConnTrackStatement(tables.conntrackByEgress)
+    private val touchIngressNat = touchNatStatement(tables.natByIngress)
+    private val touchEgressNat = touchNatStatement(tables.natByEgress)
+
+    val pendingWrites = registry.register(name(
+        classOf[FlowStateStorageGauge], "pendingWrites"),
+        new Gauge[Int] { override def getValue = queue.size })
+
+    val writesDropped = registry.meter(name(
+        classOf[FlowStateStorageMeter], "writesDropped", "writes"))
+
+    val writesDeduplicated = registry.meter(name(
+        classOf[FlowStateStorageMeter], "writesDeduplicated", "writes"))
+
+    val batchesSent = registry.meter(name(
+        classOf[FlowStateStorageMeter], "batchesSent", "batches"))
+
+    val batchesFailed = registry.meter(name(
+        classOf[FlowStateStorageMeter], "batchesFailed", "batches"))
+
+    private class Batch {
+        val statement = new BatchStatement(BatchStatement.Type.UNLOGGED)
+        var size = 0
+    }
+
+    def start(): Unit = {
+        running = true
+        thread = new Thread(this, "flow-state-writer")
+        thread.setDaemon(true)
+        thread.start()
+    }
+
+    def stop(): Unit = {
+        running = false
+        if (thread ne null) {
+            thread.interrupt()
+            thread.join()
+        }
+    }
+
+    /**
+     * Enqueues the writes of a connection tracking key for its ingress port
+     * and its egress ports.
+     */
+    def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
+                          weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            offer(ConnTrackWrite(k, strongRef, ingress = true))
+        while (weakRefs.hasNext)
+            offer(ConnTrackWrite(k, weakRefs.next(), ingress = false))
+    }
+
+    /**
+     * Enqueues the writes of a NAT key and its binding for its ingress port
+     * and its egress ports.
+     */
+    def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
+                    weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            offer(NatWrite(k, v, strongRef, ingress = true))
+        while (weakRefs.hasNext)
+            offer(NatWrite(k, v, weakRefs.next(), ingress = false))
+    }
+
+    /**
+     * Wakes the writer thread up, if it is waiting for writes.
+     */
+    def wakeUp(): Unit =
+        if (parked.get && parked.compareAndSet(true, false))
+            LockSupport.unpark(thread)
+
+    private def offer(write: Write): Unit =
+        if (!queue.offer(write))
+            writesDropped.mark()
+
+    override def run(): Unit =
+        while (running) {
+            try {
+                if (drain() == 0) {
+                    parked.set(true)
+                    if (queue.isEmpty)
+                        LockSupport.parkNanos(this, IdleParkNanos)
+                    parked.set(false)
+                }
+            } catch {
+                case e: InterruptedException =>
+                case e: Exception =>
+                    log.warn("Failed to write flow state keys", e)
+            }
+        }
+
+    /**
+     * Writes the records in the queue, returning how many there were.
+     */
+    private[state] def drain(): Int = {
+        val now = clock.tick
+        var drained = 0
+        var write = queue.poll()
+        while (write ne null) {
+            drained += 1
+            val last = lastWritten.get(write)
+            if ((last ne null) && now - last < dedupNanos) {
+                writesDeduplicated.mark()
+            } else {
+                lastWritten.put(write, now)
+                add(write)
+            }
+            write = queue.poll()
+        }
+        if (drained > 0)
+            flush()
+
+        if (now - lastPruned >= dedupNanos) {
+            val it = lastWritten.values.iterator()
+            while (it.hasNext) {
+                if (now - it.next() >= dedupNanos)
+                    it.remove()
+            }
+            lastPruned = now
+        }
+        drained
+    }
+
+    /* Adds the write to the batch of the replica owning its row, sending
+     * the batch if it's full. */
+    protected def add(write: Write): Unit = {
+        val session = client.session
+        if (session eq null) {
+            writesDropped.mark()
+            return
+        }
+
+        val statement = bind(session, write)
+        val replicas = session.getCluster.getMetadata.getReplicas(
+            statement.getKeyspace, statement.getRoutingKey)
+        val replica = if (replicas.isEmpty) null else replicas.iterator.next()
+        var batch = batches.get(replica)
+        if (batch eq null) {
+            batch = new Batch
+            batches.put(replica, batch)
+        }
+        batch.statement.add(statement)
+        batch.size += 1
+        if (batch.size >= BatchSize) {
+            batches.remove(replica)
+            send(session, batch)
+        }
+    }
+
+    /* Sends the batches that aren't full yet. */
+    protected def flush(): Unit =
+        if (!batches.isEmpty) {
+            val session = client.session
+            val it = batches.values.iterator()
+            while (it.hasNext) {
+                val batch = it.next()
+                if (session ne null)
+                    send(session, batch)
+                else
+                    writesDropped.mark(batch.size)
+            }
+            batches.clear()
+        }
+
+    private def send(session: Session, batch: Batch): Unit = {
+        inFlight.acquire()
+        val result = session.executeAsync(batch.statement)
+        Futures.addCallback(result, new FutureCallback[ResultSet] {
+            override def onSuccess(result: ResultSet): Unit =
+                inFlight.release()
+
+            override def onFailure(t: Throwable): Unit = {
+                inFlight.release()
+                batchesFailed.mark()
+                log.warn("failed to touch keys", t)
+            }
+        })
+        batchesSent.mark()
+    }
+
+    private def bind(session: Session, write: Write): BoundStatement =
+        write match {
+            case ConnTrackWrite(k, port, ingress) =>
+                val st = if (ingress) touchIngressConnTrack(session)
+                         else touchEgressConnTrack(session)
+                st.bind(port, k.networkProtocol.toInt.asInstanceOf[JInt],
+                        ipAddrToInet(k.networkSrc), k.icmpIdOrTransportSrc.asInstanceOf[JInt],
+                        ipAddrToInet(k.networkDst), k.icmpIdOrTransportDst.asInstanceOf[JInt],
+                        k.deviceId,
+                        ttl(k): JInt)
+            case NatWrite(k, v, port, ingress) =>
+                val st = if (ingress) touchIngressNat(session)
+                         else touchEgressNat(session)
+                st.bind(port, natKeyTypeToString(k.keyType).orNull,
+                        k.networkProtocol.toInt.asInstanceOf[JInt],
+                        ipAddrToInet(k.networkSrc), k.transportSrc.asInstanceOf[JInt],
+                        ipAddrToInet(k.networkDst), k.transportDst.asInstanceOf[JInt],
+                        k.deviceId,
+                        ipAddrToInet(v.networkAddress), v.transportPort.asInstanceOf[JInt],
+                        ttl(k): JInt)
+        }
+
+    private def ttl(k: FlowState.FlowStateKey): Int =
+        k.expiresAfter.toSeconds.toInt + ttlExtension
+}
@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.state
 
-import java.lang.{Integer => JInt, Long => JLong}
+import java.lang.{Integer => JInt}
 import java.util.UUID
 import java.util.concurrent.{TimeoutException, ThreadLocalRandom, ConcurrentHashMap}
 
@@ -31,7 +31,7 @@ import org.midonet.midolman.state.NatState.NatBinding
 import org.midonet.packets.{IPAddr, IPv4Addr}
 import org.midonet.util.functors.Callback
 import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
-import org.midonet.util.collection.Reducer
+import org.midonet.util.collection.{LongHashSet, Reducer}
 
 object NatLeaser {
     private val BLOCK_SIZE = NatBlock.BLOCK_SIZE // Guaranteed to be a power of 2
@@ -49,25 +49,43 @@ object NatLeaser {
 
     /**
      * This type represents a block of BLOCK_SIZE ports. Each port, identified
-     * by the NatBlock's tpPortStart plus the offset given by the position in
-     * the leasedPorts array, can be oversubscribed based on a unique number,
-     * a combination of the destination IP and port.
+     * by the NatBlock's tpPortStart plus an offset, can be oversubscribed
+     * based on a unique number, a combination of the destination IP and port.
+     * The leases of all the ports in the block are kept in a single set of
+     * primitive longs, each combining the offset of the port with the unique
+     * number, which only takes memory for the ports that are leased.
      * It also holds a port index to enable round-robin allocation
      * of the ports in the block.
+     *
+     * Accesses to the leases and to the port index are synchronized on the
+     * LeasedBlock.
      */
     sealed class LeasedBlock(val block: NatBlock) {
-        val leasedPorts = new Array[ConcurrentHashMap[JLong, AnyRef]](BLOCK_SIZE)
+        private val leases = new LongHashSet()
         var portIndex = ThreadLocalRandom.current().nextLong()
 
-        {
-            var i = 0
-            while (i < BLOCK_SIZE) {
-                leasedPorts(i) = new ConcurrentHashMap[JLong, AnyRef]
-                i += 1
+        /**
+         * Leases the port at the specified offset for the unique number,
+         * returning whether it wasn't already leased. Must be called while
+         * holding the LeasedBlock's lock.
+         */
+        def lease(portOffset: Int, uniquefier: Long): Boolean =
+            leases.add(leaseOf(portOffset, uniquefier))
+
+        def release(portOffset: Int, uniquefier: Long): Unit =
+            synchronized {
+                leases.remove(leaseOf(portOffset, uniquefier))
             }
-        }
     }
 
+    /**
+     * The unique number has the destination port in its 16 least significant
+     * bits and the destination IP in the 32 most significant ones, so the
+     * port offset fits in between.
+     */
+    private def leaseOf(portOffset: Int, uniquefier: Long): Long =
+        uniquefier | (portOffset.toLong << 16)
+
     /**
      * This type is a TimedExpirationMap of port block indexes to LeasedBLocks,
      * where the first port in that block is given by the port index * BLOCK_SIZE.
@@ -164,7 +182,7 @@ trait NatLeaser {
         if (leasedBlock ne null) {
             val portOffset = binding.transportPort - leasedBlock.block.tpPortStart
             val uniquefier = blend(destinationIp, destinationPort)
-            leasedBlock.leasedPorts(portOffset).remove(uniquefier)
+            leasedBlock.release(portOffset, uniquefier)
         }
     }
 
@@ -223,23 +241,22 @@ trait NatLeaser {
 
     private def allocateInPortBlock(lease: LeasedBlock, uniquefier: Long,
                                     ip: IPv4Addr, tpStart: Int, tpEnd: Int)
-    : NatBinding = {
+    : NatBinding = lease.synchronized {
         val index = lease.portIndex
         val firstPortInBlock = lease.block.tpPortStart
+        var binding: NatBinding = null
         var i = 0
-        while (i < BLOCK_SIZE) { // Search all ports
+        while (i < BLOCK_SIZE && (binding eq null)) { // Search all ports
             val portOffset = (index + i).toInt & BLOCK_MASK
             val port = firstPortInBlock + portOffset
-            if (port >= tpStart && port <= tpEnd) {
-                val sharedBinding = lease.leasedPorts(portOffset)
-                if (sharedBinding.putIfAbsent(uniquefier, this) eq null) {
-                    lease.portIndex += i + 31
-                    return NatBinding(ip, port)
-                }
+            if (port >= tpStart && port <= tpEnd &&
+                lease.lease(portOffset, uniquefier)) {
+                lease.portIndex += i + 31
+                binding = NatBinding(ip, port)
             }
             i += 1
         }
-        null
+        binding
     }
 
     private def fetchNatBlock(deviceId: UUID,
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.util.{Map => JMap, UUID}
+
+import akka.actor.{Actor, ActorRef}
+
+import org.midonet.cluster.Client
+import org.midonet.cluster.client.DhcpConfigBuilder
+import org.midonet.cluster.data.dhcp.{Host, Subnet}
+import org.midonet.midolman.logging.ActorLogWithoutPath
+import org.midonet.midolman.simulation.DhcpConfig
+import org.midonet.midolman.topology.DhcpConfigManager.DhcpConfigUpdate
+import org.midonet.packets.{IPv4Subnet, MAC}
+
+object DhcpConfigManager {
+    case class DhcpConfigUpdate(subnets: JMap[IPv4Subnet, Subnet],
+                                hosts: JMap[IPv4Subnet, JMap[MAC, Host]])
+}
+
+class DhcpConfigManager(val bridgeId: UUID, val clusterClient: Client)
+        extends Actor with ActorLogWithoutPath {
+    import context.system
+
+    override def preStart() {
+        clusterClient.getDhcpConfig(bridgeId, new DhcpConfigBuilderImpl(self))
+    }
+
+    override def receive = {
+        case DhcpConfigUpdate(subnets, hosts) =>
+            log.debug("Updating the DHCP configuration of bridge {}", bridgeId)
+            VirtualTopologyActor ! new DhcpConfig(bridgeId, subnets, hosts)
+    }
+}
+
+class DhcpConfigBuilderImpl(val dhcpConfigManager: ActorRef)
+        extends DhcpConfigBuilder {
+    override def setConfig(subnets: JMap[IPv4Subnet, Subnet],
+                           hosts: JMap[IPv4Subnet, JMap[MAC, Host]]) {
+        dhcpConfigManager ! DhcpConfigUpdate(subnets, hosts)
+    }
+}
@@ -25,7 +25,7 @@ import org.midonet.midolman.FlowController
 import org.midonet.midolman.FlowController.InvalidateFlowsByTag
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.layer3.{RoutingTableIfc, InvalidationTrie, Route}
-import org.midonet.midolman.simulation.{ArpTable, ArpTableImpl, Router}
+import org.midonet.midolman.simulation.{ArpTable, ArpTableImpl, RouteBalancer, Router}
 import org.midonet.midolman.topology.RouterManager._
 import org.midonet.midolman.topology.builders.RouterBuilderImpl
 import org.midonet.odp.FlowMatch
@@ -105,10 +105,18 @@ class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig)
     private val tagToFlowCount: mutable.Map[IPAddr, Int]
                                 = new mutable.HashMap[IPAddr, Int]
 
+    private val ecmpMode =
+        RouteBalancer.ecmpMode(config.getRouterEcmpMode) getOrElse {
+            log.warn(s"Unknown ECMP mode ${config.getRouterEcmpMode}, " +
+                     "using round_robin")
+            RouteBalancer.RoundRobin
+        }
+
     def topologyReady() {
         log.debug("Sending a Router to the VTA")
 
-        val router = new Router(id, cfg, rTable, new TagManagerImpl, arpTable)
+        val router = new Router(id, cfg, rTable, new TagManagerImpl, arpTable,
+                                ecmpMode)
 
         // Not using context.actorFor("..") because in tests it will
         // bypass the probes and make it harder to fish for these messages
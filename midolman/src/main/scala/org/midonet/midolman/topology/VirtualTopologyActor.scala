@@ -16,6 +16,7 @@
 package org.midonet.midolman.topology
 
 import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 import akka.pattern.AskTimeoutException
 
 import scala.collection.mutable
@@ -122,6 +123,19 @@ object VirtualTopologyActor extends Referenceable {
             () => new IPAddrGroupManager(id, client)
     }
 
+    case class DhcpConfigRequest(bridgeId: UUID, update: Boolean = false)
+        extends DeviceRequest {
+
+        override val id = DhcpConfig.keyOf(bridgeId)
+
+        protected[VirtualTopologyActor]
+        override val managerName = dhcpConfigManagerName(bridgeId)
+
+        protected[VirtualTopologyActor]
+        def managerFactory(client: Client, config: MidolmanConfig) =
+            () => new DhcpConfigManager(bridgeId, client)
+    }
+
     case class LoadBalancerRequest(id: UUID, update: Boolean = false)
         extends DeviceRequest {
 
@@ -171,9 +185,25 @@ object VirtualTopologyActor extends Referenceable {
 
     private val topology = Topology()
 
+    private var _portsVersion = 0L
+    private val portsVersions = new ConcurrentHashMap[UUID, java.lang.Long]()
+
+    /** Changes whenever a port of the device is updated, so that the state
+     *  derived from the ports of a device can be cached. */
+    def portsVersion(deviceId: UUID): Long = {
+        val version = portsVersions.get(deviceId)
+        if (version eq null) 0L else version
+    }
+
+    private def portUpdated(port: Port): Unit = {
+        _portsVersion += 1
+        portsVersions.put(port.deviceId, _portsVersion)
+    }
+
     // useful for testing, not much else.
     def clearTopology(): Unit = {
         topology.clear()
+        portsVersions.clear()
     }
 
     // WARNING!! This code is meant to be called from outside the actor.
@@ -198,6 +228,8 @@ object VirtualTopologyActor extends Referenceable {
         classTag[Router]            -> (new RouterRequest(_)),
         classTag[Chain]             -> (new ChainRequest(_)),
         classTag[IPAddrGroup]       -> (new IPAddrGroupRequest(_)),
+        classTag[DhcpConfig]        -> (key => new DhcpConfigRequest(
+                                                   DhcpConfig.bridgeOf(key))),
         classTag[LoadBalancer]      -> (new LoadBalancerRequest(_)),
         classTag[Pool]              -> (new PoolRequest(_)),
         classTag[PortGroup]         -> (new PortGroupRequest(_))
@@ -226,6 +258,8 @@ object VirtualTopologyActor extends Referenceable {
 
     def iPAddrGroupManagerName(groupId: UUID) = "IPAddrGroupManager-" + groupId
 
+    def dhcpConfigManagerName(bridgeId: UUID) = "DhcpConfigManager-" + bridgeId
+
     def loadBalancerManagerName(loadBalancerId: UUID) =
             "LoadBalancerManager-" + loadBalancerId
 
@@ -367,6 +401,9 @@ class VirtualTopologyActor extends Actor {
         case ipAddrGroup: IPAddrGroup =>
             log.debug("Received an IPAddrGroup for {}", ipAddrGroup.id)
             updated(ipAddrGroup)
+        case dhcpConfig: DhcpConfig =>
+            log.debug("Received a DhcpConfig for bridge {}", dhcpConfig.bridgeId)
+            updated(dhcpConfig)
         case loadBalancer: LoadBalancer =>
             log.debug("Received a LoadBalancer for {}", loadBalancer.id)
             updated(loadBalancer)
@@ -376,6 +413,7 @@ class VirtualTopologyActor extends Actor {
         case port: Port =>
             log.debug("Received a Port for {}", port.id)
             updated(port)
+            portUpdated(port)
         case router: Router =>
             log.debug("Received a Router for {}", router.id)
             updated(router)
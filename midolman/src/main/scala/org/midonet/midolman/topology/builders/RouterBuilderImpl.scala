@@ -17,9 +17,10 @@
 package org.midonet.midolman.topology.builders
 
 import java.util.UUID
+import scala.collection.JavaConverters._
 import org.midonet.cluster.client.{ArpCache, RouterBuilder}
 import akka.actor.ActorRef
-import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.{CompiledRoutingTable, Route}
 import org.midonet.midolman.topology.RouterManager.{InvalidateFlows, TriggerUpdate}
 import org.midonet.midolman.topology.{RoutingTableWrapper, RouterConfig}
 
@@ -31,6 +32,7 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     private val routes = new scala.collection.mutable.HashSet[Route]()
     private val routesToAdd = new scala.collection.mutable.HashSet[Route]()
     private val routesToRemove = new scala.collection.mutable.HashSet[Route]()
+    private var table: CompiledRoutingTable = null
 
     def setArpCache(table: ArpCache) {
         if (arpCache != null)
@@ -70,10 +72,14 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
 
     def build() {
         // we always pass a new copy of the RoutingTable since this is accessed
-        // by the RCU Router
-        val table = new IPv4RoutingTable()
-        for (rt <- routes)
-            table.addRoute(rt)
+        // by the RCU Router, compiled for lookups since it isn't modified.
+        // The new copy only applies the routes that changed to the last one.
+        table = if (table eq null) {
+            new CompiledRoutingTable(routes.asJavaCollection)
+        } else {
+            table.update(routesToAdd.filter(routes.contains).asJavaCollection,
+                         routesToRemove.filterNot(routes.contains).asJavaCollection)
+        }
         if (routesToAdd.size > 0 || routesToRemove.size > 0) {
             val added = routesToAdd.clone()
             val deleted = routesToRemove.clone()
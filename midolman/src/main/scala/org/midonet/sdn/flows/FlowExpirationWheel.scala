@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.flows
+
+import java.util.{ArrayList => JArrayList}
+
+object FlowExpirationWheel {
+    private final val SlotBits = 8
+    private final val SlotsPerLevel = 1 << SlotBits
+    private final val SlotMask = SlotsPerLevel - 1
+    private final val Levels = 4
+    // Deadlines further away are clamped, and rescheduled when the flow
+    // cascades down to the lower levels.
+    private final val MaxTicks = (1L << (SlotBits * Levels)) - 1
+}
+
+/**
+ * A hierarchical timing wheel holding the ManagedFlows until their
+ * expiration deadline, in milliseconds.
+ *
+ * There are 4 levels of 256 slots: a flow whose deadline falls within the
+ * next 256 ticks is placed in the slot of its deadline in the first level,
+ * one that falls within the next 256 * 256 ticks in the second level, and
+ * so on. Whenever the first level wraps around, the next slot of the second
+ * level is cascaded down, and likewise for the upper levels. Flows are
+ * linked through their timer fields into a doubly linked list per slot, so
+ * scheduling and cancelling a flow are O(1) and don't allocate, and a
+ * cancelled flow leaves nothing behind.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowExpirationWheel(startMillis: Long, tickMillis: Long = 1L) {
+    import FlowExpirationWheel._
+
+    private val slots = new Array[ManagedFlow](Levels * SlotsPerLevel)
+    private val flowsPerLevel = new Array[Int](Levels)
+    // The next tick to be processed.
+    private var currentTick = 0L
+    private var numFlows = 0
+
+    def size: Int = numFlows
+
+    /**
+     * Schedules the flow to expire at the given time. A flow that is
+     * already scheduled is rescheduled.
+     */
+    def schedule(flow: ManagedFlow, deadlineMillis: Long): Unit = {
+        cancel(flow)
+        flow.timerDeadline = deadlineMillis
+        insert(flow, toTick(deadlineMillis))
+        numFlows += 1
+    }
+
+    /**
+     * Cancels the expiration of the flow, if it is scheduled.
+     */
+    def cancel(flow: ManagedFlow): Unit =
+        if (flow.timerSlot >= 0) {
+            unlink(flow)
+            numFlows -= 1
+        }
+
+    /**
+     * Advances the wheel up to the given time, adding the flows whose
+     * deadline passed to the expired list. The expired flows are no longer
+     * scheduled.
+     */
+    def advance(nowMillis: Long, expired: JArrayList[ManagedFlow]): Unit = {
+        // The last tick whose deadlines are all before or at now.
+        val elapsed = nowMillis - startMillis
+        val targetTick = if (elapsed < 0) -1L else elapsed / tickMillis
+        if (numFlows == 0) {
+            currentTick = Math.max(currentTick, targetTick + 1)
+            return
+        }
+
+        while (currentTick <= targetTick && numFlows > 0) {
+            val index = (currentTick & SlotMask).toInt
+            if (index == 0)
+                cascade(1)
+
+            if (flowsPerLevel(0) > 0) {
+                var flow = slots(index)
+                while (flow ne null) {
+                    val next = flow.timerNext
+                    unlink(flow)
+                    numFlows -= 1
+                    expired.add(flow)
+                    flow = next
+                }
+                currentTick += 1
+            } else {
+                // Nothing happens until the lowest level holding flows
+                // cascades, so skip to it.
+                var level = 1
+                while (flowsPerLevel(level) == 0)
+                    level += 1
+                val bits = SlotBits * level
+                val nextCascade = ((currentTick >>> bits) + 1) << bits
+                currentTick = Math.min(nextCascade, targetTick + 1)
+            }
+        }
+        if (numFlows == 0)
+            currentTick = Math.max(currentTick, targetTick + 1)
+    }
+
+    /* The tick of a deadline, rounding up so that flows never expire
+     * early. */
+    private def toTick(millis: Long): Long = {
+        val elapsed = millis - startMillis
+        if (elapsed <= 0) 0L else (elapsed + tickMillis - 1) / tickMillis
+    }
+
+    private def insert(flow: ManagedFlow, tick: Long): Unit = {
+        val delta = tick - currentTick
+        val slot =
+            if (delta < 0) {
+                (currentTick & SlotMask).toInt
+            } else if (delta < MaxTicks) {
+                var level = 0
+                while ((delta >>> (SlotBits * (level + 1))) != 0)
+                    level += 1
+                level * SlotsPerLevel +
+                    ((tick >>> (SlotBits * level)) & SlotMask).toInt
+            } else {
+                val clamped = currentTick + MaxTicks
+                (Levels - 1) * SlotsPerLevel +
+                    ((clamped >>> (SlotBits * (Levels - 1))) & SlotMask).toInt
+            }
+
+        val head = slots(slot)
+        flowsPerLevel(slot >>> SlotBits) += 1
+        flow.timerSlot = slot
+        flow.timerPrev = null
+        flow.timerNext = head
+        if (head ne null)
+            head.timerPrev = flow
+        slots(slot) = flow
+    }
+
+    private def unlink(flow: ManagedFlow): Unit = {
+        val prev = flow.timerPrev
+        val next = flow.timerNext
+        if (prev eq null)
+            slots(flow.timerSlot) = next
+        else
+            prev.timerNext = next
+        if (next ne null)
+            next.timerPrev = prev
+        flowsPerLevel(flow.timerSlot >>> SlotBits) -= 1
+        flow.timerPrev = null
+        flow.timerNext = null
+        flow.timerSlot = -1
+    }
+
+    /* Moves the flows of the current slot of the given level to the lower
+     * levels, cascading the next level first when this one wraps around. */
+    private def cascade(level: Int): Unit = {
+        if (level >= Levels)
+            return
+        val index = ((currentTick >>> (SlotBits * level)) & SlotMask).toInt
+        if (index == 0)
+            cascade(level + 1)
+
+        val slot = level * SlotsPerLevel + index
+        var flow = slots(slot)
+        slots(slot) = null
+        while (flow ne null) {
+            val next = flow.timerNext
+            flowsPerLevel(level) -= 1
+            flow.timerSlot = -1
+            insert(flow, toTick(flow.timerDeadline))
+            flow = next
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.flows
+
+import java.util.{Arrays, Collection => JCollection}
+
+import scala.collection.mutable
+
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+/**
+ * Indexes the ManagedFlows by their tags, so that all the flows with a
+ * given tag can be found when the tag is invalidated.
+ *
+ * Tags are interned into dense ids, which index an array holding, for each
+ * tag, the flows with that tag packed into a long array. Each flow is given
+ * a slot, and is referred to by its slot and the generation of the slot,
+ * which changes whenever the slot is freed. Removing a flow doesn't touch
+ * the arrays of its tags: the stale entries are skipped, and dropped when
+ * an array is mostly made of them or when its tag is no longer used.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowTagIndex(initialFlows: Int = 1024) {
+
+    private val interner = new FlowTagInterner()
+
+    private var flows = new Array[ManagedFlow](initialFlows)
+    private var generations = new Array[Int](initialFlows)
+    private var freeSlots = new Array[Int](initialFlows)
+    private var numFreeSlots = 0
+    private var nextSlot = 0
+
+    private var entries = new Array[Array[Long]](64)
+    private var numEntries = new Array[Int](64)
+
+    /**
+     * Indexes the flow by the given tags.
+     */
+    def add(flow: ManagedFlow, tags: JCollection[FlowTag]): Unit = {
+        val slot = allocateSlot()
+        flows(slot) = flow
+        flow.tagSlot = slot
+        val entry = (slot.toLong << 32) | (generations(slot) & 0xFFFFFFFFL)
+
+        flow.ensureTagCapacity(tags.size)
+        val it = tags.iterator()
+        while (it.hasNext) {
+            val id = interner.intern(it.next())
+            flow.addTag(id)
+            append(id, entry)
+        }
+    }
+
+    /**
+     * Removes the flow from the index, releasing its tags.
+     */
+    def remove(flow: ManagedFlow): Unit = {
+        val slot = flow.tagSlot
+        if (slot < 0 || (flows(slot) ne flow))
+            return
+
+        flows(slot) = null
+        generations(slot) += 1
+        freeSlot(slot)
+        flow.tagSlot = -1
+
+        var i = 0
+        while (i < flow.numTags) {
+            val id = flow.tags(i)
+            if (interner.release(id)) {
+                numEntries(id) = 0
+                if ((entries(id) ne null) && entries(id).length > 64)
+                    entries(id) = null
+            } else if (numEntries(id) > 2 * interner.refCount(id) + 16) {
+                compact(id)
+            }
+            i += 1
+        }
+        flow.clearTags()
+    }
+
+    /**
+     * Unbinds the tag from its flows, returning them. The flows keep their
+     * other tags until they're removed from the index.
+     */
+    def removeTag(tag: FlowTag): Array[ManagedFlow] = {
+        val id = interner.idOf(tag)
+        if (id < 0)
+            return FlowTagIndex.NoFlows
+
+        val arr = entries(id)
+        val count = numEntries(id)
+        entries(id) = null
+        numEntries(id) = 0
+
+        val result = new Array[ManagedFlow](interner.refCount(id))
+        var n = 0
+        var i = 0
+        while (i < count) {
+            val flow = flowAt(arr(i))
+            if (flow ne null) {
+                result(n) = flow
+                n += 1
+            }
+            i += 1
+        }
+        if (n == result.length) result else Arrays.copyOf(result, n)
+    }
+
+    /**
+     * Returns the flows indexed by the tag, if any.
+     */
+    def get(tag: FlowTag): Option[collection.Set[ManagedFlow]] = {
+        val id = interner.idOf(tag)
+        if (id < 0 || numEntries(id) == 0)
+            return None
+
+        val set = mutable.Set[ManagedFlow]()
+        var i = 0
+        while (i < numEntries(id)) {
+            val flow = flowAt(entries(id)(i))
+            if (flow ne null)
+                set += flow
+            i += 1
+        }
+        if (set.isEmpty) None else Some(set)
+    }
+
+    def tagOf(id: Int): FlowTag = interner.tagOf(id)
+
+    /** The number of distinct tags of the indexed flows. */
+    def numTags: Int = interner.size
+
+    private def flowAt(entry: Long): ManagedFlow = {
+        val slot = (entry >>> 32).toInt
+        if (generations(slot) == entry.toInt) flows(slot) else null
+    }
+
+    private def append(id: Int, entry: Long): Unit = {
+        if (id >= entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2)
+            numEntries = Arrays.copyOf(numEntries, numEntries.length * 2)
+        }
+        var arr = entries(id)
+        val count = numEntries(id)
+        if (arr eq null) {
+            // Many tags, e.g. those of a MAC or an IP, have few flows.
+            arr = new Array[Long](2)
+            entries(id) = arr
+        } else if (count == arr.length) {
+            arr = Arrays.copyOf(arr, count * 2)
+            entries(id) = arr
+        }
+        arr(count) = entry
+        numEntries(id) = count + 1
+    }
+
+    private def compact(id: Int): Unit = {
+        val arr = entries(id)
+        val count = numEntries(id)
+        var n = 0
+        var i = 0
+        while (i < count) {
+            if (flowAt(arr(i)) ne null) {
+                arr(n) = arr(i)
+                n += 1
+            }
+            i += 1
+        }
+        numEntries(id) = n
+        if (arr.length > 4 * n + 64)
+            entries(id) = Arrays.copyOf(arr, 2 * n + 4)
+    }
+
+    private def allocateSlot(): Int =
+        if (numFreeSlots > 0) {
+            numFreeSlots -= 1
+            freeSlots(numFreeSlots)
+        } else {
+            if (nextSlot == flows.length) {
+                flows = Arrays.copyOf(flows, flows.length * 2)
+                generations = Arrays.copyOf(generations, generations.length * 2)
+            }
+            nextSlot += 1
+            nextSlot - 1
+        }
+
+    private def freeSlot(slot: Int): Unit = {
+        if (numFreeSlots == freeSlots.length)
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2)
+        freeSlots(numFreeSlots) = slot
+        numFreeSlots += 1
+    }
+}
+
+object FlowTagIndex {
+    private val NoFlows = new Array[ManagedFlow](0)
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.flows
+
+import java.util.{Arrays, HashMap => JHashMap}
+
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+/**
+ * Maps FlowTags to compact int ids. Each id is reference counted: interning
+ * a tag takes a reference, and the id is reclaimed, to be handed out again
+ * to another tag, when the last reference is released. The ids are thus
+ * dense, and can be used to index arrays.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowTagInterner(initialCapacity: Int = 64) {
+
+    private val ids = new JHashMap[FlowTag, Integer]()
+    private var tags = new Array[FlowTag](initialCapacity)
+    private var refs = new Array[Int](initialCapacity)
+    // Stack of the ids below nextId that have been reclaimed.
+    private var freeIds = new Array[Int](initialCapacity)
+    private var numFreeIds = 0
+    private var nextId = 0
+
+    /**
+     * Returns the id of the tag, taking a reference to it.
+     */
+    def intern(tag: FlowTag): Int = {
+        val boxed = ids.get(tag)
+        val id = if (boxed ne null) {
+            boxed.intValue
+        } else {
+            val newId = allocateId()
+            tags(newId) = tag
+            ids.put(tag, Integer.valueOf(newId))
+            newId
+        }
+        refs(id) += 1
+        id
+    }
+
+    /**
+     * Returns the id of the tag, or -1 if it isn't interned. No reference
+     * is taken.
+     */
+    def idOf(tag: FlowTag): Int = {
+        val boxed = ids.get(tag)
+        if (boxed eq null) -1 else boxed.intValue
+    }
+
+    def tagOf(id: Int): FlowTag = tags(id)
+
+    def refCount(id: Int): Int = refs(id)
+
+    /**
+     * Releases a reference to the id. Returns whether it was the last one,
+     * in which case the id is reclaimed.
+     */
+    def release(id: Int): Boolean = {
+        val count = refs(id)
+        if (count <= 0)
+            throw new IllegalArgumentException(s"Tag id $id isn't referenced")
+        refs(id) = count - 1
+        if (count == 1) {
+            ids.remove(tags(id))
+            tags(id) = null
+            if (numFreeIds == freeIds.length)
+                freeIds = Arrays.copyOf(freeIds, freeIds.length * 2)
+            freeIds(numFreeIds) = id
+            numFreeIds += 1
+            true
+        } else {
+            false
+        }
+    }
+
+    /** The number of tags currently interned. */
+    def size: Int = ids.size
+
+    /** An upper bound of the ids handed out so far. */
+    def capacity: Int = nextId
+
+    private def allocateId(): Int =
+        if (numFreeIds > 0) {
+            numFreeIds -= 1
+            freeIds(numFreeIds)
+        } else {
+            if (nextId == tags.length) {
+                tags = Arrays.copyOf(tags, tags.length * 2)
+                refs = Arrays.copyOf(refs, refs.length * 2)
+            }
+            nextId += 1
+            nextId - 1
+        }
+}
@@ -15,13 +15,11 @@
  */
 package org.midonet.sdn.flows
 
-import java.util.ArrayList
-
+import java.util.{ArrayList, Arrays}
 
 import org.midonet.midolman.CallbackExecutor
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.odp.FlowMatch
-import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.util.collection.{ObjectPool, PooledObject}
 import org.midonet.util.functors.Callback0
 
@@ -37,7 +35,16 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     var creationTimeMillis: Long = 0L
     var lastUsedTimeMillis: Long = 0L
     val callbacks = new ArrayList[Callback0]()
-    val tags = new ArrayList[FlowTag]
+    // The ids of the tags of this flow, and its slot, in a FlowTagIndex.
+    var tags = ManagedFlow.NoTags
+    var numTags = 0
+    var tagSlot = -1
+    // The links of this flow, its slot and its deadline in a
+    // FlowExpirationWheel.
+    var timerPrev: ManagedFlow = _
+    var timerNext: ManagedFlow = _
+    var timerSlot = -1
+    var timerDeadline = 0L
 
     val flowMatch = new FlowMatch()
     var hardExpirationMillis = 0
@@ -49,7 +56,6 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
         this.hardExpirationMillis = pktCtx.hardExpirationMillis
         this.idleExpirationMillis = pktCtx.idleExpirationMillis
         this.cbExecutor = pktCtx.callbackExecutor
-        this.tags.addAll(pktCtx.flowTags)
         this.callbacks.addAll(pktCtx.flowRemovedCallbacks)
         this
     }
@@ -57,9 +63,23 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     def clear(): Unit = {
         this.flowMatch.clear()
         this.callbacks.clear()
-        this.tags.clear()
+        clearTags()
+    }
+
+    def addTag(id: Int): Unit = {
+        if (numTags == tags.length)
+            tags = Arrays.copyOf(tags, Math.max(8, tags.length * 2))
+        tags(numTags) = id
+        numTags += 1
     }
 
+    def ensureTagCapacity(capacity: Int): Unit =
+        if (capacity > tags.length)
+            tags = Arrays.copyOf(tags, capacity)
+
+    def clearTags(): Unit =
+        numTags = 0
+
     def getLastUsedTimeMillis = lastUsedTimeMillis
     def getCreationTimeMillis = creationTimeMillis
 
@@ -94,3 +114,7 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
         case _ => false
     }
 }
+
+object ManagedFlow {
+    private val NoTags = new Array[Int](0)
+}
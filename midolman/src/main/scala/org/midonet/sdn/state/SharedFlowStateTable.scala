@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+import org.slf4j.LoggerFactory
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
+
+/**
+ * A per-flow state table shared by all the packet processing threads.
+ *
+ * Unlike the ShardedFlowStateTable, where a lookup that misses the local
+ * shard has to probe the shards of all the other threads, entries live in a
+ * single concurrent map, so the cost of a lookup doesn't depend on the
+ * number of threads.
+ *
+ * THREADING SEMANTICS:
+ *
+ * All operations are thread-safe and non-blocking. Expiration is performed
+ * by one thread at a time: a thread calling expireIdleEntries() while
+ * another one is expiring entries returns immediately, leaving the idle
+ * entries for the next call.
+ */
+class SharedFlowStateTable[K <: IdleExpiration, V >: Null]
+        (val clock: NanoClock = NanoClock.DEFAULT,
+         log: Logger = Logger(LoggerFactory.getLogger("org.midonet.state.table")))
+    extends FlowStateTable[K, V] {
+
+    private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+    private val expiring = new AtomicBoolean(false)
+
+    private def tickMillis = TimeUnit.NANOSECONDS.toMillis(clock.tick)
+
+    override def putAndRef(key: K, value: V): V =
+        map.putAndRef(key, value)
+
+    override def get(key: K): V =
+        map.get(key)
+
+    override def ref(key: K): V =
+        map.ref(key)
+
+    override def getRefCount(key: K): Int =
+        map.getRefCount(key)
+
+    override def touch(key: K, value: V): Unit = {
+        putAndRef(key, value)
+        unref(key)
+    }
+
+    override def unref(key: K): Unit =
+        map.unref(key, tickMillis)
+
+    override def fold[U](seed: U, func: Reducer[K, V, U]): U =
+        map.fold(seed, func)
+
+    override def expireIdleEntries(): Unit =
+        if (expiring.compareAndSet(false, true)) {
+            try {
+                map.obliterateIdleEntries(tickMillis)
+            } finally {
+                expiring.set(false)
+            }
+        }
+
+    override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
+        if (expiring.compareAndSet(false, true)) {
+            try {
+                map.obliterateIdleEntries(tickMillis, seed, func)
+            } finally {
+                expiring.set(false)
+            }
+        } else {
+            seed
+        }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule}
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.simulation.{Chain, PacketContext}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, IPv4Subnet, TCP}
+import org.midonet.util.Range
+
+/**
+ * Evaluates chains of firewall rules, each matching on a /24 destination
+ * network and a destination port, against packets that only match the
+ * last rule of the chain or no rule at all.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class ChainBenchmark {
+
+    @Param(Array("10", "100", "1000"))
+    var rules: Int = _
+
+    @Param(Array("true", "false"))
+    var indexed: Boolean = _
+
+    val ownerId = UUID.randomUUID()
+    var chain: Chain = _
+    var packets: Array[FlowMatch] = _
+    // Recycled for every packet, as the packet workflow does with the
+    // contexts of its pool.
+    var context: PacketContext = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(rules)
+        val ruleList = (0 until rules) map { i =>
+            val cond = new Condition()
+            cond.nwProto = TCP.PROTOCOL_NUMBER
+            cond.nwDstIp = new IPv4Subnet((10 << 24) | (i << 8), 24)
+            cond.tpDst = new Range[Integer](1000 + i % 100)
+            new LiteralRule(cond, Action.DROP).asInstanceOf[Rule]
+        }
+        chain = new Chain(UUID.randomUUID(), ruleList.asJava,
+                          Map.empty[UUID, Chain], "chain", indexed)
+
+        packets = Array.fill(64) {
+            val matchesLast = random.nextBoolean()
+            val dst = if (matchesLast) (10 << 24) | ((rules - 1) << 8) | 1
+                      else (11 << 24) | random.nextInt(1 << 16)
+            new FlowMatch()
+                .setNetworkProto(TCP.PROTOCOL_NUMBER)
+                .setNetworkSrc(IPv4Addr.random)
+                .setNetworkDst(IPv4Addr.fromInt(dst))
+                .setSrcPort(random.nextInt(65536))
+                .setDstPort(1000 + (rules - 1) % 100)
+        }
+        context = new PacketContext(1, null, packets(0))
+    }
+
+    var next = 0
+
+    @Benchmark
+    def applyChain(bh: Blackhole): Unit = {
+        next = (next + 1) & (packets.length - 1)
+        context.recycle(1, null, packets(next), null)
+        bh.consume(Chain.apply(chain, context, ownerId, false))
+    }
+}
@@ -23,7 +23,7 @@ import java.util.concurrent.TimeUnit
 import scala.collection.JavaConverters._
 
 import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
-import org.openjdk.jmh.infra.Blackhole
+import org.openjdk.jmh.infra.{BenchmarkParams, Blackhole, ThreadParams}
 
 import org.midonet.cluster.data.ports.BridgePort
 import org.midonet.midolman.UnderlayResolver.Route
@@ -35,9 +35,9 @@ import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.rcu.ResolvedHost
 import org.midonet.odp.flows.FlowActionOutput
-import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC, UDP}
 import org.midonet.packets.util.PacketBuilder._
-import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
+import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction, SharedFlowStateTable, ShardedFlowStateTable}
 
 object ConnTrackBenchmark {
     val leftMac = MAC.random
@@ -104,7 +104,7 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
         macTable.add(rightMac, rightPort.getId)
         replicator = new FlowStateReplicator(conntrackTable, natTable,
                                              new MockStateStorage,
-                                             underlayResolver, _ => { }, 0)
+                                             underlayResolver, _ => { }, 0, null)
     }
 
     @Benchmark
@@ -117,3 +117,77 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
         conntrackTx.flush()
     }
 }
+
+object ConnTrackTableBenchmark {
+    @State(Scope.Thread)
+    class Worker {
+        var table: FlowStateTable[ConnTrackKey, ConnTrackValue] = _
+        var next = 0
+
+        @JmhSetup
+        def setup(bench: ConnTrackTableBenchmark, thread: ThreadParams): Unit = {
+            table = bench.tables(thread.getThreadIndex)
+        }
+    }
+}
+
+/**
+ * Looks up connection tracking entries concurrently from several threads,
+ * each owning a shard of the table when the table is sharded. Most of the
+ * entries a thread looks up were added by other threads. The number of
+ * simulation threads is the number of benchmark threads, set with -t.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@Threads(4)
+@State(Scope.Benchmark)
+class ConnTrackTableBenchmark {
+    import org.midonet.midolman.ConnTrackTableBenchmark._
+
+    @Param(Array("sharded", "shared"))
+    var table: String = _
+
+    val Entries = 1024
+    val deviceId = randomUUID()
+    var keys: Array[ConnTrackKey] = _
+    var tables: Array[FlowStateTable[ConnTrackKey, ConnTrackValue]] = _
+
+    @JmhSetup
+    def setup(params: BenchmarkParams): Unit = {
+        val workers = params.getThreads
+        tables = table match {
+            case "sharded" =>
+                val sharded = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]()
+                Array.fill(workers)(sharded.addShard())
+            case "shared" =>
+                val shared = new SharedFlowStateTable[ConnTrackKey, ConnTrackValue]()
+                Array.fill(workers)(shared)
+        }
+        keys = Array.tabulate(Entries) { i =>
+            ConnTrackKey(IPv4Addr.random, 1024 + i, IPv4Addr.random, 80,
+                         UDP.PROTOCOL_NUMBER, deviceId)
+        }
+        var i = 0
+        while (i < Entries) {
+            tables(i % workers).putAndRef(keys(i), FORWARD_FLOW)
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def lookup(worker: Worker, bh: Blackhole): Unit = {
+        worker.next = (worker.next + 1) & (Entries - 1)
+        bh.consume(worker.table.get(keys(worker.next)))
+    }
+
+    @Benchmark
+    def refUnref(worker: Worker, bh: Blackhole): Unit = {
+        worker.next = (worker.next + 1) & (Entries - 1)
+        val key = keys(worker.next)
+        bh.consume(worker.table.ref(key))
+        worker.table.unref(key)
+    }
+}
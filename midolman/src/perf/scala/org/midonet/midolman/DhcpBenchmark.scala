@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman
+
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+import com.typesafe.scalalogging.Logger
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.data.dhcp.{Host, Subnet}
+import org.midonet.midolman.simulation.DhcpImpl
+import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.midolman.topology.devices.BridgePort
+import org.midonet.packets.{DHCP, DHCPOption, IPv4Addr, IPv4Subnet, MAC}
+
+/**
+ * Builds DHCP replies for the hosts of a bridge with a single DHCP subnet.
+ * The replies are built from the DHCP configuration cached in the virtual
+ * topology, so this measures the replies per second of a packet worker.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Benchmark)
+class DhcpBenchmark extends MidolmanBenchmark {
+
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor))
+
+    @Param(Array("16", "1024"))
+    var hosts: Int = _
+
+    val log = Logger(LoggerFactory.getLogger("org.midonet.dhcp-benchmark"))
+    val mtu = Some(1500.toShort)
+    var port: BridgePort = _
+    var macs: Array[MAC] = _
+    var requests: Array[DHCP] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        newHost("myself", hostId)
+        val bridge = newBridge("bridge")
+        val clusterPort = newBridgePort(bridge)
+        materializePort(clusterPort, hostId, "port0")
+
+        val subnetAddr = new IPv4Subnet("10.0.0.0", 16)
+        val subnet = new Subnet()
+            .setSubnetAddr(subnetAddr)
+            .setDefaultGateway(IPv4Addr.fromString("10.0.0.1"))
+            .setServerAddr(IPv4Addr.fromString("10.0.0.2"))
+            .setDnsServerAddrs(List(IPv4Addr.fromString("10.0.0.3")))
+        addDhcpSubnet(bridge, subnet)
+
+        macs = Array.fill(hosts)(MAC.random())
+        requests = macs map { mac =>
+            new DHCP()
+                .setOpCode(DHCP.OPCODE_REQUEST)
+                .setHardwareType(0x01)
+                .setHardwareAddressLength(6)
+                .setClientHardwareAddress(mac)
+                .setOptions(mutable.ListBuffer(
+                    new DHCPOption(DHCPOption.Code.DHCP_TYPE.value,
+                                   DHCPOption.Code.DHCP_TYPE.length,
+                                   Array[Byte](DHCPOption.MsgType.DISCOVER.value))))
+        }
+        for (i <- 0 until hosts) {
+            addDhcpHost(bridge, subnet, new Host()
+                .setMAC(macs(i))
+                .setIp(IPv4Addr.fromInt(subnetAddr.getIntAddress + 10 + i)))
+        }
+
+        fetchTopology(bridge, clusterPort)
+        fetchDhcpConfig(bridge)
+        port = fetchDevice(clusterPort)
+    }
+
+    var next = 0
+
+    @Benchmark
+    def reply(bh: Blackhole): Unit = {
+        next = (next + 1) % hosts
+        bh.consume(DhcpImpl(port, requests(next), macs(next), mtu, log))
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.odp.{Flow, FlowMatch}
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.flows.{FlowManager, FlowManagerHelper, ManagedFlow}
+import org.midonet.util.concurrent.MockClock
+import org.midonet.util.functors.Callback1
+
+/**
+ * Fills the FlowManager with flows expiring within the next ten minutes,
+ * and measures the latency of adding and removing one more flow, and of
+ * expiring the flows of one millisecond. Expired flows are added back, so
+ * that the number of flows stays the same.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 2, jvmArgsAppend = Array("-Xmx4g"))
+@State(Scope.Benchmark)
+class FlowManagerBenchmark {
+
+    @Param(Array("100000", "1000000"))
+    var flows: Int = _
+
+    val maxExpirationMillis = 600000
+
+    val random = new Random(42)
+    val clock = new MockClock
+
+    var flowManager: FlowManager = _
+    var extraFlow: ManagedFlow = _
+
+    val helper = new FlowManagerHelper {
+        override def getFlow(flowMatch: FlowMatch, cb: Callback1[Flow]): Unit =
+            cb.call(null)
+
+        override def removeFlow(flow: ManagedFlow): Unit = { }
+
+        override def removeWildcardFlow(flow: ManagedFlow): Unit = {
+            flowManager.remove(flow)
+            flow.hardExpirationMillis = 1 + random.nextInt(maxExpirationMillis)
+            flowManager.add(flow)
+        }
+    }
+
+    private def newFlow(i: Int): ManagedFlow = {
+        val flow = new ManagedFlow(null)
+        flow.flowMatch.setNetworkSrc(IPv4Addr.fromInt(0x0a000000 | i))
+        flow.flowMatch.setNetworkDst(IPv4Addr.fromInt(0x0b000000 | i))
+        flow.hardExpirationMillis = 1 + random.nextInt(maxExpirationMillis)
+        // The benchmark's ref, which keeps the flow from being cleared
+        // when the FlowManager lets go of it.
+        flow.ref()
+        flow
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        flowManager = new FlowManager(helper, 2 * flows, 0, clock)
+        var i = 0
+        while (i < flows) {
+            flowManager.add(newFlow(i))
+            i += 1
+        }
+        extraFlow = newFlow(flows)
+    }
+
+    @Benchmark
+    def addAndRemove(bh: Blackhole): Unit = {
+        bh.consume(flowManager.add(extraFlow))
+        bh.consume(flowManager.remove(extraFlow))
+    }
+
+    @Benchmark
+    def expire(): Unit = {
+        clock.time += TimeUnit.MILLISECONDS.toNanos(1)
+        flowManager.checkFlowsExpiration()
+    }
+}
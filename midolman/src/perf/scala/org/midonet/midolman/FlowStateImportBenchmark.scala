@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.UUID.randomUUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+import akka.actor.ActorSystem
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.UnderlayResolver.Route
+import org.midonet.midolman.state.{FlowStateReplicator, InMemoryFlowStateStorage}
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.topology.rcu.ResolvedHost
+import org.midonet.odp.flows.FlowActionOutput
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.state.ShardedFlowStateTable
+
+/**
+ * Measures how long it takes to import the state of a port with a large
+ * number of connections, as a worker does when the port is bound.
+ */
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowStateImportBenchmark {
+
+    @Param(Array("100000", "1000000"))
+    var keys: Int = _
+
+    @Param(Array("5000"))
+    var pageSize: Int = _
+
+    implicit var as: ActorSystem = _
+
+    val port = randomUUID()
+    var storage: InMemoryFlowStateStorage = _
+    var replicator: FlowStateReplicator = _
+
+    val underlayResolver = new UnderlayResolver {
+        override def host = new ResolvedHost(randomUUID(), true, Map(), Map())
+        override def peerTunnelInfo(peer: UUID): Option[Route] = None
+        override def isVtepTunnellingPort(portNumber: Integer): Boolean = false
+        override def isOverlayTunnellingPort(portNumber: Integer): Boolean = false
+        override def vtepTunnellingOutputAction: FlowActionOutput = null
+    }
+
+    @JmhSetup(Level.Trial)
+    def setupStorage(): Unit = {
+        as = ActorSystem("FlowStateImportBenchmark")
+        storage = new InMemoryFlowStateStorage(pageSize)
+        val noPorts = List[UUID]().asJava
+        var i = 0
+        while (i < keys) {
+            val k = ConnTrackKey(IPv4Addr.random, i & 0xffff, IPv4Addr.random,
+                                 80, 6, randomUUID())
+            storage.touchConnTrackKey(k, port, noPorts.iterator)
+            i += 1
+        }
+    }
+
+    @JmhSetup(Level.Iteration)
+    def setupTables(): Unit = {
+        val conntrackTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue].addShard()
+        val natTable = new ShardedFlowStateTable[NatKey, NatBinding].addShard()
+        replicator = new FlowStateReplicator(conntrackTable, natTable, storage,
+                                             underlayResolver, _ => { }, 0, null)
+    }
+
+    @TearDown(Level.Trial)
+    def teardown(): Unit = as.shutdown()
+
+    @Benchmark
+    def importPortState(): Unit = {
+        implicit val ec = as.dispatcher
+        Await.result(storage.fetchPortState(port)(replicator.importFromStorage),
+                     1 minute)
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+import org.slf4j.helpers.NOPLogger
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.midolman.rules.NatTarget
+import org.midonet.midolman.state.{MockNatBlockAllocator, NatBlockAllocator, NatLeaser}
+import org.midonet.midolman.state.NatState.NatBinding
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.concurrent.MockClock
+
+/**
+ * Allocates NAT bindings for a large number of devices, each SNATing the
+ * connections to many destinations. The setup fills the leaser with the
+ * bindings and prints the heap they retain, while the benchmark measures
+ * the latency of allocating and freeing one more binding.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 2, jvmArgsAppend = Array("-Xmx4g"))
+@State(Scope.Benchmark)
+class NatLeaserBenchmark {
+
+    @Param(Array("10000"))
+    var devices: Int = _
+
+    @Param(Array("1000000"))
+    var bindings: Int = _
+
+    val natTargets = Array(new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                         IPv4Addr("10.0.1.1").addr,
+                                         1024, 65535))
+
+    val leaser = new NatLeaser {
+        override val log = Logger(NOPLogger.NOP_LOGGER)
+        override val allocator: NatBlockAllocator = new MockNatBlockAllocator
+        override val clock = new MockClock
+    }
+
+    var deviceIds: Array[UUID] = _
+    var destinations: Array[IPv4Addr] = _
+
+    private def allocate(device: UUID, dst: IPv4Addr, port: Int): NatBinding =
+        try {
+            leaser.allocateNatBinding(device, dst, port, natTargets)
+        } catch {
+            case e: NotYetException =>
+                // The mock allocator completes the block request right away.
+                leaser.allocateNatBinding(device, dst, port, natTargets)
+        }
+
+    private def usedHeap(): Long = {
+        val runtime = Runtime.getRuntime
+        var i = 0
+        while (i < 3) {
+            System.gc()
+            i += 1
+        }
+        runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        deviceIds = Array.fill(devices)(UUID.randomUUID())
+        destinations = Array.fill(bindings / devices)(IPv4Addr.random)
+
+        val heapBefore = usedHeap()
+        val start = System.nanoTime()
+        var i = 0
+        while (i < bindings) {
+            allocate(deviceIds(i % devices), destinations(i / devices), 80)
+            i += 1
+        }
+        val elapsed = System.nanoTime() - start
+        val footprint = usedHeap() - heapBefore
+        println(s"\n$bindings bindings across $devices devices: " +
+                s"${footprint / (1024 * 1024)} MB retained " +
+                s"(${footprint / bindings} bytes per binding), " +
+                s"${elapsed / bindings} ns per allocation")
+    }
+
+    var next = 0
+
+    @Benchmark
+    def allocateAndFree(bh: Blackhole): Unit = {
+        next += 1
+        val device = deviceIds(next % devices)
+        val dst = destinations(next % destinations.length)
+        val binding = allocate(device, dst, 443)
+        leaser.freeNatBinding(device, dst, 443, binding)
+        bh.consume(binding)
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.typesafe.scalalogging.Logger
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.data.Route
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.midolman.routingprotocols.PeerRouteWriter
+import org.midonet.midolman.state.ZkConnectionAwareWatcher
+import org.midonet.packets.{IPv4Addr, IPv4Subnet, MAC}
+import org.midonet.quagga.ZebraProtocol.RIBType
+import org.midonet.quagga.ZebraProtocolHandler
+
+/**
+ * Announces and withdraws the prefixes of a BGP session through a stand-in
+ * Zebra peer, which hands them to a PeerRouteWriter as the RoutingHandler
+ * does, and measures how long it takes to write them to the storage. A
+ * batch size of 1 writes the routes one at a time, as the RoutingHandler
+ * used to. The storage is the in-memory ZooKeeper directory, so this
+ * doesn't account for the round trips that the batches save.
+ */
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class PeerRoutesBenchmark extends MidolmanBenchmark {
+
+    @Param(Array("100000"))
+    var prefixes: Int = _
+
+    @Param(Array("1", "256"))
+    var batchSize: Int = _
+
+    val log = Logger(LoggerFactory.getLogger("org.midonet.routing.bgp-benchmark"))
+    val gateway = IPv4Addr.fromString("10.0.0.2")
+    var routerId: UUID = _
+    var portId: UUID = _
+    var writer: PeerRouteWriter = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val router = newRouter("router")
+        val port = newRouterPort(router, MAC.random(), "10.0.0.1",
+                                 "10.0.0.0", 24)
+        routerId = router.getId
+        portId = port.getId
+        writer = new PeerRouteWriter(
+            clusterDataClient,
+            injector.getInstance(classOf[ZkConnectionAwareWatcher]),
+            batchSize, log)
+    }
+
+    private val zebra = new ZebraProtocolHandler {
+        def addRoute(ribType: RIBType.Value, destination: IPv4Subnet,
+                     gateway: IPv4Addr, distance: Byte) {
+            val route = peerRoute(destination, gateway)
+            route.setWeight(distance)
+            writer.add(route)
+            if (writer.pendingChanges >= batchSize)
+                writer.flush()
+        }
+
+        def removeRoute(ribType: RIBType.Value, destination: IPv4Subnet,
+                        gateway: IPv4Addr) {
+            writer.remove(peerRoute(destination, gateway))
+            if (writer.pendingChanges >= batchSize)
+                writer.flush()
+        }
+    }
+
+    private def peerRoute(destination: IPv4Subnet, gateway: IPv4Addr) = {
+        val route = new Route()
+        route.setRouterId(routerId)
+        route.setDstNetworkAddr(destination.getAddress.toString)
+        route.setDstNetworkLength(destination.getPrefixLen)
+        route.setNextHopGateway(gateway.toString)
+        route.setNextHop(NextHop.PORT)
+        route.setNextHopPort(portId)
+        route
+    }
+
+    private def prefix(i: Int) = new IPv4Subnet((11 << 24) + (i << 8), 24)
+
+    @Benchmark
+    def flapSession(): Unit = {
+        var i = 0
+        while (i < prefixes) {
+            zebra.addRoute(RIBType.BGP, prefix(i), gateway, 20)
+            i += 1
+        }
+        writer.flush()
+        i = 0
+        while (i < prefixes) {
+            zebra.removeRoute(RIBType.BGP, prefix(i), gateway)
+            i += 1
+        }
+        writer.flush()
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{ArrayList, Collections, Random, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.midolman.layer3.{CompiledRoutingTable, IPv4RoutingTable, Route}
+import org.midonet.packets.IPv4Addr
+
+/**
+ * Compares the lookups on the compiled routing table with the lookups on the
+ * routes trie, for tables shaped like upstream tables: mostly /16 to /24
+ * prefixes, with a default route. Also compares compiling the whole table
+ * with updating it, when a batch of routes is withdrawn and announced again.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class RoutingTableBenchmark {
+
+    @Param(Array("1000", "100000", "500000"))
+    var prefixes: Int = _
+
+    val random = new Random(42)
+    val src = IPv4Addr.random
+
+    var trie: IPv4RoutingTable = _
+    var compiled: CompiledRoutingTable = _
+    var dsts: Array[IPv4Addr] = _
+    var i = 0
+
+    var routes: ArrayList[Route] = _
+    var flapping: ArrayList[Route] = _
+    var updated: CompiledRoutingTable = _
+    var withdrawn = false
+
+    @JmhSetup
+    def setup(): Unit = {
+        routes = new ArrayList[Route](prefixes + 1)
+        routes.add(new Route(0, 0, 0, 0, NextHop.PORT, UUID.randomUUID(), 0,
+                             Route.DEFAULT_WEIGHT, null, null))
+        while (routes.size <= prefixes) {
+            routes.add(new Route(0, 0, random.nextInt(), 16 + random.nextInt(9),
+                                 NextHop.PORT, UUID.randomUUID(), 0,
+                                 Route.DEFAULT_WEIGHT, null, null))
+        }
+
+        trie = new IPv4RoutingTable
+        val it = routes.iterator()
+        while (it.hasNext)
+            trie.addRoute(it.next())
+        compiled = new CompiledRoutingTable(routes)
+        flapping = new ArrayList[Route](routes.subList(1, 257))
+        updated = new CompiledRoutingTable(routes)
+
+        // Half the destinations fall in a prefix of the table.
+        dsts = Array.tabulate(1024) { n =>
+            val rt = routes.get(random.nextInt(routes.size))
+            if (n % 2 == 0) new IPv4Addr(rt.dstNetworkAddr | random.nextInt(256))
+            else new IPv4Addr(random.nextInt())
+        }
+    }
+
+    private def nextDst(): IPv4Addr = {
+        i = (i + 1) & (dsts.length - 1)
+        dsts(i)
+    }
+
+    @Benchmark
+    def trieLookup(bh: Blackhole): Unit =
+        bh.consume(trie.lookup(src, nextDst()))
+
+    @Benchmark
+    def compiledLookup(bh: Blackhole): Unit =
+        bh.consume(compiled.lookup(src, nextDst()))
+
+    @Benchmark
+    def recompile(bh: Blackhole): Unit =
+        bh.consume(new CompiledRoutingTable(routes))
+
+    @Benchmark
+    def update(bh: Blackhole): Unit = {
+        withdrawn = !withdrawn
+        updated = if (withdrawn) {
+            updated.update(Collections.emptyList(), flapping)
+        } else {
+            updated.update(flapping, Collections.emptyList())
+        }
+        bh.consume(updated)
+    }
+}
@@ -37,11 +37,14 @@ import org.junit.Test;
 
 import org.midonet.cluster.client.ArpCache;
 import org.midonet.cluster.client.BridgeBuilder;
+import org.midonet.cluster.client.DhcpConfigBuilder;
 import org.midonet.cluster.client.IpMacMap;
 import org.midonet.cluster.client.MacLearningTable;
 import org.midonet.cluster.client.RouterBuilder;
 import org.midonet.cluster.client.VlanPortMap;
 import org.midonet.cluster.config.ZookeeperConfig;
+import org.midonet.cluster.data.dhcp.Host;
+import org.midonet.cluster.data.dhcp.Subnet;
 import org.midonet.midolman.Setup;
 import org.midonet.midolman.config.MidolmanConfig;
 import org.midonet.midolman.guice.cluster.ClusterClientModule;
@@ -54,12 +57,14 @@ import org.midonet.midolman.serialization.SerializationException;
 import org.midonet.midolman.state.ArpCacheEntry;
 import org.midonet.midolman.state.Directory;
 import org.midonet.midolman.state.StateAccessException;
+import org.midonet.midolman.state.zkManagers.BridgeDhcpZkManager;
 import org.midonet.midolman.state.zkManagers.BridgeZkManager;
 import org.midonet.midolman.state.zkManagers.ChainZkManager;
 import org.midonet.midolman.state.zkManagers.ChainZkManager.ChainConfig;
 import org.midonet.midolman.state.zkManagers.RouterZkManager;
 import org.midonet.packets.IPAddr;
 import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
 import org.midonet.packets.MAC;
 import org.midonet.util.functors.Callback3;
 
@@ -88,6 +93,10 @@ public class LocalClientImplTest {
         return injector.getInstance(BridgeZkManager.class);
     }
 
+    BridgeDhcpZkManager getBridgeDhcpZkManager() {
+        return injector.getInstance(BridgeDhcpZkManager.class);
+    }
+
     RouterZkManager getRouterZkManager() {
         return injector.getInstance(RouterZkManager.class);
     }
@@ -248,6 +257,80 @@ public class LocalClientImplTest {
         assertThat("Bridge update was notified", bridgeBuilder.getBuildCallsCount(), equalTo(1));
     }
 
+    @Test
+    public void getDhcpConfigTest() throws InterruptedException,
+            KeeperException, SerializationException, StateAccessException,
+            BridgeZkManager.VxLanPortIdUpdateException {
+        Setup.ensureZkDirectoryStructureExists(zkDir(), zkRoot);
+        UUID bridgeId = getBridgeZkManager().create(
+            new BridgeZkManager.BridgeConfig("test", null, null));
+        IPv4Subnet subnetAddr = IPv4Subnet.fromCidr("10.0.0.0/24");
+        getBridgeDhcpZkManager().createSubnet(bridgeId, dhcpSubnet(
+            subnetAddr, IPv4Addr.fromString("10.0.0.1")));
+        MAC mac = MAC.random();
+        getBridgeDhcpZkManager().addHost(bridgeId, subnetAddr,
+            new BridgeDhcpZkManager.Host(
+                mac, IPv4Addr.fromString("10.0.0.2"), "host"));
+
+        TestDhcpConfigBuilder dhcpBuilder = new TestDhcpConfigBuilder();
+        client.getDhcpConfig(bridgeId, dhcpBuilder);
+
+        pollCallCounts(dhcpBuilder, 1);
+        assertThat("Config is set", dhcpBuilder.getBuildCallsCount(),
+                   equalTo(1));
+        assertEquals(IPv4Addr.fromString("10.0.0.1"),
+                     dhcpBuilder.subnets.get(subnetAddr).getDefaultGateway());
+        assertEquals(IPv4Addr.fromString("10.0.0.2"),
+                     dhcpBuilder.hosts.get(subnetAddr).get(mac).getIp());
+
+        // let's fire the subnet watch
+        getBridgeDhcpZkManager().updateSubnet(bridgeId, dhcpSubnet(
+            subnetAddr, IPv4Addr.fromString("10.0.0.254")));
+
+        pollCallCounts(dhcpBuilder, 2);
+        assertThat("Subnet update was notified",
+                   dhcpBuilder.getBuildCallsCount(), equalTo(2));
+        assertEquals(IPv4Addr.fromString("10.0.0.254"),
+                     dhcpBuilder.subnets.get(subnetAddr).getDefaultGateway());
+
+        // and the host watch
+        getBridgeDhcpZkManager().updateHost(bridgeId, subnetAddr,
+            new BridgeDhcpZkManager.Host(
+                mac, IPv4Addr.fromString("10.0.0.3"), "host"));
+
+        pollCallCounts(dhcpBuilder, 3);
+        assertThat("Host update was notified",
+                   dhcpBuilder.getBuildCallsCount(), equalTo(3));
+        assertEquals(IPv4Addr.fromString("10.0.0.3"),
+                     dhcpBuilder.hosts.get(subnetAddr).get(mac).getIp());
+    }
+
+    private BridgeDhcpZkManager.Subnet dhcpSubnet(IPv4Subnet subnetAddr,
+                                                  IPv4Addr gateway) {
+        return new BridgeDhcpZkManager.Subnet(
+            subnetAddr, gateway, null, null, (short) 0,
+            new ArrayList<BridgeDhcpZkManager.Opt121>());
+    }
+
+    class TestDhcpConfigBuilder implements DhcpConfigBuilder,
+                                           BuildCallCounter {
+        volatile int buildCallsCount = 0;
+        volatile Map<IPv4Subnet, Subnet> subnets;
+        volatile Map<IPv4Subnet, Map<MAC, Host>> hosts;
+
+        public int getBuildCallsCount() {
+            return buildCallsCount;
+        }
+
+        @Override
+        public void setConfig(Map<IPv4Subnet, Subnet> subnets,
+                              Map<IPv4Subnet, Map<MAC, Host>> hosts) {
+            this.subnets = subnets;
+            this.hosts = hosts;
+            buildCallsCount++;
+        }
+    }
+
     // hint could modify this class so we can get the map from it.
     class TestBridgeBuilder implements BridgeBuilder, BuildCallCounter {
         int buildCallsCount = 0;
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.host.scanner;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.midonet.midolman.host.interfaces.InterfaceDescription;
+import org.midonet.midolman.host.sensor.InterfaceSensor;
+import org.midonet.netlink.BytesUtil;
+import org.midonet.netlink.Callback;
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.exceptions.NetlinkException;
+import org.midonet.netlink.rtnetlink.Rtnetlink;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TestRtnetlinkInterfaceScanner {
+
+    private static final int UP = Rtnetlink.LinkFlags.Up |
+                                  Rtnetlink.LinkFlags.LowerUp;
+
+    private RtnetlinkInterfaceScanner scanner;
+    private List<Set<InterfaceDescription>> scans;
+    private List<Set<InterfaceDescription>> sensed;
+
+    @Before
+    public void setUp() {
+        sensed = new ArrayList<>();
+        InterfaceSensor sensor = new InterfaceSensor() {
+            @Override
+            public void updateInterfaceData(Set<InterfaceDescription> ifs) {
+                sensed.add(ifs);
+            }
+        };
+        scanner = new RtnetlinkInterfaceScanner(
+            Collections.singletonList(sensor));
+
+        scans = new ArrayList<>();
+        scanner.register(new Callback<Set<InterfaceDescription>>() {
+            @Override
+            public void onSuccess(Set<InterfaceDescription> data) {
+                scans.add(data);
+            }
+
+            @Override
+            public void onError(NetlinkException e) { }
+        });
+        scans.clear();
+    }
+
+    @Test
+    public void testNewInterface() throws Exception {
+        ByteBuffer buf = BytesUtil.instance.allocate(4096);
+        writeLink(buf, Rtnetlink.Type.NewLink, 7, UP, "tap0",
+                  new byte[] {2, 0, 0, 0, 0, 7}, 1500, "tun");
+        writeAddr(buf, Rtnetlink.Type.NewAddr, 7, new byte[] {10, 0, 0, 7});
+        buf.flip();
+
+        scanner.handleMessages(buf);
+        scanner.publish();
+
+        assertThat(scans.size(), equalTo(1));
+        assertThat(scans.get(0).size(), equalTo(1));
+        InterfaceDescription desc = scans.get(0).iterator().next();
+        assertThat(desc.getName(), is("tap0"));
+        assertThat(desc.getMtu(), is(1500));
+        assertThat(desc.isUp(), is(true));
+        assertThat(desc.hasLink(), is(true));
+        assertThat(desc.getMac(), is(new byte[] {2, 0, 0, 0, 0, 7}));
+        assertThat(desc.getEndpoint(),
+                   is(InterfaceDescription.Endpoint.TUNTAP));
+        assertThat(desc.getType(), is(InterfaceDescription.Type.VIRT));
+        assertThat(desc.getInetAddresses().size(), is(1));
+        assertThat(desc.getInetAddresses().get(0),
+                   is(InetAddress.getByAddress(new byte[] {10, 0, 0, 7})));
+    }
+
+    @Test
+    public void testLoopbackInterface() throws Exception {
+        ByteBuffer buf = BytesUtil.instance.allocate(4096);
+        writeLink(buf, Rtnetlink.Type.NewLink, 1,
+                  UP | Rtnetlink.LinkFlags.Loopback, "lo",
+                  new byte[6], 65536, null);
+        buf.flip();
+
+        scanner.handleMessages(buf);
+        scanner.publish();
+
+        InterfaceDescription desc = scans.get(0).iterator().next();
+        assertThat(desc.getEndpoint(),
+                   is(InterfaceDescription.Endpoint.LOCALHOST));
+        assertThat(desc.getType(), is(InterfaceDescription.Type.VIRT));
+    }
+
+    @Test
+    public void testOnlyChangedInterfacesAreUpdated() throws Exception {
+        ByteBuffer buf = BytesUtil.instance.allocate(4096);
+        writeLink(buf, Rtnetlink.Type.NewLink, 7, UP, "tap0",
+                  new byte[] {2, 0, 0, 0, 0, 7}, 1500, "tun");
+        writeLink(buf, Rtnetlink.Type.NewLink, 8, UP, "tap1",
+                  new byte[] {2, 0, 0, 0, 0, 8}, 1500, "tun");
+        buf.flip();
+        scanner.handleMessages(buf);
+        scanner.publish();
+        assertThat(scans.size(), equalTo(1));
+        assertThat(sensed.get(0).size(), equalTo(2));
+        InterfaceDescription tap0 = find(scans.get(0), "tap0");
+
+        // The same link again doesn't notify the callbacks.
+        buf.clear();
+        writeLink(buf, Rtnetlink.Type.NewLink, 7, UP, "tap0",
+                  new byte[] {2, 0, 0, 0, 0, 7}, 1500, "tun");
+        buf.flip();
+        scanner.handleMessages(buf);
+        scanner.publish();
+        assertThat(scans.size(), equalTo(1));
+
+        // Only the interface that went down is sensed again.
+        buf.clear();
+        writeLink(buf, Rtnetlink.Type.NewLink, 8, 0, "tap1",
+                  new byte[] {2, 0, 0, 0, 0, 8}, 1500, "tun");
+        buf.flip();
+        scanner.handleMessages(buf);
+        scanner.publish();
+        assertThat(scans.size(), equalTo(2));
+        assertThat(sensed.get(1).size(), equalTo(1));
+        assertThat(sensed.get(1).iterator().next().getName(), is("tap1"));
+        assertThat(find(scans.get(1), "tap1").isUp(), is(false));
+        assertThat(find(scans.get(1), "tap0"), sameInstance(tap0));
+    }
+
+    @Test
+    public void testDeletedInterfacesAndAddresses() throws Exception {
+        ByteBuffer buf = BytesUtil.instance.allocate(4096);
+        writeLink(buf, Rtnetlink.Type.NewLink, 7, UP, "tap0",
+                  new byte[] {2, 0, 0, 0, 0, 7}, 1500, "tun");
+        writeLink(buf, Rtnetlink.Type.NewLink, 8, UP, "eth0",
+                  new byte[] {2, 0, 0, 0, 0, 8}, 1500, null);
+        writeAddr(buf, Rtnetlink.Type.NewAddr, 8, new byte[] {10, 0, 0, 8});
+        buf.flip();
+        scanner.handleMessages(buf);
+        scanner.publish();
+
+        buf.clear();
+        writeAddr(buf, Rtnetlink.Type.DelAddr, 8, new byte[] {10, 0, 0, 8});
+        writeLink(buf, Rtnetlink.Type.DelLink, 7, 0, "tap0",
+                  new byte[] {2, 0, 0, 0, 0, 7}, 1500, "tun");
+        buf.flip();
+        scanner.handleMessages(buf);
+        scanner.publish();
+
+        assertThat(scans.size(), equalTo(2));
+        assertThat(scans.get(1).size(), equalTo(1));
+        InterfaceDescription eth0 = scans.get(1).iterator().next();
+        assertThat(eth0.getName(), is("eth0"));
+        assertThat(eth0.getInetAddresses().isEmpty(), is(true));
+    }
+
+    private static InterfaceDescription find(Set<InterfaceDescription> ifs,
+                                             String name) {
+        for (InterfaceDescription desc : ifs) {
+            if (desc.getName().equals(name))
+                return desc;
+        }
+        return null;
+    }
+
+    private static void writeLink(ByteBuffer buf, short type, int ifindex,
+                                  int flags, String name, byte[] mac,
+                                  int mtu, String kind) {
+        int start = buf.position();
+        buf.position(start + NetlinkMessage.HEADER_SIZE);
+        // struct ifinfomsg
+        buf.put((byte) 0).put((byte) 0).putShort(Rtnetlink.LinkType.Ether)
+           .putInt(ifindex).putInt(flags).putInt(0);
+        writeAttr(buf, Rtnetlink.LinkAttr.IfName, (name + "\0").getBytes());
+        writeAttr(buf, Rtnetlink.LinkAttr.Address, mac);
+        writeAttr(buf, Rtnetlink.LinkAttr.MTU, intBytes(mtu));
+        if (kind != null) {
+            int infoStart = buf.position();
+            buf.position(infoStart + 4);
+            writeAttr(buf, Rtnetlink.LinkInfoAttr.Kind,
+                      (kind + "\0").getBytes());
+            buf.putShort(infoStart, (short) (buf.position() - infoStart));
+            buf.putShort(infoStart + 2,
+                         NetlinkMessage.nested(Rtnetlink.LinkAttr.LinkInfo));
+        }
+        writeHeader(buf, start, type);
+    }
+
+    private static void writeAddr(ByteBuffer buf, short type, int ifindex,
+                                  byte[] addr) {
+        int start = buf.position();
+        buf.position(start + NetlinkMessage.HEADER_SIZE);
+        // struct ifaddrmsg
+        buf.put((byte) 2).put((byte) 24).put((byte) 0).put((byte) 0)
+           .putInt(ifindex);
+        writeAttr(buf, Rtnetlink.AddrAttr.Address, addr);
+        writeAttr(buf, Rtnetlink.AddrAttr.Local, addr);
+        writeHeader(buf, start, type);
+    }
+
+    private static void writeHeader(ByteBuffer buf, int start, short type) {
+        buf.putInt(start + NetlinkMessage.NLMSG_LEN_OFFSET,
+                   buf.position() - start);
+        buf.putShort(start + NetlinkMessage.NLMSG_TYPE_OFFSET, type);
+        buf.putShort(start + NetlinkMessage.NLMSG_FLAGS_OFFSET, (short) 0);
+        buf.putInt(start + NetlinkMessage.NLMSG_SEQ_OFFSET, 0);
+        buf.putInt(start + NetlinkMessage.NLMSG_PID_OFFSET, 0);
+    }
+
+    private static void writeAttr(ByteBuffer buf, short id, byte[] value) {
+        buf.putShort((short) (4 + value.length)).putShort(id).put(value);
+        NetlinkMessage.alignBuffer(buf);
+    }
+
+    private static byte[] intBytes(int value) {
+        ByteBuffer buf = BytesUtil.instance.allocate(4);
+        buf.putInt(value);
+        return buf.array();
+    }
+}
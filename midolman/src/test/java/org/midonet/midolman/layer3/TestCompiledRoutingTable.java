@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+
+public class TestCompiledRoutingTable {
+
+    private static Route route(int src, int srcLength, int dst, int dstLength,
+                               int weight) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    @Test
+    public void testEmptyTable() {
+        CompiledRoutingTable table =
+            new CompiledRoutingTable(new ArrayList<Route>());
+        Assert.assertTrue(table.lookup(0x0a010108, 0x0a010106).isEmpty());
+        Assert.assertTrue(table.lookup(0x00000009, 0xfffffffe).isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixAndWeight() {
+        Route rt1 = route(0, 0, 0x0a000000, 7, 100);
+        Route rt2 = route(0, 0, 0x0a14008d, 18, 200);
+        Route rt3 = route(0, 0, 0x0a14007d, 18, 300);
+        Route rt4 = route(0, 0, 0x0a140096, 25, 300);
+        Route rt5 = route(0x80c00304, 10, 0x0a14009f, 28, 300);
+        List<Route> routes = new ArrayList<>();
+        routes.add(rt1);
+        routes.add(rt2);
+        routes.add(rt3);
+        routes.add(rt4);
+        routes.add(rt5);
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+
+        Assert.assertEquals(set(rt4), set(table.lookup(0x12345678, 0x0a140080)));
+        // The source matches rt5.
+        Assert.assertEquals(set(rt5), set(table.lookup(0x80c01234, 0x0a140090)));
+        // The source doesn't match rt5, so the lookup falls back to rt4.
+        Assert.assertEquals(set(rt4), set(table.lookup(0x80a01122, 0x0a140090)));
+        // rt2 and rt3 have the same prefix, but rt2 has a lower weight.
+        Assert.assertEquals(set(rt2), set(table.lookup(0x12345678, 0x0a143700)));
+        Assert.assertEquals(set(rt1), set(table.lookup(0x12345678, 0x0b332211)));
+        Assert.assertTrue(table.lookup(0x12345678, 0x0c000001).isEmpty());
+    }
+
+    @Test
+    public void testDefaultRouteAndHostRoutes() {
+        Route def1 = route(0, 0, 0, 0, 100);
+        Route def2 = route(0, 0, 0, 0, 100);
+        Route host = route(0, 0, 0xc0a80101, 32, 100);
+        List<Route> routes = new ArrayList<>();
+        routes.add(def1);
+        routes.add(def2);
+        routes.add(host);
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+
+        Assert.assertEquals(set(host), set(table.lookup(0, 0xc0a80101)));
+        Assert.assertEquals(set(def1, def2), set(table.lookup(0, 0xc0a80102)));
+        Assert.assertEquals(set(def1, def2), set(table.lookup(0, 0x01020304)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testTableIsImmutable() {
+        new CompiledRoutingTable(new ArrayList<Route>())
+            .addRoute(route(0, 0, 0, 0, 100));
+    }
+
+    @Test
+    public void testSameResultsAsRoutingTable() {
+        Random random = new Random(42);
+        RoutingTable trie = new RoutingTable();
+        List<Route> routes = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // Cluster the prefixes so that they overlap.
+            int dst = (random.nextInt(4) << 24) | random.nextInt(1 << 24);
+            int srcLength = random.nextInt(10) == 0 ? random.nextInt(9) : 0;
+            Route rt = route(random.nextInt(), srcLength, dst,
+                             random.nextInt(33), 100 * random.nextInt(3));
+            routes.add(rt);
+            trie.addRoute(rt);
+        }
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+
+        for (int i = 0; i < 100000; i++) {
+            int src = random.nextInt();
+            int dst = (random.nextInt(5) << 24) | random.nextInt(1 << 24);
+            Assert.assertEquals(set(trie.lookup(src, dst)),
+                                set(table.lookup(src, dst)));
+        }
+    }
+
+    @Test
+    public void testUpdate() {
+        Route def = route(0, 0, 0, 0, 100);
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a140000, 16, 100);
+        List<Route> routes = new ArrayList<>();
+        routes.add(def);
+        routes.add(rt1);
+        CompiledRoutingTable table1 = new CompiledRoutingTable(routes);
+
+        CompiledRoutingTable table2 = table1.update(
+            Collections.singletonList(rt2), Collections.<Route>emptyList());
+        Assert.assertEquals(3, table2.numRoutes());
+        Assert.assertEquals(set(rt2), set(table2.lookup(0, 0x0a140001)));
+        // The previous table is still valid.
+        Assert.assertEquals(set(rt1), set(table1.lookup(0, 0x0a140001)));
+
+        CompiledRoutingTable table3 = table2.update(
+            Collections.<Route>emptyList(), Collections.singletonList(rt1));
+        Assert.assertEquals(2, table3.numRoutes());
+        Assert.assertEquals(set(rt2), set(table3.lookup(0, 0x0a140001)));
+        Assert.assertEquals(set(def), set(table3.lookup(0, 0x0a150001)));
+        Assert.assertEquals(set(rt1), set(table2.lookup(0, 0x0a150001)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOnlyLatestTableCanBeUpdated() {
+        CompiledRoutingTable table =
+            new CompiledRoutingTable(new ArrayList<Route>());
+        table.update(Collections.singletonList(route(0, 0, 0, 0, 100)),
+                     Collections.<Route>emptyList());
+        table.update(Collections.singletonList(route(0, 0, 0, 0, 100)),
+                     Collections.<Route>emptyList());
+    }
+
+    @Test
+    public void testUpdatesGiveSameResultsAsRoutingTable() {
+        Random random = new Random(42);
+        List<Route> routes = new ArrayList<>();
+        CompiledRoutingTable table = new CompiledRoutingTable(routes);
+        for (int update = 0; update < 50; update++) {
+            // Add source routes in the last updates, which compile the
+            // whole table again.
+            boolean sources = update >= 45;
+            List<Route> added = new ArrayList<>();
+            List<Route> removed = new ArrayList<>();
+            // Only withdraw the routes of the previous table.
+            int previous = routes.size();
+            for (int i = 0; i < 200; i++) {
+                if (previous > 0 && random.nextInt(3) == 0) {
+                    removed.add(routes.remove(random.nextInt(previous--)));
+                } else {
+                    int dst = (random.nextInt(4) << 24) | random.nextInt(1 << 24);
+                    int srcLength = sources && random.nextInt(10) == 0
+                                    ? random.nextInt(9) : 0;
+                    Route rt = route(random.nextInt(), srcLength, dst,
+                                     random.nextInt(33), 100 * random.nextInt(3));
+                    routes.add(rt);
+                    added.add(rt);
+                }
+            }
+            table = table.update(added, removed);
+            Assert.assertEquals(routes.size(), table.numRoutes());
+
+            RoutingTable trie = new RoutingTable();
+            for (Route rt : routes)
+                trie.addRoute(rt);
+            for (int i = 0; i < 2000; i++) {
+                int src = random.nextInt();
+                int dst = (random.nextInt(5) << 24) | random.nextInt(1 << 24);
+                Assert.assertEquals(set(trie.lookup(src, dst)),
+                                    set(table.lookup(src, dst)));
+            }
+        }
+    }
+
+    private static Set<Route> set(Route... routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+
+    private static Set<Route> set(Iterable<Route> routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+}
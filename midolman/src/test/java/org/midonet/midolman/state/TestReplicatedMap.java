@@ -19,6 +19,8 @@ package org.midonet.midolman.state;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NoNodeException;
@@ -57,6 +59,20 @@ public class TestReplicatedMap {
         }
     }
 
+    private class CountingStringMap extends ReplicatedStringMap {
+        int decodedKeys = 0;
+
+        public CountingStringMap(Directory dir) {
+            super(dir);
+        }
+
+        @Override
+        protected String decodeKey(String str) {
+            decodedKeys++;
+            return str;
+        }
+    }
+
     private class Location {
         int a;
         int b;
@@ -387,4 +403,78 @@ public class TestReplicatedMap {
         expectedMap.clear();
         Assert.assertEquals(expectedMap, strMap.getMap());
     }
+
+    @Test
+    public void testNotificationLagIsRegistered()
+            throws KeeperException, InterruptedException {
+        MetricRegistry registry = new MetricRegistry();
+        ReplicatedStringMap strMap = new ReplicatedStringMap(mapDir);
+        strMap.registerMetrics(registry);
+        strMap.start();
+        Histogram lag = registry.getHistograms().get(
+            MetricRegistry.name(ReplicatedStringMap.class, "notificationLag"));
+        Assert.assertSame(lag, strMap.getNotificationLag());
+        // The initial read of the map isn't a notification.
+        Assert.assertEquals(0, lag.getCount());
+
+        mapDir.add("/one,100,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals("100", strMap.get("one"));
+        Assert.assertEquals(1, lag.getCount());
+        strMap.stop();
+    }
+
+    @Test
+    public void testLargeMapUpdatesAreIncremental()
+            throws KeeperException, InterruptedException {
+        final int ENTRIES = 100000;
+        final int UPDATES = 100;
+        Map<String, String> expectedMap = new HashMap<String, String>();
+        for (int i = 0; i < ENTRIES; i++) {
+            mapDir.add("/key" + i + "," + i + ",", null,
+                       CreateMode.PERSISTENT_SEQUENTIAL);
+            expectedMap.put("key" + i, Integer.toString(i));
+        }
+        CountingStringMap strMap = new CountingStringMap(mapDir);
+        MyWatcher watcher = new MyWatcher();
+        strMap.addWatcher(watcher);
+        strMap.start();
+        Assert.assertEquals(expectedMap, strMap.getMap());
+        Assert.assertEquals(expectedMap, watcher.map1);
+        Assert.assertEquals(ENTRIES, strMap.decodedKeys);
+
+        // Each change only decodes the paths that were added or removed.
+        strMap.decodedKeys = 0;
+        for (int i = 0; i < UPDATES; i++) {
+            strMap.put("new" + i, "v" + i);
+            expectedMap.put("new" + i, "v" + i);
+        }
+        Assert.assertEquals(expectedMap, strMap.getMap());
+        Assert.assertEquals(expectedMap, watcher.map1);
+        Assert.assertEquals(UPDATES, strMap.decodedKeys);
+
+        // Replacing an owned value only decodes the new path, the path of
+        // the old value is dropped without decoding once it's cleaned up.
+        strMap.decodedKeys = 0;
+        for (int i = 0; i < UPDATES; i++) {
+            strMap.put("new" + i, "w" + i);
+            expectedMap.put("new" + i, "w" + i);
+        }
+        Assert.assertEquals(expectedMap, strMap.getMap());
+        Assert.assertEquals(expectedMap, watcher.map1);
+        Assert.assertEquals(ENTRIES + UPDATES,
+                            mapDir.getChildren("/", null).size());
+        Assert.assertEquals(UPDATES, strMap.decodedKeys);
+
+        strMap.decodedKeys = 0;
+        for (int i = 0; i < UPDATES; i++) {
+            strMap.removeIfOwner("new" + i);
+            expectedMap.remove("new" + i);
+        }
+        Assert.assertEquals(expectedMap, strMap.getMap());
+        Assert.assertEquals(expectedMap, watcher.map1);
+        Assert.assertEquals(0, strMap.decodedKeys);
+        Assert.assertEquals(4 * UPDATES,
+                            strMap.getNotificationLag().getCount());
+        strMap.stop();
+    }
 }
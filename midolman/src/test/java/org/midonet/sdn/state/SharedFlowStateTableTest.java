@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import com.typesafe.scalalogging.Logger$;
+
+import org.midonet.sdn.state.FlowStateTableTest.TestKey;
+import org.midonet.util.collection.Reducer;
+import org.midonet.util.concurrent.MockClock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.midonet.sdn.state.FlowStateTableTest.IDLE_EXPIRATION;
+
+public class SharedFlowStateTableTest {
+
+    private final MockClock clock = new MockClock();
+    private SharedFlowStateTable<TestKey, Integer> table;
+
+    @Before
+    public void before() {
+        table = new SharedFlowStateTable<>(
+            clock, Logger$.MODULE$.apply(NOPLogger.NOP_LOGGER));
+    }
+
+    @Test
+    public void testEntriesAreVisibleFromAllThreads() throws Exception {
+        final int THREADS = 8;
+        final int KEYS = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = thread; i < KEYS; i += THREADS)
+                        table.putAndRef(new TestKey("k" + i), i);
+                    for (int i = 0; i < KEYS; i++)
+                        table.ref(new TestKey("k" + i));
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        for (int i = 0; i < KEYS; i++) {
+            TestKey key = new TestKey("k" + i);
+            assertThat(table.get(key), equalTo(i));
+            assertThat(table.getRefCount(key), greaterThanOrEqualTo(1));
+            assertThat(table.getRefCount(key), lessThanOrEqualTo(THREADS + 1));
+        }
+    }
+
+    @Test
+    public void testIdleEntriesExpire() {
+        TestKey foo = new TestKey("foo");
+        TestKey bar = new TestKey("bar");
+        table.putAndRef(foo, 1);
+        table.touch(bar, 2);
+        assertThat(table.getRefCount(foo), equalTo(1));
+        assertThat(table.getRefCount(bar), equalTo(0));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        List<TestKey> expired = table.expireIdleEntries(
+            new ArrayList<TestKey>(), new KeyReducer());
+        assertThat(expired, contains(bar));
+        assertThat(table.get(foo), equalTo(1));
+        assertThat(table.get(bar), nullValue());
+
+        table.unref(foo);
+        clock.time_$eq(clock.time() + IDLE_EXPIRATION.toNanos() + 1);
+        table.expireIdleEntries();
+        assertThat(table.get(foo), nullValue());
+    }
+
+    @Test
+    public void testExpirationIsNotReentrant() {
+        final TestKey foo = new TestKey("foo");
+        final TestKey bar = new TestKey("bar");
+        table.touch(foo, 1);
+        table.touch(bar, 2);
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+
+        final List<TestKey> nested = new ArrayList<>();
+        List<TestKey> expired = table.expireIdleEntries(
+            new ArrayList<TestKey>(), new KeyReducer() {
+                @Override
+                public List<TestKey> apply(List<TestKey> seed, TestKey key,
+                                           Integer value) {
+                    table.expireIdleEntries(nested, new KeyReducer());
+                    return super.apply(seed, key, value);
+                }
+            });
+
+        assertThat(expired, containsInAnyOrder(foo, bar));
+        assertThat(nested, empty());
+    }
+
+    static class KeyReducer extends Reducer<TestKey, Integer, List<TestKey>> {
+        @Override
+        public List<TestKey> apply(List<TestKey> seed, TestKey key,
+                                   Integer value) {
+            seed.add(key);
+            return seed;
+        }
+    }
+}
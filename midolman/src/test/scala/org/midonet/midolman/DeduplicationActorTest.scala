@@ -31,6 +31,7 @@ import org.midonet.midolman.PacketWorkflow.{FlowCreated, StateMessage}
 import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.flows.WildcardResultCache
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
@@ -57,6 +58,7 @@ class DeduplicationActorTest extends MidolmanSpec {
     var ddaRef: TestActorRef[TestableDDA] = _
     def dda = ddaRef.underlyingActor
     var packetsOut = 0
+    var packetRing: PacketRing = _
 
     lazy val metricsReg = injector.getInstance(classOf[MetricRegistry])
 
@@ -70,13 +72,15 @@ class DeduplicationActorTest extends MidolmanSpec {
             actorSystem.stop(ddaRef)
 
         metricsReg.removeMatching(MetricFilter.ALL)
+        packetRing = new PacketRing(64)
 
         val ddaProps = Props {
             new TestableDDA(new CookieGenerator(1, 1),
             mockDpChannel, clusterDataClient,
             new PacketPipelineMetrics(metricsReg),
             (x: Int) => { packetsOut += x },
-            simulationExpireMillis)
+            simulationExpireMillis,
+            packetRing)
         }
 
         ddaRef = TestActorRef(ddaProps)(actorSystem)
@@ -141,6 +145,48 @@ class DeduplicationActorTest extends MidolmanSpec {
             packetsOut should be (4)
         }
 
+        scenario("takes packets from its ring") {
+            Given("four packets, two of them with the same match")
+            val pkts = List(makePacket(1), makePacket(1), makePacket(2),
+                            makePacket(3))
+
+            When("they are offered to the DDA's ring")
+            pkts foreach { packetRing.offer(_) should be (true) }
+            packetRing.shouldWakeUp() should be (true)
+            ddaRef ! PacketRing.PacketsPending
+
+            Then("the DDA should execute three workflows")
+            packetsSeen.length should be (3)
+            packetsOut should be (4)
+
+            And("the ring should be empty and waiting for a wake up")
+            packetRing.isEmpty should be (true)
+            packetRing.offer(makePacket(4))
+            packetRing.shouldWakeUp() should be (true)
+        }
+
+        scenario("handles the packets in its ring before the spilled ones") {
+            Given("a full ring of identical packets")
+            val queued = (0 until 64) map (_ => makePacket(1))
+            queued foreach { packetRing.offer(_) should be (true) }
+
+            And("two packets that don't fit in it")
+            val spilled = List(makePacket(2), makePacket(3))
+            spilled foreach { packetRing.offer(_) should be (false) }
+
+            When("the spilled packets are sent to the DDA")
+            ddaRef ! PacketRing.PacketsSpilled(spilled.toArray)
+
+            Then("the DDA should handle them after the ones in the ring")
+            packetsSeen map (_._1) should be (queued.head :: spilled)
+            packetsOut should be (66)
+
+            And("the ring should take packets again")
+            packetRing.isEmpty should be (true)
+            packetRing.hasSpilled should be (false)
+            packetRing.offer(makePacket(4)) should be (true)
+        }
+
         scenario("state messages are not deduplicated") {
             Given("four identical state packets")
             val pkts = (1 to 4) map (_ => makeStatePacket())
@@ -335,14 +381,18 @@ class DeduplicationActorTest extends MidolmanSpec {
                       clusterDataClient: DataClient,
                       metrics: PacketPipelineMetrics,
                       packetOut: Int => Unit,
-                      override val simulationExpireMillis: Long)
+                      override val simulationExpireMillis: Long,
+                      packetRing: PacketRing)
             extends DeduplicationActor(injector.getInstance(classOf[MidolmanConfig]),
-                                       cookieGen, dpChannel, clusterDataClient,
+                                       cookieGen, dpChannel,
                                        new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](),
                                        new ShardedFlowStateTable[NatKey, NatBinding](),
                                        new MockStateStorage(),
                                        HappyGoLuckyLeaser,
-                                       metrics, packetOut)
+                                       metrics,
+                                       injector.getInstance(classOf[WildcardResultCache]),
+                                       packetOut,
+                                       packetRing)
             with MessageAccumulator {
 
         implicit override val dispatcher = this.context.dispatcher
@@ -142,6 +142,7 @@ class DhcpTest extends MidolmanSpec {
 
         fetchTopology(router, routerPort1, routerPort2, routerPort3, bridge,
                       bridgeIntPort1, bridgeIntPort2, bridgePort1, bridgePort2)
+        fetchDhcpConfig(bridge)
 
         workflow = packetWorkflow(Map(bridgePortNumber1 -> bridgePort1.getId,
                                       bridgePortNumber2 -> bridgePort2.getId))
@@ -16,22 +16,25 @@
 
 package org.midonet.midolman
 
-import java.util.{ArrayList, HashSet => JHashSet}
+import java.util.{ArrayList, HashMap => JHashMap, HashSet => JHashSet}
+import java.util.concurrent.TimeUnit
 
 import scala.collection.JavaConversions._
 import scala.util.Random
 
+import org.jctools.queues.SpscArrayQueue
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
-import org.midonet.midolman.FlowController.InvalidateFlowsByTag
+import org.midonet.midolman.FlowController.{FlowDumpCommand, InvalidateFlowsByTag}
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.midolman.util.mock.MockFlowEjector
 import org.midonet.odp.flows.{FlowActions, FlowKeys}
 import org.midonet.odp.{Flow, FlowMatch}
 import org.midonet.sdn.flows.FlowTagger.{FlowTag, TunnelKeyTag}
 import org.midonet.sdn.flows._
-import org.midonet.util.functors.Callback0
+import org.midonet.util.functors.{Callback0, Callback1}
 
 @RunWith(classOf[JUnitRunner])
 class FlowControllerTest extends MidolmanSpec {
@@ -148,7 +151,9 @@ class FlowControllerTest extends MidolmanSpec {
 
             When("The flow is added to the flow controller")
             flow.add()
-            dpConn().flowsCreate(null, new Flow(flow.flowMatch))
+            val dpFlow = new Flow(flow.flowMatch)
+            dpConn().flowsCreate(null, dpFlow)
+            dpFlow.setLastUsedTime(uptimeMillis)
 
             val mwcFlow = testFlowAdded(flow, state)
 
@@ -161,6 +166,35 @@ class FlowControllerTest extends MidolmanSpec {
             testFlowRemoved(flow, mwcFlow, state)
         }
 
+        scenario("Flows requested one by one get the time of the flow " +
+                 "manager") {
+            Given("A wildcard flow")
+            val flow = new TestableFlow(12, 60000)
+
+            val state = new MetricsSnapshot()
+
+            When("The flow is added to the flow controller")
+            flow.add()
+            val dpFlow = new Flow(flow.flowMatch)
+            dpConn().flowsCreate(null, dpFlow)
+
+            val mwcFlow = testFlowAdded(flow, state)
+
+            And("The datapath flow is used half way through its timeout")
+            clock.time += TimeUnit.MILLISECONDS.toNanos(30000)
+            dpFlow.setLastUsedTime(uptimeMillis)
+            val usedTime = flowController.flowManager.currentTimeMillis
+
+            And("The flow controller requests the flow once it times out")
+            clock.time += TimeUnit.MILLISECONDS.toNanos(30001)
+            FlowController ! FlowController.CheckFlowExpiration_
+
+            Then("The last used time is in the time of the flow manager")
+            mwcFlow.getLastUsedTimeMillis should be (usedTime)
+
+            testFlowExists(flow, mwcFlow, state)
+        }
+
         scenario("Check hard expired flows are removed from the flow " +
                  "controller") {
             Given("A wildcard flow")
@@ -251,6 +285,138 @@ class FlowControllerTest extends MidolmanSpec {
         }
     }
 
+    feature("The flow controller dumps the datapath flows") {
+        scenario("Idle expired flows are removed after a flow dump") {
+            Given("A flow controller that dumps the datapath flows")
+            flowController.dumpFlowStats = true
+
+            And("A wildcard flow")
+            val flow = new TestableFlow(10, flowTimeout)
+
+            val state = new MetricsSnapshot()
+
+            When("The flow is added to the flow controller")
+            flow.add()
+            val dpFlow = new Flow(flow.flowMatch)
+            dpConn().flowsCreate(null, dpFlow)
+            dpFlow.setLastUsedTime(uptimeMillis)
+
+            val mwcFlow = testFlowAdded(flow, state)
+
+            When("The flow has expired")
+            expireFlowIdle(mwcFlow)
+
+            And("The flow controller checks the flow expiration")
+            FlowController ! FlowController.CheckFlowExpiration_
+
+            testFlowRemoved(flow, mwcFlow, state)
+        }
+
+        scenario("Flows used since they were scheduled are not removed") {
+            Given("A flow controller that dumps the datapath flows")
+            flowController.dumpFlowStats = true
+
+            And("A wildcard flow")
+            val flow = new TestableFlow(11, 60000)
+
+            val state = new MetricsSnapshot()
+
+            When("The flow is added to the flow controller")
+            flow.add()
+            val dpFlow = new Flow(flow.flowMatch)
+            dpConn().flowsCreate(null, dpFlow)
+
+            val mwcFlow = testFlowAdded(flow, state)
+
+            And("The datapath flow is used half way through its timeout")
+            clock.time += TimeUnit.MILLISECONDS.toNanos(30000)
+            dpFlow.setLastUsedTime(uptimeMillis)
+
+            And("The flow controller dumps the datapath flows")
+            FlowController ! FlowController.CheckFlowExpiration_
+            mwcFlow.getLastUsedTimeMillis should be (
+                flowController.flowManager.currentTimeMillis)
+
+            When("The flow reaches its original timeout")
+            clock.time += TimeUnit.MILLISECONDS.toNanos(30001)
+            FlowController ! FlowController.CheckFlowExpiration_
+
+            testFlowExists(flow, mwcFlow, state)
+        }
+
+        scenario("Repeated queries for the same flow are all answered") {
+            Given("A flow controller that dumps the datapath flows")
+            flowController.dumpFlowStats = true
+
+            And("A datapath flow")
+            val flowMatch = new TestableFlow(13).flowMatch
+            dpConn().flowsCreate(null, new Flow(flowMatch))
+
+            When("The flow is queried twice before the next dump")
+            val answers = new ArrayList[Flow]()
+            val callback = new Callback1[Flow] {
+                override def call(flow: Flow): Unit = answers.add(flow)
+            }
+            flowController.flowManagerHelper.getFlow(flowMatch, callback)
+            flowController.flowManagerHelper.getFlow(flowMatch, callback)
+            answers should be ('empty)
+
+            And("The flow controller dumps the datapath flows")
+            FlowController ! FlowController.CheckFlowExpiration_
+
+            Then("Both queries get the flow")
+            answers.size should be (2)
+            answers.get(0).getMatch should be (flowMatch)
+            answers.get(1).getMatch should be (flowMatch)
+        }
+
+        scenario("Large dumps are read back in chunks") {
+            Given("A datapath with more flows than a dump buffer holds")
+            val dpFlows = new JHashMap[FlowMatch, Flow]()
+            for (i <- 1 to 2000) {
+                val dpFlow = new Flow(new TestableFlow(i).flowMatch)
+                dpFlow.setLastUsedTime(i.toLong)
+                dpFlows.put(dpFlow.getMatch, dpFlow)
+            }
+
+            When("The flows are dumped")
+            val dump = new FlowDumpCommand(new SpscArrayQueue(1))
+            dump.usedTimeOffset = 1000000L
+            val ejector = new MockFlowEjector(dpFlows)
+            ejector.dump(dump)
+            dump.numFlows should be (dpFlows.size)
+
+            Then("All the flows are read back in more than one chunk")
+            def readBack(): Unit = {
+                var chunks = 0
+                var flows = 0
+                while (dump.nextChunk()) {
+                    chunks += 1
+                    while (dump.nextFlow()) {
+                        flows += 1
+                        dump.lastUsedTime should be (
+                            dpFlows.get(dump.flowMatch).getLastUsedTime + 1000000L)
+                    }
+                }
+                chunks should be > 1
+                flows should be (dpFlows.size)
+                dump.clear()
+            }
+            readBack()
+
+            When("The flows are dumped again into the released buffers")
+            ejector.dump(dump)
+            dump.numFlows should be (dpFlows.size)
+
+            Then("All the flows are read back again")
+            readBack()
+        }
+    }
+
+    /* The time at which the datapath reports that a flow was used: the
+     * milliseconds elapsed since boot, which the mock clock starts at. */
+    private def uptimeMillis: Long = TimeUnit.NANOSECONDS.toMillis(clock.time)
+
     private def testFlowAdded(flow: TestableFlow,
                               state: MetricsSnapshot): ManagedFlow = {
         Then("The datapath flow metric should be incremented by one")
@@ -319,11 +485,11 @@ class FlowControllerTest extends MidolmanSpec {
     }
 
     private def expireFlowHard(mwcFlow: ManagedFlow) {
-        mwcFlow.setCreationTimeMillis(System.currentTimeMillis() - flowTimeout)
+        clock.time += TimeUnit.MILLISECONDS.toNanos(mwcFlow.hardExpirationMillis)
     }
 
     private def expireFlowIdle(mwcFlow: ManagedFlow) {
-        mwcFlow.setLastUsedTimeMillis(System.currentTimeMillis() - flowTimeout)
+        clock.time += TimeUnit.MILLISECONDS.toNanos(mwcFlow.idleExpirationMillis)
     }
 
     sealed abstract class TestableFlowType
@@ -33,6 +33,7 @@ import org.midonet.cluster.data.rules.TraceRule
 import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.flows.WildcardResultCache
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.rules.Condition
 import org.midonet.midolman.simulation.PacketContext
@@ -158,12 +159,14 @@ class FlowTracingTest extends MidolmanSpec {
                       postQueue: Queue[Boolean],
                       override val simulationExpireMillis: Long)
             extends DeduplicationActor(injector.getInstance(classOf[MidolmanConfig]),
-                                       cookieGen, dpChannel, clusterDataClient,
+                                       cookieGen, dpChannel,
                                        new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](),
                                        new ShardedFlowStateTable[NatKey, NatBinding](),
                                        new MockStateStorage(),
                                        HappyGoLuckyLeaser,
-                                       metrics, packetOut) {
+                                       metrics,
+                                       injector.getInstance(classOf[WildcardResultCache]),
+                                       packetOut) {
 
         override def startWorkflow(context: PacketContext): Unit = {
             preQueue += context.tracingEnabled
@@ -63,12 +63,15 @@ class FlowTranslatorTest extends MidolmanSpec {
         def grePort(id: Int): Unit =
             dpState.grePort = id
 
-        def local(binding: (UUID, Integer)): Unit =
+        def local(binding: (UUID, Integer)): Unit = {
             dpState.dpPortNumberForVport += binding
+            dpState.dpVersion += 1
+        }
 
         def peer(binding: (UUID, (Int, Int))): Unit = {
             val (peer,(src,dst)) = binding
             dpState.peerTunnels += (peer -> Route(src,dst,output(dpState.grePort)))
+            dpState.dpVersion += 1
         }
 
         def input(id: UUID): Unit =
@@ -246,6 +249,46 @@ class FlowTranslatorTest extends MidolmanSpec {
                             FlowTagger.tagForDpPort(3)))
         }
 
+        translationScenario("The bridge ports are bound to other dp ports") { ctx =>
+            val bridge = newBridge("floodBridge")
+            val inPort = makePort(hostId, bridge)(identity)
+            val port0 = makePort(hostId, bridge)(identity)
+            val port1 = makePort(hostId, bridge)(identity)
+
+            activatePorts(List(inPort, port0, port1))
+            ctx host makeHost(Map(inPort.getId -> "in", port0.getId -> "port0", port1.getId -> "port1"))
+            ctx input inPort.getId
+            ctx local inPort.getId -> 1
+            ctx local port0.getId -> 2
+            ctx local port1.getId -> 3
+
+            val brPorts = brPortIds(port0, port1)
+            ctx translate FlowActionOutputToVrnBridge(bridge.getId, brPorts)
+            ctx verify (List(output(2), output(3)),
+                        Set(FlowTagger.tagForDpPort(2),
+                            FlowTagger.tagForDpPort(3)))
+
+            ctx local port1.getId -> 4
+            ctx translate FlowActionOutputToVrnBridge(bridge.getId, brPorts)
+            ctx verify (List(output(2), output(4)),
+                        Set(FlowTagger.tagForDpPort(2),
+                            FlowTagger.tagForDpPort(4)))
+        }
+
+        scenario("Port updates only invalidate the floods of their bridge") {
+            val bridge0 = newBridge("versionBridge0")
+            val bridge1 = newBridge("versionBridge1")
+            makePort(hostId, bridge0)(identity)
+            makePort(hostId, bridge1)(identity)
+            val version0 = VirtualTopologyActor.portsVersion(bridge0.getId)
+            val version1 = VirtualTopologyActor.portsVersion(bridge1.getId)
+
+            makePort(hostId, bridge0)(identity)
+
+            VirtualTopologyActor.portsVersion(bridge0.getId) should not be version0
+            VirtualTopologyActor.portsVersion(bridge1.getId) should be (version1)
+        }
+
         translationScenario("The bridge has remote ports") { ctx =>
             val inPort = UUID.randomUUID()
             val remoteHost0 = UUID.randomUUID()
@@ -488,7 +531,8 @@ class FlowTranslatorTest extends MidolmanSpec {
     }
 
     class TestDatapathState extends DatapathState {
-        var version: Long = 0
+        var dpVersion: Long = 0
+        override def version = dpVersion
         var host: ResolvedHost = null
         var dpPortNumberForVport = mutable.Map[UUID, Integer]()
         var peerTunnels = mutable.Map[UUID,Route]()
@@ -522,6 +566,7 @@ class FlowTranslatorTest extends MidolmanSpec {
 
             val ctx = new TranslationContext() {
                 protected val dpState = new TestDatapathState
+                lazy val ft = new TestFlowTranslator(dpState)
 
                 def translate(actions: List[FlowAction],
                               ethernet: Ethernet): Unit = {
@@ -531,7 +576,6 @@ class FlowTranslatorTest extends MidolmanSpec {
                         pktCtx = packetContext(ethernet, inPortUUID)
                         pktCtx.virtualFlowActions.addAll(actions)
                         pktCtx.outPortId = id
-                        val ft = new TestFlowTranslator(dpState)
                         ft.translateActions(pktCtx)
                     }
                     pktCtx.outPortId should be (id)
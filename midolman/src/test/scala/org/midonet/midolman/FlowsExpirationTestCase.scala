@@ -37,6 +37,7 @@ import org.midonet.odp._
 import org.midonet.packets.{IPv4Addr, MAC, Packets}
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.util.MidonetEventually
+import org.midonet.util.concurrent.NanoClock
 
 @Category(Array(classOf[SimulationTests]))
 @RunWith(classOf[JUnitRunner])
@@ -44,6 +45,9 @@ class FlowsExpirationTestCase extends MidolmanTestCase
                               with Dilation
                               with MidonetEventually {
 
+    // The flows expire according to the FlowController's clock.
+    override val clock = NanoClock.DEFAULT
+
     var datapath: Datapath = null
 
     var timeOutFlow: Long = 500
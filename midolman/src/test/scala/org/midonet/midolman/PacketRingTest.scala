@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman
+
+import java.util.IdentityHashMap
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.odp.{FlowMatch, Packet}
+
+@RunWith(classOf[JUnitRunner])
+class PacketRingTest extends FeatureSpec with Matchers {
+
+    def packet() = new Packet(null, new FlowMatch())
+
+    feature("Producers wake up the worker") {
+        scenario("Only the first packet wakes up a sleeping worker") {
+            val ring = new PacketRing(16)
+            ring.offer(packet()) should be (true)
+            ring.shouldWakeUp() should be (true)
+            ring.offer(packet()) should be (true)
+            ring.shouldWakeUp() should be (false)
+
+            ring.poll() should not be null
+            ring.poll() should not be null
+            ring.poll() should be (null)
+            ring.awaitPackets() should be (false)
+
+            ring.offer(packet()) should be (true)
+            ring.shouldWakeUp() should be (true)
+        }
+
+        scenario("The worker stays awake while there are packets") {
+            val ring = new PacketRing(16)
+            ring.offer(packet())
+            ring.shouldWakeUp() should be (true)
+            ring.awaitPackets() should be (true)
+            ring.offer(packet())
+            ring.shouldWakeUp() should be (false)
+        }
+
+        scenario("The ring rejects packets when full") {
+            val ring = new PacketRing(4)
+            (0 until 4) foreach { _ => ring.offer(packet()) should be (true) }
+            ring.offer(packet()) should be (false)
+        }
+
+        scenario("The ring spills packets until the spilled ones are handled") {
+            val ring = new PacketRing(4)
+            (0 until 4) foreach { _ => ring.offer(packet()) should be (true) }
+            ring.offer(packet()) should be (false)
+            ring.hasSpilled should be (true)
+
+            ring.poll()
+            ring.offer(packet()) should be (false)
+
+            ring.spilledHandled(2)
+            ring.hasSpilled should be (false)
+            ring.offer(packet()) should be (true)
+        }
+    }
+
+    feature("The worker waits according to the wait strategy") {
+        for (strategy <- Seq(PacketRing.Spin, PacketRing.Park)) {
+            scenario(s"$strategy gives up after the wait time") {
+                val ring = new PacketRing(16, strategy,
+                                          TimeUnit.MILLISECONDS.toNanos(10))
+                ring.offer(packet())
+                ring.shouldWakeUp() should be (true)
+                ring.poll()
+                ring.awaitPackets() should be (false)
+                ring.offer(packet())
+                ring.shouldWakeUp() should be (true)
+            }
+
+            scenario(s"$strategy takes the packets arriving while waiting") {
+                val ring = new PacketRing(16, strategy,
+                                          TimeUnit.SECONDS.toNanos(10))
+                ring.offer(packet())
+                ring.shouldWakeUp() should be (true)
+                ring.poll()
+                val producer = new Thread() {
+                    override def run(): Unit = {
+                        Thread.sleep(5)
+                        ring.offer(packet())
+                    }
+                }
+                producer.start()
+                ring.awaitPackets() should be (true)
+                ring.shouldWakeUp() should be (false)
+                ring.poll() should not be null
+                producer.join()
+            }
+        }
+
+        scenario("Unknown wait strategies") {
+            PacketRing.waitStrategy("block") should be (Some(PacketRing.Block))
+            PacketRing.waitStrategy("spin") should be (Some(PacketRing.Spin))
+            PacketRing.waitStrategy("park") should be (Some(PacketRing.Park))
+            PacketRing.waitStrategy("sleep") should be (None)
+        }
+    }
+
+    feature("No packets are left behind") {
+        scenario("Concurrent producers") {
+            val PRODUCERS = 4
+            val PACKETS = 20000
+            val ring = new PacketRing(64)
+            val pkts = Array.fill(PRODUCERS, PACKETS)(packet())
+            val origin = new IdentityHashMap[Packet, (Int, Int)]()
+            for (p <- 0 until PRODUCERS; i <- 0 until PACKETS)
+                origin.put(pkts(p)(i), (p, i))
+            // Stands for the worker's mailbox.
+            val mailbox = new LinkedBlockingQueue[Any]()
+
+            val producers = (0 until PRODUCERS) map { p =>
+                new Thread() {
+                    override def run(): Unit = {
+                        var i = 0
+                        while (i < PACKETS) {
+                            if (ring.offer(pkts(p)(i))) {
+                                if (ring.shouldWakeUp())
+                                    mailbox.put(PacketRing.PacketsPending)
+                            } else {
+                                mailbox.put(PacketRing.PacketsSpilled(
+                                    Array(pkts(p)(i))))
+                            }
+                            i += 1
+                        }
+                    }
+                }
+            }
+            producers foreach (_.start())
+
+            var received = 0
+            val lastSeen = Array.fill(PRODUCERS)(-1)
+            def handle(pkt: Packet): Unit = {
+                val (p, i) = origin.get(pkt)
+                i should be > lastSeen(p)
+                lastSeen(p) = i
+                received += 1
+            }
+            while (received < PRODUCERS * PACKETS) {
+                mailbox.poll(10, TimeUnit.SECONDS) match {
+                    case PacketRing.PacketsPending =>
+                        var pkt: Packet = null
+                        do {
+                            while ({ pkt = ring.poll(); pkt ne null })
+                                handle(pkt)
+                        } while (ring.awaitPackets())
+                    case PacketRing.PacketsSpilled(spilled) =>
+                        var pkt: Packet = null
+                        while ({ pkt = ring.poll(); pkt ne null })
+                            handle(pkt)
+                        spilled foreach handle
+                        ring.spilledHandled(spilled.length)
+                    case m =>
+                        fail(s"Unexpected message $m")
+                }
+            }
+            producers foreach (_.join())
+
+            received should be (PRODUCERS * PACKETS)
+            ring.isEmpty should be (true)
+            ring.hasSpilled should be (false)
+            // Handling spilled packets may have drained the packets that a
+            // wake up was sent for.
+            while (!mailbox.isEmpty)
+                mailbox.poll() should be (PacketRing.PacketsPending)
+        }
+    }
+}
@@ -35,7 +35,9 @@ import org.scalatest.junit.JUnitRunner
 
 import org.midonet.config.ConfigProvider
 import org.midonet.midolman.UnderlayResolver.Route
+import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, SimulationResult}
 import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.flows.WildcardResultCache
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackValue, ConnTrackKey}
 import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
@@ -64,10 +66,12 @@ object PacketWorkflowTest {
     val conntrackTable = new MockFlowStateTable[ConnTrackKey, ConnTrackValue]()
     val natTable = new MockFlowStateTable[NatKey, NatBinding]()
 
-    var statePushed = false
+    var stateAccumulated = false
 
-    def forCookie(testKit: ActorRef, pkt: Packet, cookie: Int)
-        (implicit system: ActorSystem): (PacketContext, PacketWorkflow) = {
+    def forCookie(testKit: ActorRef, pkt: Packet, cookie: Int,
+                  wildcardResultCache: WildcardResultCache =
+                      new WildcardResultCache(0))
+        (implicit system: ActorSystem): (PacketContext, TestableWorkflow) = {
         val dpChannel = new MockDatapathChannel() {
             override def executePacket(packet: Packet,
                                        actions: JList[FlowAction]): Unit = {
@@ -89,29 +93,49 @@ object PacketWorkflowTest {
             override def vtepTunnellingOutputAction: FlowActionOutput = ???
             override def isVtepTunnellingPort(portNumber: Integer): Boolean = ???
             override def isOverlayTunnellingPort(portNumber: Integer): Boolean = ???
-        }, null, 0) {
-            override def pushState(dpChannel: DatapathChannel): Unit = {
-                 statePushed = true
-            }
+        }, null, 0, null) {
+            override def pushState(dpChannel: DatapathChannel): Unit = { }
 
             override def accumulateNewKeys(
                           conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
                           natTx: FlowStateTransaction[NatKey, NatBinding],
                           ingressPort: UUID, egressPorts: JList[UUID],
                           tags: JHashSet[FlowTag],
-                          callbacks: ArrayList[Callback0]): Unit = { }
-        }
-        val wf = new PacketWorkflow(dpState, null, null, dpChannel,
-                                    replicator, config) {
-            override def runSimulation(pktCtx: PacketContext) =
-                throw new Exception("no Coordinator")
-            override def translateActions(pktCtx: PacketContext) = {
-                testKit ! TranslateActions
-                pktCtx.addFlowAndPacketAction(output)
+                          callbacks: ArrayList[Callback0]): Unit = {
+                stateAccumulated = true
             }
         }
+        val wf = new TestableWorkflow(testKit, dpState, dpChannel, replicator,
+                                      wildcardResultCache)
         (pktCtx, wf)
     }
+
+    class TestableWorkflow(testKit: ActorRef,
+                           dpState: DatapathState,
+                           dpChannel: DatapathChannel,
+                           replicator: FlowStateReplicator,
+                           wildcardResultCache: WildcardResultCache)
+                          (implicit system: ActorSystem)
+            extends PacketWorkflow(dpState, null, dpChannel, replicator,
+                                   config, wildcardResultCache) {
+        var simulations = 0
+
+        // Stands for a simulation that adds a flow.
+        override def runSimulation(pktCtx: PacketContext) = {
+            simulations += 1
+            AddVirtualWildcardFlow
+        }
+
+        override def translateActions(pktCtx: PacketContext) = {
+            testKit ! TranslateActions
+            pktCtx.addFlowAndPacketAction(output)
+        }
+
+        def handlePacketIn(pktCtx: PacketContext): SimulationResult = {
+            pktCtx.prepareForSimulation(FlowController.lastInvalidationEvent)
+            processSimulationResult(pktCtx, simulatePacketIn(pktCtx))
+        }
+    }
 }
 
 @RunWith(classOf[JUnitRunner])
@@ -163,8 +187,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the current packet gets executed")
             runChecks(pktCtx, pkfw, checkTranslate, checkExecPacket)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns NoOp") {
@@ -177,8 +201,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             Then("the resulting actions are empty")
             runChecks(pktCtx, pkfw, checkEmptyActions _)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns Drop for userspace only match") {
@@ -191,8 +215,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the packets gets executed (with 0 action)")
             runChecks(pktCtx, pkfw, applyEmptyActions)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns Drop") {
@@ -207,8 +231,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the current packet gets executed (with 0 actions)")
             runChecks(pktCtx, pkfw, applyEmptyActions)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns TemporaryDrop for userspace only match") {
@@ -223,8 +247,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the packets gets executed (with 0 action)")
             runChecks(pktCtx, pkfw, applyEmptyActions)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns TemporaryDrop") {
@@ -239,8 +263,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the current packet gets executed (with 0 actions)")
             runChecks(pktCtx, pkfw, applyEmptyActions)
 
-            And("state is not pushed")
-            statePushed should be (false)
+            And("state is not accumulated")
+            stateAccumulated should be (false)
         }
 
         scenario("A Simulation returns AddVirtualWildcardFlow " +
@@ -260,8 +284,8 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the current packet gets executed")
             runChecks(pktCtx, pkfw, checkTranslate _)
 
-            And("state is pushed")
-            statePushed should be (true)
+            And("state is accumulated")
+            stateAccumulated should be (true)
         }
 
         scenario("A Simulation returns AddVirtualWildcardFlow") {
@@ -278,10 +302,51 @@ class PacketWorkflowTest extends TestKit(ActorSystem("PacketWorkflowTest"))
             And("the current packet gets executed")
             runChecks(pktCtx, pkfw, checkTranslate _ :: applyOutputActions)
 
-            And("state is pushed")
-            statePushed should be (true)
+            And("state is accumulated")
+            stateAccumulated should be (true)
+        }
+    }
+
+    feature("A PacketWorkflow reuses cached simulation results") {
+
+        scenario("A packet matching a cached result skips the simulation") {
+            Given("a PkWf object with a wildcard result cache")
+            val cache = new WildcardResultCache(10)
+            val (pktCtx, pkfw) =
+                PacketWorkflowTest.forCookie(self, packet(), cookie, cache)
+
+            When("a packet is simulated")
+            pkfw.handlePacketIn(pktCtx) should be (PacketWorkflow.FlowCreated)
+            pkfw.simulations should be (1)
+
+            Then("its result is handed over to the FlowController")
+            pktCtx.wildcardResult should not be null
+            cache.add(pktCtx.wildcardResult) should be (true)
+
+            When("a packet with the same match arrives")
+            val (pktCtx2, _) =
+                PacketWorkflowTest.forCookie(self, packet(), cookie + 1, cache)
+            pkfw.handlePacketIn(pktCtx2) should be (PacketWorkflow.FlowCreated)
+
+            Then("it reuses the cached result without being simulated")
+            pkfw.simulations should be (1)
+            pktCtx2.wildcardResultHit should be (true)
+            pktCtx2.flowActions should contain (output)
+            receiveWhile(500 millis) { case m => m }
         }
 
+        scenario("Results are not kept when the cache is disabled") {
+            Given("a PkWf object with a disabled wildcard result cache")
+            val (pktCtx, pkfw) =
+                PacketWorkflowTest.forCookie(self, packet(), cookie)
+
+            When("a packet is simulated")
+            pkfw.handlePacketIn(pktCtx) should be (PacketWorkflow.FlowCreated)
+
+            Then("no result is handed over to the FlowController")
+            pktCtx.wildcardResult should be (null)
+            receiveWhile(500 millis) { case m => m }
+        }
     }
 
     def flMatch(userspace: Boolean = false) = {
@@ -36,6 +36,7 @@ import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, NoOp}
 import org.midonet.midolman.PacketWorkflow.SimulationResult
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.flows.WildcardResultCache
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.layer3.Route._
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
@@ -261,11 +262,12 @@ class PingTest extends MidolmanSpec {
 
     def testDDA: DeduplicationActor = new DeduplicationActor(
         injector.getInstance(classOf[MidolmanConfig]),
-        new CookieGenerator(1, 1), mockDpChannel, clusterDataClient,
+        new CookieGenerator(1, 1), mockDpChannel,
         new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](),
         new ShardedFlowStateTable[NatKey, NatBinding](),
         new MockStateStorage(), HappyGoLuckyLeaser,
         new PacketPipelineMetrics(injector.getInstance(classOf[MetricRegistry])),
+        injector.getInstance(classOf[WildcardResultCache]),
         x => Unit)
 
     def mockDpState = new DatapathState {
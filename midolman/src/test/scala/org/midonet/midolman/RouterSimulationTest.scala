@@ -27,11 +27,12 @@ import org.scalatest.junit.JUnitRunner
 import org.midonet.cluster.data.{Router => ClusterRouter}
 import org.midonet.cluster.data.ports.RouterPort
 import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, NoOp, TemporaryDrop, Drop}
+import org.midonet.midolman.layer3.{CompiledRoutingTable, Route}
 import org.midonet.midolman.layer3.Route._
 import org.midonet.midolman.rules.{RuleResult, NatTarget, Condition}
 import org.midonet.midolman.simulation.{Router => SimRouter, RouteBalancer}
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
-import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.midolman.topology.{RoutingTableWrapper, VirtualTopologyActor}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.odp.FlowMatch
 import org.midonet.odp.flows._
@@ -117,12 +118,64 @@ class RouterSimulationTest extends MidolmanSpec {
             .setNetworkSrc(IPv4Addr.fromString(uplinkPortAddr))
             .setNetworkDst(IPv4Addr.fromString(routeDst))
 
-        val rb = new RouteBalancer(simRouter.rTable)
+        val rb = new RouteBalancer(simRouter.rTable, RouteBalancer.RoundRobin)
         (0 until gateways.length) map { _ =>
            rb.lookup(fmatch, Logger(NOPLogger.NOP_LOGGER)).getNextHopGateway
         } should contain theSameElementsAs gateways
     }
 
+    private def udpMatch(dst: String, srcPort: Int) =
+        new FlowMatch()
+            .setNetworkSrc(IPv4Addr.fromString(uplinkPortAddr))
+            .setNetworkDst(IPv4Addr.fromString(dst))
+            .setNetworkProto(UDP.PROTOCOL_NUMBER)
+            .setSrcPort(srcPort)
+            .setDstPort(53)
+
+    scenario("Balances routes by flow") {
+        val routeDst = "21.31.41.51"
+        val gateways = List("180.0.1.40", "180.0.1.41", "180.0.1.42")
+        gateways foreach { gw =>
+            newRoute(router, "0.0.0.0", 0, routeDst, 32,
+                     NextHop.PORT, uplinkPort.getId, gw, 1)
+        }
+
+        val rb = new RouteBalancer(simRouter.rTable, RouteBalancer.FlowHash)
+        val log = Logger(NOPLogger.NOP_LOGGER)
+
+        val fmatch = udpMatch(routeDst, 10000)
+        val gw = rb.lookup(fmatch, log).getNextHopGateway
+        (0 until 10) foreach { _ =>
+            rb.lookup(fmatch, log).getNextHopGateway should be (gw)
+        }
+        fmatch.isSeen(FlowMatch.Field.SrcPort) should be (true)
+
+        (0 until 100) map { i =>
+            rb.lookup(udpMatch(routeDst, 10000 + i), log).getNextHopGateway
+        } should contain allOf (gateways(0), gateways(1), gateways(2))
+    }
+
+    scenario("Resilient hashing only moves the flows of a removed route") {
+        def route(gw: Int) =
+            new Route(0, 0, IPv4Addr.stringToInt("21.31.41.51"), 32,
+                      NextHop.PORT, uplinkPort.getId, gw, 1, null, router.getId)
+        val routes = (1 to 4) map { i => route(0xb4000100 + i) }
+        def balancer(routes: Seq[Route]) = new RouteBalancer(
+            new RoutingTableWrapper(new CompiledRoutingTable(
+                java.util.Arrays.asList(routes: _*))),
+            RouteBalancer.ResilientHash)
+        val log = Logger(NOPLogger.NOP_LOGGER)
+
+        val all = balancer(routes)
+        val fewer = balancer(routes.tail)
+        (0 until 1000) foreach { i =>
+            val before = all.lookup(udpMatch("21.31.41.51", i), log)
+            val after = fewer.lookup(udpMatch("21.31.41.51", i), log)
+            if (before ne routes.head)
+                after should be theSameInstanceAs before
+        }
+    }
+
     scenario("Drops IPv6") {
         val pkt = { eth ether_type IPv6.ETHERTYPE src "01:02:03:04:05:06" dst port1.getHwAddr }
         simulate(packetContextFor(pkt, uplinkPort.getId))._1 should be (Drop)
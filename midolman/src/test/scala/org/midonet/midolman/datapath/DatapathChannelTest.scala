@@ -26,10 +26,10 @@ import org.midonet.sdn.flows.ManagedFlow
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.concurrent.Eventually._
 
-import org.midonet.midolman.FlowController.FlowRemoveCommand
+import org.midonet.midolman.FlowController.{FlowDumpCommand, FlowRemoveCommand}
 import org.midonet.midolman.flows.FlowEjector
 import org.midonet.midolman.util.MidolmanSpec
-import org.midonet.netlink.{MockNetlinkChannelFactory, NetlinkMessage}
+import org.midonet.netlink.{MockNetlinkChannelFactory, NetlinkMessage, NLFlag}
 import org.midonet.odp._
 import org.midonet.odp.family.{DatapathFamily, FlowFamily, PacketFamily, PortFamily}
 import org.midonet.odp.flows.{FlowKey, FlowKeys, FlowAction, FlowActions}
@@ -49,7 +49,7 @@ class DatapathChannelTest extends MidolmanSpec {
                                              new FlowFamily(3), new PacketFamily(4), 5, 6)
     val dpChannel = new DisruptorDatapathChannel(capacity = 16, threads = 1,
                                                  ejector, factory, ovsFamilies,
-                                                 clock)
+                                                 clock, msgsPerWrite = 8)
 
     val ethernet = { eth src MAC.random() dst MAC.random() } <<
                    { ip4 src IPv4Addr.random dst IPv4Addr.random } << payload(Array[Byte](0))
@@ -113,6 +113,19 @@ class DatapathChannelTest extends MidolmanSpec {
                                      FlowActions.reader.deserializeFrom, actions)
         }
 
+        scenario ("Writes every message of a batch") {
+            var i = 0
+            while (i < 100) {
+                dpChannel.createFlow(new Flow(packet.getMatch, actions))
+                dpChannel.executePacket(packet, actions)
+                i += 1
+            }
+
+            eventually {
+                nlChannel.packetsWritten.get() should be (200)
+            }
+        }
+
         scenario ("Channel is bounded and thread spins when ring buffer is full") {
             var i = 0
             while (i < 10000) {
@@ -156,6 +169,22 @@ class DatapathChannelTest extends MidolmanSpec {
                 nlChannel.packetsWritten.get() should be (4)
             }
         }
+
+        scenario ("Can dump flows") {
+            val flowDump = new FlowDumpCommand(new SpscArrayQueue[FlowDumpCommand](2))
+            ejector.dump(flowDump) should be (true)
+
+            eventually {
+                nlChannel.packetsWritten.get() should be (1)
+            }
+            ejector.hasDump should be (false)
+
+            val bb = nlChannel.written.poll()
+            val flags = bb.getShort(NetlinkMessage.NLMSG_FLAGS_OFFSET)
+            (flags & NLFlag.Get.DUMP) should be (NLFlag.Get.DUMP)
+            bb.position(NetlinkMessage.GENL_HEADER_SIZE)
+            bb.getInt() should be (datapathId)
+        }
     }
 
     private def flowMatchParser(buf: ByteBuffer): FlowMatch = {
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.flows
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.midolman.flows.WildcardResultCache.WildcardResult
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.midolman.state.ConnTrackState
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowActions.{output, setKey}
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.packets.{IPv4, IPv4Addr, MAC, TCP}
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.VirtualActions.FlowActionOutputToVrnPort
+import org.midonet.util.functors.Callback0
+
+@RunWith(classOf[JUnitRunner])
+class WildcardResultCacheTest extends FeatureSpec with Matchers {
+
+    val device = UUID.randomUUID()
+    val outPort = UUID.randomUUID()
+
+    def flowMatch(srcIp: String = "10.0.0.1", dstIp: String = "10.0.0.2",
+                  srcPort: Int = 3000) =
+        new FlowMatch()
+            .setInputPortNumber(1)
+            .setEthSrc(MAC.random())
+            .setEthDst(MAC.random())
+            .setEtherType(IPv4.ETHERTYPE)
+            .setNetworkSrc(IPv4Addr.fromString(srcIp))
+            .setNetworkDst(IPv4Addr.fromString(dstIp))
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(srcPort)
+            .setDstPort(80)
+
+    /* Simulates a packet for which the simulation only looked at
+     * the network destination. */
+    def simulate(fmatch: FlowMatch): PacketContext = {
+        val context = new PacketContext(0, null, fmatch)
+        context.wcmatch.getNetworkDstIP
+        context.origMatch.propagateSeenFieldsFrom(context.wcmatch)
+        context.addVirtualAction(FlowActionOutputToVrnPort(outPort))
+        context.addFlowAndPacketAction(output(2))
+        context.addFlowTag(FlowTagger.tagForDevice(device))
+        context
+    }
+
+    def callbackCounter() = new Callback0 {
+        var calls = 0
+        override def call(): Unit = calls += 1
+    }
+
+    feature("Results are keyed on the seen fields") {
+        scenario("A packet that differs in unseen fields hits the result") {
+            val cache = new WildcardResultCache(10)
+            val result = WildcardResultCache.resultFor(simulate(flowMatch()))
+            cache.add(result) shouldBe true
+
+            val hit = cache.lookup(flowMatch(srcIp = "10.0.0.3", srcPort = 4000))
+            hit should be (result)
+
+            val context = new PacketContext(0, null, flowMatch())
+            hit.applyTo(context)
+            context.flowActions should be (result.flowActions)
+            context.flowTags should contain (FlowTagger.tagForDevice(device))
+            context.wildcardResultHit shouldBe true
+            context.origMatch.getSeenFields shouldBe result.flowMatch.getSeenFields
+        }
+
+        scenario("A packet that differs in a seen field misses") {
+            val cache = new WildcardResultCache(10)
+            cache.add(WildcardResultCache.resultFor(simulate(flowMatch())))
+
+            cache.lookup(flowMatch(dstIp = "10.0.0.3")) should be (null)
+            cache.lookup(flowMatch().setInputPortNumber(2)) should be (null)
+        }
+
+        scenario("Set key actions make the fields of the header part of the key") {
+            val cache = new WildcardResultCache(10)
+            val context = simulate(flowMatch())
+            context.addVirtualAction(setKey(FlowKeys.tcp(5000, 80)))
+            cache.add(WildcardResultCache.resultFor(context))
+
+            cache.lookup(flowMatch(srcPort = 4000)) should be (null)
+            cache.lookup(flowMatch()) should not be null
+        }
+    }
+
+    feature("Only results that depend on the seen fields are cached") {
+        scenario("Results with flow state are not cacheable") {
+            val context = simulate(flowMatch())
+            context.addFlowTag(ConnTrackState.ConnTrackKey(context.wcmatch, device))
+            WildcardResultCache.resultFor(context) should be (null)
+        }
+
+        scenario("Temporary results are not cacheable") {
+            val context = simulate(flowMatch())
+            context.hardExpirationMillis = 5000
+            WildcardResultCache.resultFor(context) should be (null)
+        }
+
+        scenario("Results with userspace actions are not cacheable") {
+            val context = simulate(flowMatch())
+            context.addVirtualAction(setKey(
+                FlowKeys.icmpError(3.toByte, 1.toByte, new Array[Byte](8))))
+            WildcardResultCache.resultFor(context) should be (null)
+        }
+    }
+
+    feature("Results are removed from the cache") {
+        scenario("Invalidating a tag removes the results tagged with it") {
+            val cache = new WildcardResultCache(10)
+            cache.add(WildcardResultCache.resultFor(simulate(flowMatch())))
+
+            cache.invalidate(FlowTagger.tagForDevice(UUID.randomUUID()))
+            cache.size should be (1)
+            cache.invalidate(FlowTagger.tagForDevice(device))
+            cache.size should be (0)
+            cache.lookup(flowMatch()) should be (null)
+        }
+
+        scenario("The oldest result is evicted when the cache is full") {
+            val cache = new WildcardResultCache(2)
+            val results = List("10.0.0.2", "10.0.0.3", "10.0.0.4") map { ip =>
+                val result = WildcardResultCache.resultFor(simulate(flowMatch(dstIp = ip)))
+                cache.add(result)
+                result
+            }
+
+            cache.size should be (2)
+            cache.lookup(flowMatch(dstIp = "10.0.0.2")) should be (null)
+            cache.lookup(flowMatch(dstIp = "10.0.0.4")) should be (results(2))
+        }
+
+        scenario("Idle results expire") {
+            val cache = new WildcardResultCache(10)
+            val context = simulate(flowMatch())
+            context.idleExpirationMillis = 1000
+            val result = WildcardResultCache.resultFor(context)
+            cache.add(result)
+
+            cache.expire(result.lastHitMillis + 500)
+            cache.size should be (1)
+            cache.expire(result.lastHitMillis + 1500)
+            cache.size should be (0)
+        }
+    }
+
+    feature("Flow removed callbacks") {
+        scenario("Callbacks run when the last flow using the result is gone") {
+            val cache = new WildcardResultCache(10)
+            val cb = callbackCounter()
+            val context = simulate(flowMatch())
+            context.addFlowRemovedCallback(cb)
+            val result = WildcardResultCache.resultFor(context)
+            context.flowRemovedCallbacks should contain only result
+            cache.add(result)
+
+            val hit: WildcardResult = cache.lookup(flowMatch(srcPort = 4000))
+            hit.refCount should be (3)
+
+            context.runFlowRemovedCallbacks()
+            cache.invalidate(FlowTagger.tagForDevice(device))
+            cb.calls should be (0)
+
+            cache.lookup(flowMatch()) should be (null)
+            hit.call()
+            cb.calls should be (1)
+            result.tryRef() shouldBe false
+        }
+    }
+}
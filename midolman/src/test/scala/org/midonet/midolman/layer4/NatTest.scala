@@ -40,6 +40,7 @@ import org.midonet.midolman.{DatapathState, DeduplicationActor}
 import org.midonet.midolman.FlowController
 import org.midonet.midolman.FlowController.InvalidateFlowsByTag
 import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.flows.WildcardResultCache
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.layer3.Route.NextHop
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
@@ -1008,11 +1009,12 @@ class NatTest extends MidolmanSpec {
 
     def testDDA: DeduplicationActor = new DeduplicationActor(
         injector.getInstance(classOf[MidolmanConfig]),
-        new CookieGenerator(1, 1), mockDpChannel, clusterDataClient,
+        new CookieGenerator(1, 1), mockDpChannel,
         new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock).addShard(),
         new ShardedFlowStateTable[NatKey, NatBinding](clock).addShard(),
         new MockStateStorage(), HappyGoLuckyLeaser,
         new PacketPipelineMetrics(injector.getInstance(classOf[MetricRegistry])),
+        injector.getInstance(classOf[WildcardResultCache]),
         x => Unit)
 
     def mockDpState = new DatapathState {
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.routingprotocols
+
+import java.util.{List => JList, Map => JMap, UUID}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import com.typesafe.scalalogging.Logger
+import org.junit.runner.RunWith
+import org.mockito.Matchers.{any, anyListOf, anyMapOf}
+import org.mockito.Mockito
+import org.mockito.Mockito.{doAnswer, never, verify}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.mock.MockitoSugar
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.DataClient
+import org.midonet.cluster.data.Route
+import org.midonet.midolman.state.StateAccessException
+
+@RunWith(classOf[JUnitRunner])
+class PeerRouteWriterTest extends FeatureSpec
+                          with Matchers
+                          with OneInstancePerTest
+                          with GivenWhenThen
+                          with MockitoSugar {
+
+    val log = Logger(LoggerFactory.getLogger("org.midonet.routing.bgp"))
+    val dataClient = mock[DataClient]
+    val writer = new PeerRouteWriter(dataClient, null, 2, log)
+
+    val batches = mutable.ListBuffer[Seq[Route]]()
+    val deleted = mutable.ListBuffer[Set[UUID]]()
+
+    Mockito.when(dataClient.routesCreateEphemeral(anyListOf(classOf[Route])))
+        .thenAnswer(new Answer[JList[UUID]] {
+            override def answer(invocation: InvocationOnMock) = {
+                val batch = invocation.getArguments()(0)
+                                      .asInstanceOf[JList[Route]].asScala
+                batches += batch.toList
+                batch.map(_ => UUID.randomUUID()).asJava
+            }
+        })
+    doAnswer(new Answer[Unit] {
+        override def answer(invocation: InvocationOnMock) = {
+            deleted += invocation.getArguments()(0)
+                                 .asInstanceOf[JMap[UUID, Route]]
+                                 .keySet.asScala.toSet
+        }
+    }).when(dataClient).routesDelete(anyMapOf(classOf[UUID], classOf[Route]))
+
+    def route(i: Int): Route = {
+        val route = new Route()
+        route.setDstNetworkAddr(s"10.0.$i.0")
+        route.setDstNetworkLength(24)
+        route.setNextHopGateway("192.168.0.1")
+        route
+    }
+
+    feature("The writer writes the peer routes in batches") {
+        scenario("The routes announced in a burst") {
+            When("Five routes are announced")
+            val routes = (1 to 5) map route
+            routes foreach writer.add
+            writer.size should be (5)
+            writer.pendingChanges should be (5)
+
+            Then("The routes are written in batches of two")
+            writer.flush() should be (routes)
+            batches should be (List(routes.slice(0, 2), routes.slice(2, 4),
+                                    routes.slice(4, 5)))
+            writer.size should be (5)
+            writer.pendingChanges should be (0)
+        }
+
+        scenario("The routes withdrawn in a burst") {
+            Given("Three routes")
+            val routes = (1 to 3) map route
+            routes foreach writer.add
+            writer.flush()
+
+            When("The routes are withdrawn")
+            routes foreach writer.remove
+            writer.flush() should be (Nil)
+
+            Then("The routes are deleted in batches of two")
+            deleted.map(_.size) should be (List(2, 1))
+            writer.size should be (0)
+        }
+
+        scenario("Clearing the routes") {
+            Given("Two routes, and a pending one")
+            writer.add(route(1))
+            writer.add(route(2))
+            writer.flush()
+            writer.add(route(3))
+
+            When("Clearing the writer")
+            writer.clear()
+
+            Then("The routes are deleted, and the pending one dropped")
+            deleted.map(_.size) should be (List(2))
+            writer.size should be (0)
+            writer.flush() should be (Nil)
+            batches should have size 1
+        }
+    }
+
+    feature("The writer coalesces the changes of a burst") {
+        scenario("A route announced and withdrawn") {
+            When("A route is announced and withdrawn")
+            writer.add(route(1))
+            writer.remove(route(1))
+
+            Then("Nothing is written")
+            writer.pendingChanges should be (0)
+            writer.flush() should be (Nil)
+            verify(dataClient, never()).routesCreateEphemeral(
+                anyListOf(classOf[Route]))
+        }
+
+        scenario("A route withdrawn and announced again") {
+            Given("A route")
+            writer.add(route(1))
+            writer.flush()
+
+            When("The route is withdrawn and announced again")
+            writer.remove(route(1))
+            writer.add(route(1))
+
+            Then("Nothing is written")
+            writer.pendingChanges should be (0)
+            writer.flush() should be (Nil)
+            batches should have size 1
+            deleted should be (empty)
+            writer.size should be (1)
+        }
+    }
+
+    feature("The writer writes the routes one by one if a batch fails") {
+        scenario("A batch of routes fails") {
+            Given("A storage failing to write batches and the second route")
+            Mockito.when(dataClient.routesCreateEphemeral(anyListOf(classOf[Route])))
+                .thenThrow(new StateAccessException("batch"))
+            Mockito.when(dataClient.routesCreateEphemeral(any(classOf[Route])))
+                .thenReturn(UUID.randomUUID())
+            Mockito.when(dataClient.routesCreateEphemeral(route(2)))
+                .thenThrow(new StateAccessException("route"))
+
+            When("Two routes are announced")
+            writer.add(route(1))
+            writer.add(route(2))
+
+            Then("Only the first route is written")
+            writer.flush() should be (List(route(1)))
+            writer.size should be (1)
+        }
+    }
+}
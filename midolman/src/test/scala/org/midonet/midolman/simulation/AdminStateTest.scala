@@ -411,7 +411,6 @@ class AdminStateTest extends MidolmanSpec {
             def getDpPortForInterface(itfName: String): Option[DpPort] = null
             def getVportForDpPortNumber(portNum: Integer): Option[UUID] = null
             def getDpPortName(num: Integer): Option[String] = null
-            def version: Long = 0L
             def uplinkPid: Int = 0
             def isVtepTunnellingPort(portNumber: Integer): Boolean = false
             def isOverlayTunnellingPort(portNumber: Integer): Boolean = false
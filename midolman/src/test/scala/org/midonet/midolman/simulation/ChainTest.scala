@@ -18,7 +18,8 @@ package org.midonet.midolman.simulation
 import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.IPAddr
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv4Subnet}
+import org.midonet.util.Range
 
 import java.util.UUID
 import org.junit.runner.RunWith
@@ -115,6 +116,19 @@ class ChainTest extends Suite
         applyChain(c).action should be (Action.REJECT)
     }
 
+    def testReusesScratchStateAcrossChains() {
+        val rejectChain = makeChain(List(rejectRule))
+        val c = makeChain(List(makeJumpRule(rejectChain)),
+                          List(rejectChain))
+        val res = applyChain(c)
+        res.action should be (Action.REJECT)
+        // The chains traversed by the previous application are forgotten.
+        applyChain(c) should be theSameInstanceAs res
+        res.action should be (Action.REJECT)
+        applyChain(null) should be theSameInstanceAs res
+        res.action should be (Action.ACCEPT)
+    }
+
     def testDoubleJumpToAccept() {
         val acceptChain = makeChain(List(acceptRule))
         val innerJumpChain = makeChain(List(makeJumpRule(acceptChain)),
@@ -229,16 +243,84 @@ class ChainTest extends Suite
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    def testIndexedChainSkipsToMatchingRule() {
+        val rules = (1 to 20).toList map { i =>
+            val cond = new Condition()
+            cond.nwDstIp = new IPv4Subnet(s"1.2.3.$i", 32)
+            new LiteralRule(cond, if (i == 4) Action.DROP else Action.REJECT)
+        }
+        val c = makeChain(rules)
+        applyChain(c).action should be (Action.DROP)
+
+        pktMatch.setNetworkDst(IPAddr.fromString("1.2.3.30"))
+        pktCtx = new PacketContext(1, null, pktMatch)
+        applyChain(c).action should be (Action.ACCEPT)
+    }
+
+    def testIndexedChainMatchesLikeLinearChain() {
+        val random = new scala.util.Random(42)
+        val actions = Array(Action.ACCEPT, Action.DROP, Action.REJECT)
+
+        def randomCondition(): Condition = {
+            val cond = new Condition()
+            if (random.nextInt(3) == 0) {
+                cond.nwProto = (6 + random.nextInt(2) * 11).toByte
+                cond.nwProtoInv = random.nextInt(5) == 0
+            }
+            if (random.nextInt(2) == 0) {
+                cond.nwSrcIp = new IPv4Subnet(
+                    s"10.0.${random.nextInt(4)}.${random.nextInt(256)}",
+                    22 + random.nextInt(11))
+                cond.nwSrcInv = random.nextInt(5) == 0
+            }
+            if (random.nextInt(2) == 0) {
+                cond.nwDstIp = new IPv4Subnet(
+                    s"10.0.${random.nextInt(4)}.${random.nextInt(256)}",
+                    22 + random.nextInt(11))
+                cond.nwDstInv = random.nextInt(5) == 0
+            }
+            if (random.nextInt(2) == 0) {
+                val start = random.nextInt(64)
+                cond.tpDst = new Range[Integer](start, start + random.nextInt(16))
+                cond.tpDstInv = random.nextInt(5) == 0
+            }
+            cond.conjunctionInv = random.nextInt(20) == 0
+            cond
+        }
+
+        val rules = (1 to 100).toList map { _ =>
+            new LiteralRule(randomCondition(), actions(random.nextInt(3)))
+        }
+        val linear = makeChain(rules, indexRules = false)
+        val indexed = makeChain(rules)
+
+        for (_ <- 1 to 1000) {
+            val fmatch = new FlowMatch()
+                .setNetworkProto((6 + random.nextInt(2) * 11).toByte)
+                .setNetworkSrc(IPv4Addr.fromString(
+                    s"10.0.${random.nextInt(4)}.${random.nextInt(256)}"))
+                .setNetworkDst(IPv4Addr.fromString(
+                    s"10.0.${random.nextInt(4)}.${random.nextInt(256)}"))
+                .setDstPort(random.nextInt(80))
+            val expected = Chain.apply(linear, new PacketContext(1, null, fmatch),
+                                       ownerId, false)
+            val actual = Chain.apply(indexed, new PacketContext(1, null, fmatch),
+                                     ownerId, false)
+            actual.action should be (expected.action)
+        }
+    }
+
     private def applyChain(c: Chain) =
         Chain.apply(c, pktCtx, ownerId, false)
 
     private def makeChain(rules: List[Rule],
-                          jumpTargets: List[Chain] = Nil): Chain = {
+                          jumpTargets: List[Chain] = Nil,
+                          indexRules: Boolean = true): Chain = {
         val chainId = UUID.randomUUID
         val jumpTargetMap = jumpTargets.map(c => (c.id, c)).toMap
         val name = "Chain-" + chainId.toString
         rules.foreach(_.chainId = chainId)
-        new Chain(chainId, rules.asJava, jumpTargetMap, name)
+        new Chain(chainId, rules.asJava, jumpTargetMap, name, indexRules)
     }
 
     private def makeJumpRule(target: Chain) =
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowActions
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.flows.FlowTagger
+
+@RunWith(classOf[JUnitRunner])
+class PacketContextPoolTest extends FeatureSpec with Matchers {
+
+    def flowMatch(dst: String) =
+        new FlowMatch().setNetworkDst(IPv4Addr.fromString(dst))
+
+    feature("Contexts are reused") {
+        scenario("Released contexts are taken again") {
+            val pool = new PacketContextPool(4)
+            val first = pool.take(1, null, flowMatch("10.0.0.1"), null)
+            first.pool should be (pool)
+            pool.available should be (0)
+
+            first.release()
+            pool.available should be (1)
+            pool.take(2, null, flowMatch("10.0.0.2"), null) should be theSameInstanceAs first
+            pool.available should be (0)
+        }
+
+        scenario("Recycled contexts look like new ones") {
+            val pool = new PacketContextPool(4)
+            val context = pool.take(1, null, flowMatch("10.0.0.1"), null)
+            context.prepareForSimulation(0)
+            context.wcmatch.setNetworkDst(IPv4Addr.fromString("10.0.0.9"))
+            context.addFlowTag(FlowTagger.tagForDevice(UUID.randomUUID()))
+            context.addFlowAndPacketAction(FlowActions.output(1))
+            context.outPorts.add(UUID.randomUUID())
+            context.inputPort = UUID.randomUUID()
+            context.setTracingEnabled()
+            context.release()
+
+            val egressPort = UUID.randomUUID()
+            val fmatch = flowMatch("10.0.0.2")
+            val recycled = pool.take(2, null, fmatch, egressPort)
+            recycled should be theSameInstanceAs context
+            recycled.cookie should be (2)
+            recycled.origMatch should be theSameInstanceAs fmatch
+            recycled.egressPort should be (egressPort)
+            recycled.wcmatch should be (fmatch)
+            recycled.flowTags should be ('empty)
+            recycled.flowActions should be ('empty)
+            recycled.packetActions should be ('empty)
+            recycled.outPorts should be ('empty)
+            recycled.inputPort should be (null)
+            recycled.tracingEnabled should be (false)
+            recycled.idle should be (true)
+            recycled.runs should be (0)
+        }
+
+        scenario("Detached contexts aren't given back") {
+            val pool = new PacketContextPool(4)
+            val context = pool.take(1, null, flowMatch("10.0.0.1"), null)
+            context.pool = null
+            context.release()
+            pool.available should be (0)
+            pool.take(2, null, flowMatch("10.0.0.2"), null) should not be theSameInstanceAs (context)
+        }
+
+        scenario("The pool is bounded") {
+            val pool = new PacketContextPool(4)
+            val contexts = (0 until 8) map { i =>
+                pool.take(i, null, flowMatch("10.0.0.1"), null)
+            }
+            contexts foreach (_.release())
+            pool.available should be (4)
+        }
+    }
+}
@@ -37,8 +37,9 @@ import org.midonet.midolman.topology.devices.{BridgePort, Port}
 import org.midonet.midolman.topology.rcu.ResolvedHost
 import org.midonet.midolman.util.mock.MockDatapathChannel
 import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowActions}
-import org.midonet.odp.{FlowMatches, Packet}
+import org.midonet.odp.{Flow, FlowMatches, Packet}
 import org.midonet.packets._
+import org.midonet.packets.util.PacketBuilder._
 import org.midonet.rpc.FlowStateProto
 import org.midonet.sdn.flows.FlowTagger.{FlowStateTag, FlowTag}
 import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction, IdleExpiration}
@@ -251,6 +252,113 @@ class FlowStateReplicatorTest extends FeatureSpec
             }
         }
 
+        scenario("State of flows to the same peers is sent in one packet") {
+            Given("Several flows with conntrack keys")
+            for (k <- connTrackKeys) {
+                connTrackTx.putAndRef(k, ConnTrackState.RETURN_FLOW)
+                accumulateTransactions(egressPort1.id)
+            }
+
+            And("A flow with nat keys towards other peers")
+            for ((k, v) <- natMappings) {
+                natTx.putAndRef(k, v)
+            }
+            accumulateTransactions(egressPortNoGroup.id)
+
+            When("The state is pushed")
+            sender.pushState(dpChannel)
+
+            Then("One packet is sent for each set of peers")
+            packetsSeen should have size 2
+
+            And("The peers' stateful tables should contain the keys")
+            acceptPushedState()
+            for (k <- connTrackKeys) {
+                recipient.conntrackTable.get(k) should equal (ConnTrackState.RETURN_FLOW)
+            }
+            for ((k, v) <- natMappings) {
+                recipient.natTable.get(k) should equal (v)
+            }
+        }
+
+        scenario("Coalesced state is split across packets") {
+            Given("Many flows with conntrack keys")
+            val keys = (1 to 100) map { i =>
+                ConnTrackKey(IPv4Addr.fromInt(0x0a000000 + i), i,
+                             "10.0.1.1", 80, 6, conntrackDevice)
+            }
+            for (k <- keys) {
+                connTrackTx.putAndRef(k, ConnTrackState.RETURN_FLOW)
+                accumulateTransactions(egressPort1.id)
+            }
+
+            When("The state is pushed")
+            sender.pushState(dpChannel)
+
+            Then("Several packets are sent, none exceeding the MTU")
+            packetsSeen.size should be > 1
+            for ((packet, _) <- packetsSeen) {
+                packet.getData.length should be < (FlowStateEthernet.MTU -
+                    FlowStateEthernet.VXLAN_ENCAPUSULATION_OVERHEAD)
+            }
+
+            And("The peer's stateful table should contain all the keys")
+            acceptPushedState()
+            for (k <- keys) {
+                recipient.conntrackTable.get(k) should equal (ConnTrackState.RETURN_FLOW)
+            }
+        }
+
+        scenario("Packets and flows are held until the state is pushed") {
+            var flowsCreated = List[Flow]()
+            dpChannel.flowCreateSubscribe(flow => flowsCreated ::= flow)
+
+            Given("A packet to execute")
+            val frame: Ethernet =
+                { eth addr "01:02:03:04:05:06" -> "10:20:30:40:50:60" } <<
+                { ip4 addr "10.0.0.1" --> "10.0.0.2" } <<
+                { udp ports 1234 ---> 22 }
+            val packet = new Packet(frame, FlowMatches.fromEthernetPacket(frame))
+            val actions = List[FlowAction](FlowActions.output(1)).asJava
+
+            When("The packet is executed without state to push")
+            sender.executePacket(dpChannel, packet, actions)
+            sender.createFlow(dpChannel, new Flow(packet.getMatch, actions))
+
+            Then("The packet is executed and the flow created right away")
+            packetsSeen should have size 1
+            packetsSeen = List.empty
+            flowsCreated should have size 1
+            flowsCreated = List.empty
+
+            When("The packet is executed after its flow's state is accumulated")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            accumulateTransactions(egressPort1.id)
+            sender.executePacket(dpChannel, packet, actions)
+            sender.createFlow(dpChannel, new Flow(packet.getMatch, actions))
+
+            Then("The packet and the flow are held")
+            packetsSeen should be (empty)
+            flowsCreated should be (empty)
+
+            When("The state is pushed")
+            sender.pushState(dpChannel)
+
+            Then("The state packet is executed before the held packet")
+            val executed = packetsSeen.reverse
+            executed should have size 2
+            executed(1)._1.getMatch should be (packet.getMatch)
+            executed(1)._2 should be (actions.asScala.toList)
+            recipient.accept(executed.head._1.getEthernet)
+            recipient.conntrackTable.get(connTrackKeys.head) should equal (
+                ConnTrackState.RETURN_FLOW)
+
+            And("The held flow is created")
+            flowsCreated should have size 1
+            flowsCreated.head.getMatch should be (packet.getMatch)
+            flowsCreated.head.getActions should be (actions)
+        }
+
         scenario("Keys are owned even if there are no peers") {
             Given("A set of nat keys in a transaction")
             for ((k, v) <- natMappings) {
@@ -334,6 +442,17 @@ class FlowStateReplicatorTest extends FeatureSpec
         }
     }
 
+    private def accumulateTransactions(egressPort: UUID): Unit = {
+        sender.accumulateNewKeys(connTrackTx, natTx, ingressPort.id,
+                                 List(egressPort).asJava,
+                                 new JHashSet[FlowTag](),
+                                 new ArrayList[Callback0])
+        natTx.commit()
+        connTrackTx.commit()
+        natTx.flush()
+        connTrackTx.flush()
+    }
+
     def acceptPushedState() {
         for ((packet, _) <- packetsSeen) {
             recipient.accept(packet.getEthernet)
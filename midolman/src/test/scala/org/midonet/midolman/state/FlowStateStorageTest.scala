@@ -19,15 +19,18 @@ package org.midonet.midolman.state
 import java.util.UUID
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.concurrent.Await
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import org.cassandraunit.utils.EmbeddedCassandraServerHelper
 import org.junit.runner.RunWith
 import org.scalatest._
 import org.scalatest.concurrent.Eventually._
 import org.scalatest.junit.JUnitRunner
 import org.midonet.cluster.backend.cassandra.CassandraClient
+import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.packets.IPv4Addr
@@ -60,6 +63,7 @@ class FlowStateStorageTest extends FeatureSpec
     val egressPorts = List(UUID.randomUUID(), UUID.randomUUID())
 
     var cass: CassandraClient = _
+    var writer: FlowStateWriter = _
     var storage: FlowStateStorage = _
 
     before {
@@ -67,9 +71,24 @@ class FlowStateStorageTest extends FeatureSpec
         Thread.sleep(10000L)
         cass = new CassandraClient("127.0.0.1:9142", "TestCluster",
                                    "MidonetFlowState", 1,
-                                   FlowStateStorage.SCHEMA, null)
+                                   FlowStateStorage.SCHEMA ++
+                                   FlowStateStorage.PARTITIONED_SCHEMA, null)
         cass.connect()
-        storage = FlowStateStorage(cass)
+        storage = newStorage(FlowStateStorage.INDEXED_TABLES, 1000)
+    }
+
+    after {
+        writer.stop()
+    }
+
+    private def newStorage(tables: FlowStateStorage.Tables,
+                           pageSize: Int): FlowStateStorage = {
+        if (writer ne null)
+            writer.stop()
+        writer = new FlowStateWriter(cass, tables, 1024, 0, 8,
+                                     new MetricRegistry)
+        writer.start()
+        FlowStateStorage(cass, writer, pageSize)
     }
 
     feature("Stores and fetches state from cassandra") {
@@ -116,5 +135,38 @@ class FlowStateStorageTest extends FeatureSpec
                 }
             }
         }
+
+        scenario("The state of a port is fetched a page at a time") {
+            Given("A storage with tables partitioned by port")
+            storage = newStorage(FlowStateStorage.PARTITIONED_TABLES, 1)
+
+            When("Keys are stored")
+            for (k <- connTrackKeys) {
+                storage.touchConnTrackKey(k, ingressPort, egressPorts.asJava.iterator())
+            }
+            for ((k,v) <- natMappings) {
+                storage.touchNatKey(k, v, ingressPort, egressPorts.asJava.iterator())
+            }
+            storage.submit()
+
+            Then("The keys of a port are fetched one per page")
+            eventually {
+                val pages = mutable.ListBuffer[FlowStateBatch]()
+                Await.result(storage.fetchPortState(ingressPort)(pages += _),
+                             expiration)
+                pages should have size (connTrackKeys.size + natMappings.size)
+                pages.flatMap(_.strongConnTrack.asScala).toSet should be (
+                    connTrackKeys.toSet)
+                pages.flatMap(_.strongNat.asScala).toMap should be (natMappings)
+            }
+
+            And("The ports for which they are egress see them as weak")
+            val pages = mutable.ListBuffer[FlowStateBatch]()
+            Await.result(storage.fetchPortState(egressPorts.head)(pages += _),
+                         expiration)
+            pages.flatMap(_.weakConnTrack.asScala).toSet should be (
+                connTrackKeys.toSet)
+            pages.flatMap(_.weakNat.asScala).toMap should be (natMappings)
+        }
     }
 }
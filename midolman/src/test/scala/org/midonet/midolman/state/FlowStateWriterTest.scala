@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStateWriter.{ConnTrackWrite, NatWrite, Write}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.concurrent.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateWriterTest extends FeatureSpec
+                          with Matchers
+                          with OneInstancePerTest
+                          with GivenWhenThen {
+
+    implicit def stringToIp(str: String): IPv4Addr = IPv4Addr.fromString(str)
+
+    val clock = new MockClock
+    val written = mutable.ListBuffer[Write]()
+    var flushes = 0
+
+    val writer = new FlowStateWriter(null, FlowStateStorage.INDEXED_TABLES,
+                                     4, 1000, 1, new MetricRegistry, clock) {
+        override def add(write: Write): Unit = written += write
+        override def flush(): Unit = flushes += 1
+    }
+
+    val connTrackKey = ConnTrackKey("10.0.0.1", 1234, "10.0.0.2", 22, 1,
+                                    UUID.randomUUID())
+    val natKey = NatKey(NatState.FWD_SNAT, "192.168.10.1", 10001,
+                        "17.16.15.1", 80, 1, UUID.randomUUID())
+    val natBinding = NatBinding("1.2.3.4", 54321)
+
+    val ingressPort = UUID.randomUUID()
+    val egressPort = UUID.randomUUID()
+
+    feature("The writer writes the keys touched by the packet workers") {
+        scenario("A write per key and port") {
+            When("Keys are touched")
+            writer.touchConnTrackKey(connTrackKey, ingressPort,
+                                     List(egressPort).asJava.iterator)
+            writer.touchNatKey(natKey, natBinding, ingressPort,
+                               List[UUID]().asJava.iterator)
+
+            Then("The writer writes them for each of their ports")
+            writer.drain() should be (3)
+            written should be (List(
+                ConnTrackWrite(connTrackKey, ingressPort, ingress = true),
+                ConnTrackWrite(connTrackKey, egressPort, ingress = false),
+                NatWrite(natKey, natBinding, ingressPort, ingress = true)))
+            flushes should be (1)
+        }
+
+        scenario("Keys written recently are not written again") {
+            Given("A key that was written")
+            writer.touchConnTrackKey(connTrackKey, ingressPort,
+                                     List[UUID]().asJava.iterator)
+            writer.drain()
+
+            When("The key is touched again before the dedup interval passes")
+            clock.time += 999000000L
+            writer.touchConnTrackKey(connTrackKey, ingressPort,
+                                     List[UUID]().asJava.iterator)
+            writer.drain() should be (1)
+
+            Then("It is not written again")
+            written should have size 1
+            writer.writesDeduplicated.getCount should be (1)
+
+            When("The key is touched after the dedup interval")
+            clock.time += 1000000000L
+            writer.touchConnTrackKey(connTrackKey, ingressPort,
+                                     List[UUID]().asJava.iterator)
+            writer.drain()
+
+            Then("It is written again")
+            written should have size 2
+        }
+
+        scenario("A NAT key with a different binding is written") {
+            Given("A NAT key that was written")
+            writer.touchNatKey(natKey, natBinding, ingressPort,
+                               List[UUID]().asJava.iterator)
+            writer.drain()
+
+            When("The key is touched with another binding")
+            val otherBinding = NatBinding("1.2.3.5", 54321)
+            writer.touchNatKey(natKey, otherBinding, ingressPort,
+                               List[UUID]().asJava.iterator)
+            writer.drain()
+
+            Then("It is written again")
+            written should have size 2
+        }
+
+        scenario("Writes are dropped when the queue is full") {
+            When("More keys than fit in the queue are touched")
+            val ports = (0 until 6) map { _ => UUID.randomUUID() }
+            writer.touchConnTrackKey(connTrackKey, null, ports.asJava.iterator)
+
+            Then("The writes that don't fit are dropped")
+            writer.writesDropped.getCount should be (2)
+            writer.drain() should be (4)
+            written should have size 4
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{UUID, HashMap => JHashMap, HashSet => JHashSet,
+                  Iterator => JIterator, Map => JMap, Set => JSet}
+import scala.concurrent.{ExecutionContext, Future}
+
+import akka.actor.ActorSystem
+
+import org.midonet.midolman.HostRequestProxy.{EmptyFlowStateBatch, FlowStateBatch}
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+
+/**
+ * A FlowStateStorage keeping the keys in memory, which hands the state of a
+ * port over in pages of the given size, as the Cassandra storage does.
+ */
+class InMemoryFlowStateStorage(pageSize: Int) extends FlowStateStorage {
+
+    private val strongConnTrack = new JHashMap[UUID, JSet[ConnTrackKey]]()
+    private val weakConnTrack = new JHashMap[UUID, JSet[ConnTrackKey]]()
+    private val strongNat = new JHashMap[UUID, JMap[NatKey, NatBinding]]()
+    private val weakNat = new JHashMap[UUID, JMap[NatKey, NatBinding]]()
+
+    private def keysOf[K](table: JHashMap[UUID, JSet[K]], port: UUID) = {
+        var keys = table.get(port)
+        if (keys eq null) {
+            keys = new JHashSet[K]()
+            table.put(port, keys)
+        }
+        keys
+    }
+
+    private def bindingsOf(table: JHashMap[UUID, JMap[NatKey, NatBinding]],
+                           port: UUID) = {
+        var bindings = table.get(port)
+        if (bindings eq null) {
+            bindings = new JHashMap[NatKey, NatBinding]()
+            table.put(port, bindings)
+        }
+        bindings
+    }
+
+    override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
+                                   weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            keysOf(strongConnTrack, strongRef).add(k)
+        while (weakRefs.hasNext)
+            keysOf(weakConnTrack, weakRefs.next()).add(k)
+    }
+
+    override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
+                             weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            bindingsOf(strongNat, strongRef).put(k, v)
+        while (weakRefs.hasNext)
+            bindingsOf(weakNat, weakRefs.next()).put(k, v)
+    }
+
+    override def submit(): Unit = {}
+
+    override def fetchStrongConnTrackRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future.successful(new JHashSet(keysOf(strongConnTrack, port)))
+
+    override def fetchWeakConnTrackRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future.successful(new JHashSet(keysOf(weakConnTrack, port)))
+
+    override def fetchStrongNatRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future.successful(new JHashMap(bindingsOf(strongNat, port)))
+
+    override def fetchWeakNatRefs(port: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        Future.successful(new JHashMap(bindingsOf(weakNat, port)))
+
+    override def fetchPortState(port: UUID)(onPage: FlowStateBatch => Unit)
+            (implicit ec: ExecutionContext, as: ActorSystem) = {
+        pages(keysOf(strongConnTrack, port).iterator, onPage) {
+            (batch, k) => batch.strongConnTrack.add(k) }
+        pages(keysOf(weakConnTrack, port).iterator, onPage) {
+            (batch, k) => batch.weakConnTrack.add(k) }
+        pages(bindingsOf(strongNat, port).entrySet.iterator, onPage) {
+            (batch, e) => batch.strongNat.put(e.getKey, e.getValue) }
+        pages(bindingsOf(weakNat, port).entrySet.iterator, onPage) {
+            (batch, e) => batch.weakNat.put(e.getKey, e.getValue) }
+        Future.successful(())
+    }
+
+    private def pages[T](it: JIterator[T], onPage: FlowStateBatch => Unit)
+                        (add: (FlowStateBatch, T) => Unit): Unit =
+        while (it.hasNext) {
+            val batch = EmptyFlowStateBatch()
+            var i = 0
+            while (i < pageSize && it.hasNext) {
+                add(batch, it.next())
+                i += 1
+            }
+            onPage(batch)
+        }
+}
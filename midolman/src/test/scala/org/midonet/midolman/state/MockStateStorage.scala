@@ -21,6 +21,7 @@ import scala.concurrent.{ExecutionContext, Future}
 
 import akka.actor.ActorSystem
 
+import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.NatState.NatKey
 import org.midonet.midolman.state.NatState.NatBinding
@@ -50,4 +51,8 @@ class MockStateStorage extends FlowStateStorage {
     override def fetchWeakNatRefs(port: UUID)
             (implicit ec: ExecutionContext, as: ActorSystem) =
                 Future.successful(new JHashMap[NatKey, NatBinding]())
+
+    override def fetchPortState(port: UUID)(onPage: FlowStateBatch => Unit)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+                Future.successful(())
 }
@@ -64,7 +64,7 @@ import org.midonet.odp.flows.FlowKeys.inPort
 import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowActionSetKey, FlowKeyTunnel}
 import org.midonet.odp.protos.MockOvsDatapathConnection
 import org.midonet.packets.Ethernet
-import org.midonet.util.concurrent.MockClock
+import org.midonet.util.concurrent.{MockClock, NanoClock}
 import org.midonet.util.functors.Callback0
 import org.scalatest._
 import org.scalatest.matchers.{BePropertyMatchResult, BePropertyMatcher}
@@ -102,7 +102,7 @@ trait MidolmanTestCase extends Suite with BeforeAndAfter
     var discardPacketProbe: TestProbe = null
     var flowUpdateProbe: TestProbe = null
 
-    val clock = new MockClock
+    val clock: NanoClock = new MockClock
 
     implicit val askTimeout = Timeout(3 seconds)
     val timeout: FiniteDuration = askTimeout.duration
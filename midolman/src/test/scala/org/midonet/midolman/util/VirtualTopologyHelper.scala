@@ -29,10 +29,10 @@ import akka.util.Timeout.durationToTimeout
 
 import com.google.inject.Injector
 
-import org.midonet.cluster.DataClient
 import org.midonet.cluster.data._
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.flows.WildcardResultCache
 import org.midonet.midolman.host.interfaces.InterfaceDescription
 import org.midonet.midolman.topology.rcu.ResolvedHost
 import org.midonet.midolman._
@@ -45,7 +45,7 @@ import org.midonet.midolman.state.ConnTrackState._
 import org.midonet.midolman.state.{FlowStateReplicator, HappyGoLuckyLeaser}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.topology.VirtualTopologyActor
-import org.midonet.midolman.topology.VirtualTopologyActor.{BridgeRequest, ChainRequest, IPAddrGroupRequest, PortRequest, RouterRequest}
+import org.midonet.midolman.topology.VirtualTopologyActor.{BridgeRequest, ChainRequest, DhcpConfigRequest, IPAddrGroupRequest, PortRequest, RouterRequest}
 import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowKeys}
 import org.midonet.odp._
 import org.midonet.odp.flows._
@@ -76,6 +76,10 @@ trait VirtualTopologyHelper {
             ask(VirtualTopologyActor, buildRequest(device)).asInstanceOf[Future[T]],
             timeout.duration)
 
+    def fetchDhcpConfig(bridge: Bridge) =
+        Await.result(VirtualTopologyActor ? DhcpConfigRequest(bridge.getId),
+                     timeout.duration)
+
     def fetchTopology(entities: Entity.Base[_,_,_]*) =
         fetchTopologyList(entities)
 
@@ -215,7 +219,7 @@ trait VirtualTopologyHelper {
     }
 
     def packetWorkflow(dpPortToVport: Map[Int, UUID])
-                      (implicit hostId: UUID, client: DataClient) = new PacketWorkflow(
+                      (implicit hostId: UUID) = new PacketWorkflow(
         new DatapathState {
             override def host: ResolvedHost = new ResolvedHost(hostId, true, Map(), Map())
             override def peerTunnelInfo(peer: UUID): Option[UnderlayRoute] = None
@@ -230,7 +234,7 @@ trait VirtualTopologyHelper {
             override def getDpPortNumberForVport(vportId: UUID): Option[Integer] =
                 dpPortToVport.map(_.swap).toMap.get(vportId).map(_.asInstanceOf[Integer])
             override def getDpPortName(num: Integer): Option[String] =  None
-        }, null, client, new DatapathChannel {
+        }, null, new DatapathChannel {
             override def executePacket(packet: Packet,
                                        actions: List[FlowAction]): Unit = { }
             override def createFlow(flow: Flow): Unit = { }
@@ -242,7 +246,7 @@ trait VirtualTopologyHelper {
             override def vtepTunnellingOutputAction: FlowActionOutput = null
             override def isVtepTunnellingPort(portNumber: Integer): Boolean = false
             override def isOverlayTunnellingPort(portNumber: Integer): Boolean = false
-        }, null, 0) {
+        }, null, 0, null) {
             override def pushState(dpChannel: DatapathChannel): Unit = { }
             override def accumulateNewKeys(
                           conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
@@ -250,7 +254,8 @@ trait VirtualTopologyHelper {
                           ingressPort: UUID, egressPorts: List[UUID],
                           tags: JHashSet[FlowTag],
                           callbacks: ArrayList[Callback0]): Unit = { }
-        }, injector.getInstance(classOf[MidolmanConfig]))
+        }, injector.getInstance(classOf[MidolmanConfig]),
+        injector.getInstance(classOf[WildcardResultCache]))
 
     @inline
     private[this] def buildRequest(entity: Entity.Base[_,_,_]) = entity match {
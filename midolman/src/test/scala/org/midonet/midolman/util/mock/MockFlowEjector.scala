@@ -18,9 +18,11 @@ package org.midonet.midolman.util.mock
 
 import java.util.{Map => JMap}
 
-import org.midonet.midolman.FlowController.FlowRemoveCommand
+import org.midonet.midolman.FlowController.{FlowDumpCommand, FlowRemoveCommand}
 import org.midonet.midolman.flows.FlowEjector
-import org.midonet.odp.{Flow, FlowMatch}
+import org.midonet.netlink.{BytesUtil, NetlinkMessage}
+import org.midonet.odp.family.{DatapathFamily, FlowFamily, PacketFamily, PortFamily}
+import org.midonet.odp._
 
 class MockFlowEjector(val flowsTable: JMap[FlowMatch, Flow] = null) extends FlowEjector(32) {
     var flowDelCb: Flow => Unit = _
@@ -35,6 +37,33 @@ class MockFlowEjector(val flowsTable: JMap[FlowMatch, Flow] = null) extends Flow
         true
     }
 
+    private val protocol = new OvsProtocol(0, new OvsNetlinkFamilies(
+        new DatapathFamily(0), new PortFamily(0), new FlowFamily(0),
+        new PacketFamily(0), 0, 0))
+    private val buf = BytesUtil.instance.allocate(8 * 1024)
+
+    /* Replies to the dump right away with the flows in the flows table. */
+    override def dump(flowDump: FlowDumpCommand): Boolean = {
+        if (flowsTable ne null) {
+            val it = flowsTable.values().iterator()
+            while (it.hasNext) {
+                val flow = it.next()
+                buf.clear()
+                protocol.prepareFlowCreate(0, false, flow, buf)
+                if (flow.getLastUsedTime ne null) {
+                    buf.position(buf.limit()).limit(buf.capacity())
+                    NetlinkMessage.writeLongAttr(buf, OpenVSwitch.Flow.Attr.Used,
+                                                 flow.getLastUsedTime)
+                    buf.flip()
+                }
+                buf.position(NetlinkMessage.GENL_HEADER_SIZE)
+                flowDump.onNext(buf)
+            }
+        }
+        flowDump.onCompleted()
+        true
+    }
+
     def flowDeleteSubscribe(cb: Flow => Unit): Unit =
         flowDelCb = cb
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.flows
+
+import java.util.{ArrayList => JArrayList}
+
+import scala.collection.JavaConversions._
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class FlowExpirationWheelTest extends FeatureSpec with Matchers {
+
+    val start = 1000000L
+
+    def flow() = new ManagedFlow(null)
+
+    def advance(wheel: FlowExpirationWheel, now: Long): Seq[ManagedFlow] = {
+        val expired = new JArrayList[ManagedFlow]()
+        wheel.advance(now, expired)
+        expired.toSeq
+    }
+
+    feature("FlowExpirationWheel") {
+        scenario("Flows expire once their deadline passed") {
+            val wheel = new FlowExpirationWheel(start)
+            val (a, b) = (flow(), flow())
+            wheel.schedule(a, start + 10)
+            wheel.schedule(b, start + 20)
+            wheel.size should be (2)
+
+            advance(wheel, start + 9) should be (Seq())
+            advance(wheel, start + 10) should be (Seq(a))
+            advance(wheel, start + 19) should be (Seq())
+            advance(wheel, start + 25) should be (Seq(b))
+            wheel.size should be (0)
+            a.timerSlot should be (-1)
+        }
+
+        scenario("Cancelled flows don't expire") {
+            val wheel = new FlowExpirationWheel(start)
+            val (a, b, c) = (flow(), flow(), flow())
+            wheel.schedule(a, start + 10)
+            wheel.schedule(b, start + 10)
+            wheel.schedule(c, start + 10)
+            wheel.cancel(b)
+            wheel.cancel(b)
+            wheel.size should be (2)
+
+            advance(wheel, start + 10).toSet should be (Set(a, c))
+            b.timerSlot should be (-1)
+            b.timerNext should be (null)
+        }
+
+        scenario("Rescheduled flows expire at their new deadline") {
+            val wheel = new FlowExpirationWheel(start)
+            val a = flow()
+            wheel.schedule(a, start + 10)
+            wheel.schedule(a, start + 100000)
+            wheel.size should be (1)
+
+            advance(wheel, start + 99999) should be (Seq())
+            advance(wheel, start + 100000) should be (Seq(a))
+        }
+
+        scenario("Past deadlines expire on the next tick") {
+            val wheel = new FlowExpirationWheel(start)
+            advance(wheel, start + 5000)
+            val a = flow()
+            wheel.schedule(a, start + 10)
+            advance(wheel, start + 5000) should be (Seq())
+            advance(wheel, start + 5001) should be (Seq(a))
+        }
+
+        scenario("Flows cascade down the levels of the wheel") {
+            val wheel = new FlowExpirationWheel(start)
+            val random = new Random(42)
+            val deadlines = (0 until 2000) map { _ =>
+                start + 1 + random.nextInt(200000000)
+            }
+            val flows = deadlines map { d =>
+                val f = flow()
+                wheel.schedule(f, d)
+                f
+            }
+            // Step at irregular intervals, checking that every flow expires
+            // at the first step past its deadline.
+            var now = start
+            var expired = 0
+            while (wheel.size > 0) {
+                val prev = now
+                now += 1 + random.nextInt(100000)
+                for (f <- advance(wheel, now)) {
+                    f.timerDeadline should be > prev
+                    f.timerDeadline should be <= now
+                    expired += 1
+                }
+            }
+            expired should be (flows.size)
+        }
+
+        scenario("Deadlines beyond the range of the wheel are clamped") {
+            val wheel = new FlowExpirationWheel(start, 1000L)
+            val a = flow()
+            val deadline = start + 1000L * (1L << 33)
+            wheel.schedule(a, deadline)
+            advance(wheel, deadline - 1000L * (1L << 31)) should be (Seq())
+            advance(wheel, deadline - 1) should be (Seq())
+            advance(wheel, deadline) should be (Seq(a))
+        }
+    }
+}
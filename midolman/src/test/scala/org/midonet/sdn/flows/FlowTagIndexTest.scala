@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.flows
+
+import java.util.UUID
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+@RunWith(classOf[JUnitRunner])
+class FlowTagIndexTest extends FeatureSpec with Matchers {
+
+    def tag(): FlowTag = FlowTagger.tagForDevice(UUID.randomUUID())
+
+    def flow() = new ManagedFlow(null)
+
+    feature("FlowTagInterner") {
+        scenario("Tags are given dense, reference counted ids") {
+            val interner = new FlowTagInterner(2)
+            val (a, b, c) = (tag(), tag(), tag())
+            interner.intern(a) should be (0)
+            interner.intern(b) should be (1)
+            interner.intern(a) should be (0)
+            interner.intern(c) should be (2)
+            interner.size should be (3)
+            interner.refCount(0) should be (2)
+            interner.tagOf(1) should be (b)
+
+            interner.release(0) should be (false)
+            interner.idOf(a) should be (0)
+            interner.release(0) should be (true)
+            interner.idOf(a) should be (-1)
+            interner.tagOf(0) should be (null)
+            interner.size should be (2)
+        }
+
+        scenario("Reclaimed ids are handed out again") {
+            val interner = new FlowTagInterner()
+            val (a, b, c) = (tag(), tag(), tag())
+            interner.intern(a)
+            interner.intern(b)
+            interner.release(interner.idOf(a))
+            interner.intern(c) should be (0)
+            interner.capacity should be (2)
+        }
+
+        scenario("Ids that aren't referenced can't be released") {
+            val interner = new FlowTagInterner()
+            interner.release(interner.intern(tag()))
+            intercept[IllegalArgumentException] {
+                interner.release(0)
+            }
+        }
+    }
+
+    feature("FlowTagIndex") {
+        scenario("Flows are found by their tags") {
+            val index = new FlowTagIndex(2)
+            val (a, b, c) = (tag(), tag(), tag())
+            val (f1, f2, f3) = (flow(), flow(), flow())
+            index.add(f1, Seq(a, b))
+            index.add(f2, Seq(b))
+            index.add(f3, Seq(b, c))
+
+            index.get(a) should be (Some(Set(f1)))
+            index.get(b) should be (Some(Set(f1, f2, f3)))
+            index.get(c) should be (Some(Set(f3)))
+            index.numTags should be (3)
+            f1.numTags should be (2)
+            index.tagOf(f1.tags(0)) should be (a)
+        }
+
+        scenario("Removed flows release their tags") {
+            val index = new FlowTagIndex()
+            val (a, b) = (tag(), tag())
+            val (f1, f2) = (flow(), flow())
+            index.add(f1, Seq(a, b))
+            index.add(f2, Seq(b))
+
+            index.remove(f1)
+            f1.numTags should be (0)
+            f1.tagSlot should be (-1)
+            index.get(a) should be (None)
+            index.get(b) should be (Some(Set(f2)))
+            index.numTags should be (1)
+
+            index.remove(f2)
+            index.get(b) should be (None)
+            index.numTags should be (0)
+        }
+
+        scenario("Reused slots don't inherit the tags of removed flows") {
+            val index = new FlowTagIndex(1)
+            val (a, b) = (tag(), tag())
+            val (f1, f2, f3) = (flow(), flow(), flow())
+            index.add(f1, Seq(a, b))
+            index.add(f3, Seq(a))
+            index.remove(f1)
+            index.add(f2, Seq(b))
+            f2.tagSlot should be (0)
+
+            index.get(a) should be (Some(Set(f3)))
+            index.get(b) should be (Some(Set(f2)))
+            index.removeTag(a).toSet should be (Set(f3))
+        }
+
+        scenario("Removing a tag returns its flows") {
+            val index = new FlowTagIndex()
+            val (a, b) = (tag(), tag())
+            val flows = (0 until 100) map { _ => flow() }
+            flows foreach { f => index.add(f, Seq(a, b)) }
+            flows take 50 foreach index.remove
+
+            val removed = index.removeTag(a)
+            removed.toSet should be ((flows drop 50).toSet)
+            index.get(a) should be (None)
+            index.removeTag(a) should have length 0
+
+            // The flows keep their other tags until they're removed.
+            index.get(b) should be (Some((flows drop 50).toSet))
+            removed foreach index.remove
+            index.get(b) should be (None)
+            index.numTags should be (0)
+            index.removeTag(tag()) should have length 0
+        }
+
+        scenario("Stale entries of a long lived tag are compacted") {
+            val index = new FlowTagIndex()
+            val hot = tag()
+            val anchor = flow()
+            index.add(anchor, Seq(hot))
+            for (i <- 0 until 10000) {
+                val f = flow()
+                index.add(f, Seq(hot, tag()))
+                index.remove(f)
+            }
+            index.get(hot) should be (Some(Set(anchor)))
+            index.numTags should be (1)
+            index.removeTag(hot) should be (Array(anchor))
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+/**
+ * A set of primitive longs, stored unboxed in an open-addressing hash table
+ * with linear probing. The table is allocated on the first insertion and
+ * released when the set becomes empty, so that an empty set only costs the
+ * object header and a few fields.
+ *
+ * This class is not thread-safe.
+ */
+final class LongHashSet(initialCapacity: Int = 8) {
+    require(Integer.bitCount(initialCapacity) == 1,
+            "The initial capacity must be a power of 2")
+
+    // Zero marks the empty slots, so it's tracked apart from the table.
+    private var table: Array[Long] = null
+    private var mask = 0
+    private var shift = 0
+    private var hasZero = false
+    private var tableSize = 0
+
+    def size: Int = if (hasZero) tableSize + 1 else tableSize
+
+    def isEmpty: Boolean = size == 0
+
+    def contains(value: Long): Boolean =
+        if (value == 0) {
+            hasZero
+        } else if (table eq null) {
+            false
+        } else {
+            var i = slotOf(value)
+            while (table(i) != 0) {
+                if (table(i) == value)
+                    return true
+                i = (i + 1) & mask
+            }
+            false
+        }
+
+    /**
+     * Adds the value to the set, returning whether it wasn't already there.
+     */
+    def add(value: Long): Boolean = {
+        if (value == 0) {
+            val added = !hasZero
+            hasZero = true
+            return added
+        }
+        if (table eq null) {
+            allocate(initialCapacity)
+        } else if ((tableSize + 1) * 2 > table.length) {
+            resize()
+        }
+        var i = slotOf(value)
+        while (table(i) != 0) {
+            if (table(i) == value)
+                return false
+            i = (i + 1) & mask
+        }
+        table(i) = value
+        tableSize += 1
+        true
+    }
+
+    /**
+     * Removes the value from the set, returning whether it was there.
+     */
+    def remove(value: Long): Boolean = {
+        if (value == 0) {
+            val removed = hasZero
+            hasZero = false
+            return removed
+        }
+        if (table eq null)
+            return false
+        var i = slotOf(value)
+        while (table(i) != value) {
+            if (table(i) == 0)
+                return false
+            i = (i + 1) & mask
+        }
+        tableSize -= 1
+        if (tableSize == 0) {
+            table = null
+            return true
+        }
+
+        // Shift back the following values that would no longer be reachable
+        // from their slot through the hole left by the removed one.
+        var j = (i + 1) & mask
+        while (table(j) != 0) {
+            val slot = slotOf(table(j))
+            if (((j - slot) & mask) >= ((j - i) & mask)) {
+                table(i) = table(j)
+                i = j
+            }
+            j = (j + 1) & mask
+        }
+        table(i) = 0
+        true
+    }
+
+    def clear(): Unit = {
+        table = null
+        tableSize = 0
+        hasZero = false
+    }
+
+    private def slotOf(value: Long): Int =
+        ((value * 0x9E3779B97F4A7C15L) >>> shift).toInt
+
+    private def allocate(capacity: Int): Unit = {
+        table = new Array[Long](capacity)
+        mask = capacity - 1
+        shift = 64 - Integer.numberOfTrailingZeros(capacity)
+    }
+
+    private def resize(): Unit = {
+        val oldTable = table
+        allocate(oldTable.length * 2)
+        var i = 0
+        while (i < oldTable.length) {
+            val value = oldTable(i)
+            if (value != 0) {
+                var j = slotOf(value)
+                while (table(j) != 0)
+                    j = (j + 1) & mask
+                table(j) = value
+            }
+            i += 1
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import scala.collection.mutable
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class LongHashSetTest extends FeatureSpec with Matchers {
+
+    feature("Values are added and removed") {
+        scenario("A single value") {
+            val set = new LongHashSet()
+            set.isEmpty should be (true)
+            set.contains(42L) should be (false)
+            set.add(42L) should be (true)
+            set.add(42L) should be (false)
+            set.contains(42L) should be (true)
+            set.size should be (1)
+            set.remove(42L) should be (true)
+            set.remove(42L) should be (false)
+            set.contains(42L) should be (false)
+            set.isEmpty should be (true)
+        }
+
+        scenario("Zero and negative values") {
+            val set = new LongHashSet()
+            set.add(0L) should be (true)
+            set.add(-1L) should be (true)
+            set.add(Long.MinValue) should be (true)
+            set.size should be (3)
+            set.contains(0L) should be (true)
+            set.remove(0L) should be (true)
+            set.contains(0L) should be (false)
+            set.contains(-1L) should be (true)
+            set.contains(Long.MinValue) should be (true)
+            set.size should be (2)
+        }
+
+        scenario("Values are kept across resizes") {
+            val set = new LongHashSet(2)
+            (1L to 1000L) foreach { v => set.add(v << 32) should be (true) }
+            set.size should be (1000)
+            (1L to 1000L) foreach { v => set.contains(v << 32) should be (true) }
+            set.contains(1001L << 32) should be (false)
+        }
+
+        scenario("Clearing the set") {
+            val set = new LongHashSet()
+            (1L to 100L) foreach set.add
+            set.add(0L)
+            set.clear()
+            set.isEmpty should be (true)
+            set.contains(0L) should be (false)
+            set.contains(1L) should be (false)
+        }
+    }
+
+    feature("The set behaves as a regular set") {
+        scenario("Random additions and removals") {
+            val random = new Random(1)
+            val set = new LongHashSet()
+            val reference = mutable.Set[Long]()
+            for (i <- 0 until 100000) {
+                // Draw from a small range so that there are collisions and
+                // removals of values in the middle of probe sequences.
+                val value = random.nextInt(512).toLong
+                if (random.nextBoolean()) {
+                    set.add(value) should be (reference.add(value))
+                } else {
+                    set.remove(value) should be (reference.remove(value))
+                }
+                set.size should be (reference.size)
+            }
+            (0L until 512L) foreach { v =>
+                set.contains(v) should be (reference.contains(v))
+            }
+        }
+    }
+}
@@ -68,6 +68,11 @@ public abstract class AbstractNetlinkConnection {
 
     private final BufferPool requestPool;
     private final NetlinkChannel channel;
+
+    // When set, datagrams are read in batches with a single system call.
+    // It's set by the thread setting up the connection, and checked by the
+    // reading thread before taking the lock.
+    private volatile NetlinkBatchReader batchReader = null;
     protected BatchCollector<Runnable> dispatcher;
 
     private SelectorInputQueue<NetlinkRequest> writeQueue =
@@ -130,6 +135,25 @@ public abstract class AbstractNetlinkConnection {
         return this.maxBatchIoOps;
     }
 
+    /**
+     * Makes this connection read up to maxMessages datagrams per system call,
+     * into buffers taken from the given pool. A datagram larger than the
+     * buffers is dropped. The buffers are reused by the next read, so this
+     * is only suitable for connections whose handlers don't keep references
+     * to the buffers they are handed.
+     */
+    public synchronized void enableBatchReads(BufferPool pool, int maxMessages) {
+        if (batchReader != null)
+            batchReader.release();
+        batchReader = null;
+        if (maxMessages > 1)
+            batchReader = new NetlinkBatchReader(channel, pool, maxMessages);
+    }
+
+    public synchronized void disableBatchReads() {
+        enableBatchReads(null, 0);
+    }
+
     public SelectorInputQueue<NetlinkRequest> getSendQueue() {
         return writeQueue;
     }
@@ -351,8 +375,12 @@ public abstract class AbstractNetlinkConnection {
     public void handleReadEvent(final Bucket bucket) throws IOException {
         try {
             bucket.prepare();
-            for (int i = 0; i < maxBatchIoOps; i++) {
-                final int ret = processReadFromChannel(bucket);
+            int i = 0;
+            while (i < maxBatchIoOps) {
+                final boolean batched = batchReader != null;
+                final int ret = batched
+                              ? processBatchFromChannel(bucket)
+                              : processReadFromChannel(bucket);
                 if (ret <= 0) {
                     if (ret < 0) {
                         log.info("NETLINK read() error: {}",
@@ -360,6 +388,7 @@ public abstract class AbstractNetlinkConnection {
                     }
                     break;
                 }
+                i += batched ? ret : 1;
             }
         } catch (IOException e) {
             log.error("NETLINK read() exception: {}", e);
@@ -380,6 +409,39 @@ public abstract class AbstractNetlinkConnection {
         int nbytes = channel.read(reply);
 
         reply.flip(); // sets the effective final limit for any number of msgs
+        processMessages(reply, bucket);
+        return nbytes;
+    }
+
+    /* Returns the number of datagrams read, or 0 if none was available. */
+    private synchronized int processBatchFromChannel(final Bucket bucket)
+            throws IOException {
+        if (batchReader == null)
+            return processReadFromChannel(bucket);
+
+        int ndgrams;
+        try {
+            ndgrams = batchReader.read();
+        } catch (UnsatisfiedLinkError e) {
+            log.warn("recvmmsg() is not available, reading datagrams " +
+                     "one by one");
+            batchReader.release();
+            batchReader = null;
+            return processReadFromChannel(bucket);
+        }
+
+        int truncated = batchReader.truncated();
+        for (int i = 0; i < ndgrams; i++) {
+            processMessages(batchReader.buffer(i), bucket);
+        }
+        if (batchReader.truncated() != truncated) {
+            log.warn("Dropped {} datagrams larger than the read buffers",
+                     batchReader.truncated() - truncated);
+        }
+        return ndgrams;
+    }
+
+    private void processMessages(ByteBuffer reply, final Bucket bucket) {
         reply.mark();
         int finalLimit = reply.limit();
 
@@ -447,7 +509,6 @@ public abstract class AbstractNetlinkConnection {
             reply.limit(finalLimit);
             reply.position(nextPosition);
         }
-        return nbytes;
     }
 
     private void processSuccessfulRequest(NetlinkRequest request) {
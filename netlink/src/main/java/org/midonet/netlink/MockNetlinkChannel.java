@@ -82,6 +82,15 @@ public class MockNetlinkChannel extends NetlinkChannel {
         return src.remaining();
     }
 
+    @Override
+    public long write(ByteBuffer[] buffers) throws IOException {
+        long nbytes = 0;
+        for (ByteBuffer src : buffers) {
+            nbytes += write(src);
+        }
+        return nbytes;
+    }
+
     @Override
     protected void implCloseSelectableChannel() {
 
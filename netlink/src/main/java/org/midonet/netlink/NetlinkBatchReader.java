@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import org.midonet.netlink.clib.cLibrary;
+
+/**
+ * Reads several datagrams from a netlink channel with a single recvmmsg(2)
+ * call, each of them into its own direct buffer taken from a BufferPool.
+ * After a read, buffer(i) holds the i-th datagram between its position and
+ * limit. The buffers are reused by the next read, and returned to the pool
+ * by release().
+ *
+ * This class is not thread-safe.
+ */
+public class NetlinkBatchReader {
+
+    /* Layout of struct mmsghdr and struct iovec, whose fields are either
+     * pointers, size_t or int, for the pointer size of the platform. */
+    private static final int POINTER_SIZE = Native.POINTER_SIZE;
+    private static final int IOVEC_SIZE = 2 * POINTER_SIZE;
+    private static final int MSG_IOV_OFFSET = 2 * POINTER_SIZE;
+    private static final int MSG_IOVLEN_OFFSET = 3 * POINTER_SIZE;
+    private static final int MSG_FLAGS_OFFSET = 6 * POINTER_SIZE;
+    private static final int MSG_LEN_OFFSET = 7 * POINTER_SIZE;
+    private static final int MMSGHDR_SIZE = 8 * POINTER_SIZE;
+
+    private final UnixChannel<?> channel;
+    private final BufferPool pool;
+    private final ByteBuffer[] buffers;
+    private final ByteBuffer msgvec;
+    private final ByteBuffer iovecs;
+    private int truncated = 0;
+
+    public NetlinkBatchReader(UnixChannel<?> channel, BufferPool pool,
+                              int maxMessages) {
+        if (maxMessages <= 0)
+            throw new IllegalArgumentException();
+
+        this.channel = channel;
+        this.pool = pool;
+        buffers = new ByteBuffer[maxMessages];
+        msgvec = ByteBuffer.allocateDirect(maxMessages * MMSGHDR_SIZE)
+                           .order(ByteOrder.nativeOrder());
+        iovecs = ByteBuffer.allocateDirect(maxMessages * IOVEC_SIZE)
+                           .order(ByteOrder.nativeOrder());
+
+        long iovecsAddress = addressOf(iovecs);
+        for (int i = 0; i < maxMessages; i++) {
+            ByteBuffer buf = pool.take();
+            if (!buf.isDirect()) {
+                // The pool is exhausted and handed out a heap buffer.
+                buf = BytesUtil.instance.allocateDirect(buf.capacity());
+            }
+            buffers[i] = buf;
+
+            putPointer(iovecs, i * IOVEC_SIZE, addressOf(buf));
+            putPointer(iovecs, i * IOVEC_SIZE + POINTER_SIZE, buf.capacity());
+
+            // msg_name and msg_control are left zeroed.
+            int hdr = i * MMSGHDR_SIZE;
+            putPointer(msgvec, hdr + MSG_IOV_OFFSET,
+                       iovecsAddress + i * IOVEC_SIZE);
+            putPointer(msgvec, hdr + MSG_IOVLEN_OFFSET, 1);
+        }
+    }
+
+    /**
+     * Reads the datagrams available in the channel, up to the number of
+     * buffers, without blocking. Datagrams that didn't fit in their buffer
+     * are discarded: their buffer is left empty.
+     *
+     * @return the number of buffers filled by this read.
+     */
+    public int read() throws IOException {
+        int n = channel.readMessages(msgvec, buffers.length);
+        for (int i = 0; i < n; i++) {
+            int hdr = i * MMSGHDR_SIZE;
+            ByteBuffer buf = buffers[i];
+            buf.clear();
+            if ((msgvec.getInt(hdr + MSG_FLAGS_OFFSET) & cLibrary.MSG_TRUNC) != 0) {
+                truncated++;
+                buf.limit(0);
+            } else {
+                buf.limit(msgvec.getInt(hdr + MSG_LEN_OFFSET));
+            }
+        }
+        return n;
+    }
+
+    public ByteBuffer buffer(int i) {
+        return buffers[i];
+    }
+
+    public int capacity() {
+        return buffers.length;
+    }
+
+    /** The number of datagrams discarded because they were too large. */
+    public int truncated() {
+        return truncated;
+    }
+
+    public void release() {
+        for (ByteBuffer buf : buffers) {
+            pool.release(buf);
+        }
+    }
+
+    private static long addressOf(ByteBuffer buf) {
+        return Pointer.nativeValue(Native.getDirectBufferPointer(buf));
+    }
+
+    private static void putPointer(ByteBuffer buf, int offset, long value) {
+        if (POINTER_SIZE == 8)
+            buf.putLong(offset, value);
+        else
+            buf.putInt(offset, (int) value);
+    }
+}
@@ -132,6 +132,42 @@ public class NetlinkChannel extends UnixChannel<Netlink.Address> {
         }
     }
 
+    /**
+     * Subscribes the channel to a multicast group of its protocol.
+     */
+    public void addMembership(int group) throws IOException {
+        setIntOption(cLibrary.NETLINK_ADD_MEMBERSHIP, group);
+    }
+
+    /**
+     * Makes reads fail with ENOBUFS, surfaced as an IOException, when
+     * messages were dropped because the read buffer was full. Channels
+     * ignore these errors by default, see above, which suits requests that
+     * can time out individually but not the listeners of a multicast group,
+     * which must then resynchronize their state.
+     */
+    public void reportOverruns() throws IOException {
+        setIntOption(cLibrary.NETLINK_NO_ENOBUFS, 0);
+    }
+
+    /**
+     * Tells whether an exception thrown by a read reports an overrun, as
+     * opposed to any other error of the channel.
+     */
+    public static boolean isOverrun(IOException e) {
+        return cLibrary.lib.strerror(cLibrary.ENOBUFS).equals(e.getMessage());
+    }
+
+    private void setIntOption(int option, int value) throws IOException {
+        ByteBuffer buf = BytesUtil.instance.allocate(4);
+        buf.putInt(value);
+        if (cLibrary.lib.setsockopt(
+                fdVal, cLibrary.SOL_NETLINK, option, buf, 4) != 0) {
+            throw new IOException("SETSOCKOPT " + option + " failed: " +
+                                  cLibrary.lib.strerror(Native.getLastError()));
+        }
+    }
+
     protected void _executeConnect(Netlink.Address address) throws IOException {
         cLibrary.NetlinkSockAddress remote = new cLibrary.NetlinkSockAddress();
         remote.nl_family = cLibrary.AF_NETLINK;
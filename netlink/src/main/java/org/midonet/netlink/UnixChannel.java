@@ -206,6 +206,39 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
         }
     }
 
+    /**
+     * Receives up to vlen datagrams with a single recvmmsg(2) call, into the
+     * buffers described by the vector of struct mmsghdr in msgvec. It never
+     * blocks, returning 0 when no datagram is available.
+     *
+     * @return the number of datagrams received.
+     */
+    public int readMessages(ByteBuffer msgvec, int vlen) throws IOException {
+        synchronized (recvLock) {
+            ensureConnected();
+            int n = 0;
+            try {
+                if (!prepareRead())
+                    return n;
+                int errno;
+                do {
+                    n = cLibrary.lib.recvmmsg(fdVal, msgvec, vlen,
+                                              cLibrary.MSG_DONTWAIT, null);
+                    errno = n < 0 ? Native.getLastError() : 0;
+                } while (errno == cLibrary.EINTR && isOpen());
+                if (n < 0) {
+                    if (errno != cLibrary.EAGAIN)
+                        throw new IOException("recvmmsg() failed: " +
+                                              cLibrary.lib.strerror(errno));
+                    n = IOStatus.UNAVAILABLE;
+                }
+                return Math.max(n, 0);
+            } finally {
+                finishRead(n);
+            }
+        }
+    }
+
     private boolean prepareWrite() {
         begin();
         if (isOpen()) {
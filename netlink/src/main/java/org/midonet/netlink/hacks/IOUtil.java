@@ -135,7 +135,7 @@ public class IOUtil {
 
     public static int write(FileDescriptor fd, ByteBuffer[] buffers, NativeDispatcher nd) {
         try {
-            return (Integer)writeMultipleRef.invoke(null, fd, buffers, nd.dispatcher);
+            return ((Number) writeMultipleRef.invoke(null, fd, buffers, nd.dispatcher)).intValue();
         } catch (Exception e) {
             log.error("Error invoking method \"{}\"", writeMultipleRef, e);
         }
@@ -157,7 +157,7 @@ public class IOUtil {
 
     public static int read(FileDescriptor fd, ByteBuffer[] buffers, NativeDispatcher nd) {
         try {
-            return (Integer)readMultipleRef.invoke(null, fd, buffers, nd.dispatcher);
+            return ((Number) readMultipleRef.invoke(null, fd, buffers, nd.dispatcher)).intValue();
         } catch (Exception e) {
             log.error("Error invoking method \"{}\"", readMultipleRef, e);
         }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import org.midonet.netlink.AttributeHandler;
+import org.midonet.netlink.NetlinkMessage;
+
+/**
+ * An address of a network interface, as described by the RTM_NEWADDR and
+ * RTM_DELADDR rtnetlink messages.
+ */
+public final class Addr implements AttributeHandler {
+
+    // struct ifaddrmsg {
+    //     __u8  ifa_family;
+    //     __u8  ifa_prefixlen;
+    //     __u8  ifa_flags;
+    //     __u8  ifa_scope;
+    //     __u32 ifa_index;
+    // };
+    public static final int HEADER_SIZE = 8;
+
+    private byte family;
+    private byte prefixLen;
+    private int ifindex;
+    private InetAddress address;
+    private InetAddress local;
+
+    private Addr() { }
+
+    public byte getFamily() {
+        return family;
+    }
+
+    public int getPrefixLen() {
+        return prefixLen & 0xFF;
+    }
+
+    public int getIfindex() {
+        return ifindex;
+    }
+
+    /** The address of the interface. For point-to-point interfaces, the
+     *  IFA_ADDRESS attribute holds the address of the peer, so the local
+     *  address is preferred when present. */
+    public InetAddress getAddress() {
+        return local != null ? local : address;
+    }
+
+    /** Builds an Addr from the payload of a RTM_NEWADDR or RTM_DELADDR
+     *  message, starting at the buffer position and ending at its limit. */
+    public static Addr buildFrom(ByteBuffer buf) {
+        Addr addr = new Addr();
+        int start = buf.position();
+        addr.family = buf.get(start);
+        addr.prefixLen = buf.get(start + 1);
+        addr.ifindex = buf.getInt(start + 4);
+        buf.position(start + HEADER_SIZE);
+        NetlinkMessage.scanAttributes(buf, addr);
+        buf.position(start);
+        return addr;
+    }
+
+    @Override
+    public void use(ByteBuffer buf, short id) {
+        switch (NetlinkMessage.unnest(id)) {
+            case Rtnetlink.AddrAttr.Address:
+                address = readAddress(buf);
+                break;
+
+            case Rtnetlink.AddrAttr.Local:
+                local = readAddress(buf);
+                break;
+        }
+    }
+
+    private static InetAddress readAddress(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Neither an IPv4 nor an IPv6 address.
+            return null;
+        }
+    }
+
+    /** Writes a request dumping the addresses of all the interfaces of the
+     *  host, of every address family. */
+    public static int writeDumpRequest(ByteBuffer buf, int seq) {
+        return Link.writeDumpRequest(buf, Rtnetlink.Type.GetAddr,
+                                     HEADER_SIZE, seq);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Addr that = (Addr) o;
+        return family == that.family &&
+               prefixLen == that.prefixLen &&
+               ifindex == that.ifindex &&
+               Objects.equals(address, that.address) &&
+               Objects.equals(local, that.local);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ifindex, address, local);
+    }
+
+    @Override
+    public String toString() {
+        return "Addr{ifindex=" + ifindex +
+               ", address=" + getAddress() +
+               "/" + getPrefixLen() + "}";
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import org.midonet.netlink.AttributeHandler;
+import org.midonet.netlink.NLFlag;
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.packets.MAC;
+
+/**
+ * A network interface, as described by the RTM_NEWLINK and RTM_DELLINK
+ * rtnetlink messages.
+ */
+public final class Link implements AttributeHandler {
+
+    // struct ifinfomsg {
+    //     unsigned char  ifi_family;
+    //     unsigned char  __ifi_pad;
+    //     unsigned short ifi_type;
+    //     int            ifi_index;
+    //     unsigned       ifi_flags;
+    //     unsigned       ifi_change;
+    // };
+    public static final int HEADER_SIZE = 16;
+
+    private int ifindex;
+    private short type;
+    private int flags;
+    private String name;
+    private MAC mac;
+    private int mtu;
+    private int master;
+    private String kind;
+
+    private Link() { }
+
+    public int getIfindex() {
+        return ifindex;
+    }
+
+    /** The ARPHRD_* hardware type of the interface. */
+    public short getType() {
+        return type;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** The hardware address of the interface, or null if it has none. */
+    public MAC getMac() {
+        return mac;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /** The ifindex of the master device of the interface, or 0. */
+    public int getMaster() {
+        return master;
+    }
+
+    /** The kind of the virtual device, such as "tun" or "veth", or null. */
+    public String getKind() {
+        return kind;
+    }
+
+    public boolean isUp() {
+        return (flags & Rtnetlink.LinkFlags.Up) != 0;
+    }
+
+    public boolean hasLink() {
+        return (flags & Rtnetlink.LinkFlags.LowerUp) != 0;
+    }
+
+    public boolean isLoopback() {
+        return (flags & Rtnetlink.LinkFlags.Loopback) != 0 ||
+               type == Rtnetlink.LinkType.Loopback;
+    }
+
+    /** Builds a Link from the payload of a RTM_NEWLINK or RTM_DELLINK
+     *  message, starting at the buffer position and ending at its limit. */
+    public static Link buildFrom(ByteBuffer buf) {
+        Link link = new Link();
+        int start = buf.position();
+        link.type = buf.getShort(start + 2);
+        link.ifindex = buf.getInt(start + 4);
+        link.flags = buf.getInt(start + 8);
+        buf.position(start + HEADER_SIZE);
+        NetlinkMessage.scanAttributes(buf, link);
+        buf.position(start);
+        return link;
+    }
+
+    @Override
+    public void use(ByteBuffer buf, short id) {
+        switch (NetlinkMessage.unnest(id)) {
+            case Rtnetlink.LinkAttr.IfName:
+                name = NetlinkMessage.parseStringAttr(buf, buf.position());
+                break;
+
+            case Rtnetlink.LinkAttr.Address:
+                if (buf.remaining() == 6) {
+                    byte[] addr = new byte[6];
+                    buf.get(addr);
+                    mac = MAC.fromAddress(addr);
+                }
+                break;
+
+            case Rtnetlink.LinkAttr.MTU:
+                mtu = buf.getInt();
+                break;
+
+            case Rtnetlink.LinkAttr.Master:
+                master = buf.getInt();
+                break;
+
+            case Rtnetlink.LinkAttr.LinkInfo:
+                kind = NetlinkMessage.readStringAttr(
+                    buf, Rtnetlink.LinkInfoAttr.Kind);
+                break;
+        }
+    }
+
+    /** Writes a request dumping all the interfaces of the host. */
+    public static int writeDumpRequest(ByteBuffer buf, int seq) {
+        return writeDumpRequest(buf, Rtnetlink.Type.GetLink, HEADER_SIZE, seq);
+    }
+
+    /* Writes a dump request of the given type, followed by a zeroed family
+     * specific header. */
+    static int writeDumpRequest(ByteBuffer buf, short type, int headerSize,
+                                int seq) {
+        int size = NetlinkMessage.HEADER_SIZE + headerSize;
+        int pos = buf.position();
+        buf.putInt(pos + NetlinkMessage.NLMSG_LEN_OFFSET, size);
+        buf.putShort(pos + NetlinkMessage.NLMSG_TYPE_OFFSET, type);
+        buf.putShort(pos + NetlinkMessage.NLMSG_FLAGS_OFFSET,
+                     (short) (NLFlag.REQUEST | NLFlag.Get.DUMP));
+        buf.putInt(pos + NetlinkMessage.NLMSG_SEQ_OFFSET, seq);
+        buf.putInt(pos + NetlinkMessage.NLMSG_PID_OFFSET, 0);
+        for (int i = NetlinkMessage.HEADER_SIZE; i < size; i++) {
+            buf.put(pos + i, (byte) 0);
+        }
+        buf.limit(pos + size);
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Link that = (Link) o;
+        return ifindex == that.ifindex &&
+               type == that.type &&
+               flags == that.flags &&
+               mtu == that.mtu &&
+               master == that.master &&
+               Objects.equals(name, that.name) &&
+               Objects.equals(mac, that.mac) &&
+               Objects.equals(kind, that.kind);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ifindex, name);
+    }
+
+    @Override
+    public String toString() {
+        return "Link{ifindex=" + ifindex +
+               ", name=" + name +
+               ", type=" + type +
+               ", flags=0x" + Integer.toHexString(flags) +
+               ", mac=" + mac +
+               ", mtu=" + mtu +
+               ", master=" + master +
+               ", kind=" + kind + "}";
+    }
+}
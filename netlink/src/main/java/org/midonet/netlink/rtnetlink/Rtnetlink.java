@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink;
+
+/** This interface contains the constants of the rtnetlink protocol used to
+ *  track the network interfaces and their addresses. See
+ *  include/uapi/linux/rtnetlink.h, if_link.h, if_addr.h and if.h in the
+ *  Linux kernel sources.
+ */
+public interface Rtnetlink {
+
+    //enum {
+    //    RTM_NEWLINK = 16,
+    //    RTM_DELLINK,
+    //    RTM_GETLINK,
+    //    RTM_SETLINK,
+    //    RTM_NEWADDR = 20,
+    //    RTM_DELADDR,
+    //    RTM_GETADDR,
+    //    ...
+    //};
+    public interface Type {
+        short NewLink       = (short) 16;
+        short DelLink       = (short) 17;
+        short GetLink       = (short) 18;
+        short NewAddr       = (short) 20;
+        short DelAddr       = (short) 21;
+        short GetAddr       = (short) 22;
+    }
+
+    //enum rtnetlink_groups {
+    //    RTNLGRP_NONE,
+    //    RTNLGRP_LINK,
+    //    ...
+    //    RTNLGRP_IPV4_IFADDR = 5,
+    //    ...
+    //    RTNLGRP_IPV6_IFADDR = 9,
+    //    ...
+    //};
+    public interface Group {
+        int Link            = 1;
+        int IPv4IfAddr      = 5;
+        int IPv6IfAddr      = 9;
+    }
+
+    //enum {
+    //    IFLA_UNSPEC,
+    //    IFLA_ADDRESS,
+    //    IFLA_BROADCAST,
+    //    IFLA_IFNAME,
+    //    IFLA_MTU,
+    //    IFLA_LINK,
+    //    IFLA_QDISC,
+    //    IFLA_STATS,
+    //    IFLA_COST,
+    //    IFLA_PRIORITY,
+    //    IFLA_MASTER,
+    //    ...
+    //    IFLA_LINKINFO = 18,
+    //    ...
+    //};
+    public interface LinkAttr {
+        short Address       = (short) 1;
+        short IfName        = (short) 3;
+        short MTU           = (short) 4;
+        short Master        = (short) 10;
+        short LinkInfo      = (short) 18;
+    }
+
+    //enum {
+    //    IFLA_INFO_UNSPEC,
+    //    IFLA_INFO_KIND,
+    //    IFLA_INFO_DATA,
+    //    IFLA_INFO_XSTATS,
+    //    ...
+    //};
+    public interface LinkInfoAttr {
+        short Kind          = (short) 1;
+    }
+
+    //enum {
+    //    IFA_UNSPEC,
+    //    IFA_ADDRESS,
+    //    IFA_LOCAL,
+    //    ...
+    //};
+    public interface AddrAttr {
+        short Address       = (short) 1;
+        short Local         = (short) 2;
+    }
+
+    //#define IFF_UP          0x1
+    //#define IFF_LOOPBACK    0x8
+    //#define IFF_LOWER_UP    0x10000
+    public interface LinkFlags {
+        int Up              = 0x1;
+        int Loopback        = 0x8;
+        int LowerUp         = 0x10000;
+    }
+
+    //#define ARPHRD_ETHER    1
+    //#define ARPHRD_NONE     0xFFFE
+    //#define ARPHRD_LOOPBACK 772
+    public interface LinkType {
+        short Ether         = (short) 1;
+        short Loopback      = (short) 772;
+        short None          = (short) 0xFFFE;
+    }
+}
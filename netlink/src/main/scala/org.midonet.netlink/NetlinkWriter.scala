@@ -44,6 +44,16 @@ class NetlinkWriter(val channel: NetlinkChannel) {
             src.limit(oldLimit)
         }
     }
+
+    /**
+     * Writes the first count source buffers into the channel with a single
+     * gathering write, so that their messages are sent in the same datagram.
+     * Unlike the single buffer variant, this method does modify the buffers'
+     * positions.
+     */
+    @throws(classOf[IOException])
+    def write(srcs: Array[ByteBuffer], count: Int): Long =
+        channel.write(srcs, 0, count)
 }
 
 class NetlinkBlockingWriter(channel: NetlinkChannel) extends NetlinkWriter(channel) {
@@ -69,4 +79,112 @@ class NetlinkBlockingWriter(channel: NetlinkChannel) extends NetlinkWriter(chann
         }
         nbytes
     }
+
+    @throws(classOf[IOException])
+    override def write(srcs: Array[ByteBuffer], count: Int): Long = {
+        var nbytes = 0L
+        while ({ nbytes = super.write(srcs, count); nbytes } == 0) {
+            if (!channel.isOpen)
+                return 0
+
+            selector.select(timeout)
+        }
+        nbytes
+    }
+}
+
+object NetlinkBatchWriter {
+    /* Keeps the datagrams well below the default socket send buffer, and the
+     * number of buffers below the IOV_MAX limit of a gathering write.
+     */
+    val MAX_BATCH_BYTES = 32 * 1024
+    val MAX_BATCH_MESSAGES = 1024
+}
+
+/**
+ * Coalesces Netlink messages so that a batch of them is sent to the kernel
+ * in a single datagram, with one system call instead of one per message.
+ * The kernel handles every message of a datagram in turn, the same as if
+ * they had been sent separately. Messages are kept by reference, so their
+ * buffers must not be modified until the batch is flushed.
+ */
+class NetlinkBatchWriter(writer: NetlinkWriter, maxMessages: Int,
+                         maxBytes: Int = NetlinkBatchWriter.MAX_BATCH_BYTES) {
+    import NetlinkBatchWriter._
+
+    private val capacity = Math.max(1, Math.min(maxMessages, MAX_BATCH_MESSAGES))
+    private val batch = new Array[ByteBuffer](capacity)
+    private val positions = new Array[Int](capacity)
+    private var count = 0
+    private var bytes = 0
+
+    def size: Int = count
+
+    def isEmpty: Boolean = count == 0
+
+    /**
+     * Whether the message can be added to the batch without exceeding its
+     * bounds. An empty batch accepts any message.
+     */
+    def fits(src: ByteBuffer): Boolean =
+        count == 0 || (count < capacity && bytes + src.remaining() <= maxBytes)
+
+    def add(src: ByteBuffer): Unit = {
+        batch(count) = src
+        positions(count) = src.position()
+        bytes += src.remaining()
+        count += 1
+    }
+
+    /**
+     * Writes the batched messages into the channel and empties the batch.
+     * Should the gathering write fail, it falls back to writing the messages
+     * one by one, and throws if any of them couldn't be written.
+     */
+    @throws(classOf[IOException])
+    def flush(): Unit = {
+        if (count == 0)
+            return
+        var written = false
+        try {
+            written = count > 1 && writer.write(batch, count) == bytes
+        } catch { case e: IOException => }
+        try {
+            if (!written)
+                writeOneByOne()
+        } finally {
+            clear()
+        }
+    }
+
+    private def writeOneByOne(): Unit = {
+        var failed = 0
+        var error: Throwable = null
+        var i = 0
+        while (i < count) {
+            val src = batch(i)
+            src.position(positions(i))
+            try {
+                if (writer.write(src) < 0)
+                    failed += 1
+            } catch { case e: IOException =>
+                failed += 1
+                error = e
+            }
+            i += 1
+        }
+        if (failed > 0)
+            throw new IOException(
+                s"Failed to write $failed out of $count netlink messages", error)
+    }
+
+    private def clear(): Unit = {
+        var i = 0
+        while (i < count) {
+            batch(i) = null
+            i += 1
+        }
+        count = 0
+        bytes = 0
+    }
 }
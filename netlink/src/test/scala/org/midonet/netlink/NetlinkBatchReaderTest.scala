@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.netlink
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class NetlinkBatchReaderTest extends FunSpec with Matchers {
+
+    val GENL_ID_CTRL = 0x10
+
+    def withChannel(test: NetlinkChannel => Unit): Unit = {
+        val channel = try {
+            new NetlinkChannelFactory().create(blocking = false)
+        } catch { case e: Throwable =>
+            cancel("Netlink sockets are not available", e)
+        }
+        try test(channel) finally channel.close()
+    }
+
+    def requestFamilies(channel: NetlinkChannel, count: Int): Unit = {
+        val pid = channel.getLocalAddress.getPid
+        (0 until count) foreach { _ =>
+            val buf = BytesUtil.instance.allocateDirect(1024)
+            GenlProtocol.familyNameRequest("nlctrl", NLFlag.REQUEST, pid,
+                                           CtrlFamily.Context.GetFamily, buf)
+            channel.write(buf)
+        }
+    }
+
+    describe("NetlinkBatchReader") {
+        it("reads several datagrams at once") {
+            withChannel { channel =>
+                val reader = new NetlinkBatchReader(
+                    channel, new BufferPool(8, 8, 4096), 8)
+                requestFamilies(channel, 5)
+
+                reader.read() shouldBe 5
+                (0 until 5) foreach { i =>
+                    val buf = reader.buffer(i)
+                    buf.remaining should be > 0
+                    buf.getInt(0) shouldBe buf.remaining
+                    buf.getShort(4) shouldBe GENL_ID_CTRL
+                }
+                reader.read() shouldBe 0
+                reader.release()
+            }
+        }
+
+        it("is bounded by its number of buffers") {
+            withChannel { channel =>
+                val reader = new NetlinkBatchReader(
+                    channel, new BufferPool(4, 4, 4096), 4)
+                requestFamilies(channel, 6)
+
+                reader.read() shouldBe 4
+                reader.read() shouldBe 2
+                reader.read() shouldBe 0
+                reader.release()
+            }
+        }
+
+        it("drops datagrams larger than its buffers") {
+            withChannel { channel =>
+                val reader = new NetlinkBatchReader(
+                    channel, new BufferPool(2, 2, 16), 2)
+                requestFamilies(channel, 2)
+
+                reader.read() shouldBe 2
+                reader.buffer(0).remaining shouldBe 0
+                reader.buffer(1).remaining shouldBe 0
+                reader.truncated shouldBe 2
+                reader.release()
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.netlink
+
+import java.io.IOException
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class NetlinkBatchWriterTest extends FunSpec with Matchers {
+
+    class BatchingChannel extends MockNetlinkChannel(
+            Netlink.selectorProvider, NetlinkProtocol.NETLINK_GENERIC) {
+        var gatheringWrites = 0
+        var failGatheringWrites = false
+        var failWrites = false
+
+        override def write(buffers: Array[ByteBuffer]): Long = {
+            gatheringWrites += 1
+            if (failGatheringWrites)
+                throw new IOException("gathering write failed")
+            super.write(buffers)
+        }
+
+        override def write(src: ByteBuffer): Int =
+            if (failWrites) -1 else super.write(src)
+    }
+
+    def message(size: Int, tag: Int) = {
+        val buf = BytesUtil.instance.allocate(size)
+        buf.putInt(tag)
+        buf.position(size)
+        buf.flip()
+        buf
+    }
+
+    def tags(channel: MockNetlinkChannel): Seq[Int] = {
+        var tags = Vector.empty[Int]
+        while (!channel.written.isEmpty)
+            tags :+= channel.written.poll().getInt(0)
+        tags
+    }
+
+    describe("NetlinkBatchWriter") {
+        it("writes the batched messages with a single gathering write") {
+            val channel = new BatchingChannel
+            val batch = new NetlinkBatchWriter(new NetlinkWriter(channel), 8)
+            (1 to 5) foreach { i => batch.add(message(64, i)) }
+            batch.size shouldBe 5
+            channel.packetsWritten.get shouldBe 0
+
+            batch.flush()
+            batch.isEmpty shouldBe true
+            channel.gatheringWrites shouldBe 1
+            tags(channel) shouldBe (1 to 5)
+        }
+
+        it("writes a lone message on its own") {
+            val channel = new BatchingChannel
+            val batch = new NetlinkBatchWriter(new NetlinkWriter(channel), 8)
+            batch.add(message(64, 1))
+            batch.flush()
+            channel.gatheringWrites shouldBe 0
+            tags(channel) shouldBe Seq(1)
+        }
+
+        it("is bounded by the number of messages and bytes") {
+            val channel = new BatchingChannel
+            val batch = new NetlinkBatchWriter(new NetlinkWriter(channel), 2, 256)
+            val small = message(64, 1)
+            batch.fits(small) shouldBe true
+            batch.add(small)
+            batch.fits(message(512, 2)) shouldBe false
+            batch.fits(message(64, 2)) shouldBe true
+            batch.add(message(64, 2))
+            batch.fits(message(64, 3)) shouldBe false
+            batch.flush()
+
+            batch.fits(message(512, 3)) shouldBe true
+        }
+
+        it("falls back to writing the messages one by one") {
+            val channel = new BatchingChannel
+            channel.failGatheringWrites = true
+            val batch = new NetlinkBatchWriter(new NetlinkWriter(channel), 8)
+            (1 to 3) foreach { i => batch.add(message(64, i)) }
+            batch.flush()
+            channel.gatheringWrites shouldBe 1
+            tags(channel) shouldBe (1 to 3)
+        }
+
+        it("throws if the messages can't be written") {
+            val channel = new BatchingChannel
+            channel.failGatheringWrites = true
+            channel.failWrites = true
+            val batch = new NetlinkBatchWriter(new NetlinkWriter(channel), 8)
+            (1 to 3) foreach { i => batch.add(message(64, i)) }
+            intercept[IOException] { batch.flush() }
+            batch.isEmpty shouldBe true
+        }
+    }
+}
@@ -30,6 +30,7 @@ import org.midonet.odp.flows.FlowActions;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
@@ -50,7 +51,12 @@ public class Packet {
     private FlowMatch match;
     private Long userData;
     private Reason reason;
-    private Ethernet eth;
+    // Packets are read from more than one thread, the Ethernet object is
+    // published safely once it's parsed from the frame.
+    private volatile Ethernet eth;
+    // The frame as received from the datapath, kept once it's parsed as
+    // readers may still be using it.
+    private final byte[] frame;
 
     // user field used by midolman packet pipeline to track time statistics,
     // ignored in equals() and hashCode()
@@ -58,15 +64,68 @@ public class Packet {
 
     public Packet(Ethernet eth, FlowMatch match) {
         this.eth = eth;
+        this.frame = null;
         this.match = match;
     }
 
+    private Packet(byte[] frame, FlowMatch match) {
+        this.frame = frame;
+        this.match = match;
+    }
+
+    /**
+     * Creates a Packet for a frame received from the datapath, whose
+     * Ethernet object is only built when first requested. The header of
+     * the frame must have been checked with hasValidHeader().
+     */
+    public static Packet fromFrame(byte[] frame, FlowMatch match) {
+        return new Packet(frame, match);
+    }
+
+    /**
+     * Whether the frame is long enough for its Ethernet header and VLAN
+     * tags, which are the only parts of a frame that make its parsing fail.
+     * A malformed payload is parsed as a Data payload instead.
+     */
+    public static boolean hasValidHeader(byte[] frame) {
+        int pos = Ethernet.MIN_HEADER_LEN - 2;
+        while (pos + 2 <= frame.length) {
+            short etherType = (short) (((frame[pos] & 0xff) << 8)
+                                       | (frame[pos + 1] & 0xff));
+            if (etherType != Ethernet.VLAN_TAGGED_FRAME &&
+                etherType != Ethernet.PROVIDER_BRIDGING_TAG)
+                return true;
+            pos += Ethernet.HEADER_TPID_LEN;
+        }
+        return false;
+    }
+
     public Ethernet getEthernet() {
-        return eth;
+        Ethernet parsed = eth;
+        if (parsed == null && frame != null) {
+            synchronized (this) {
+                parsed = eth;
+                if (parsed == null) {
+                    try {
+                        parsed = Ethernet.deserialize(frame);
+                    } catch (MalformedPacketException e) {
+                        // Prevented by the check of the header on creation.
+                        throw new IllegalStateException(e);
+                    }
+                    eth = parsed;
+                }
+            }
+        }
+        return parsed;
     }
 
+    /**
+     * Returns the serialized frame. If the frame was received from the
+     * datapath and hasn't been parsed, the received bytes are returned.
+     */
     public byte[] getData() {
-        return eth.serialize();
+        Ethernet parsed = eth;
+        return (parsed != null) ? parsed.serialize() : frame;
     }
 
     public FlowMatch getMatch() {
@@ -98,7 +157,7 @@ public class Packet {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        return Objects.equals(this.getEthernet(), that.getEthernet())
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
@@ -106,7 +165,7 @@ public class Packet {
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = Objects.hashCode(getEthernet());
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
@@ -116,7 +175,7 @@ public class Packet {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + getEthernet() +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
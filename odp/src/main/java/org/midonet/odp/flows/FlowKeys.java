@@ -322,6 +322,18 @@ public class FlowKeys {
         return keys;
     }
 
+    /**
+     * Whether addUserspaceKeys() would replace any of the keys, and hence
+     * needs the packet parsed.
+     */
+    public static boolean needsUserspaceKeys(ArrayList<FlowKey> keys) {
+        for (int i = 0; i < keys.size(); ++i) {
+            if (keys.get(i) instanceof FlowKeyICMP)
+                return true;
+        }
+        return false;
+    }
+
     public static void addUserspaceKeys(Ethernet ethPkt, ArrayList<FlowKey> keys) {
         for (int i = 0; i < keys.size(); ++i) {
             if (keys.get(i) instanceof FlowKeyICMP) {
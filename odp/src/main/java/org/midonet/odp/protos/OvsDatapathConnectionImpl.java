@@ -16,7 +16,6 @@
 package org.midonet.odp.protos;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -69,45 +68,71 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         packetFamily = ovsNetlinkFamilies.packetFamily();
     }
 
+    /**
+     * Builds the Packets of the upcalls. The frame is copied out of the
+     * netlink buffer, but it's only parsed into an Ethernet object if the
+     * match needs userspace keys taken from the payload. Otherwise, that is
+     * left for when the simulation needs it, if it does at all.
+     */
     static class PacketBuilder implements AttributeHandler {
         private ArrayList<FlowKey> keys = new ArrayList<>(16);
-        private Ethernet eth;
+        private byte[] frame;
         private Long userData;
 
+        private final AttributeHandler keyBuilder = new AttributeHandler() {
+            @Override
+            public void use(ByteBuffer buffer, short id) {
+                FlowKey key = FlowKeys.newBlankInstance(id);
+                if (key == null)
+                    return;
+                key.deserializeFrom(buffer);
+                keys.add(key);
+            }
+        };
+
         public Packet buildFrom(ByteBuffer buf) {
             int datapathIndex = buf.getInt(); // ignored
             NetlinkMessage.scanAttributes(buf, this);
-            if (eth == null) {
-                keys.clear();
-                return null;
-            }
-            FlowKeys.addUserspaceKeys(eth, keys);
-            Packet p = new Packet(eth, new FlowMatch(keys));
-            p.setUserData(userData);
-            eth = null;
+            Packet p = (frame != null) ? build() : null;
+            if (p != null)
+                p.setUserData(userData);
+            frame = null;
             keys.clear();
             userData = null;
             return p;
         }
 
+        private Packet build() {
+            if (!FlowKeys.needsUserspaceKeys(keys))
+                return Packet.fromFrame(frame, new FlowMatch(keys));
+
+            Ethernet eth = new Ethernet();
+            try {
+                eth.deserialize(ByteBuffer.wrap(frame));
+            } catch (Exception e) {
+                // Prevented by the check of the header.
+                log.warn("Dropping malformed packet", e);
+                return null;
+            }
+            FlowKeys.addUserspaceKeys(eth, keys);
+            return new Packet(eth, new FlowMatch(keys));
+        }
+
         @Override
         public void use(ByteBuffer buffer, short id) {
             switch(NetlinkMessage.unnest(id)) {
                 case OpenVSwitch.Packet.Attr.Packet:
-                    ByteOrder originalOrder = buffer.order();
-                    try {
-                        eth = new Ethernet();
-                        eth.deserialize(buffer);
-                    } catch (Exception e) {
-                        log.warn("Dropping malformed packet", e);
-                        this.eth = null;
-                    } finally {
-                        buffer.order(originalOrder);
+                    frame = new byte[buffer.remaining()];
+                    buffer.get(frame);
+                    if (!Packet.hasValidHeader(frame)) {
+                        log.warn("Dropping malformed packet of {} bytes",
+                                 frame.length);
+                        frame = null;
                     }
                     break;
 
                 case OpenVSwitch.Packet.Attr.Key:
-                    FlowKeys.buildFrom(buffer, keys);
+                    NetlinkMessage.scanAttributes(buffer, keyBuilder);
                     break;
 
                 case OpenVSwitch.Packet.Attr.Userdata:
@@ -199,7 +199,7 @@ sealed class OvsProtocol(pid: Int,
         // only the expected difference.
         NetlinkMessage.writeAttrSeq(buf, Attr.Key, packet.getMatch.getKeys, FlowKeys.writer)
         NetlinkMessage.writeAttrSeq(buf, Attr.Actions, actions, FlowActions.writer)
-        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.getEthernet.serialize())
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.getData)
 
         message.finalize(pid)
     }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp.protos
+
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.netlink.{BytesUtil, NetlinkMessage}
+import org.midonet.odp.{FlowMatches, OpenVSwitch}
+import org.midonet.odp.flows.{FlowKeys, FlowKeyInPort}
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+
+/**
+ * Builds the Packets of upcalls out of the netlink buffers received from the
+ * datapath, as the datapath connection does for every flow miss. Besides the
+ * time per packet, it prints the bytes allocated per packet at the end of
+ * every iteration.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+@State(Scope.Thread)
+class UpcallBenchmark {
+
+    @Param(Array("tcp", "icmp"))
+    var protocol: String = _
+
+    val builder = new OvsDatapathConnectionImpl.PacketBuilder
+    val buffers = new Array[ByteBuffer](64)
+    var next = 0
+
+    val threads = ManagementFactory.getThreadMXBean
+                      .asInstanceOf[com.sun.management.ThreadMXBean]
+    var allocatedBefore = 0L
+    var invocations = 0L
+
+    @Setup
+    def setup(): Unit = {
+        var i = 0
+        while (i < buffers.length) {
+            val l3 = { eth src MAC.random dst MAC.random } <<
+                     { ip4 src IPv4Addr.random dst IPv4Addr.random }
+            val frame = (protocol match {
+                case "tcp" => l3 << { tcp src (10000 + i).toShort dst 80 }
+                case "icmp" => l3 << { icmp.echo.request id i.toShort }
+            }).packet
+            val keys = FlowMatches.fromEthernetPacket(frame).getKeys
+            keys.add(0, new FlowKeyInPort(1))
+
+            val buf = BytesUtil.instance.allocate(2048)
+            buf.putInt(0)
+            NetlinkMessage.writeRawAttribute(buf, OpenVSwitch.Packet.Attr.Packet,
+                                             frame.serialize())
+            NetlinkMessage.writeAttrSeq(buf, OpenVSwitch.Packet.Attr.Key, keys,
+                                        FlowKeys.writer)
+            buf.flip()
+            buffers(i) = buf
+            i += 1
+        }
+    }
+
+    @Setup(Level.Iteration)
+    def startCounting(): Unit = {
+        allocatedBefore = threads.getThreadAllocatedBytes(
+            Thread.currentThread().getId)
+        invocations = 0
+    }
+
+    @TearDown(Level.Iteration)
+    def printAllocations(): Unit = {
+        val allocated = threads.getThreadAllocatedBytes(
+            Thread.currentThread().getId) - allocatedBefore
+        if (invocations > 0)
+            println(s"\n${allocated / invocations} bytes allocated per packet")
+    }
+
+    @Benchmark
+    def buildPacket(bh: Blackhole): Unit = {
+        next = (next + 1) & (buffers.length - 1)
+        invocations += 1
+        val buf = buffers(next)
+        buf.rewind()
+        bh.consume(builder.buildFrom(buf))
+    }
+}
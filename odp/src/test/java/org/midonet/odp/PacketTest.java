@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.packets.Ethernet;
+import org.midonet.packets.IPv4;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.MAC;
+import org.midonet.packets.UDP;
+
+public class PacketTest {
+
+    private Ethernet makeFrame() {
+        UDP udp = new UDP();
+        udp.setSourcePort((short) 5000);
+        udp.setDestinationPort((short) 53);
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(IPv4Addr.random().toInt());
+        ip.setDestinationAddress(IPv4Addr.random().toInt());
+        ip.setProtocol(UDP.PROTOCOL_NUMBER);
+        ip.setPayload(udp);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(MAC.random());
+        eth.setDestinationMACAddress(MAC.random());
+        eth.setEtherType(IPv4.ETHERTYPE);
+        eth.setPayload(ip);
+        return eth;
+    }
+
+    @Test
+    public void testFrameIsParsedOnDemand() throws Exception {
+        Ethernet eth = makeFrame();
+        byte[] frame = eth.serialize();
+        FlowMatch match = FlowMatches.fromEthernetPacket(eth);
+        Packet packet = Packet.fromFrame(frame, match);
+
+        // The received bytes are sent back as they are.
+        Assert.assertSame(frame, packet.getData());
+
+        Ethernet parsed = packet.getEthernet();
+        Assert.assertArrayEquals(frame, parsed.serialize());
+        Assert.assertSame(parsed, packet.getEthernet());
+        Ethernet expected = new Ethernet();
+        expected.deserialize(ByteBuffer.wrap(frame));
+        Assert.assertEquals(new Packet(expected, match), packet);
+
+        // Once parsed, the frame may be modified through the Ethernet.
+        parsed.setSourceMACAddress(MAC.random());
+        Assert.assertArrayEquals(parsed.serialize(), packet.getData());
+    }
+
+    @Test
+    public void testFrameIsParsedOnceAcrossThreads() throws Exception {
+        final byte[] frame = makeFrame().serialize();
+        final Packet packet = Packet.fromFrame(
+            frame, FlowMatches.fromEthernetPacket(makeFrame()));
+        final int THREADS = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Future<Ethernet>> parsed = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                parsed.add(executor.submit(new Callable<Ethernet>() {
+                    @Override
+                    public Ethernet call() throws Exception {
+                        barrier.await();
+                        Assert.assertArrayEquals(frame, packet.getData());
+                        return packet.getEthernet();
+                    }
+                }));
+            }
+            for (Future<Ethernet> eth : parsed) {
+                Assert.assertSame(packet.getEthernet(),
+                                  eth.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testHeaderValidation() {
+        byte[] frame = makeFrame().serialize();
+        Assert.assertTrue(Packet.hasValidHeader(frame));
+        Assert.assertFalse(Packet.hasValidHeader(
+            Arrays.copyOf(frame, Ethernet.MIN_HEADER_LEN - 1)));
+
+        Ethernet tagged = makeFrame();
+        tagged.setVlanID((short) 10);
+        byte[] taggedFrame = tagged.serialize();
+        Assert.assertTrue(Packet.hasValidHeader(taggedFrame));
+        Assert.assertTrue(Packet.hasValidHeader(
+            Arrays.copyOf(taggedFrame, Ethernet.MIN_HEADER_LEN +
+                                       Ethernet.HEADER_TPID_LEN)));
+        Assert.assertFalse(Packet.hasValidHeader(
+            Arrays.copyOf(taggedFrame, Ethernet.MIN_HEADER_LEN + 1)));
+    }
+}